@@ -0,0 +1,238 @@
+package no.lau.mcp.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that a command refers to files only through {@code {{id}}} placeholders.
+ *
+ * Each argument is classified in one scan: an option from the allow-list below, a placeholder standing
+ * alone, or a value. Options and placeholders cannot contain a path and are passed over; values are
+ * rejected if they contain {@code ..}, a path separator, or a dotted word ending in an extension of 2 to 4
+ * letters or digits, such as {@code output.mp4}. Decimal numbers like {@code 1.25} or {@code 2.5e3} are
+ * values too, and allowed. A placeholder inside a value counts as a word, never as an extension.
+ *
+ * The outcome does not depend on the IDs referenced, so commands are cached by shape: their arguments,
+ * with those which are a single placeholder replaced by {@code {{}}}. Clients tend to send the same
+ * command for one video after another, and those are accepted without being scanned again.
+ */
+public final class CommandValidator {
+
+    /** Number of command shapes remembered as valid */
+    static final int MAX_SHAPES = 1024;
+
+    /**
+     * Options which take no file name themselves, with or without a stream specifier like {@code -c:v}.
+     * Other arguments starting with {@code -} are scanned as values.
+     */
+    private static final Set<String> OPTIONS = Set.of("i", "y", "n", "f", "c", "codec", "vcodec", "acodec", "scodec",
+            "map", "map_metadata", "map_chapters", "ss", "to", "t", "sseof", "itsoffset", "stream_loop", "vf", "af",
+            "filter", "filter_complex", "lavfi", "r", "s", "aspect", "b", "maxrate", "minrate", "bufsize", "crf", "qp",
+            "q", "preset", "tune", "profile", "level", "pix_fmt", "g", "keyint_min", "sc_threshold", "bf", "ar", "ac",
+            "an", "vn", "sn", "dn", "frames", "vframes", "aframes", "shortest", "threads", "movflags", "metadata",
+            "disposition", "tag", "loglevel", "v", "hide_banner", "nostdin", "nostats", "stats", "re", "copyts",
+            "start_at_zero", "avoid_negative_ts", "fps_mode", "vsync", "async", "strict", "hwaccel", "fflags",
+            "x264-params", "x265-params", "max_muxing_queue_size", "segment_time", "hls_time", "hls_list_size");
+    private static final String SHAPE_PLACEHOLDER = "{{}}";
+
+    /** In access order, so the eldest shape is the least recently used. Guarded by this. */
+    private final Map<List<String>, Boolean> validShapes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Boolean> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    /**
+     * @throws IllegalArgumentException naming the first argument which refers to a file directly
+     */
+    public void validate(FFmpegCommand command) {
+        List<String> shape = shape(command);
+        synchronized (this) {
+            if (validShapes.get(shape) != null) {
+                return;
+            }
+        }
+        check(command);
+        synchronized (this) {
+            validShapes.put(shape, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Validates without looking at or filling the cache.
+     * @throws IllegalArgumentException naming the first argument which refers to a file directly
+     */
+    public static void check(FFmpegCommand command) {
+        for (int i = 0; i < command.size(); i++) {
+            if (command.reference(i) == null && !isOption(command.get(i))) {
+                checkValue(command.get(i), command.argument(i));
+            }
+        }
+    }
+
+    synchronized int shapes() {
+        return validShapes.size();
+    }
+
+    private static List<String> shape(FFmpegCommand command) {
+        List<String> shape = new ArrayList<>(command.size());
+        for (int i = 0; i < command.size(); i++) {
+            shape.add(command.reference(i) != null ? SHAPE_PLACEHOLDER : command.get(i));
+        }
+        return shape;
+    }
+
+    /**
+     * @return Whether the argument is an option on the allow-list, with nothing but a stream specifier after it
+     */
+    static boolean isOption(String argument) {
+        if (argument.length() < 2 || argument.charAt(0) != '-') {
+            return false;
+        }
+        int specifier = argument.indexOf(':');
+        if (!OPTIONS.contains(specifier < 0 ? argument.substring(1) : argument.substring(1, specifier))) {
+            return false;
+        }
+        for (int i = Math.max(specifier, 1); i < argument.length(); i++) {
+            char c = argument.charAt(i);
+            if (!isAlphanumeric(c) && c != ':' && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans a value once, splitting it into dotted words: runs of letters, digits, underscores and single
+     * dots. Within a dotted word, the longest run of parts ending in an extension is the potential file name.
+     */
+    private static void checkValue(String template, FFmpegCommand.Argument argument) {
+        boolean traversal = false;
+        boolean separator = false;
+        String filename = null;
+
+        int position = 0;
+        char previous = 0;
+        // The dotted word being scanned
+        int wordStart = -1;
+        int filenameEnd = -1;
+        int partLength = 0;
+        boolean partIsExtension = true;
+        boolean previousPartEmpty = true;
+        for (FFmpegCommand.Part part : argument.parts()) {
+            if (part instanceof FFmpegCommand.Reference reference) {
+                // A word of its own, too long to be an extension
+                if (wordStart < 0) {
+                    wordStart = position;
+                }
+                partLength += reference.id().length() + 4;
+                partIsExtension = false;
+                position += reference.id().length() + 4;
+                previous = '}';
+                continue;
+            }
+            String text = ((FFmpegCommand.Text) part).text();
+            for (int i = 0; i <= text.length(); i++, position++) {
+                char c = i < text.length() ? text.charAt(i) : 0;
+                if (c == '.' && previous == '.') {
+                    traversal = true;
+                } else if (c == '/' || c == '\\') {
+                    separator = true;
+                }
+                if (i == text.length()) {
+                    // A placeholder may continue the word
+                    break;
+                }
+                previous = c;
+                if (isAlphanumeric(c) || c == '_') {
+                    if (partLength == 0 && wordStart < 0) {
+                        wordStart = position;
+                    }
+                    partLength++;
+                    partIsExtension &= c != '_';
+                    continue;
+                }
+                if (isExtension(partLength, partIsExtension, previousPartEmpty)) {
+                    filenameEnd = position;
+                }
+                if (c == '.') {
+                    previousPartEmpty = partLength == 0;
+                } else {
+                    if (filename == null && filenameEnd >= 0 && !isNumber(template, wordStart, filenameEnd)) {
+                        filename = template.substring(wordStart, filenameEnd);
+                    }
+                    wordStart = -1;
+                    filenameEnd = -1;
+                    previousPartEmpty = true;
+                }
+                partLength = 0;
+                partIsExtension = true;
+            }
+        }
+        if (isExtension(partLength, partIsExtension, previousPartEmpty)) {
+            filenameEnd = position;
+        }
+        if (filename == null && filenameEnd >= 0 && !isNumber(template, wordStart, filenameEnd)) {
+            filename = template.substring(wordStart, filenameEnd);
+        }
+
+        if (traversal) {
+            throw new IllegalArgumentException("Command contains path traversal attempt ('..'). "
+                    + "All file references must use {{id}} placeholders.");
+        }
+        if (separator) {
+            throw new IllegalArgumentException("Command contains direct path separator ('/' or '\\'). "
+                    + "All file references must use {{id}} placeholders.");
+        }
+        if (filename != null) {
+            throw new IllegalArgumentException("Command contains potential direct filename ('" + filename + "'). "
+                    + "All file references must use {{id}} placeholders.");
+        }
+    }
+
+    /**
+     * @return Whether a part just ended is an extension: 2 to 4 letters or digits after a dot and a non-empty part
+     */
+    private static boolean isExtension(int length, boolean alphanumeric, boolean previousPartEmpty) {
+        return !previousPartEmpty && alphanumeric && length >= 2 && length <= 4;
+    }
+
+    /**
+     * @return Whether {@code text[from, to)} is a decimal number with a fraction, like {@code 1.5}, {@code 1.e3}
+     *         or {@code 2.5E-0} without the sign, optionally with a {@code f} or {@code d} suffix
+     */
+    static boolean isNumber(String text, int from, int to) {
+        int i = digits(text, from, to);
+        if (i == from || i == to || text.charAt(i) != '.') {
+            return false;
+        }
+        i = digits(text, i + 1, to);
+        if (i < to && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            int exponent = i + 1;
+            i = digits(text, exponent, to);
+            if (i == exponent) {
+                return false;
+            }
+        }
+        if (i < to && "fFdD".indexOf(text.charAt(i)) >= 0) {
+            i++;
+        }
+        return i == to;
+    }
+
+    private static int digits(String text, int from, int to) {
+        int i = from;
+        while (i < to && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
@@ -1,74 +1,191 @@
 package no.lau.mcp.ffmpeg;
 
-import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class DefaultFFmpegExecutor implements FFmpegExecutor {
 
+    public static final String OUTPUT_LIMIT_PROPERTY = "ffmpeg.mcp.output.limit";
+    /**
+     * Characters kept in memory per stream: a quarter from the head, the rest from the tail.
+     * ffmpeg's stderr for a long encode can run to many megabytes; the full output goes to the execution log.
+     */
+    public static final int DEFAULT_OUTPUT_LIMIT = 8192;
+    public static final String PROGRESS_INTERVAL_PROPERTY = "ffmpeg.mcp.progress.interval";
+    /** Milliseconds between progress updates, so the stdio transport is not flooded. */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 1000;
+
     private final String ffmpegExecutablePath;
+    private final int outputLimit;
+    private final ExecutionLogs logs;
+    private final long progressIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROGRESS_INTERVAL_PROPERTY, DEFAULT_PROGRESS_INTERVAL));
 
     public DefaultFFmpegExecutor(String ffmpegExecutablePath) {
+        this(ffmpegExecutablePath, null);
+    }
+
+    /**
+     * @param logs Where the full output of each execution is kept, or null to keep only the head and tail
+     */
+    public DefaultFFmpegExecutor(String ffmpegExecutablePath, ExecutionLogs logs) {
+        this(ffmpegExecutablePath, Integer.getInteger(OUTPUT_LIMIT_PROPERTY, DEFAULT_OUTPUT_LIMIT), logs);
+    }
+
+    /**
+     * @param outputLimit Maximum number of characters kept in memory from each of stdout and stderr
+     * @param logs Where the full output of each execution is kept, or null to keep only the head and tail
+     */
+    public DefaultFFmpegExecutor(String ffmpegExecutablePath, int outputLimit, ExecutionLogs logs) {
+        if (outputLimit < 0) {
+            throw new IllegalArgumentException("outputLimit must not be negative, was " + outputLimit);
+        }
         this.ffmpegExecutablePath = ffmpegExecutablePath;
+        this.outputLimit = outputLimit;
+        this.logs = logs;
     }
 
     @Override
     public String execute(String incomingCommandArguments) throws IOException {
-        // Split the incoming command arguments safely
+        return execute(incomingCommandArguments, null);
+    }
+
+    @Override
+    public String execute(String incomingCommandArguments, Consumer<FFmpegProgress> progress) throws IOException {
+        // Parse the command arguments (handles quoted strings)
+        return execute(parseCommandArguments(incomingCommandArguments), progress, JobPriority.NORMAL);
+    }
+
+    /**
+     * Runs the command. With a progress listener, {@code -progress pipe:1} is added so ffmpeg writes
+     * machine-readable progress to stdout, unless the command already asks for progress or writes its
+     * own output to stdout.
+     */
+    @Override
+    public String execute(List<String> arguments, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
         List<String> command = new ArrayList<>();
         command.add(this.ffmpegExecutablePath);
-        
-        // Parse the command arguments (handles quoted strings)
-        command.addAll(parseCommandArguments(incomingCommandArguments));
+        boolean reportProgress = progress != null && !arguments.contains("-progress")
+                && !arguments.contains("-") && !arguments.contains("pipe:") && !arguments.contains("pipe:1");
+        if (reportProgress) {
+            command.add("-progress");
+            command.add("pipe:1");
+        }
+        command.addAll(arguments);
 
         // System.err.println("DefaultFFmpegExecutor Running command: " + command);
         ProcessBuilder pb = new ProcessBuilder(command);
         Process p = pb.start();
+        // ffmpeg polls stdin for interactive keys; nothing will ever be typed
+        p.getOutputStream().close();
 
-        StringBuilder resultBuilder = new StringBuilder();
-        StringBuilder stderrBuilder = new StringBuilder();
-        
-        // Try-with-resources to ensure streams are closed
-        try (BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
-             BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()))) {
-
-            String s;
-            while ((s = stdInput.readLine()) != null) {
-                resultBuilder.append(s).append("\n");
-                // Printing to console, to keep end user updated (use STDERR to avoid polluting JSON-RPC)
-                // System.err.println(s);
-            }
+        ExecutionLogs.Writer spill = createLog();
+        // Drain both pipes at once: reading them one after the other lets a full stderr pipe stall ffmpeg
+        StreamPump stdout = reportProgress
+                ? StreamPump.start(p.getInputStream(), "ffmpeg-progress", new ProgressParser(progress, progressIntervalNanos))
+                : StreamPump.start(p.getInputStream(), "ffmpeg-stdout", outputLimit, spill);
+        StreamPump stderr = StreamPump.start(p.getErrorStream(), "ffmpeg-stderr", outputLimit, spill);
 
-            while ((s = stdError.readLine()) != null) {
-                stderrBuilder.append(s).append("\n");
-                // System.err.println("STDERR: " + s);
-            }
+        String result;
+        String errors;
+        int exitCode;
+        try (spill) {
+            result = stdout.await();
+            errors = stderr.await();
+            exitCode = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("FFmpeg execution interrupted", e);
         }
-        
-        // Only include stderr if there was any content
-        if (stderrBuilder.length() > 0) {
-            if (resultBuilder.length() > 0) {
-                resultBuilder.append("\n--- STDERR ---\n");
-            }
-            resultBuilder.append(stderrBuilder.toString());
+
+        return combine(result, errors, exitCode);
+    }
+
+    /**
+     * Starts the processes with {@link ProcessBuilder#startPipeline}, so the operating system connects
+     * each stdout to the next stdin and no bytes pass through this JVM. Each process gets its own log,
+     * kept if its output is too long for the reply. Progress is not reported, as stdout carries the stream.
+     */
+    @Override
+    public List<String> executePipeline(List<List<String>> commands, JobPriority priority) throws IOException {
+        List<ProcessBuilder> builders = new ArrayList<>();
+        for (List<String> command : commands) {
+            List<String> arguments = new ArrayList<>();
+            arguments.add(this.ffmpegExecutablePath);
+            arguments.addAll(command);
+            builders.add(new ProcessBuilder(arguments));
         }
+        List<Process> processes = ProcessBuilder.startPipeline(builders);
+        // The first process polls stdin for interactive keys; the rest read the stream from it
+        processes.get(0).getOutputStream().close();
 
+        List<ExecutionLogs.Writer> spills = new ArrayList<>();
+        List<StreamPump> stderrs = new ArrayList<>();
+        for (Process process : processes) {
+            ExecutionLogs.Writer spill = createLog();
+            spills.add(spill);
+            stderrs.add(StreamPump.start(process.getErrorStream(), "ffmpeg-stderr", outputLimit, spill));
+        }
+        Process last = processes.get(processes.size() - 1);
+        StreamPump stdout = StreamPump.start(last.getInputStream(), "ffmpeg-stdout", outputLimit, spills.get(spills.size() - 1));
+
+        List<String> outputs = new ArrayList<>();
         try {
-            int exitCode = p.waitFor();
-            if (exitCode != 0) {
-                // Optionally log or include exit code in a more structured error
-                // For now, the stderr content should indicate the failure
-                // System.err.println("FFmpeg process exited with code: " + exitCode);
+            String result = stdout.await();
+            for (int i = 0; i < processes.size(); i++) {
+                String errors = stderrs.get(i).await();
+                int exitCode = processes.get(i).waitFor();
+                outputs.add(combine(i == processes.size() - 1 ? result : "", errors, exitCode));
             }
         } catch (InterruptedException e) {
+            processes.forEach(Process::destroyForcibly);
             Thread.currentThread().interrupt();
             throw new IOException("FFmpeg execution interrupted", e);
+        } finally {
+            for (ExecutionLogs.Writer spill : spills) {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
         }
+        return outputs;
+    }
 
+    /**
+     * @return The stdout of a run, followed by its stderr and, if it failed, the exit code notice
+     */
+    private static String combine(String result, String errors, int exitCode) {
+        // Only include stderr if there was any content
+        StringBuilder resultBuilder = new StringBuilder(result);
+        if (!errors.isEmpty()) {
+            if (resultBuilder.length() > 0) {
+                resultBuilder.append("\n--- STDERR ---\n");
+            }
+            resultBuilder.append(errors);
+        }
+        if (exitCode != 0) {
+            // stderr tells why; the notice lets callers tell a failed run from a successful one
+            resultBuilder.append('\n').append(EXIT_CODE_NOTICE).append(exitCode).append(']');
+        }
         return resultBuilder.toString();
     }
+
+    @Override
+    public ExecutionLogs.Page readLog(String logId, int fromLine, int lineCount) throws IOException {
+        if (logs == null) {
+            throw new FileNotFoundException("ffmpeg logs are not kept by this server");
+        }
+        return logs.page(logId, fromLine, lineCount);
+    }
+
+    private ExecutionLogs.Writer createLog() {
+        return logs == null ? null : logs.create();
+    }
     
     /**
      * Parse command arguments string into a list, handling quoted strings.
@@ -81,7 +198,7 @@ public class DefaultFFmpegExecutor implements FFmpegExecutor {
      * - Multiple consecutive spaces
      * - Mixed quote types
      */
-    private List<String> parseCommandArguments(String args) {
+    static List<String> parseCommandArguments(String args) {
         List<String> result = new ArrayList<>();
         if (args == null || args.trim().isEmpty()) {
             return result;
@@ -162,4 +279,21 @@ public class DefaultFFmpegExecutor implements FFmpegExecutor {
         
         return result;
     }
+
+    /**
+     * Joins arguments into a command string which {@link #parseCommandArguments} splits back into them.
+     * Arguments with whitespace, quotes or backslashes are double quoted.
+     */
+    static String joinCommandArguments(List<String> arguments) {
+        StringBuilder command = new StringBuilder();
+        for (String argument : arguments) {
+            if (command.length() > 0) {
+                command.append(' ');
+            }
+            boolean plain = !argument.isEmpty() && argument.chars()
+                    .noneMatch(c -> c == ' ' || c == '\t' || c == '"' || c == '\'' || c == '\\');
+            command.append(plain ? argument : "\"" + argument.replace("\"", "\\\"") + "\"");
+        }
+        return command.toString();
+    }
 }
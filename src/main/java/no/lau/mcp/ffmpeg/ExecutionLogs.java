@@ -0,0 +1,283 @@
+package no.lau.mcp.ffmpeg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Folder of full ffmpeg logs, one file per execution whose output is too long to return in full.
+ *
+ * Only a head and tail of each run's output is kept in memory; once a stream goes past that, the whole
+ * output is streamed here and can be read back a page at a time by log ID. Runs whose output fits in the
+ * reply, such as the {@code -i} probes, leave no log. The oldest logs are deleted once more than
+ * {@code maxLogs} are kept.
+ *
+ * Pages are read by seeking: the byte offset of every {@value #INDEX_INTERVAL}th line of a log is indexed
+ * the first time it is read, and the index is extended as the log grows.
+ */
+public class ExecutionLogs {
+
+    public static final int DEFAULT_MAX_LOGS = 200;
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionLogs.class);
+    private static final Pattern LOG_ID = Pattern.compile("log-[0-9a-f-]{36}");
+    private static final String SUFFIX = ".log";
+    /** Lines between two offsets in a log's index */
+    static final int INDEX_INTERVAL = 1000;
+
+    private final Path folder;
+    private final int maxLogs;
+    private final Map<String, LineIndex> indexes = new ConcurrentHashMap<>();
+
+    public ExecutionLogs(Path folder) {
+        this(folder, DEFAULT_MAX_LOGS);
+    }
+
+    public ExecutionLogs(Path folder, int maxLogs) {
+        if (maxLogs < 1) {
+            throw new IllegalArgumentException("maxLogs must be at least 1, was " + maxLogs);
+        }
+        this.folder = folder;
+        this.maxLogs = maxLogs;
+    }
+
+    /**
+     * One page of a log.
+     * @param fromLine Zero-based index of the first line in the page
+     * @param lineCount Number of lines in the page
+     * @param totalLines Number of lines in the whole log
+     * @param text The lines of the page, each terminated by a newline
+     */
+    public record Page(int fromLine, int lineCount, int totalLines, String text) {
+        public boolean hasMore() {
+            return fromLine + lineCount < totalLines;
+        }
+    }
+
+    /**
+     * Starts a log for a new execution. Nothing is written to disk until {@link Writer#keep} is called.
+     */
+    Writer create() {
+        return new Writer(this, "log-" + UUID.randomUUID());
+    }
+
+    /**
+     * Creates the file of a log, deleting the oldest logs if there are too many.
+     */
+    private BufferedWriter open(String id) throws IOException {
+        Files.createDirectories(folder);
+        prune();
+        return Files.newBufferedWriter(file(id), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads lines {@code fromLine} to {@code fromLine + lineCount} of a log.
+     * @throws FileNotFoundException if there is no log with that ID
+     */
+    public Page page(String logId, int fromLine, int lineCount) throws IOException {
+        if (logId == null || !LOG_ID.matcher(logId).matches() || Files.notExists(file(logId))) {
+            if (logId != null) {
+                indexes.remove(logId);
+            }
+            throw new FileNotFoundException("No ffmpeg log with ID '" + logId + "'");
+        }
+        if (fromLine < 0 || lineCount < 1) {
+            throw new IllegalArgumentException("fromLine must not be negative and lineCount must be positive");
+        }
+        Path file = file(logId);
+        LineIndex index = indexes.computeIfAbsent(logId, id -> new LineIndex());
+        int total;
+        long start;
+        synchronized (index) {
+            total = index.update(file);
+            start = index.offsets.get(Math.min(fromLine / INDEX_INTERVAL, index.offsets.size() - 1));
+        }
+        if (fromLine >= total) {
+            return new Page(fromLine, 0, total, "");
+        }
+
+        StringBuilder text = new StringBuilder();
+        int included = 0;
+        try (FileChannel channel = FileChannel.open(file);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(channel.position(start)), StandardCharsets.UTF_8))) {
+            // The index points at the start of the block of lines fromLine is in
+            int skip = fromLine % INDEX_INTERVAL;
+            while (skip > 0 && reader.readLine() != null) {
+                skip--;
+            }
+            String line;
+            while (included < lineCount && (line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+                included++;
+            }
+        }
+        return new Page(fromLine, included, total, text.toString());
+    }
+
+    private Path file(String logId) {
+        return folder.resolve(logId + SUFFIX);
+    }
+
+    private void prune() throws IOException {
+        List<Path> logs;
+        try (Stream<Path> files = Files.list(folder)) {
+            logs = files.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        if (logs.size() < maxLogs) {
+            return;
+        }
+        logs.sort(Comparator.comparingLong(path -> path.toFile().lastModified()));
+        for (Path old : logs.subList(0, logs.size() - maxLogs + 1)) {
+            try {
+                Files.deleteIfExists(old);
+                String name = old.getFileName().toString();
+                indexes.remove(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (IOException e) {
+                log.warn("Could not delete old ffmpeg log {}: {}", old, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Byte offsets of lines {@code 0}, {@link #INDEX_INTERVAL}, {@code 2 * INDEX_INTERVAL} and so on of a log.
+     * Guarded by itself.
+     */
+    private static final class LineIndex {
+
+        private final List<Long> offsets = new ArrayList<>(List.of(0L));
+        /** Number of lines ended by a newline */
+        private int lines;
+        /** Position after the last newline */
+        private long indexed;
+
+        /**
+         * Indexes the lines written since the last update.
+         * @return Number of lines in the log, counting an unfinished last line
+         */
+        int update(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file)) {
+                long size = channel.size();
+                if (size < indexed) {
+                    // Not the file that was indexed
+                    offsets.subList(1, offsets.size()).clear();
+                    lines = 0;
+                    indexed = 0;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long position = indexed;
+                channel.position(position);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position++;
+                        // A newline byte is never part of a longer UTF-8 sequence
+                        if (buffer.get() == '\n') {
+                            lines++;
+                            indexed = position;
+                            if (lines % INDEX_INTERVAL == 0) {
+                                offsets.add(position);
+                            }
+                        }
+                    }
+                    buffer.clear();
+                }
+                return position > indexed ? lines + 1 : lines;
+            }
+        }
+    }
+
+    /**
+     * Appends output from several streams to one log. Writes are whole chunks, so lines from
+     * stdout and stderr interleave but are not torn apart. The output is held in memory until
+     * {@link #keep} is called, so a run whose output is returned in full leaves no file behind.
+     */
+    static class Writer implements Closeable {
+
+        private final ExecutionLogs logs;
+        private final String id;
+        /** Output appended before the log was kept */
+        private final StringBuilder pending = new StringBuilder();
+        private BufferedWriter out;
+        private IOException failure;
+
+        private Writer(ExecutionLogs logs, String id) {
+            this.logs = logs;
+            this.id = id;
+        }
+
+        String id() {
+            return id;
+        }
+
+        /**
+         * @return Whether the output is written to disk, so the log can be read back by its ID
+         */
+        synchronized boolean kept() {
+            return out != null && failure == null;
+        }
+
+        /**
+         * Writes the output appended so far to disk, and everything appended from now on.
+         */
+        synchronized void keep() {
+            if (out != null || failure != null) {
+                return;
+            }
+            try {
+                out = logs.open(id);
+                out.append(pending);
+            } catch (IOException e) {
+                failure = e;
+                log.warn("Could not create ffmpeg log, keeping only head and tail of the output: {}", e.getMessage());
+            }
+            pending.setLength(0);
+            pending.trimToSize();
+        }
+
+        synchronized void append(CharSequence chunk) {
+            if (failure != null) {
+                return;
+            }
+            if (out == null) {
+                pending.append(chunk);
+                return;
+            }
+            try {
+                out.append(chunk);
+            } catch (IOException e) {
+                // Keep the run going; the in-memory head and tail are still returned
+                failure = e;
+                log.warn("Could not write ffmpeg log {}: {}", id, e.getMessage());
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.file.FileManagerUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An ffmpeg command split into its arguments once, with {@code {{id}}} video references kept as typed
+ * placeholders inside them.
+ *
+ * Commands arrive as one string. They are split here, with the quoting rules of
+ * {@link DefaultFFmpegExecutor#parseCommandArguments}, and from then on validated, rewritten and
+ * resolved argument by argument until the executor starts ffmpeg with them. A resolved path is always
+ * a single argument, whatever spaces or quotes it contains, and nothing splits the command again.
+ */
+public final class FFmpegCommand {
+
+    /** Part of an argument: literal text, or a video reference */
+    sealed interface Part permits Text, Reference {
+    }
+
+    record Text(String text) implements Part {
+    }
+
+    record Reference(String id) implements Part {
+    }
+
+    /**
+     * One argument, as the literal text and video references it consists of.
+     */
+    record Argument(List<Part> parts) {
+
+        /**
+         * Splits the template at the placeholders {@link FileManagerUtils#scanPlaceholders} finds.
+         */
+        static Argument of(String template) {
+            List<Part> parts = new ArrayList<>(1);
+            int[] copiedUpTo = {0};
+            FileManagerUtils.scanPlaceholders(template, (start, end, id) -> {
+                if (start > copiedUpTo[0]) {
+                    parts.add(new Text(template.substring(copiedUpTo[0], start)));
+                }
+                parts.add(new Reference(id));
+                copiedUpTo[0] = end;
+            });
+            if (copiedUpTo[0] < template.length() || parts.isEmpty()) {
+                parts.add(new Text(template.substring(copiedUpTo[0])));
+            }
+            return new Argument(List.copyOf(parts));
+        }
+
+        /**
+         * @return The ID if the argument is a single video reference and nothing else, or null
+         */
+        String reference() {
+            return parts.size() == 1 && parts.get(0) instanceof Reference reference ? reference.id() : null;
+        }
+
+        List<String> references() {
+            List<String> ids = new ArrayList<>(1);
+            for (Part part : parts) {
+                if (part instanceof Reference reference) {
+                    ids.add(reference.id());
+                }
+            }
+            return ids;
+        }
+
+        /**
+         * @param replacement Text for each video reference ID; null keeps the placeholder
+         */
+        String render(Function<String, String> replacement) {
+            if (parts.size() == 1 && parts.get(0) instanceof Text text) {
+                return text.text();
+            }
+            StringBuilder rendered = new StringBuilder();
+            for (Part part : parts) {
+                if (part instanceof Reference reference) {
+                    String value = replacement.apply(reference.id());
+                    rendered.append(value == null ? "{{" + reference.id() + "}}" : value);
+                } else {
+                    rendered.append(((Text) part).text());
+                }
+            }
+            return rendered.toString();
+        }
+    }
+
+    /** Options which take no value, so the argument after them is an output if it is not an option */
+    static final Set<String> FLAGS = Set.of("-y", "-n", "-hide_banner", "-nostdin", "-nostats", "-stats",
+            "-shortest", "-an", "-vn", "-sn", "-dn", "-re", "-copyts", "-benchmark");
+
+    private final List<Argument> arguments;
+    private final List<String> templates;
+
+    private FFmpegCommand(List<Argument> arguments, List<String> templates) {
+        this.arguments = arguments;
+        this.templates = templates;
+    }
+
+    /**
+     * Splits a command string into its arguments, see {@link DefaultFFmpegExecutor#parseCommandArguments}.
+     */
+    public static FFmpegCommand parse(String command) {
+        return of(DefaultFFmpegExecutor.parseCommandArguments(command));
+    }
+
+    /**
+     * @param arguments Arguments with {@code {{id}}} placeholders, one per element
+     */
+    public static FFmpegCommand of(List<String> arguments) {
+        List<Argument> parsed = new ArrayList<>(arguments.size());
+        for (String argument : arguments) {
+            parsed.add(Argument.of(argument));
+        }
+        return new FFmpegCommand(List.copyOf(parsed), List.copyOf(arguments));
+    }
+
+    /**
+     * @return The arguments with {@code {{id}}} placeholders
+     */
+    public List<String> arguments() {
+        return templates;
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    /**
+     * @return Argument {@code i} with {@code {{id}}} placeholders
+     */
+    public String get(int i) {
+        return templates.get(i);
+    }
+
+    Argument argument(int i) {
+        return arguments.get(i);
+    }
+
+    /**
+     * @return Whether argument {@code i} is an output file: neither an option nor the value of one
+     */
+    boolean isOutput(int i) {
+        if (isOption(templates.get(i))) {
+            return false;
+        }
+        return i == 0 || !isOption(templates.get(i - 1)) || FLAGS.contains(templates.get(i - 1));
+    }
+
+    private static boolean isOption(String argument) {
+        return argument.length() > 1 && argument.startsWith("-");
+    }
+
+    /**
+     * @return The ID if argument {@code i} is a single video reference and nothing else, or null
+     */
+    public String reference(int i) {
+        return arguments.get(i).reference();
+    }
+
+    /**
+     * @return The IDs of every video reference, in order
+     */
+    public List<String> references() {
+        List<String> ids = new ArrayList<>();
+        for (Argument argument : arguments) {
+            ids.addAll(argument.references());
+        }
+        return ids;
+    }
+
+    /**
+     * @param ids New ID for each video reference ID; null or the same ID keeps it
+     * @return The command with the video references renamed, or this command if none changed
+     */
+    public FFmpegCommand withReferences(Function<String, String> ids) {
+        List<String> renamed = render(id -> {
+            String renamedId = ids.apply(id);
+            return renamedId == null || renamedId.equals(id) ? null : "{{" + renamedId + "}}";
+        });
+        return renamed.equals(templates) ? this : of(renamed);
+    }
+
+    /**
+     * Replaces the video references with the absolute paths they point to.
+     * @return The arguments to start ffmpeg with
+     * @throws IllegalArgumentException if a video reference is not found
+     */
+    public List<String> resolve(Map<String, Path> references) {
+        return render(id -> {
+            Path path = references.get(id);
+            if (path == null) {
+                throw new IllegalArgumentException("Video reference '" + id + "' not found.");
+            }
+            return path.toAbsolutePath().toString();
+        });
+    }
+
+    /**
+     * @param replacement Text for each video reference ID; null keeps the placeholder
+     * @return Every argument with its video references replaced
+     */
+    List<String> render(Function<String, String> replacement) {
+        List<String> rendered = new ArrayList<>(arguments.size());
+        for (Argument argument : arguments) {
+            rendered.add(argument.render(replacement));
+        }
+        return rendered;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof FFmpegCommand command && templates.equals(command.templates);
+    }
+
+    @Override
+    public int hashCode() {
+        return templates.hashCode();
+    }
+
+    /**
+     * @return The command as a string which {@link #parse} splits back into the same arguments
+     */
+    @Override
+    public String toString() {
+        return DefaultFFmpegExecutor.joinCommandArguments(templates);
+    }
+}
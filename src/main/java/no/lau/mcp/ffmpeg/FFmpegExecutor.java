@@ -1,11 +1,18 @@
 package no.lau.mcp.ffmpeg;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Interface for executing FFmpeg commands.
  */
 public interface FFmpegExecutor {
+
+    /** Start of the line appended to the output when ffmpeg exits with a non-zero code. */
+    String EXIT_CODE_NOTICE = "[ffmpeg exited with code ";
+
     /**
      * Executes the given FFmpeg command string.
      *
@@ -14,4 +21,70 @@ public interface FFmpegExecutor {
      * @throws IOException if an error occurs during execution.
      */
     String execute(String command) throws IOException;
+
+    /**
+     * Executes the given FFmpeg command string, reporting progress while it runs.
+     * Executors which cannot report progress just execute the command.
+     *
+     * @param command The command string (arguments only, executable path is handled by implementation).
+     * @param progress Receives progress updates, or null.
+     * @return The output from FFmpeg (stdout and stderr).
+     * @throws IOException if an error occurs during execution.
+     */
+    default String execute(String command, Consumer<FFmpegProgress> progress) throws IOException {
+        return execute(command);
+    }
+
+    /**
+     * Executes the given FFmpeg command string with a scheduling priority.
+     * Executors which do not queue commands ignore the priority.
+     *
+     * @param command The command string (arguments only, executable path is handled by implementation).
+     * @param progress Receives progress updates, or null.
+     * @param priority Order in which queued commands are started.
+     * @return The output from FFmpeg (stdout and stderr).
+     * @throws IOException if an error occurs during execution.
+     */
+    default String execute(String command, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+        return execute(command, progress);
+    }
+
+    /**
+     * Executes the given arguments as they are, without splitting or unquoting them again.
+     * Executors which only take command strings get the arguments joined, with quotes where needed.
+     *
+     * @param arguments The arguments, one per element (executable path is handled by implementation).
+     * @param progress Receives progress updates, or null.
+     * @param priority Order in which queued commands are started.
+     * @return The output from FFmpeg (stdout and stderr).
+     * @throws IOException if an error occurs during execution.
+     */
+    default String execute(List<String> arguments, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+        return execute(DefaultFFmpegExecutor.joinCommandArguments(arguments), progress, priority);
+    }
+
+    /**
+     * Runs the commands at the same time, with the stdout of each connected to the stdin of the next,
+     * so a command writing {@code pipe:1} streams straight into the next one reading {@code pipe:0}.
+     *
+     * @param commands The arguments of each command, producer first.
+     * @param priority Order in which queued commands are started.
+     * @return The output of each command, in the same order.
+     * @throws IOException if the executor cannot connect processes, or an error occurs during execution.
+     */
+    default List<String> executePipeline(List<List<String>> commands, JobPriority priority) throws IOException {
+        throw new IOException("This ffmpeg executor cannot run pipelines");
+    }
+
+    /**
+     * Reads a page of the full output of an earlier execution, for executors which keep it.
+     *
+     * @param logId The log ID mentioned in the output of the execution.
+     * @param fromLine Zero-based index of the first line to read.
+     * @param lineCount Maximum number of lines to read.
+     * @throws FileNotFoundException if there is no such log.
+     */
+    default ExecutionLogs.Page readLog(String logId, int fromLine, int lineCount) throws IOException {
+        throw new FileNotFoundException("No ffmpeg log with ID '" + logId + "'");
+    }
 }
@@ -7,17 +7,24 @@ import io.modelcontextprotocol.server.McpSyncServerExchange;
 import io.modelcontextprotocol.server.transport.StdioServerTransportProvider;
 import io.modelcontextprotocol.spec.McpSchema.Tool;
 import io.modelcontextprotocol.spec.McpSchema.CallToolResult;
+import io.modelcontextprotocol.spec.McpSchema.LoggingLevel;
+import io.modelcontextprotocol.spec.McpSchema.LoggingMessageNotification;
 import no.lau.mcp.file.FileManagerImpl;
+import no.lau.mcp.file.IndexingState;
+import no.lau.mcp.file.SourceFolderWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Advanced MCP Server implementation that wraps FFmpeg functionality with multiple tools.
@@ -27,7 +34,17 @@ public class FFmpegMcpServerAdvanced {
 
 	private final McpSyncServer server;
 	FFmpegWrapper ffmpeg;
+	private final JobManager jobs;
+	private final CommandValidator validator = new CommandValidator();
 	private static final Logger log = LoggerFactory.getLogger(FFmpegMcpServerAdvanced.class);
+	private static final int DEFAULT_LOG_PAGE_LINES = 200;
+	private static final int MAX_LOG_PAGE_LINES = 1000;
+	/** Parts of long outputs kept in responses; the tail holds ffmpeg's errors and final statistics. */
+	private static final int RESPONSE_HEAD = 2000;
+	private static final int RESPONSE_TAIL = 8000;
+	private static final int DEFAULT_JOB_WAIT_SECONDS = 60;
+	/** Stays well below the request timeout, so job_wait itself never times out. */
+	private static final int MAX_JOB_WAIT_SECONDS = 240;
 	// Track video references for better user experience
 
 
@@ -38,8 +55,28 @@ public class FFmpegMcpServerAdvanced {
 		//Wiring the app with all relevant configuration
 		this(new StdioServerTransportProvider(new ObjectMapper()),
 				new FFmpegWrapper(
-						new FileManagerImpl("/tmp/vids/sources", "/tmp/vids/outputs")
-						, new DefaultFFmpegExecutor("/usr/local/bin/ffmpeg")));
+						createFileManager("/tmp/vids/sources", "/tmp/vids/outputs")
+						, new FFmpegScheduler(new DefaultFFmpegExecutor("/usr/local/bin/ffmpeg",
+								new ExecutionLogs(Path.of("/tmp/vids/outputs", "ffmpeg-logs")))),
+						new ResultCache(Path.of("/tmp/vids/outputs", "ffmpeg-cache")),
+						new FFprobe("/usr/local/bin/ffprobe"),
+						KeyframeIndex.forSourceFolder(Path.of("/tmp/vids/sources"), new FFprobe("/usr/local/bin/ffprobe"))));
+	}
+
+	/**
+	 * Creates the file manager, watching the source folder for changes if enabled
+	 * through {@value SourceFolderWatcher#WATCH_PROPERTY}.
+	 */
+	private static FileManagerImpl createFileManager(String sourceFolder, String destinationFolder) {
+		FileManagerImpl fileManager = new FileManagerImpl(sourceFolder, destinationFolder);
+		if (Boolean.getBoolean(SourceFolderWatcher.WATCH_PROPERTY)) {
+			try {
+				fileManager.watchSourceFolder(SourceFolderWatcher.DEFAULT_DEBOUNCE);
+			} catch (IOException e) {
+				log.warn("Could not watch source folder {}: {}", sourceFolder, e.getMessage());
+			}
+		}
+		return fileManager;
 	}
 
 	/**
@@ -49,6 +86,7 @@ public class FFmpegMcpServerAdvanced {
 	 */
 	public FFmpegMcpServerAdvanced(StdioServerTransportProvider transportProvider, FFmpegWrapper ffmpegWrapperInstance) {
 		this.ffmpeg = ffmpegWrapperInstance;
+		this.jobs = new JobManager(ffmpegWrapperInstance);
 
 
 		// Define the JSON Schemas for the tools
@@ -76,6 +114,10 @@ public class FFmpegMcpServerAdvanced {
 				        "videoref": {
 				            "type": "string",
 				            "description": "The reference to the video file to get information about."
+				        },
+				        "raw": {
+				            "type": "boolean",
+				            "description": "Return ffmpeg's own text description instead of JSON. Defaults to false."
 				        }
 				    },
 				    "required": ["videoref"],
@@ -110,6 +152,14 @@ public class FFmpegMcpServerAdvanced {
 				        "targetName": {
 				            "type": "string",
 				            "description": "A friendly name to reference the target video by (e.g., 'output_render'). This name will be used in {{targetName}} placeholders."
+				        },
+				        "intermediate": {
+				            "type": "boolean",
+				            "description": "Set to true for a temporary video only read by later ffmpeg commands. Simple commands writing it are deferred and fused into the command reading it, so it is never encoded on its own. Defaults to false."
+				        },
+				        "pipe": {
+				            "type": "boolean",
+				            "description": "Set to true for a stream between two consecutive commands of ffmpeg_pipeline. No file is created, and other tools cannot read it. Defaults to false."
 				        }
 				    },
 				    "required": ["targetName"],
@@ -117,6 +167,188 @@ public class FFmpegMcpServerAdvanced {
 				}
 				""";
 
+		// Parallel transcode tool schema
+		String parallelTranscodeSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "videoref": {
+				            "type": "string",
+				            "description": "The source video to encode."
+				        },
+				        "target": {
+				            "type": "string",
+				            "description": "The target video to write, registered with addTargetVideo."
+				        },
+				        "videoOptions": {
+				            "type": "string",
+				            "description": "Video encoding options, e.g. '-c:v libx264 -preset medium -crf 20'. Per-frame filters with -vf are allowed."
+				        },
+				        "audioOptions": {
+				            "type": "string",
+				            "description": "Audio encoding options. Defaults to '-c:a copy'."
+				        },
+				        "segments": {
+				            "type": "integer",
+				            "minimum": 1,
+				            "description": "Number of segments to encode at the same time. Defaults to one per 4 CPU cores."
+				        }
+				    },
+				    "required": ["videoref", "target", "videoOptions"],
+				    "additionalProperties": false
+				}
+				""";
+
+		// Pipeline tool schema
+		String pipelineSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "commands": {
+				            "type": "array",
+				            "items": {"type": "string"},
+				            "minItems": 2,
+				            "description": "FFmpeg commands, producer first. Each command but the last ends with a pipe target from addTargetVideo, which the next command reads with -i."
+				        }
+				    },
+				    "required": ["commands"],
+				    "additionalProperties": false
+				}
+				""";
+
+		// Log paging tool schema
+		String ffmpegLogSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "logId": {
+				            "type": "string",
+				            "description": "The ffmpeg log ID mentioned in truncated ffmpeg output."
+				        },
+				        "fromLine": {
+				            "type": "integer",
+				            "description": "Zero-based line to start reading from. Defaults to 0."
+				        },
+				        "lineCount": {
+				            "type": "integer",
+				            "description": "Maximum number of lines to return. Defaults to 200."
+				        }
+				    },
+				    "required": ["logId"],
+				    "additionalProperties": false
+				}
+				""";
+
+		// Keyframe index tool schema
+		String keyframesSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "videoref": {
+				            "type": "string",
+				            "description": "The reference to the source video whose keyframes to list."
+				        },
+				        "from": {
+				            "type": "number",
+				            "description": "Start of the listed range in seconds. The keyframe a seek to this time lands on is included. Defaults to 0."
+				        },
+				        "to": {
+				            "type": "number",
+				            "description": "End of the listed range in seconds. Defaults to the end of the video."
+				        }
+				    },
+				    "required": ["videoref"],
+				    "additionalProperties": false
+				}
+				""";
+
+		// Trim tool schema
+		String trimSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "videoref": {
+				            "type": "string",
+				            "description": "The reference to the source video to cut from."
+				        },
+				        "target": {
+				            "type": "string",
+				            "description": "The target video to write the clip to, registered with addTargetVideo."
+				        },
+				        "start": {
+				            "type": "number",
+				            "description": "Start of the clip in seconds from the start of the source."
+				        },
+				        "end": {
+				            "type": "number",
+				            "description": "End of the clip in seconds. Defaults to the end of the source."
+				        }
+				    },
+				    "required": ["videoref", "target", "start"],
+				    "additionalProperties": false
+				}
+				""";
+
+		// Job tool schemas
+		String submitSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "command": {
+				            "type": "string",
+				            "description": "The FFmpeg command to run in the background. {{videoref}} can be used as a placeholder for video files."
+				        },
+				        "priority": {
+				            "type": "string",
+				            "enum": ["LOW", "NORMAL", "HIGH"],
+				            "description": "Order in which queued jobs get CPU cores. Defaults to NORMAL."
+				        }
+				    },
+				    "required": ["command"],
+				    "additionalProperties": false
+				}
+				""";
+
+		String jobIdSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "jobId": {
+				            "type": "string",
+				            "description": "The job ID returned by ffmpeg_submit."
+				        }
+				    },
+				    "required": ["jobId"],
+				    "additionalProperties": false
+				}
+				""";
+
+		String jobWaitSchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {
+				        "jobId": {
+				            "type": "string",
+				            "description": "The job ID returned by ffmpeg_submit."
+				        },
+				        "timeoutSeconds": {
+				            "type": "integer",
+				            "description": "How long to wait for the job to finish. Defaults to 60, at most 240."
+				        }
+				    },
+				    "required": ["jobId"],
+				    "additionalProperties": false
+				}
+				""";
+
+		String emptySchemaJson = """
+				{
+				    "type": "object",
+				    "properties": {},
+				    "additionalProperties": false
+				}
+				""";
+
 		// Create the server with multiple FFmpeg-related tools
 		this.server = McpServer.sync(transportProvider)
 			.serverInfo("ffmpeg-mcp-server", "1.0.0")
@@ -125,9 +357,22 @@ public class FFmpegMcpServerAdvanced {
 					This server provides FFmpeg video processing capabilities. Available tools:
 
 					1. ffmpeg - Execute FFmpeg commands on video files. Use {{source_id}} for source files and {{target_id}} for output files.
-					2. video_info - Get information about a source video file.
-					3. list_registered_videos - List available source videos.
-					4. addTargetVideo - Register a target video name and generate a path for an output file.
+					2. video_info - Get information about a source video file as JSON: format, duration, bit rate and per stream codec, profile, resolution, pixel format, frame rate, audio layout and keyframe interval. Pass raw=true for ffmpeg's text description.
+					3. list_registered_videos - List available source videos. Videos still being indexed are marked with their indexing state and can be used right away.
+					4. addTargetVideo - Register a target video name and generate a path for an output file. Pass intermediate=true for temporary videos only read by later ffmpeg commands.
+					5. ffmpeg_log - Read the full output of an earlier ffmpeg run page by page, when its output was truncated.
+					6. ffmpeg_submit - Start an FFmpeg command in the background and get a job ID right away. Prefer this for long encodes.
+					7. job_status, job_wait, job_cancel - Check on, wait for or stop a submitted job.
+					8. ffmpeg_queue - Show the CPU core budget, queued and running jobs, and queue wait times.
+					9. ffmpeg_cache - Show how often earlier video_info answers and results were reused instead of running ffmpeg again.
+					10. keyframes - List the keyframe times and byte offsets of a source video, and its average and longest keyframe interval.
+					11. trim - Cut a clip out of a source video into a target video. Only the partial keyframe intervals at the clip's edges are re-encoded; the rest is copied, so long clips take seconds instead of a full encode.
+					12. ffmpeg_pipeline - Run commands that feed each other at the same time. Register the streams between them with addTargetVideo pipe=true; each command but the last writes one as its output, and the next reads it with -i. No intermediate file is written.
+					13. parallel_transcode - Encode a long source video into a target with several ffmpeg processes at once, each taking a keyframe-aligned segment; much faster than one process on machines with many cores.
+
+					To trim, put -ss after -i, e.g. "-i {{source}} -ss 3600 -t 10 ...": the start is frame accurate, and, in commands with one output and no filters, is turned into a seek to the keyframe before it so ffmpeg does not decode everything up to the cut.
+
+					For multi-step edits, register the in-between videos with intermediate=true and write each step as "-i {{input}} -vf ... -af ... {{next}}". Those steps are not run on their own: the command reading the last one runs the whole chain as a single ffmpeg invocation, with all the filters combined.
 
 					Use {{name}} as a placeholder in FFmpeg commands to reference registered source or target videos.
 					Target video placeholders (e.g., {{target_video_1}}) must be registered using 'addTargetVideo' before use in an 'ffmpeg' command.
@@ -140,6 +385,28 @@ public class FFmpegMcpServerAdvanced {
 					this::listRegisteredVideos)
 			.tool(new Tool("addTargetVideo", "Registers a name and generates a filepath for a target (output) video.", addTargetVideoSchemaJson),
 					this::handleAddTargetVideo)
+			.tool(new Tool("ffmpeg_log", "Read a page of the full output of an earlier ffmpeg run", ffmpegLogSchemaJson),
+					this::handleFFmpegLog)
+			.tool(new Tool("ffmpeg_submit", "Start an FFmpeg command in the background and return a job ID immediately", submitSchemaJson),
+					this::handleSubmit)
+			.tool(new Tool("job_status", "Get the state of a submitted FFmpeg job, and its output once finished", jobIdSchemaJson),
+					this::handleJobStatus)
+			.tool(new Tool("job_wait", "Wait for a submitted FFmpeg job to finish, up to a timeout", jobWaitSchemaJson),
+					this::handleJobWait)
+			.tool(new Tool("job_cancel", "Cancel a queued or running FFmpeg job", jobIdSchemaJson),
+					this::handleJobCancel)
+			.tool(new Tool("ffmpeg_queue", "Show the CPU core budget, queued and running FFmpeg jobs, and queue wait times", emptySchemaJson),
+					this::handleQueue)
+			.tool(new Tool("ffmpeg_cache", "Show video_info and result cache hits, misses and size. Repeating a command on the same sources reuses the earlier output files.", emptySchemaJson),
+					this::handleCache)
+			.tool(new Tool("keyframes", "List the keyframes of a source video, to choose cut points that need no re-encoding", keyframesSchemaJson),
+					this::handleKeyframes)
+			.tool(new Tool("trim", "Cut a clip out of a source video into a target video, re-encoding only the edges and copying the rest", trimSchemaJson),
+					this::handleTrim)
+			.tool(new Tool("ffmpeg_pipeline", "Run dependent FFmpeg commands at the same time, streaming each one's output into the next through a pipe instead of a file", pipelineSchemaJson),
+					this::handlePipeline)
+			.tool(new Tool("parallel_transcode", "Encode a whole source video using all CPU cores, by encoding keyframe-aligned segments of it at the same time and joining them", parallelTranscodeSchemaJson),
+					this::handleParallelTranscode)
 			.build();
 	}
 
@@ -153,10 +420,12 @@ public class FFmpegMcpServerAdvanced {
 		String cmd = (String) args.get("command");
 
 		try {
+			// Parse once; validation, reference resolution and execution all work on the arguments
+			FFmpegCommand command = FFmpegCommand.parse(cmd);
 			// Validate command structure to prevent direct path injection
-			validateCommandStructure(cmd);
+			validateCommandStructure(command);
 			// Replace any video references in the command
-			String result = ffmpeg.doffMPEGStuff(cmd);
+			String result = ffmpeg.doffMPEGStuff(command, progress -> sendProgress(exchange, progress), JobPriority.HIGH);
 
 			// Build a successful result - ensure content is safe for JSON
 			return CallToolResult.builder().addTextContent(sanitizeForJson(result)).isError(false).build();
@@ -181,19 +450,37 @@ public class FFmpegMcpServerAdvanced {
 		}
 	}
 
+	/**
+	 * Pushes an ffmpeg progress update to the client. MCP SDK 0.10.0 has no progress notifications,
+	 * so updates go out as logging notifications from the "ffmpeg-progress" logger.
+	 */
+	private static void sendProgress(McpSyncServerExchange exchange, FFmpegProgress progress) {
+		if (exchange == null) {
+			return;
+		}
+		exchange.loggingNotification(LoggingMessageNotification.builder()
+				.level(LoggingLevel.INFO)
+				.logger("ffmpeg-progress")
+				.data(progress.toString())
+				.build());
+	}
+
 	/**
 	 * Handle the video_info tool to get information about a video file.
 	 * @param exchange The server exchange for communicating with the client
-	 * @param args The tool arguments containing the video reference
-	 * @return Information about the video file
+	 * @param args The tool arguments containing the video reference, and whether to return raw text
+	 * @return Information about the video file, as JSON unless raw text was asked for
 	 */
 	private CallToolResult handleVideoInfo(McpSyncServerExchange exchange, Map<String, Object> args) {
 		String videoRef = (String) args.get("videoref");
+		boolean raw = Boolean.TRUE.equals(args.get("raw"));
 		String textContent;
 		boolean isError = true;
 		try {
-			String rezz = ffmpeg.informationFromVideo(videoRef);
-			textContent = "Video Information for " + videoRef + ":\n" + sanitizeForJson(rezz);
+			String rezz = ffmpeg.informationFromVideo(videoRef, raw);
+			textContent = raw
+					? "Video Information for " + videoRef + ":\n" + indexingNote(videoRef) + sanitizeForJson(rezz)
+					: indexingNote(videoRef) + rezz;
 			isError = false;
 		} catch (FileNotFoundException e) {
 			textContent = "Video reference not found: " + videoRef;
@@ -207,6 +494,117 @@ public class FFmpegMcpServerAdvanced {
 				.build();
 	}
 
+	/**
+	 * Handle the keyframes tool, listing keyframes of a source video from its keyframe index.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the video reference and the range to list
+	 * @return The keyframes as JSON
+	 */
+	private CallToolResult handleKeyframes(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String videoRef = (String) args.get("videoref");
+		double from = args.get("from") instanceof Number n ? n.doubleValue() : 0;
+		double to = args.get("to") instanceof Number n ? n.doubleValue() : Double.MAX_VALUE;
+		try {
+			String json = ffmpeg.keyframesOfVideo(videoRef, from, to);
+			return CallToolResult.builder().addTextContent(indexingNote(videoRef) + json).isError(false).build();
+		} catch (FileNotFoundException e) {
+			log.warn("Could not find videoRef: {}", videoRef);
+			return CallToolResult.builder().addTextContent("Video reference not found: " + videoRef).isError(true).build();
+		} catch (IOException e) {
+			return CallToolResult.builder()
+					.addTextContent("Error listing keyframes of " + videoRef + ": " + e.getMessage())
+					.isError(true)
+					.build();
+		}
+	}
+
+	/**
+	 * Handle the trim tool, cutting a clip out of a source video with as little re-encoding as possible.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the source and target references and the range
+	 * @return What was copied and re-encoded
+	 */
+	private CallToolResult handleTrim(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String videoRef = (String) args.get("videoref");
+		String target = (String) args.get("target");
+		double start = args.get("start") instanceof Number n ? n.doubleValue() : 0;
+		double end = args.get("end") instanceof Number n ? n.doubleValue() : 0;
+		try {
+			String result = ffmpeg.trim(videoRef, target, start, end, JobPriority.HIGH);
+			return CallToolResult.builder().addTextContent(sanitizeForJson(result)).isError(false).build();
+		} catch (FileNotFoundException e) {
+			return CallToolResult.builder().addTextContent("Video reference not found: " + e.getMessage()).isError(true).build();
+		} catch (IllegalArgumentException e) {
+			return CallToolResult.builder().addTextContent("Error: " + e.getMessage()).isError(true).build();
+		} catch (IOException e) {
+			log.error("Error trimming {}: {}", videoRef, e.getMessage());
+			return CallToolResult.builder()
+					.addTextContent("Error trimming " + videoRef + ": " + sanitizeForJson(e.getMessage()))
+					.isError(true)
+					.build();
+		}
+	}
+
+	/**
+	 * Handle the ffmpeg_pipeline tool, running dependent commands at the same time connected by pipes.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the commands
+	 * @return The output of each command
+	 */
+	private CallToolResult handlePipeline(McpSyncServerExchange exchange, Map<String, Object> args) {
+		try {
+			List<FFmpegCommand> commands = new ArrayList<>();
+			if (args.get("commands") instanceof List<?> list) {
+				for (Object command : list) {
+					commands.add(FFmpegCommand.parse(String.valueOf(command)));
+				}
+			}
+			for (FFmpegCommand command : commands) {
+				validateCommandStructure(command);
+			}
+			String result = ffmpeg.pipeline(commands, JobPriority.HIGH);
+			return CallToolResult.builder().addTextContent(sanitizeForJson(result)).isError(false).build();
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid FFmpeg pipeline: {}", e.getMessage());
+			return CallToolResult.builder().addTextContent("Error: " + e.getMessage()).isError(true).build();
+		} catch (IOException e) {
+			log.error("FFmpeg pipeline failed: {}", e.getMessage());
+			return CallToolResult.builder()
+					.addTextContent("FFmpeg pipeline failed: " + sanitizeForJson(e.getMessage()))
+					.isError(true)
+					.build();
+		}
+	}
+
+	/**
+	 * Handle the parallel_transcode tool, encoding segments of a source video at the same time.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the source and target references, the encoding options and segment count
+	 * @return How the source was split and encoded
+	 */
+	private CallToolResult handleParallelTranscode(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String videoRef = (String) args.get("videoref");
+		String target = (String) args.get("target");
+		String videoOptions = (String) args.get("videoOptions");
+		String audioOptions = args.get("audioOptions") instanceof String options ? options : "-c:a copy";
+		int segments = args.get("segments") instanceof Number n ? n.intValue() : 0;
+		try {
+			String result = ffmpeg.parallelTranscode(videoRef, target, videoOptions == null ? "" : videoOptions,
+					audioOptions, segments, JobPriority.HIGH);
+			return CallToolResult.builder().addTextContent(sanitizeForJson(result)).isError(false).build();
+		} catch (FileNotFoundException e) {
+			return CallToolResult.builder().addTextContent("Video reference not found: " + e.getMessage()).isError(true).build();
+		} catch (IllegalArgumentException e) {
+			return CallToolResult.builder().addTextContent("Error: " + e.getMessage()).isError(true).build();
+		} catch (IOException e) {
+			log.error("Error transcoding {}: {}", videoRef, e.getMessage());
+			return CallToolResult.builder()
+					.addTextContent("Error transcoding " + videoRef + ": " + sanitizeForJson(e.getMessage()))
+					.isError(true)
+					.build();
+		}
+	}
+
 	/**
 	 * Handle the register_video tool to register a video file with a friendly name.
 	 * @param exchange The server exchange for communicating with the client
@@ -221,7 +619,9 @@ public class FFmpegMcpServerAdvanced {
 
 			CallToolResult.Builder builder =  CallToolResult.builder();
 			for (String vidId : vidIds) {
-				builder.addTextContent("Video ID: " + vidId);
+				IndexingState state = ffmpeg.fileManager().indexingState(vidId);
+				String suffix = state == null || state == IndexingState.INDEXED ? "" : " (indexing: " + state + ")";
+				builder.addTextContent("Video ID: " + vidId + suffix);
 			}
 			return builder.isError(false).build();
 		}
@@ -234,57 +634,31 @@ public class FFmpegMcpServerAdvanced {
 	}
 
 	/**
-	 * Validates the FFmpeg command string to ensure no direct file/folder paths are used.
+	 * Tells the client when a video is still registered under a provisional ID.
+	 */
+	private String indexingNote(String videoRef) {
+		IndexingState state = ffmpeg.fileManager().indexingState(videoRef);
+		if (state == null || state == IndexingState.INDEXED) {
+			return "";
+		}
+		return "Indexing state: " + state + " (ID is provisional until content hashing finishes)\n";
+	}
+
+	/**
+	 * Validates the parsed FFmpeg command to ensure no direct file/folder paths are used.
 	 * All file references must use the {{id}} placeholder syntax.
 	 *
-	 * @param command The FFmpeg command string to validate.
+	 * @param command The FFmpeg command to validate, argument by argument; see {@link CommandValidator}.
 	 * @throws IllegalArgumentException if the command contains direct path references.
 	 */
-	private void validateCommandStructure(String command) throws IllegalArgumentException {
-		// Replace all {{placeholder}} instances with a benign, unique marker string
-		// that does not contain path characters or typical filename patterns.
-		String commandWithoutPlaceholders = command.replaceAll("\\{\\{.*?}}", "MCP_GENERATED_PLACEHOLDER");
-
-		// 1. Check for path traversal attempts
-		if (commandWithoutPlaceholders.contains("..")) {
-			throw new IllegalArgumentException(
-					"Command contains path traversal attempt ('..'). " +
-							"All file references must use {{id}} placeholders."
-			);
-		}
-
-		// 2. Check for explicit path separators
-		if (commandWithoutPlaceholders.contains("/") || commandWithoutPlaceholders.contains("\\")) {
-			throw new IllegalArgumentException(
-					"Command contains direct path separator ('/' or '\\'). " +
-							"All file references must use {{id}} placeholders."
-			);
-		}
-
-		// 3. Check for potential direct filenames with extensions (e.g., output.mp4)
-		// This regex looks for words with a dot and 2-4 char extension.
-		Pattern filenamePattern = Pattern.compile("\\b([a-zA-Z0-9_]+(?:\\.[a-zA-Z0-9_]+)*)\\.([a-zA-Z0-9]{2,4})\\b");
-		Matcher matcher = filenamePattern.matcher(commandWithoutPlaceholders);
-		while (matcher.find()) {
-			String potentialFilename = matcher.group(0); // The full match e.g., "file.mp4" or "archive.tar.gz" (if .gz is 2-4 chars)
-			// Allow purely numeric values like "1.0", "2.5" which might be FFmpeg parameters
-			try {
-				Double.parseDouble(potentialFilename);
-				// If successful, it's a number, so continue to next match
-			} catch (NumberFormatException e) {
-				// It's not a simple number, so treat as a disallowed direct filename
-				throw new IllegalArgumentException(
-						"Command contains potential direct filename ('" + potentialFilename + "'). " +
-								"All file references must use {{id}} placeholders."
-				);
-			}
-		}
+	private void validateCommandStructure(FFmpegCommand command) throws IllegalArgumentException {
+		validator.validate(command);
 	}
 
 	/**
 	 * Handle the addTargetVideo tool to register a name for a target (output) video file.
 	 * @param exchange The server exchange for communicating with the client
-	 * @param args The tool arguments containing the target name and optional extension
+	 * @param args The tool arguments containing the target name, and whether it is an intermediate or a pipe
 	 * @return Confirmation of target video registration
 	 */
 	private CallToolResult handleAddTargetVideo(McpSyncServerExchange exchange, Map<String, Object> args) {
@@ -297,10 +671,25 @@ public class FFmpegMcpServerAdvanced {
 					.build();
 		}
 		
+		boolean intermediate = Boolean.TRUE.equals(args.get("intermediate"));
+		boolean pipe = Boolean.TRUE.equals(args.get("pipe"));
 		try {
+			if (pipe) {
+				if (intermediate) {
+					throw new IllegalArgumentException("a target cannot be both a pipe and an intermediate");
+				}
+				ffmpeg.fileManager().addPipeTarget(targetName);
+				return CallToolResult.builder()
+						.addTextContent("Pipe target '" + targetName + "' registered, for use in ffmpeg_pipeline")
+						.isError(false)
+						.build();
+			}
 			ffmpeg.fileManager().createNewFileWithAutoGeneratedNameInSecondFolder(targetName);
+			if (intermediate) {
+				ffmpeg.deferTarget(targetName);
+			}
 			return CallToolResult.builder()
-					.addTextContent("Target video '" + targetName + "' registered")
+					.addTextContent("Target video '" + targetName + "' registered" + (intermediate ? " as intermediate" : ""))
 					.isError(false)
 					.build();
 		} catch (IOException e) {
@@ -319,6 +708,156 @@ public class FFmpegMcpServerAdvanced {
 	}
 
 
+	/**
+	 * Handle the ffmpeg_log tool to page through the full output of an earlier ffmpeg run.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the log ID and optional line range
+	 * @return The requested lines of the log
+	 */
+	private CallToolResult handleFFmpegLog(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String logId = (String) args.get("logId");
+		int fromLine = args.get("fromLine") instanceof Number n ? n.intValue() : 0;
+		int lineCount = args.get("lineCount") instanceof Number n ? n.intValue() : DEFAULT_LOG_PAGE_LINES;
+		try {
+			ExecutionLogs.Page page = ffmpeg.readLog(logId, fromLine, Math.min(lineCount, MAX_LOG_PAGE_LINES));
+			String header = "Lines " + page.fromLine() + "-" + (page.fromLine() + page.lineCount()) + " of " + page.totalLines()
+					+ (page.hasMore() ? " (more available)" : "") + "\n";
+			return CallToolResult.builder()
+					.addTextContent(header + escapeForJson(page.text()))
+					.isError(false)
+					.build();
+		} catch (FileNotFoundException | IllegalArgumentException e) {
+			return CallToolResult.builder().addTextContent("Error: " + e.getMessage()).isError(true).build();
+		} catch (IOException e) {
+			log.error("Error reading ffmpeg log {}: {}", logId, e.getMessage());
+			return CallToolResult.builder().addTextContent("Error reading ffmpeg log: " + e.getMessage()).isError(true).build();
+		}
+	}
+
+	/**
+	 * Handle the ffmpeg_submit tool, queueing the command and returning its job ID right away.
+	 * @param exchange The server exchange for communicating with the client
+	 * @param args The tool arguments containing the FFmpeg command
+	 * @return The job ID
+	 */
+	private CallToolResult handleSubmit(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String cmd = (String) args.get("command");
+		try {
+			FFmpegCommand command = FFmpegCommand.parse(cmd);
+			validateCommandStructure(command);
+			JobPriority priority = args.get("priority") == null
+					? JobPriority.NORMAL
+					: JobPriority.valueOf(((String) args.get("priority")).toUpperCase(Locale.ROOT));
+			JobManager.Job job = jobs.submit(command, priority);
+			return CallToolResult.builder()
+					.addTextContent("Submitted job " + job.id() + ". Use job_status or job_wait to follow it.")
+					.isError(false)
+					.build();
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid FFmpeg command: {}", e.getMessage());
+			return CallToolResult.builder().addTextContent("Error: " + e.getMessage()).isError(true).build();
+		}
+	}
+
+	/**
+	 * Handle the job_status tool.
+	 */
+	private CallToolResult handleJobStatus(McpSyncServerExchange exchange, Map<String, Object> args) {
+		return describeJob((String) args.get("jobId"), jobs.get((String) args.get("jobId")));
+	}
+
+	/**
+	 * Handle the job_wait tool, blocking until the job finishes or the timeout passes.
+	 */
+	private CallToolResult handleJobWait(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String jobId = (String) args.get("jobId");
+		int timeoutSeconds = args.get("timeoutSeconds") instanceof Number n ? n.intValue() : DEFAULT_JOB_WAIT_SECONDS;
+		timeoutSeconds = Math.max(0, Math.min(timeoutSeconds, MAX_JOB_WAIT_SECONDS));
+		try {
+			return describeJob(jobId, jobs.await(jobId, Duration.ofSeconds(timeoutSeconds)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CallToolResult.builder().addTextContent("Interrupted while waiting for " + jobId).isError(true).build();
+		}
+	}
+
+	/**
+	 * Handle the job_cancel tool.
+	 */
+	private CallToolResult handleJobCancel(McpSyncServerExchange exchange, Map<String, Object> args) {
+		String jobId = (String) args.get("jobId");
+		return describeJob(jobId, jobs.cancel(jobId));
+	}
+
+	/**
+	 * Handle the ffmpeg_queue tool, reporting scheduler statistics and unfinished jobs.
+	 */
+	private CallToolResult handleQueue(McpSyncServerExchange exchange, Map<String, Object> args) {
+		StringBuilder text = new StringBuilder();
+		if (ffmpeg.executor() instanceof FFmpegScheduler scheduler) {
+			FFmpegScheduler.Statistics stats = scheduler.statistics();
+			text.append("Cores in use: ").append(stats.coresInUse()).append(" of ").append(stats.coreBudget())
+					.append("\nRunning ffmpeg processes: ").append(stats.running())
+					.append("\nQueued ffmpeg processes: ").append(stats.queued())
+					.append(" (oldest waiting ").append(stats.oldestQueuedWait().toMillis()).append(" ms)")
+					.append("\nStarted so far: ").append(stats.admitted())
+					.append(", average wait ").append(stats.averageWait().toMillis()).append(" ms")
+					.append(", longest wait ").append(stats.maxWait().toMillis()).append(" ms\n");
+		} else {
+			text.append("ffmpeg processes are not scheduled by this server\n");
+		}
+		for (JobManager.Job job : jobs.jobs()) {
+			if (!job.state().isFinished()) {
+				text.append(job.id()).append(": ").append(job.state()).append(", ").append(job.priority()).append(" priority\n");
+			}
+		}
+		return CallToolResult.builder().addTextContent(text.toString().trim()).isError(false).build();
+	}
+
+	/**
+	 * Handle the ffmpeg_cache tool, reporting video_info and result cache statistics.
+	 */
+	private CallToolResult handleCache(McpSyncServerExchange exchange, Map<String, Object> args) {
+		MetadataCache.Statistics info = ffmpeg.metadataCache().statistics();
+		String text = "video_info: " + info.hits() + " hits, " + info.misses() + " probes, "
+				+ info.coalesced() + " joined a probe already running, " + info.entries() + " sources cached\n";
+		ResultCache cache = ffmpeg.resultCache();
+		if (cache == null) {
+			text += "Results are not cached by this server";
+		} else {
+			ResultCache.Statistics stats = cache.statistics();
+			text += "Results: " + stats.hits() + " hits, " + stats.misses() + " misses"
+					+ "\nCached commands: " + stats.entries() + ", " + stats.bytes() + " of " + stats.maxBytes() + " bytes"
+					+ "\nStored: " + stats.stores() + ", evicted: " + stats.evictions();
+		}
+		return CallToolResult.builder().addTextContent(text).isError(false).build();
+	}
+
+	private CallToolResult describeJob(String jobId, JobManager.Job job) {
+		if (job == null) {
+			return CallToolResult.builder().addTextContent("Job not found: " + jobId).isError(true).build();
+		}
+		StringBuilder text = new StringBuilder("Job ").append(job.id()).append(": ").append(job.state());
+		if (job.state() == JobManager.State.RUNNING) {
+			text.append(" for ").append(job.runTime().toSeconds()).append("s");
+			if (job.progress() != null) {
+				text.append(", ").append(job.progress());
+			}
+		} else if (job.state().isFinished()) {
+			text.append(" after ").append(job.runTime().toSeconds()).append("s");
+		}
+		if (job.error() != null) {
+			text.append("\nError: ").append(job.error());
+		}
+		if (job.output() != null) {
+			text.append("\n").append(sanitizeForJson(job.output()));
+		}
+		return CallToolResult.builder()
+				.addTextContent(text.toString())
+				.isError(job.state() == JobManager.State.FAILED)
+				.build();
+	}
+
 	/**
 	 * Start the server.
 	 */
@@ -332,6 +871,14 @@ public class FFmpegMcpServerAdvanced {
 	public void shutdown() {
 		log.info("Shutting down FFmpeg MCP Server...");
 		server.closeGracefully();
+		jobs.close();
+		if (ffmpeg.fileManager() instanceof Closeable closeable) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				log.warn("Could not close file manager: {}", e.getMessage());
+			}
+		}
 	}
 
 	/**
@@ -373,11 +920,16 @@ public class FFmpegMcpServerAdvanced {
 			return "";
 		}
 		
-		// Limit content length to prevent huge responses
-		if (content.length() > 10000) {
-			content = content.substring(0, 10000) + "\n... (output truncated)";
+		// Limit content length to prevent huge responses, keeping the head and the tail
+		if (content.length() > RESPONSE_HEAD + RESPONSE_TAIL) {
+			content = content.substring(0, RESPONSE_HEAD) + "\n... (output truncated) ...\n"
+					+ content.substring(content.length() - RESPONSE_TAIL);
 		}
 		
+		return escapeForJson(content);
+	}
+
+	private static String escapeForJson(String content) {
 		// Replace problematic characters that could break JSON
 		return content
 			.replace("\\", "\\\\")  // Escape backslashes
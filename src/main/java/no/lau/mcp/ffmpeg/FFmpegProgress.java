@@ -0,0 +1,27 @@
+package no.lau.mcp.ffmpeg;
+
+import java.time.Duration;
+
+/**
+ * One progress update from ffmpeg's {@code -progress} output.
+ *
+ * @param frame Frames encoded so far
+ * @param fps Current encoding rate in frames per second
+ * @param outTimeUs Position in the output, in microseconds
+ * @param speed Encoding speed relative to real time, or NaN when ffmpeg reports N/A
+ * @param finished True for the last update of the run
+ */
+public record FFmpegProgress(long frame, double fps, long outTimeUs, double speed, boolean finished) {
+
+    public Duration outTime() {
+        return Duration.ofNanos(outTimeUs * 1000);
+    }
+
+    @Override
+    public String toString() {
+        Duration time = outTime();
+        return String.format("frame=%d fps=%.1f time=%02d:%02d:%02d.%02d speed=%s%s",
+                frame, fps, time.toHours(), time.toMinutesPart(), time.toSecondsPart(), time.toMillisPart() / 10,
+                Double.isNaN(speed) ? "N/A" : String.format("%.2fx", speed), finished ? " (finished)" : "");
+    }
+}
@@ -0,0 +1,252 @@
+package no.lau.mcp.ffmpeg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Admits ffmpeg processes against a budget of CPU cores, so concurrent commands split the machine
+ * instead of each starting a thread per core.
+ *
+ * Every command is granted a number of cores: the value of its own {@code -threads} option if it has
+ * one, otherwise {@code coresPerJob}. Commands wait in a queue ordered by priority, then by arrival,
+ * until their grant fits in the budget. The head of the queue is never overtaken, so a large grant
+ * cannot starve behind a stream of small ones. The grant is written into the command as
+ * {@code -threads} and {@code -filter_threads}.
+ */
+public class FFmpegScheduler implements FFmpegExecutor {
+
+    public static final String CORES_PROPERTY = "ffmpeg.mcp.scheduler.cores";
+    public static final String CORES_PER_JOB_PROPERTY = "ffmpeg.mcp.scheduler.coresPerJob";
+
+    private static final Logger log = LoggerFactory.getLogger(FFmpegScheduler.class);
+
+    private final FFmpegExecutor delegate;
+    private final int coreBudget;
+    private final int coresPerJob;
+    /** Guarded by this. */
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>(
+            Comparator.comparing((Ticket ticket) -> ticket.priority).reversed().thenComparingLong(ticket -> ticket.sequence));
+    private int coresInUse;
+    private int running;
+    private long sequence;
+    private long admitted;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    private static final class Ticket {
+        final JobPriority priority;
+        final long sequence;
+        final int cores;
+        final long queuedAt = System.nanoTime();
+
+        Ticket(JobPriority priority, long sequence, int cores) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.cores = cores;
+        }
+    }
+
+    /**
+     * Snapshot of the scheduler's state.
+     *
+     * @param queued Commands waiting for cores
+     * @param oldestQueuedWait How long the longest waiting command has been queued
+     * @param admitted Commands started since the scheduler was created
+     * @param averageWait Mean time admitted commands spent in the queue
+     * @param maxWait Longest time an admitted command spent in the queue
+     */
+    public record Statistics(int coreBudget, int coresInUse, int running, int queued, Duration oldestQueuedWait,
+                             long admitted, Duration averageWait, Duration maxWait) {
+    }
+
+    /**
+     * Uses {@value #CORES_PROPERTY} cores, all available ones by default, and gives each command
+     * {@value #CORES_PER_JOB_PROPERTY} of them, half the budget by default.
+     */
+    public FFmpegScheduler(FFmpegExecutor delegate) {
+        this(delegate, Integer.getInteger(CORES_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(CORES_PER_JOB_PROPERTY, 0));
+    }
+
+    /**
+     * @param coreBudget Cores shared by all ffmpeg processes
+     * @param coresPerJob Cores given to a command without its own {@code -threads}; 0 for half the budget
+     */
+    public FFmpegScheduler(FFmpegExecutor delegate, int coreBudget, int coresPerJob) {
+        if (coreBudget < 1) {
+            throw new IllegalArgumentException("coreBudget must be at least 1, was " + coreBudget);
+        }
+        if (coresPerJob < 0) {
+            throw new IllegalArgumentException("coresPerJob must not be negative, was " + coresPerJob);
+        }
+        this.delegate = delegate;
+        this.coreBudget = coreBudget;
+        this.coresPerJob = coresPerJob == 0 ? Math.max(1, coreBudget / 2) : Math.min(coresPerJob, coreBudget);
+    }
+
+    @Override
+    public String execute(String command) throws IOException {
+        return execute(command, null, JobPriority.NORMAL);
+    }
+
+    @Override
+    public String execute(String command, Consumer<FFmpegProgress> progress) throws IOException {
+        return execute(command, progress, JobPriority.NORMAL);
+    }
+
+    @Override
+    public String execute(String command, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+        return execute(DefaultFFmpegExecutor.parseCommandArguments(command), progress, priority);
+    }
+
+    @Override
+    public String execute(List<String> arguments, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+        int cores = coresFor(arguments);
+        Ticket ticket = acquire(priority, cores);
+        try {
+            return delegate.execute(withThreads(arguments, cores), progress, priority);
+        } finally {
+            release(ticket);
+        }
+    }
+
+    /**
+     * Admits the whole pipeline at once, as its processes only make progress together. Each command is
+     * granted its own share; when the shares add up to more than the budget, they are scaled down to fit.
+     */
+    @Override
+    public List<String> executePipeline(List<List<String>> commands, JobPriority priority) throws IOException {
+        int[] cores = new int[commands.size()];
+        int total = 0;
+        for (int i = 0; i < cores.length; i++) {
+            cores[i] = coresFor(commands.get(i));
+            total += cores[i];
+        }
+        List<List<String>> granted = new ArrayList<>();
+        int budgeted = 0;
+        for (int i = 0; i < cores.length; i++) {
+            int share = total <= coreBudget ? cores[i] : Math.max(1, cores[i] * coreBudget / total);
+            budgeted += share;
+            granted.add(withThreads(commands.get(i), share));
+        }
+        Ticket ticket = acquire(priority, Math.min(budgeted, coreBudget));
+        try {
+            return delegate.executePipeline(granted, priority);
+        } finally {
+            release(ticket);
+        }
+    }
+
+    @Override
+    public ExecutionLogs.Page readLog(String logId, int fromLine, int lineCount) throws IOException {
+        return delegate.readLog(logId, fromLine, lineCount);
+    }
+
+    public synchronized Statistics statistics() {
+        Ticket oldest = waiting.stream().min(Comparator.comparingLong(ticket -> ticket.queuedAt)).orElse(null);
+        return new Statistics(coreBudget, coresInUse, running, waiting.size(),
+                Duration.ofNanos(oldest == null ? 0 : System.nanoTime() - oldest.queuedAt),
+                admitted, Duration.ofNanos(admitted == 0 ? 0 : totalWaitNanos / admitted), Duration.ofNanos(maxWaitNanos));
+    }
+
+    private synchronized Ticket acquire(JobPriority priority, int cores) throws IOException {
+        Ticket ticket = new Ticket(priority == null ? JobPriority.NORMAL : priority, sequence++, cores);
+        waiting.add(ticket);
+        try {
+            while (waiting.peek() != ticket || coresInUse + cores > coreBudget) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll(); // the next in line may fit now
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for CPU cores", e);
+        }
+        waiting.poll();
+        coresInUse += cores;
+        running++;
+        long waited = System.nanoTime() - ticket.queuedAt;
+        admitted++;
+        totalWaitNanos += waited;
+        maxWaitNanos = Math.max(maxWaitNanos, waited);
+        if (waited > 1_000_000_000L) {
+            log.info("Started {} priority ffmpeg with {} cores after waiting {} ms", ticket.priority, cores, waited / 1_000_000);
+        }
+        notifyAll(); // the new head may fit in what is left
+        return ticket;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        coresInUse -= ticket.cores;
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Cores to grant: the command's own positive {@code -threads}, capped at the budget, or the default share.
+     */
+    int coresFor(List<String> arguments) {
+        int requested = 0;
+        for (int i = 0; i + 1 < arguments.size(); i++) {
+            String value = arguments.get(i + 1);
+            if (arguments.get(i).equals("-threads") && !value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+                try {
+                    requested = Math.max(requested, Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    requested = coreBudget;
+                }
+            }
+        }
+        return requested > 0 ? Math.min(requested, coreBudget) : coresPerJob;
+    }
+
+    /**
+     * Sets {@code -threads} and {@code -filter_threads} to the grant. Existing values are rewritten.
+     * Otherwise {@code -filter_threads}, a global option, goes first, and {@code -threads} goes in front
+     * of the output file when the command ends with one.
+     */
+    static List<String> withThreads(List<String> arguments, int cores) {
+        List<String> result = new ArrayList<>(arguments);
+        String grant = String.valueOf(cores);
+        if (!setAll(result, "-threads", grant) && endsWithOutput(result)) {
+            result.addAll(result.size() - 1, List.of("-threads", grant));
+        }
+        if (!setAll(result, "-filter_threads", grant)) {
+            result.addAll(0, List.of("-filter_threads", grant));
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether the option was found
+     */
+    private static boolean setAll(List<String> arguments, String option, String value) {
+        boolean found = false;
+        for (int i = 0; i + 1 < arguments.size(); i++) {
+            if (arguments.get(i).equals(option)) {
+                arguments.set(i + 1, value);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Whether the last argument looks like an output file: not an option, the only argument or an input
+     */
+    private static boolean endsWithOutput(List<String> arguments) {
+        if (arguments.size() < 2) {
+            return false;
+        }
+        String last = arguments.get(arguments.size() - 1);
+        return (!last.startsWith("-") || last.equals("-")) && !arguments.get(arguments.size() - 2).equals("-i");
+    }
+}
@@ -1,39 +1,273 @@
 package no.lau.mcp.ffmpeg;
 
+import no.lau.mcp.ffmpeg.probe.ContainerProbe;
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.ffmpeg.probe.MediaInfo;
 import no.lau.mcp.file.FileManager;
-import no.lau.mcp.file.FileManagerUtils;
+import no.lau.mcp.file.VideoRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class FFmpegWrapper {
 
+	private static final Logger log = LoggerFactory.getLogger(FFmpegWrapper.class);
+	/** Keyframes listed by {@link #keyframesOfVideo} at most, to keep the answer small */
+	static final int MAX_LISTED_KEYFRAMES = 500;
+
 	//static Logger logger = LoggerFactory.getLogger(FFmpegWrapper.class);
 	//static String ffprobe = findAppPathUsingProcessBuilder("ffprobe").get();
 
     private final FileManager fileManager;
     private final FFmpegExecutor executor;
+    private final ResultCache cache;
+    private final FFprobe ffprobe;
+    private final KeyframeIndex keyframeIndex;
+    private final MetadataCache metadata = new MetadataCache();
+    private final LazyTargets lazyTargets = new LazyTargets();
 
 
 	public FFmpegWrapper(FileManager fileManager, FFmpegExecutor executor) {
+        this(fileManager, executor, null);
+    }
+
+	/**
+	 * @param cache Results of earlier commands to reuse instead of running ffmpeg again, or null
+	 */
+	public FFmpegWrapper(FileManager fileManager, FFmpegExecutor executor, ResultCache cache) {
+        this(fileManager, executor, cache, null);
+    }
+
+	/**
+	 * @param cache Results of earlier commands to reuse instead of running ffmpeg again, or null
+	 * @param ffprobe Describes videos in formats not probed in Java, or null to run {@code ffmpeg -i} instead
+	 */
+	public FFmpegWrapper(FileManager fileManager, FFmpegExecutor executor, ResultCache cache, FFprobe ffprobe) {
+        this(fileManager, executor, cache, ffprobe, null);
+    }
+
+	/**
+	 * @param cache Results of earlier commands to reuse instead of running ffmpeg again, or null
+	 * @param ffprobe Describes videos in formats not probed in Java, or null to run {@code ffmpeg -i} instead
+	 * @param keyframeIndex Keyframes of source videos, for moving output-side {@code -ss} in front of the input, or null
+	 */
+	public FFmpegWrapper(FileManager fileManager, FFmpegExecutor executor, ResultCache cache, FFprobe ffprobe,
+						 KeyframeIndex keyframeIndex) {
         this.fileManager = fileManager;
         this.executor = executor;
+        this.cache = cache;
+        this.ffprobe = ffprobe;
+        this.keyframeIndex = keyframeIndex;
     }
 
 
 	public String doffMPEGStuff(String cmd) throws IOException {
-		String commandArguments = fileManager.replaceVideoReferences(cmd);
+		return doffMPEGStuff(cmd, null);
+	}
 
-		// Log the incoming command
-		//System.err.println("Executing FFmpeg command (args only): " + commandArguments);
+	/**
+	 * Resolves video references, runs the command and sanitizes its output.
+	 * @param progress Receives progress updates while ffmpeg runs, or null
+	 */
+	public String doffMPEGStuff(String cmd, Consumer<FFmpegProgress> progress) throws IOException {
+		return doffMPEGStuff(cmd, progress, JobPriority.HIGH);
+	}
+
+	/**
+	 * Resolves video references, runs the command and sanitizes its output.
+	 * When the same command has already been run on the same sources, the cached outputs are linked
+	 * into place instead. An output-side {@code -ss} on a single indexed source is turned into a seek to
+	 * the keyframe before the cut, see {@link KeyframeSeek}. Simple commands writing an intermediate
+	 * target are deferred, and fused into the command reading it, see {@link LazyTargets}.
+	 * @param progress Receives progress updates while ffmpeg runs, or null
+	 * @param priority Order in which the command gets cores when ffmpeg processes are queued
+	 */
+	public String doffMPEGStuff(String cmd, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+		return doffMPEGStuff(FFmpegCommand.parse(cmd), progress, priority);
+	}
+
+	/**
+	 * Resolves video references, runs the command and sanitizes its output, see
+	 * {@link #doffMPEGStuff(String, Consumer, JobPriority)}. The command is not split again on its way to ffmpeg.
+	 */
+	public String doffMPEGStuff(FFmpegCommand command, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+		FFmpegCommand finalCommand = command.withReferences(fileManager::finalVideoReference);
+		String deferred = lazyTargets.defer(finalCommand, videoRef -> fileManager.contentHash(videoRef) != null);
+		if (deferred != null) {
+			return "[Deferred, ffmpeg was not run: {{" + deferred + "}} is rendered together with the command which reads it]";
+		}
+		StringBuilder note = new StringBuilder();
+		LazyTargets.Fusion fusion = lazyTargets.fuse(finalCommand);
+		if (fusion != null) {
+			finalCommand = fusion.command();
+			note.append("[Fused with the deferred steps writing {{").append(fusion.input()).append("}}: ")
+					.append(fusion.steps()).append(fusion.steps() == 1 ? " encode" : " encodes").append(" skipped]\n");
+		} else {
+			for (String input : lazyTargets.deferredInputs(finalCommand)) {
+				note.append(render(input, priority));
+			}
+		}
+		lazyTargets.written(finalCommand);
+		return note + run(finalCommand, progress, priority);
+	}
+
+	/**
+	 * Runs a command with final video references, see {@link #doffMPEGStuff(String, Consumer, JobPriority)}.
+	 */
+	private String run(FFmpegCommand finalCommand, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+		// Resolve and sanitize against one snapshot, so concurrent registrations cannot change IDs mid-call
+		VideoRegistry.Snapshot references = fileManager.snapshot();
+		String note = "";
+		KeyframeSeek.Seek seek = keyframeIndex == null ? null
+				: KeyframeSeek.rewrite(finalCommand, videoRef -> keyframesOf(videoRef, references));
+		if (seek != null) {
+			finalCommand = seek.command();
+			note = String.format(Locale.ROOT, "[Input seeks to the keyframe at %.3fs and drops the next %.3fs]%n",
+					seek.keyframeMicros() / 1e6, seek.trimMicros() / 1e6);
+		}
+		List<String> arguments = finalCommand.resolve(references.references());
+
+		ResultCache.Key key = cache == null ? null : ResultCache.keyFor(finalCommand, references, fileManager::contentHash);
+		if (key != null) {
+			String cached = cache.restore(key);
+			if (cached != null) {
+				return note + "[Result cache hit, ffmpeg was not run]\n" + references.sanitize(cached);
+			}
+		}
 
 		// Execute the command through the injected executor
-		String output = this.executor.execute(commandArguments);
+		String output = this.executor.execute(arguments, progress, priority);
 
-		return FileManagerUtils.sanitizeOutput(output, fileManager.videoReferences());
+		if (key != null && !output.contains(FFmpegExecutor.EXIT_CODE_NOTICE)) {
+			cache.store(key, output);
+		}
+		return note + references.sanitize(output);
+	}
+
+	/**
+	 * Runs dependent commands at the same time, streaming each one's output into the next through a pipe
+	 * instead of a file, see {@link Pipeline}.
+	 * @param commands Commands with video references, producer first, connected by pipe targets
+	 * @param priority Order in which the commands get cores when ffmpeg processes are queued
+	 * @return The sanitized output of each command
+	 * @throws IllegalArgumentException if the commands are not connected by pipe targets
+	 * @throws IOException if the executor cannot run pipelines, or ffmpeg cannot be started
+	 */
+	public String pipeline(List<FFmpegCommand> commands, JobPriority priority) throws IOException {
+		List<FFmpegCommand> finalCommands = new ArrayList<>();
+		for (FFmpegCommand command : commands) {
+			finalCommands.add(command.withReferences(fileManager::finalVideoReference));
+		}
+		List<FFmpegCommand> connected = Pipeline.connect(finalCommands, fileManager::isPipeTarget);
+		StringBuilder result = new StringBuilder();
+		for (FFmpegCommand command : connected) {
+			for (String input : lazyTargets.deferredInputs(command)) {
+				result.append(render(input, priority));
+			}
+			lazyTargets.written(command);
+		}
+
+		VideoRegistry.Snapshot references = fileManager.snapshot();
+		List<List<String>> resolved = new ArrayList<>();
+		for (FFmpegCommand command : connected) {
+			resolved.add(command.resolve(references.references()));
+		}
+		List<String> outputs = executor.executePipeline(resolved, priority);
+		for (int i = 0; i < outputs.size(); i++) {
+			result.append("--- Command ").append(i + 1).append(" ---\n").append(references.sanitize(outputs.get(i)));
+			if (i + 1 < outputs.size()) {
+				result.append('\n');
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Registers a target as intermediate: simple commands writing it are deferred until a command reads it.
+	 */
+	public void deferTarget(String targetRef) {
+		lazyTargets.markIntermediate(targetRef);
+	}
+
+	/**
+	 * Renders a deferred target from its source in one step, if it has not been rendered yet.
+	 * @return A note on the rendering for the reply, empty if there was nothing to render
+	 * @throws IOException if ffmpeg fails
+	 */
+	private String render(String targetRef, JobPriority priority) throws IOException {
+		LazyTargets.Chain chain = lazyTargets.chain(targetRef);
+		if (chain == null) {
+			return "";
+		}
+		// Readers of the same target wait for one rendering
+		synchronized (chain) {
+			if (lazyTargets.chain(targetRef) != chain) {
+				return "";
+			}
+			String output = run(chain.command(targetRef), null, priority);
+			if (output.contains(FFmpegExecutor.EXIT_CODE_NOTICE)) {
+				throw new IOException("ffmpeg failed while rendering the deferred {{" + targetRef + "}}:\n" + output);
+			}
+			lazyTargets.rendered(targetRef, chain);
+		}
+		return "[Rendered the deferred {{" + targetRef + "}} first]\n";
+	}
+
+	/**
+	 * @return The keyframes of a source video, or null if it is not a hashed source or cannot be indexed
+	 */
+	private Keyframes keyframesOf(String videoRef, VideoRegistry.Snapshot references) {
+		String contentHash = fileManager.contentHash(videoRef);
+		Path path = references.get(videoRef);
+		if (contentHash == null || path == null) {
+			return null;
+		}
+		try {
+			return keyframeIndex.get(contentHash, path);
+		} catch (IOException e) {
+			// Run the command as given; ffmpeg reports what is wrong with the file
+			log.debug("No keyframe index for {}: {}", videoRef, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Lists the keyframes of a source video as JSON, see {@link Keyframes#toJson(double, double, int)}.
+	 * @param from Start of the listed range in seconds; the keyframe a seek there lands on is included
+	 * @param to End of the listed range in seconds
+	 * @throws FileNotFoundException if there is no video with that reference
+	 * @throws IOException if the video is not a hashed source or has no keyframes that can be found
+	 */
+	public String keyframesOfVideo(String videoRef, double from, double to) throws IOException {
+		Path path = fileManager.resolveVideoReference(videoRef);
+		if (path == null) {
+			throw new FileNotFoundException(videoRef);
+		}
+		String contentHash = fileManager.contentHash(videoRef);
+		if (keyframeIndex == null || contentHash == null) {
+			throw new IOException("Keyframes are only indexed for source videos which have been hashed");
+		}
+		Keyframes keyframes = keyframeIndex.get(contentHash, path);
+		if (keyframes == null) {
+			throw new IOException("Could not find the keyframes of " + videoRef);
+		}
+		return keyframes.toJson(from, to, MAX_LISTED_KEYFRAMES);
 	}
 
 	/**
@@ -46,18 +280,331 @@ public class FFmpegWrapper {
 		return this.executor.execute(commandArguments);
 	}
 
+	/**
+	 * Describes a video as compact JSON, see {@link MediaInfo#toJson()}.
+	 * MP4/MOV and Matroska/WebM files are probed in Java, other formats with ffprobe. Without ffprobe,
+	 * or if it fails, this is ffmpeg's {@code -i} text instead.
+	 */
 	public String informationFromVideo(String videoRef) throws IOException {
-		Path resolvedVideoPath = fileManager.videoReferences().get(videoRef);
+		return informationFromVideo(videoRef, false);
+	}
+
+	/**
+	 * Describes a video. Descriptions of source videos are cached by content hash.
+	 * @param raw Return text in the layout of ffmpeg's {@code -i} banner instead of JSON
+	 */
+	public String informationFromVideo(String videoRef, boolean raw) throws IOException {
+		Path resolvedVideoPath = fileManager.resolveVideoReference(videoRef);
 		if(resolvedVideoPath != null) {
-			String output = executeDirectCommand("-i " + resolvedVideoPath);
-			
-			return FileManagerUtils.sanitizeOutput(output, fileManager.videoReferences());
+			render(videoRef, JobPriority.HIGH);
+			VideoRegistry.Snapshot references = fileManager.snapshot();
+			String contentHash = fileManager.contentHash(videoRef);
+			MetadataCache.Prober prober = raw ? this::describeAsText : this::describeAsJson;
+			String output = contentHash == null
+					? prober.probe(resolvedVideoPath)
+					: metadata.get(raw ? contentHash + " raw" : contentHash, resolvedVideoPath, prober);
+			return references.sanitize(output);
 		} else {
 			throw new FileNotFoundException(videoRef);
 		}
 	}
 
+	private String describeAsJson(Path video) throws IOException {
+		MediaInfo info = probe(video);
+		if (info == null && ffprobe != null) {
+			try {
+				info = ffprobe.probe(video);
+			} catch (IOException e) {
+				log.warn("ffprobe could not describe {}, using ffmpeg -i: {}", video, e.getMessage());
+			}
+		}
+		return info != null ? info.toJson() : describeAsText(video);
+	}
+
+	private String describeAsText(Path video) throws IOException {
+		MediaInfo info = probe(video);
+		if (info != null) {
+			return info.describe(video.toString());
+		}
+		return this.executor.execute(List.of("-i", video.toString()), null, JobPriority.HIGH);
+	}
+
+	private static MediaInfo probe(Path video) {
+		try {
+			return ContainerProbe.probe(video);
+		} catch (IOException e) {
+			// ffmpeg will report what is wrong with the file
+			return null;
+		}
+	}
+
+	/**
+	 * Cuts a range out of a source video into a target video, re-encoding only the partial keyframe
+	 * intervals at its edges and stream copying the rest, see {@link SmartCut}.
+	 * @param start Start of the range in seconds
+	 * @param end End of the range in seconds; 0 or past the end means the end of the video
+	 * @param priority Order in which the ffmpeg runs get cores when ffmpeg processes are queued
+	 * @return What was copied and re-encoded, and ffmpeg's output for the last step
+	 * @throws FileNotFoundException if either reference is unknown
+	 * @throws IllegalArgumentException if the range is empty or the target is a source video
+	 * @throws IOException if the source cannot be read or ffmpeg fails
+	 */
+	public String trim(String sourceRef, String targetRef, double start, double end, JobPriority priority) throws IOException {
+		VideoRegistry.Snapshot references = fileManager.snapshot();
+		Path source = fileManager.resolveVideoReference(sourceRef);
+		if (source == null) {
+			throw new FileNotFoundException(sourceRef);
+		}
+		Path target = fileManager.resolveVideoReference(targetRef);
+		if (target == null) {
+			throw new FileNotFoundException(targetRef);
+		}
+		if (fileManager.contentHash(targetRef) != null) {
+			throw new IllegalArgumentException(targetRef + " is a source video; register a target with addTargetVideo");
+		}
+		render(sourceRef, priority);
+		lazyTargets.discard(targetRef);
+		MediaInfo info = probe(source);
+		if (info == null && ffprobe != null) {
+			info = ffprobe.probe(source);
+		}
+		if (info == null) {
+			throw new IOException("Could not read the streams of " + sourceRef);
+		}
+		long duration = info.duration().toNanos() / 1000;
+		long from = Math.round(start * 1e6);
+		long to = end <= 0 ? duration : Math.min(Math.round(end * 1e6), duration);
+		if (from < 0 || from >= to) {
+			throw new IllegalArgumentException("Cannot trim " + start + "s to " + end + "s of a "
+					+ KeyframeSeek.seconds(duration) + "s video");
+		}
+
+		Keyframes keyframes = keyframeIndex == null ? null : keyframesOf(sourceRef, references);
+		SmartCut.Plan plan = SmartCut.plan(info, keyframes, from, to);
+		String range = "{{" + sourceRef + "}} from " + KeyframeSeek.seconds(from) + "s to " + KeyframeSeek.seconds(to)
+				+ "s into {{" + targetRef + "}}";
+		if (!plan.smart()) {
+			String output = runStep(plan.command(0, source, target), priority, references, "trimming");
+			return "Re-encoded " + range + " in one piece, as " + plan.reason() + ".\n" + output;
+		}
+
+		String name = "trim-" + UUID.randomUUID();
+		Path list = target.resolveSibling(name + ".ffconcat");
+		List<Path> parts = new ArrayList<>();
+		try {
+			StringBuilder script = new StringBuilder("ffconcat version 1.0\n");
+			for (int i = 0; i < plan.parts().size(); i++) {
+				Path part = target.resolveSibling(name + "-" + i + plan.intermediate());
+				parts.add(part);
+				runStep(plan.command(i, source, part), priority, references, "trimming");
+				script.append("file '").append(part.getFileName()).append("'\n");
+			}
+			Files.writeString(list, script);
+			String output = runStep(SmartCut.Plan.joinCommand(list, target), priority, references, "trimming");
+			return "Trimmed " + range + ": stream copied " + KeyframeSeek.seconds(plan.copiedMicros())
+					+ "s and re-encoded " + KeyframeSeek.seconds(plan.encodedMicros()) + "s at the edges.\n" + output;
+		} finally {
+			for (Path part : parts) {
+				Files.deleteIfExists(part);
+			}
+			Files.deleteIfExists(list);
+		}
+	}
+
+	/**
+	 * Encodes a source video into a target with segments of it encoded by separate ffmpeg processes at the
+	 * same time, see {@link ParallelTranscode}.
+	 * @param videoOptions Video encoding options, e.g. {@code -c:v libx264 -preset medium -crf 20}
+	 * @param audioOptions Audio encoding options, e.g. {@code -c:a copy}
+	 * @param segments Number of segments to aim for; 0 for one per 4 cores of the executor's budget
+	 * @param priority Order in which the ffmpeg runs get cores when ffmpeg processes are queued
+	 * @return How the source was split, and ffmpeg's output for joining the segments
+	 * @throws FileNotFoundException if either reference is unknown
+	 * @throws IllegalArgumentException if the options hold reserved options or refer to files directly, or the target is a source video
+	 * @throws IOException if the source cannot be read, ffmpeg fails or the segments do not line up
+	 */
+	public String parallelTranscode(String sourceRef, String targetRef, String videoOptions, String audioOptions,
+									int segments, JobPriority priority) throws IOException {
+		List<String> videoArguments = FFmpegCommand.parse(videoOptions).arguments();
+		List<String> audioArguments = FFmpegCommand.parse(audioOptions).arguments();
+		ParallelTranscode.checkOptions(videoArguments);
+		ParallelTranscode.checkOptions(audioArguments);
+		VideoRegistry.Snapshot references = fileManager.snapshot();
+		Path source = fileManager.resolveVideoReference(sourceRef);
+		if (source == null) {
+			throw new FileNotFoundException(sourceRef);
+		}
+		Path target = fileManager.resolveVideoReference(targetRef);
+		if (target == null) {
+			throw new FileNotFoundException(targetRef);
+		}
+		if (fileManager.contentHash(targetRef) != null) {
+			throw new IllegalArgumentException(targetRef + " is a source video; register a target with addTargetVideo");
+		}
+		render(sourceRef, priority);
+		lazyTargets.discard(targetRef);
+		MediaInfo info = probe(source);
+		if (info == null && ffprobe != null) {
+			info = ffprobe.probe(source);
+		}
+		if (info == null) {
+			throw new IOException("Could not read the streams of " + sourceRef);
+		}
+		boolean hasAudio = info.streams().stream().anyMatch(stream -> stream.type() == MediaInfo.StreamType.AUDIO);
+		double frameRate = info.streams().stream().filter(stream -> stream.type() == MediaInfo.StreamType.VIDEO)
+				.mapToDouble(MediaInfo.Stream::frameRate).findFirst().orElse(0);
+
+		int cores = executor instanceof FFmpegScheduler scheduler
+				? scheduler.statistics().coreBudget() : Runtime.getRuntime().availableProcessors();
+		int count = segments > 0 ? segments : Math.max(2, cores / 4);
+		Keyframes keyframes = keyframeIndex == null ? null : keyframesOf(sourceRef, references);
+		List<ParallelTranscode.Segment> plan = keyframes == null || keyframes.size() == 0 ? List.of()
+				: ParallelTranscode.segments(keyframes, info.duration().toNanos() / 1000, count);
+		if (plan.size() < 2) {
+			String reason = count < 2 ? "one segment was asked for"
+					: keyframes == null || keyframes.size() == 0 ? "its keyframes are unknown" : "it has too few keyframes to split";
+			List<String> command = new ArrayList<>(List.of("-y", "-i", source.toString(), "-map", "0:v:0"));
+			if (hasAudio) {
+				command.addAll(List.of("-map", "0:a:0"));
+			}
+			command.addAll(videoArguments);
+			if (hasAudio) {
+				command.addAll(audioArguments);
+			}
+			command.add(target.toString());
+			String output = runStep(command, priority, references, "transcoding");
+			return "Encoded {{" + sourceRef + "}} into {{" + targetRef + "}} in one process, as " + reason + ".\n" + output;
+		}
+
+		// The audio process runs on one core beside the segments, which share the rest
+		int threads = Math.max(1, (hasAudio ? cores - 1 : cores) / plan.size());
+		String name = "parallel-" + UUID.randomUUID();
+		String fileName = target.getFileName().toString();
+		// Segments are muxed like the target, so the join can copy them into it
+		String extension = fileName.lastIndexOf('.') > 0 ? fileName.substring(fileName.lastIndexOf('.')) : ".mkv";
+		Path list = target.resolveSibling(name + ".ffconcat");
+		Path audio = hasAudio ? target.resolveSibling(name + "-audio.mka") : null;
+		List<Path> parts = new ArrayList<>();
+		List<List<String>> commands = new ArrayList<>();
+		StringBuilder script = new StringBuilder("ffconcat version 1.0\n");
+		for (int i = 0; i < plan.size(); i++) {
+			Path part = target.resolveSibling(name + "-" + i + extension);
+			parts.add(part);
+			commands.add(ParallelTranscode.segmentCommand(plan.get(i), source, videoArguments, threads, part));
+			script.append("file '").append(part.getFileName()).append("'\n");
+		}
+		if (audio != null) {
+			commands.add(ParallelTranscode.audioCommand(source, audioArguments, audio));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(commands.size(), runnable -> {
+			Thread thread = new Thread(runnable, "ffmpeg-segment");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			long started = System.nanoTime();
+			List<Future<String>> runs = new ArrayList<>();
+			for (List<String> command : commands) {
+				runs.add(pool.submit(() -> runStep(command, priority, references, "transcoding")));
+			}
+			for (Future<String> run : runs) {
+				await(run);
+			}
+			long encodeMillis = (System.nanoTime() - started) / 1_000_000;
+
+			List<Duration> durations = new ArrayList<>();
+			for (Path part : parts) {
+				MediaInfo encoded = probe(part);
+				durations.add(encoded == null ? null : encoded.duration());
+			}
+			long tolerance = frameRate > 0 ? Math.round(1e6 / frameRate) : 50_000;
+			List<String> gaps = ParallelTranscode.discontinuities(plan, durations, tolerance);
+			if (!gaps.isEmpty()) {
+				throw new IOException("The encoded segments do not line up, so they were not joined: " + String.join("; ", gaps));
+			}
+			Files.writeString(list, script);
+			String output = runStep(ParallelTranscode.joinCommand(list, audio, target), priority, references, "transcoding");
+			StringBuilder boundaries = new StringBuilder();
+			for (ParallelTranscode.Segment segment : plan.subList(1, plan.size())) {
+				boundaries.append(boundaries.length() == 0 ? "" : ", ").append(KeyframeSeek.seconds(segment.from())).append('s');
+			}
+			return "Encoded {{" + sourceRef + "}} into {{" + targetRef + "}} as " + plan.size() + " segments at the same time, "
+					+ threads + (threads == 1 ? " thread" : " threads") + " each, in " + encodeMillis + " ms. Split at the keyframes at "
+					+ boundaries + (durations.contains(null) ? "; segment lengths could not all be checked" : "; segment timestamps are continuous")
+					+ ".\n" + output;
+		} finally {
+			pool.shutdownNow();
+			for (Path part : parts) {
+				Files.deleteIfExists(part);
+			}
+			if (audio != null) {
+				Files.deleteIfExists(audio);
+			}
+			Files.deleteIfExists(list);
+		}
+	}
+
+	private static String await(Future<String> run) throws IOException {
+		try {
+			return run.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for ffmpeg", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io) {
+				throw io;
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param task What the command is part of, for the error message
+	 * @return The sanitized output of ffmpeg
+	 * @throws IOException if ffmpeg exits with an error
+	 */
+	private String runStep(List<String> command, JobPriority priority, VideoRegistry.Snapshot references, String task) throws IOException {
+		String output = references.sanitize(executor.execute(command, null, priority));
+		if (output.contains(FFmpegExecutor.EXIT_CODE_NOTICE)) {
+			throw new IOException("ffmpeg failed while " + task + ":\n" + output);
+		}
+		return output;
+	}
+
+	/**
+	 * Reads a page of the full output of an earlier ffmpeg run, with file paths replaced by video references.
+	 * @throws FileNotFoundException if there is no log with that ID
+	 */
+	public ExecutionLogs.Page readLog(String logId, int fromLine, int lineCount) throws IOException {
+		ExecutionLogs.Page page = executor.readLog(logId, fromLine, lineCount);
+		String text = fileManager.snapshot().sanitize(page.text());
+		return new ExecutionLogs.Page(page.fromLine(), page.lineCount(), page.totalLines(), text);
+	}
+
 	public FileManager fileManager() {
 		return fileManager;
 	}
+
+	public FFmpegExecutor executor() {
+		return executor;
+	}
+
+	public MetadataCache metadataCache() {
+		return metadata;
+	}
+
+	/**
+	 * @return The keyframe index, or null if trims are not moved to keyframes
+	 */
+	public KeyframeIndex keyframeIndex() {
+		return keyframeIndex;
+	}
+
+	/**
+	 * @return The result cache, or null if results are not cached
+	 */
+	public ResultCache resultCache() {
+		return cache;
+	}
 }
@@ -0,0 +1,120 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.FFprobeJsonParser;
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.ffmpeg.probe.MediaInfo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs ffprobe on a file and parses its output as it is written, for formats
+ * {@link no.lau.mcp.ffmpeg.probe.ContainerProbe} does not read itself.
+ *
+ * Packets of the first {@value #KEYFRAME_SECONDS} seconds are listed too, to measure the keyframe
+ * interval without reading the whole file.
+ */
+public class FFprobe {
+
+    static final int KEYFRAME_SECONDS = 30;
+    /** Characters of ffprobe's error output kept for the exception message. */
+    private static final int ERROR_LIMIT = 4096;
+
+    private final String ffprobeExecutablePath;
+
+    public FFprobe(String ffprobeExecutablePath) {
+        this.ffprobeExecutablePath = ffprobeExecutablePath;
+    }
+
+    /**
+     * @throws IOException if ffprobe cannot be started, fails, or does not recognise the file
+     */
+    public MediaInfo probe(Path file) throws IOException {
+        return run(List.of(ffprobeExecutablePath, "-v", "error",
+                "-print_format", "json", "-show_format", "-show_streams",
+                "-show_entries", "packet=stream_index,pts_time,flags", "-read_intervals", "%+" + KEYFRAME_SECONDS,
+                file.toString()), FFprobeJsonParser::parse);
+    }
+
+    /**
+     * Lists the keyframes of the first video stream by demuxing the whole file, without decoding it.
+     * Times are relative to the start of the file, as {@code -ss} counts them.
+     * @throws IOException if ffprobe cannot be started, fails, or the file has no video stream
+     */
+    public Keyframes keyframes(Path file) throws IOException {
+        Keyframes keyframes = run(List.of(ffprobeExecutablePath, "-v", "error", "-select_streams", "v:0",
+                "-show_entries", "packet=pts_time,pos,flags:format=start_time", "-print_format", "csv=print_section=0",
+                file.toString()), FFprobe::parseKeyframes);
+        if (keyframes.size() == 0) {
+            throw new IOException("No keyframes found in " + file.getFileName());
+        }
+        return keyframes;
+    }
+
+    /**
+     * Reads lines of {@code pts_time,pos,flags}, in the order ffprobe prints packet fields, followed by
+     * the format's {@code start_time} on a line of its own.
+     */
+    static Keyframes parseKeyframes(InputStream csv) throws IOException {
+        List<double[]> packets = new ArrayList<>();
+        double startTime = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(csv, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",");
+            try {
+                if (fields.length == 1 && !fields[0].isBlank()) {
+                    startTime = Double.parseDouble(fields[0]);
+                } else if (fields.length >= 3 && fields[2].startsWith("K")) {
+                    double position = fields[1].equals("N/A") ? -1 : Long.parseLong(fields[1]);
+                    packets.add(new double[]{Double.parseDouble(fields[0]), position});
+                }
+            } catch (NumberFormatException e) {
+                // N/A for a packet without a timestamp, or a file without a start time
+            }
+        }
+        Keyframes.Builder keyframes = new Keyframes.Builder();
+        for (double[] packet : packets) {
+            keyframes.add(packet[0] - startTime, (long) packet[1]);
+        }
+        return keyframes.build();
+    }
+
+    private interface OutputParser<T> {
+        T parse(InputStream output) throws IOException;
+    }
+
+    private <T> T run(List<String> command, OutputParser<T> parser) throws IOException {
+        Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        StreamPump errors = StreamPump.start(process.getErrorStream(), "ffprobe-stderr", ERROR_LIMIT);
+        try (InputStream output = process.getInputStream()) {
+            T result;
+            try {
+                result = parser.parse(output);
+            } catch (IOException e) {
+                process.destroyForcibly();
+                String message = errors.await().strip();
+                throw new IOException(message.isEmpty() ? "Could not read ffprobe output: " + e.getMessage() : message, e);
+            }
+            output.transferTo(OutputStream.nullOutputStream());
+            String message = errors.await().strip();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(message.isEmpty() ? "ffprobe exited with code " + exitCode : message);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("ffprobe interrupted", e);
+        }
+    }
+}
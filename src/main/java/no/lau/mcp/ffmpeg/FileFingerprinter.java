@@ -0,0 +1,44 @@
+package no.lau.mcp.ffmpeg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Strategy for deriving the ID a source file is registered under.
+ */
+public interface FileFingerprinter {
+
+    /**
+     * Computes the fingerprint of a file.
+     * @param file Path to the file
+     * @return The fingerprint as a hex string
+     * @throws IOException if the file cannot be read
+     */
+    String fingerprint(Path file) throws IOException;
+
+    /**
+     * Short name of the strategy, used to keep cached fingerprints of different strategies apart.
+     */
+    String name();
+
+    /**
+     * Whether equal fingerprints imply equal content. If not, files with colliding fingerprints
+     * are told apart with a full content hash.
+     */
+    default boolean isExact() {
+        return true;
+    }
+
+    /**
+     * Picks a strategy by name: {@code md5} for full-content hashing, {@code sampled} for size plus samples.
+     * @param name       The strategy name
+     * @param sampleSize Bytes read per sample by the sampled strategy
+     */
+    static FileFingerprinter named(String name, int sampleSize) {
+        return switch (name.toLowerCase()) {
+            case FileHasher.NAME -> FileHasher.MD5;
+            case SampledFingerprinter.NAME -> new SampledFingerprinter(sampleSize);
+            default -> throw new IllegalArgumentException("Unknown fingerprint strategy: " + name);
+        };
+    }
+}
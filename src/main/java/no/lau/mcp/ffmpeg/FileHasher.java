@@ -1,36 +1,88 @@
 package no.lau.mcp.ffmpeg;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-public class FileHasher {
+/**
+ * Full-content MD5 fingerprint. Reads every byte of the file.
+ */
+public class FileHasher implements FileFingerprinter {
 
+    static final String NAME = "md5";
 
+    public static final FileHasher MD5 = new FileHasher();
 
     /**
-     * Generate an MD5 hash for a file
+     * Size of the read buffer. Large enough to keep syscall overhead negligible,
+     * small enough that hashing a multi-gigabyte file runs in constant memory.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * One direct buffer per hashing thread, reused across calls so the hot path allocates nothing.
+     */
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private FileHasher() {
+    }
+
+    @Override
+    public String fingerprint(Path file) throws IOException {
+        return getMd5Hash(file);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    /**
+     * Generate an MD5 hash for a file.
+     * The file is streamed through a reusable direct buffer, so memory use does not grow with file size.
      * @param filePath Path to the file
      * @return MD5 hash of the file as a hex string
      */
     public static String getMd5Hash(Path filePath) throws IOException {
         MessageDigest md = digest();
-        md.update(Files.readAllBytes(filePath));
-        byte[] digestBytes = md.digest();
-        return bytesToHex(digestBytes);
+        ByteBuffer buffer = readBuffer();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            buffer.clear();
+        }
+        return bytesToHex(md.digest());
+    }
+
+    /**
+     * The calling thread's read buffer, cleared.
+     */
+    static ByteBuffer readBuffer() {
+        return READ_BUFFER.get().clear();
     }
 
     /**
-     * Convert bytes to hex string
+     * Convert bytes to a lowercase hex string using a lookup table.
      */
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    static String bytesToHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[v >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[v & 0x0F];
         }
-        return sb.toString();
+        return new String(hex);
     }
 
     static MessageDigest digest() {
@@ -40,18 +92,4 @@ public class FileHasher {
             throw new RuntimeException("Algorithm MD5 not available, " + e.getMessage());
         }
     }
-
-    // Example usage
-    /*
-    public static void main(String[] args) {
-        try {
-            Path filePath = Path.of("pom.xml");
-            String hash = getMd5Hash(filePath);
-            System.out.println("MD5 Hash: " + hash);
-        } catch (IOException | NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-    }
-
-     */
-}
\ No newline at end of file
+}
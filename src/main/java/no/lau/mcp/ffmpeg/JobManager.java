@@ -0,0 +1,334 @@
+package no.lau.mcp.ffmpeg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs ffmpeg commands in the background, so a tool call can return a job ID right away
+ * instead of holding the MCP request open for the whole encode.
+ *
+ * Jobs run on a fixed number of worker threads and queue up beyond that. Finished jobs are kept
+ * for status queries until more than {@code retainedJobs} have finished, oldest first.
+ */
+public class JobManager implements Closeable {
+
+    public static final String WORKERS_PROPERTY = "ffmpeg.mcp.jobs.workers";
+    /** Jobs mostly wait for cores in the {@link FFmpegScheduler}, which orders them by priority. */
+    public static final int DEFAULT_WORKERS = 8;
+    public static final int DEFAULT_RETAINED_JOBS = 500;
+
+    private static final Logger log = LoggerFactory.getLogger(JobManager.class);
+
+    private final FFmpegWrapper ffmpeg;
+    private final ExecutorService workers;
+    private final int retainedJobs;
+    private final AtomicInteger sequence = new AtomicInteger();
+    /** Insertion ordered, so the oldest finished jobs are found first when pruning. Guarded by itself. */
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    /**
+     * A submitted ffmpeg command. Its output or error becomes available once it has finished.
+     */
+    public static class Job {
+        private final String id;
+        private final FFmpegCommand command;
+        private final JobPriority priority;
+        private final Instant submitted = Instant.now();
+        private volatile Instant started;
+        private volatile Instant finished;
+        private volatile State state = State.QUEUED;
+        private volatile String output;
+        private volatile String error;
+        private volatile FFmpegProgress progress;
+        private volatile Future<?> future;
+        private volatile boolean cancelRequested;
+
+        private Job(String id, FFmpegCommand command, JobPriority priority) {
+            this.id = id;
+            this.command = command;
+            this.priority = priority;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String command() {
+            return command.toString();
+        }
+
+        public JobPriority priority() {
+            return priority;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public Instant submitted() {
+            return submitted;
+        }
+
+        /**
+         * @return When the job started running, or null while it is queued
+         */
+        public Instant started() {
+            return started;
+        }
+
+        /**
+         * @return When the job finished, or null while it is queued or running
+         */
+        public Instant finished() {
+            return finished;
+        }
+
+        /**
+         * @return The sanitized ffmpeg output, or null unless the job succeeded
+         */
+        public String output() {
+            return output;
+        }
+
+        /**
+         * @return The latest progress reported by ffmpeg, or null if none has been reported yet
+         */
+        public FFmpegProgress progress() {
+            return progress;
+        }
+
+        /**
+         * @return Why the job failed or was cancelled, or null
+         */
+        public String error() {
+            return error;
+        }
+
+        /**
+         * @return Time spent running so far, or in total once finished; zero while queued
+         */
+        public Duration runTime() {
+            Instant start = started;
+            if (start == null) {
+                return Duration.ZERO;
+            }
+            Instant end = finished;
+            return Duration.between(start, end == null ? Instant.now() : end);
+        }
+    }
+
+    public JobManager(FFmpegWrapper ffmpeg) {
+        this(ffmpeg, Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS), DEFAULT_RETAINED_JOBS);
+    }
+
+    /**
+     * @param workers Number of ffmpeg commands run at the same time
+     * @param retainedJobs Number of finished jobs kept for status queries
+     */
+    public JobManager(FFmpegWrapper ffmpeg, int workers, int retainedJobs) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1, was " + workers);
+        }
+        if (retainedJobs < 1) {
+            throw new IllegalArgumentException("retainedJobs must be at least 1, was " + retainedJobs);
+        }
+        this.ffmpeg = ffmpeg;
+        this.retainedJobs = retainedJobs;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ffmpeg-job-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the command and returns immediately.
+     * @param command The ffmpeg command, with {{id}} placeholders, as passed to {@link FFmpegWrapper#doffMPEGStuff(String)}
+     */
+    public Job submit(String command) {
+        return submit(command, JobPriority.NORMAL);
+    }
+
+    /**
+     * Queues the command and returns immediately.
+     * @param priority Order in which the command gets cores once its worker runs it
+     */
+    public Job submit(String command, JobPriority priority) {
+        return submit(FFmpegCommand.parse(command), priority);
+    }
+
+    /**
+     * Queues the parsed command and returns immediately.
+     * @param priority Order in which the command gets cores once its worker runs it
+     */
+    public Job submit(FFmpegCommand command, JobPriority priority) {
+        Job job = new Job("job-" + sequence.incrementAndGet(), command, priority);
+        synchronized (jobs) {
+            prune();
+            jobs.put(job.id, job);
+            job.future = workers.submit(() -> run(job));
+        }
+        log.info("Submitted {}: {}", job.id, command);
+        return job;
+    }
+
+    private void run(Job job) {
+        synchronized (job) {
+            if (job.state != State.QUEUED) {
+                return;
+            }
+            job.started = Instant.now();
+            job.state = State.RUNNING;
+        }
+        State outcome;
+        try {
+            job.output = ffmpeg.doffMPEGStuff(job.command, update -> job.progress = update, job.priority);
+            // A non-zero exit is reported in the output rather than thrown
+            int notice = job.output.lastIndexOf(FFmpegExecutor.EXIT_CODE_NOTICE);
+            if (notice < 0) {
+                outcome = State.SUCCEEDED;
+            } else {
+                int end = job.output.indexOf(']', notice);
+                job.error = job.output.substring(notice + 1, end < 0 ? job.output.length() : end);
+                outcome = job.cancelRequested ? State.CANCELLED : State.FAILED;
+            }
+        } catch (Exception e) {
+            job.error = e.getMessage();
+            outcome = job.cancelRequested ? State.CANCELLED : State.FAILED;
+        }
+        finish(job, outcome);
+        log.info("{} {} after {}", job.id, job.state, job.runTime());
+    }
+
+    private void finish(Job job, State outcome) {
+        synchronized (job) {
+            if (job.state.isFinished()) {
+                return;
+            }
+            job.finished = Instant.now();
+            job.state = outcome;
+            job.notifyAll();
+        }
+    }
+
+    /**
+     * @return The job, or null if there is no job with that ID or it has been pruned
+     */
+    public Job get(String jobId) {
+        synchronized (jobs) {
+            return jobs.get(jobId);
+        }
+    }
+
+    /**
+     * @return All known jobs, oldest first
+     */
+    public List<Job> jobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * Waits until the job has finished or the timeout has passed.
+     * @return The job, finished or not, or null if there is no job with that ID
+     */
+    public Job await(String jobId, Duration timeout) throws InterruptedException {
+        Job job = get(jobId);
+        if (job == null) {
+            return null;
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (job) {
+            while (!job.state.isFinished()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(job, remaining);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Cancels a queued job, or stops a running one by interrupting its worker, which kills the ffmpeg process.
+     * @return The job, or null if there is no job with that ID
+     */
+    public Job cancel(String jobId) {
+        Job job = get(jobId);
+        if (job == null) {
+            return null;
+        }
+        synchronized (job) {
+            if (job.state.isFinished()) {
+                return job;
+            }
+            job.cancelRequested = true;
+            if (job.state == State.QUEUED) {
+                job.error = "Cancelled before it started";
+                finish(job, State.CANCELLED);
+            }
+        }
+        job.future.cancel(true);
+        return job;
+    }
+
+    /**
+     * Drops the oldest finished jobs beyond the retention limit. Called with the jobs lock held.
+     */
+    private void prune() {
+        int finished = 0;
+        Collection<Job> all = jobs.values();
+        for (Job job : all) {
+            if (job.state.isFinished()) {
+                finished++;
+            }
+        }
+        Iterator<Job> it = all.iterator();
+        while (finished > retainedJobs && it.hasNext()) {
+            if (it.next().state.isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting jobs and cancels the ones still queued or running.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        for (Job job : jobs()) {
+            if (!job.state.isFinished()) {
+                job.error = "Server shut down";
+                finish(job, State.CANCELLED);
+            }
+        }
+    }
+}
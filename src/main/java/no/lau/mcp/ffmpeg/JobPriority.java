@@ -0,0 +1,9 @@
+package no.lau.mcp.ffmpeg;
+
+/**
+ * Order in which queued ffmpeg processes get cores. Interactive tool calls run as {@link #HIGH},
+ * background jobs as {@link #NORMAL} unless the client asks otherwise.
+ */
+public enum JobPriority {
+    LOW, NORMAL, HIGH
+}
@@ -0,0 +1,238 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.ContainerProbe;
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.file.HashIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keyframe times and byte offsets of source videos, keyed by content hash, so trims can seek
+ * straight to the keyframe before the cut.
+ *
+ * MP4/MOV files are indexed from their sample tables in Java, other formats by letting ffprobe
+ * demux the file. An index is built on first use and written to its own file in a folder next to
+ * the hash index, e.g. {@code /tmp/vids/sources.keyframes/<hash>.keyframes}, so it survives restarts.
+ * It is trusted while the source keeps its size and modification time. Concurrent requests for the
+ * same source share one build.
+ */
+public class KeyframeIndex {
+
+    static final String FOLDER_SUFFIX = ".keyframes";
+    private static final int MAGIC = 0x46464B49; // "FFKI"
+    private static final int VERSION = 2;
+    private static final int MAX_LOADED = 256;
+    private static final Logger log = LoggerFactory.getLogger(KeyframeIndex.class);
+
+    private final Path folder;
+    private final FFprobe ffprobe;
+    /** In access order, so the eldest entry is the least recently used. Guarded by this. */
+    private final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_LOADED;
+        }
+    };
+    private final Map<String, FutureTask<Keyframes>> building = new ConcurrentHashMap<>();
+
+    private record Entry(long size, long modifiedNanos, Keyframes keyframes) {
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param folder Where indexes are written, or null to keep them in memory only
+     * @param ffprobe Indexes formats other than MP4/MOV, or null to index MP4/MOV only
+     */
+    public KeyframeIndex(Path folder, FFprobe ffprobe) {
+        this.folder = folder;
+        this.ffprobe = ffprobe;
+    }
+
+    /**
+     * Keeps indexes next to the source folder, e.g. in {@code /tmp/vids/sources.keyframes} for
+     * {@code /tmp/vids/sources}, or in memory only when {@value HashIndex#ENABLED_PROPERTY} is false.
+     */
+    public static KeyframeIndex forSourceFolder(Path sourceFolder, FFprobe ffprobe) {
+        Path parent = sourceFolder.getParent();
+        if (parent == null || !Boolean.parseBoolean(System.getProperty(HashIndex.ENABLED_PROPERTY, "true"))) {
+            return new KeyframeIndex(null, ffprobe);
+        }
+        return new KeyframeIndex(parent.resolve(sourceFolder.getFileName() + FOLDER_SUFFIX), ffprobe);
+    }
+
+    /**
+     * Returns the keyframes of the file's first video stream, reading or building its index.
+     * @param contentHash The content hash the source is registered under
+     * @return The keyframes, or null if the file cannot be indexed
+     * @throws IOException if the file cannot be read
+     */
+    public Keyframes get(String contentHash, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        synchronized (this) {
+            Entry entry = loaded.get(contentHash);
+            if (entry != null && entry.matches(attributes)) {
+                return entry.keyframes();
+            }
+        }
+        Entry stored = read(contentHash);
+        if (stored != null && stored.matches(attributes)) {
+            remember(contentHash, stored);
+            return stored.keyframes();
+        }
+
+        FutureTask<Keyframes> fresh = new FutureTask<>(() -> build(contentHash, file, attributes));
+        FutureTask<Keyframes> task = building.putIfAbsent(contentHash, fresh);
+        if (task == null) {
+            task = fresh;
+            try {
+                fresh.run();
+            } finally {
+                building.remove(contentHash, fresh);
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Indexing keyframes of " + file + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the keyframe index", e);
+        }
+    }
+
+    private Keyframes build(String contentHash, Path file, BasicFileAttributes attributes) throws IOException {
+        long start = System.nanoTime();
+        Keyframes keyframes = ContainerProbe.keyframes(file);
+        if ((keyframes == null || keyframes.size() == 0) && ffprobe != null) {
+            try {
+                keyframes = ffprobe.keyframes(file);
+            } catch (IOException e) {
+                log.warn("Could not index keyframes of {}: {}", file, e.getMessage());
+                return null;
+            }
+        }
+        if (keyframes == null || keyframes.size() == 0) {
+            return null;
+        }
+        log.info("Indexed {} keyframes of {} in {} ms", keyframes.size(), file.getFileName(),
+                (System.nanoTime() - start) / 1_000_000);
+        Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), keyframes);
+        remember(contentHash, entry);
+        write(contentHash, entry);
+        return keyframes;
+    }
+
+    private synchronized void remember(String contentHash, Entry entry) {
+        loaded.put(contentHash, entry);
+    }
+
+    /**
+     * @return Where the index of a source is kept, or null if it is not written to disk
+     */
+    private Path indexFile(String contentHash) {
+        // Content hashes are hex; anything else is kept in memory rather than used as a file name
+        if (folder == null || !contentHash.matches("[0-9A-Za-z_-]+")) {
+            return null;
+        }
+        return folder.resolve(contentHash + FOLDER_SUFFIX);
+    }
+
+    private Entry read(String contentHash) {
+        Path file = indexFile(contentHash);
+        if (file == null) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(file));
+             DataInputStream in = new DataInputStream(new CheckedInputStream(fileIn, crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long size = in.readLong();
+            long modifiedNanos = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > (Files.size(file) - 36) / 16) {
+                return null;
+            }
+            long[] times = new long[count];
+            long[] positions = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+                positions[i] = in.readLong();
+            }
+            long computed = crc.getValue();
+            if (new DataInputStream(fileIn).readLong() != computed) {
+                log.warn("Ignoring corrupt keyframe index {}", file);
+                return null;
+            }
+            return new Entry(size, modifiedNanos, new Keyframes(times, positions));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Could not read keyframe index {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index through a temporary file and an atomic move, so a crash never leaves half an index.
+     */
+    private void write(String contentHash, Entry entry) {
+        Path file = indexFile(contentHash);
+        if (file == null) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(folder);
+            CRC32 crc = new CRC32();
+            try (OutputStream fileOut = Files.newOutputStream(temp)) {
+                BufferedOutputStream buffered = new BufferedOutputStream(fileOut);
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+                Keyframes keyframes = entry.keyframes();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(entry.size());
+                out.writeLong(entry.modifiedNanos());
+                out.writeInt(keyframes.size());
+                for (int i = 0; i < keyframes.size(); i++) {
+                    out.writeLong(keyframes.timeMicros(i));
+                    out.writeLong(keyframes.position(i));
+                }
+                out.flush();
+                new DataOutputStream(buffered).writeLong(crc.getValue());
+                buffered.flush();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not write keyframe index {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns an output-side {@code -ss}, after {@code -i}, into a seek to the keyframe before the cut.
+ *
+ * With {@code -i {{video}} -ss 3600 ...}, ffmpeg decodes and discards the whole first hour. Given the
+ * keyframe index of the input, the command becomes {@code -ss K -i {{video}} -ss 3600-K ...}, where
+ * {@code K} is the last keyframe at or before the cut: the demuxer jumps to {@code K}, and only the frames
+ * between it and the cut are decoded and dropped, so the output starts on the same frame as before.
+ * Output-side {@code -to} is moved back by {@code K} too, as input seeking starts timestamps from there.
+ *
+ * Only commands with a single input, a single output and no seeking of their own are rewritten. An
+ * output-side {@code -ss} applies to the output after it alone, so with several outputs moving it to the
+ * input would cut the others too. Commands with filters are left alone as well: input seeking restarts
+ * the timestamps the filters see, so a fade, {@code select} or {@code %{pts}} would act at other times.
+ */
+final class KeyframeSeek {
+
+    /** Options whose timing this rewrite cannot keep intact */
+    private static final Set<String> TIMING_OPTIONS = Set.of("-sseof", "-copyts", "-start_at_zero", "-itsoffset",
+            "-seek_timestamp", "-ss", "-t", "-to");
+    /** Options whose filters see the timestamps, with or without a stream specifier */
+    private static final Set<String> FILTER_OPTIONS = Set.of("-vf", "-af", "-filter", "-filter_script",
+            "-filter_complex", "-filter_complex_script", "-lavfi");
+    private static final Pattern CLOCK = Pattern.compile("(-?)(?:(\\d+):)?(\\d+):(\\d+(?:\\.\\d+)?)");
+    private static final Pattern SECONDS = Pattern.compile("(-?\\d+(?:\\.\\d+)?)(s|ms|us)?");
+
+    private KeyframeSeek() {
+    }
+
+    /** Looks up the keyframes of a video reference. */
+    interface KeyframeLookup {
+        /**
+         * @return The keyframes, or null if there is no index for the video
+         */
+        Keyframes keyframes(String videoRef) throws IOException;
+    }
+
+    /**
+     * The rewritten command, and where the input now starts.
+     */
+    record Seek(FFmpegCommand command, long keyframeMicros, long trimMicros) {
+    }
+
+    /**
+     * @param command Command with {@code {{video}}} placeholders
+     * @return The rewritten command, or null if it has no output-side seek this can move
+     */
+    static Seek rewrite(FFmpegCommand command, KeyframeLookup lookup) throws IOException {
+        List<String> arguments = command.arguments();
+        int input = -1;
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (argument.equals("-i")) {
+                if (input >= 0) {
+                    return null; // output-side -ss applies to every input
+                }
+                input = i;
+            } else if (input < 0 && TIMING_OPTIONS.contains(argument)) {
+                return null; // already seeking, or limiting, on the input side
+            }
+        }
+        if (input < 0 || input + 1 >= arguments.size()) {
+            return null;
+        }
+        String reference = command.reference(input + 1);
+        if (reference == null || !isSingleOutput(command) || hasFilters(arguments)) {
+            return null;
+        }
+
+        int seek = -1;
+        int end = -1;
+        for (int i = input + 2; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (argument.equals("-ss") && seek < 0) {
+                seek = i;
+            } else if (argument.equals("-to") && end < 0) {
+                end = i;
+            } else if (TIMING_OPTIONS.contains(argument) && !argument.equals("-t")) {
+                return null; // -t is a duration, unaffected by where the input starts
+            }
+        }
+        if (seek < 0 || seek + 1 >= arguments.size() || (end >= 0 && end + 1 >= arguments.size())) {
+            return null;
+        }
+        long cut = parseMicros(arguments.get(seek + 1));
+        long stop = end < 0 ? 0 : parseMicros(arguments.get(end + 1));
+        if (cut <= 0 || stop < 0) {
+            return null;
+        }
+
+        Keyframes keyframes = lookup.keyframes(reference);
+        if (keyframes == null) {
+            return null;
+        }
+        int keyframe = keyframes.floor(cut / 1e6);
+        if (keyframe < 0 || keyframes.timeMicros(keyframe) <= 0) {
+            return null;
+        }
+        long start = keyframes.timeMicros(keyframe);
+
+        List<String> rewritten = new ArrayList<>(arguments);
+        rewritten.set(seek + 1, seconds(cut - start));
+        if (end >= 0) {
+            rewritten.set(end + 1, seconds(Math.max(0, stop - start)));
+        }
+        rewritten.addAll(input, List.of("-ss", seconds(start)));
+        return new Seek(FFmpegCommand.of(rewritten), start, cut - start);
+    }
+
+    /**
+     * @return Whether the last argument is the command's only output, so its options are the only output options
+     */
+    private static boolean isSingleOutput(FFmpegCommand command) {
+        int outputs = 0;
+        for (int i = 0; i < command.size(); i++) {
+            if (command.isOutput(i)) {
+                outputs++;
+            }
+        }
+        return outputs == 1 && command.isOutput(command.size() - 1);
+    }
+
+    private static boolean hasFilters(List<String> arguments) {
+        for (String argument : arguments) {
+            // -/filter reads the option's value from a file
+            String option = argument.startsWith("-/") ? "-" + argument.substring(2) : argument;
+            int specifier = option.indexOf(':');
+            if (FILTER_OPTIONS.contains(specifier < 0 ? option : option.substring(0, specifier))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses ffmpeg's time duration syntax: {@code [-][HH:]MM:SS[.m...]} or {@code [-]S[.m...][s|ms|us]}.
+     * @return Microseconds, or -1 if the text is not a duration
+     */
+    static long parseMicros(String text) {
+        Matcher clock = CLOCK.matcher(text);
+        if (clock.matches()) {
+            long hours = clock.group(2) == null ? 0 : Long.parseLong(clock.group(2));
+            long minutes = Long.parseLong(clock.group(3));
+            BigDecimal seconds = new BigDecimal(clock.group(4)).add(BigDecimal.valueOf(hours * 3600 + minutes * 60));
+            return clock.group(1).isEmpty() ? seconds.movePointRight(6).longValue() : -1;
+        }
+        Matcher plain = SECONDS.matcher(text);
+        if (plain.matches()) {
+            BigDecimal value = new BigDecimal(plain.group(1));
+            String unit = plain.group(2);
+            int shift = unit == null || unit.equals("s") ? 6 : unit.equals("ms") ? 3 : 0;
+            return value.signum() < 0 ? -1 : value.movePointRight(shift).longValue();
+        }
+        return -1;
+    }
+
+    static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
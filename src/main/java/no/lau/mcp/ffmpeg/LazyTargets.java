@@ -0,0 +1,292 @@
+package no.lau.mcp.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Defers commands writing intermediate targets, and fuses them into the command which reads them.
+ *
+ * A chain like {@code {{source}} -> {{tmp1}} -> {{tmp2}} -> {{final}}} normally encodes and decodes
+ * every intermediate. When the intermediates are registered as such, each simple step writing one,
+ * {@code [global options] -i {{input}} [-vf ...] [-af ...] [encoding options] {{tmp}}}, is recorded as
+ * a {@link Chain} from the source instead of being run: the filters of the steps are appended to each
+ * other, and the encoding options of all but the last step are dropped, as nothing ever decodes them.
+ * A simple command reading the intermediate then runs as one ffmpeg invocation from the source, with the
+ * filters of the whole chain in front of its own. Any other command reading it renders the intermediate
+ * first, from the source in one step.
+ *
+ * A stream copied by a step stays fusable only if every step before it copied it too, so that no
+ * encoder settings are lost.
+ */
+final class LazyTargets {
+
+    private static final Set<String> GLOBAL_FLAGS = Set.of("-y", "-n", "-hide_banner", "-nostdin", "-stats", "-nostats");
+    private static final Set<String> GLOBAL_OPTIONS = Set.of("-loglevel", "-v");
+    private static final Set<String> VIDEO_FILTER = Set.of("-vf", "-filter:v");
+    private static final Set<String> AUDIO_FILTER = Set.of("-af", "-filter:a");
+    private static final Set<String> STREAM_FLAGS = Set.of("-an", "-vn", "-sn", "-dn");
+    /** Output options which only shape how a step is encoded, so nothing is lost when the step is fused */
+    private static final Set<String> ENCODING_OPTIONS = Set.of("-c", "-codec", "-c:v", "-codec:v", "-vcodec",
+            "-c:a", "-codec:a", "-acodec", "-crf", "-preset", "-tune", "-profile:v", "-level", "-b:v", "-b:a",
+            "-q:v", "-q:a", "-qscale:v", "-qscale:a", "-g", "-threads", "-movflags", "-f", "-x264-params",
+            "-x265-params");
+    /** Options which pick streams by input index, or filter more than one input, so reading commands with them are not fused */
+    private static final Set<String> MULTI_INPUT_OPTIONS = Set.of("-map", "-filter_complex", "-lavfi",
+            "-filter_complex_script", "-i");
+
+    private final Set<String> intermediates = ConcurrentHashMap.newKeySet();
+    private final Map<String, Chain> deferred = new ConcurrentHashMap<>();
+
+    /**
+     * A simple single input, single output command, split into its parts.
+     * @param options Output options other than filters and stream flags, in order
+     * @param encodingOnly Whether every option in {@code options} is an encoding option
+     */
+    record Step(List<String> global, String input, List<String> videoFilters, List<String> audioFilters,
+                Set<String> disabled, List<String> options, boolean encodingOnly, String output) {
+
+        boolean copies(char stream) {
+            boolean copy = false;
+            for (int i = 0; i + 1 < options.size(); i++) {
+                String option = options.get(i);
+                boolean all = option.equals("-c") || option.equals("-codec");
+                boolean one = option.equals("-c:" + stream) || option.equals("-codec:" + stream)
+                        || option.equals(stream == 'v' ? "-vcodec" : "-acodec");
+                if (all || one) {
+                    copy = options.get(i + 1).equals("copy");
+                }
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * How to render a deferred target from a source video.
+     * @param options Encoding options of the last step
+     * @param videoCopied Whether every step stream copied the video
+     * @param audioCopied Whether every step stream copied the audio
+     * @param steps Number of commands deferred into this chain
+     */
+    record Chain(String source, List<String> videoFilters, List<String> audioFilters, Set<String> disabled,
+                 List<String> options, boolean videoCopied, boolean audioCopied, int steps) {
+
+        /**
+         * @return The command rendering the chain into {@code target}
+         */
+        FFmpegCommand command(String target) {
+            List<String> arguments = new ArrayList<>(List.of("-y", "-i", "{{" + source + "}}"));
+            addFilters(arguments, videoFilters, audioFilters, disabled);
+            arguments.addAll(options);
+            arguments.add("{{" + target + "}}");
+            return FFmpegCommand.of(arguments);
+        }
+
+        /**
+         * @return Whether a step reading this chain can be run from its source, see the class comment
+         */
+        boolean canFeed(Step step) {
+            return (!step.copies('v') || videoCopied) && (!step.copies('a') || audioCopied);
+        }
+    }
+
+    /**
+     * A reading command rewritten to run from the source of the chain behind its input.
+     * @param input The deferred target which is not rendered
+     * @param steps Number of encodes skipped
+     */
+    record Fusion(FFmpegCommand command, String input, int steps) {
+    }
+
+    /**
+     * Marks a target as intermediate, so commands writing it can be deferred.
+     */
+    void markIntermediate(String targetRef) {
+        intermediates.add(targetRef);
+    }
+
+    /**
+     * @return The chain a deferred target is rendered from, or null if it is not deferred
+     */
+    Chain chain(String targetRef) {
+        return deferred.get(targetRef);
+    }
+
+    /**
+     * Records the command instead of running it, if it is a simple step writing an intermediate target.
+     * @param isSource Whether a reference is an unchanging source video, which a chain may start from
+     * @return The deferred target, or null if the command must be run
+     */
+    synchronized String defer(FFmpegCommand command, Predicate<String> isSource) {
+        Step step = parse(command);
+        if (step == null || !step.encodingOnly() || !intermediates.contains(step.output())) {
+            return null;
+        }
+        // Filtering a stream which is copied is an error ffmpeg should report
+        if ((!step.videoFilters().isEmpty() && step.copies('v')) || (!step.audioFilters().isEmpty() && step.copies('a'))) {
+            return null;
+        }
+        Chain previous = deferred.get(step.input());
+        Chain chain;
+        if (previous != null) {
+            if (!previous.canFeed(step)) {
+                return null;
+            }
+            List<String> videoFilters = concat(previous.videoFilters(), step.videoFilters());
+            List<String> audioFilters = concat(previous.audioFilters(), step.audioFilters());
+            Set<String> disabled = new LinkedHashSet<>(previous.disabled());
+            disabled.addAll(step.disabled());
+            chain = new Chain(previous.source(), videoFilters, audioFilters, Set.copyOf(disabled), step.options(),
+                    previous.videoCopied() && step.copies('v'), previous.audioCopied() && step.copies('a'),
+                    previous.steps() + 1);
+        } else if (isSource.test(step.input())) {
+            chain = new Chain(step.input(), step.videoFilters(), step.audioFilters(), step.disabled(), step.options(),
+                    step.copies('v'), step.copies('a'), 1);
+        } else {
+            return null; // a target read now could be written again before the chain is rendered
+        }
+        deferred.put(step.output(), chain);
+        return step.output();
+    }
+
+    /**
+     * @return The command run from the source of the deferred target it reads, or null if it cannot be fused
+     */
+    Fusion fuse(FFmpegCommand command) {
+        Step step = parse(command);
+        Chain chain = step == null ? null : deferred.get(step.input());
+        if (chain == null || !chain.canFeed(step)) {
+            return null;
+        }
+        List<String> arguments = new ArrayList<>(step.global());
+        arguments.add("-i");
+        arguments.add("{{" + chain.source() + "}}");
+        Set<String> disabled = new LinkedHashSet<>(chain.disabled());
+        disabled.addAll(step.disabled());
+        addFilters(arguments, concat(chain.videoFilters(), step.videoFilters()),
+                concat(chain.audioFilters(), step.audioFilters()), disabled);
+        arguments.addAll(step.options());
+        arguments.add("{{" + step.output() + "}}");
+        return new Fusion(FFmpegCommand.of(arguments), step.input(), chain.steps());
+    }
+
+    /**
+     * @return The deferred targets the command reads as inputs
+     */
+    List<String> deferredInputs(FFmpegCommand command) {
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i + 1 < command.size(); i++) {
+            String reference = command.reference(i + 1);
+            if (command.get(i).equals("-i") && reference != null && deferred.containsKey(reference)
+                    && !inputs.contains(reference)) {
+                inputs.add(reference);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Drops the chain of a target which has been rendered, unless it was deferred again meanwhile.
+     */
+    void rendered(String targetRef, Chain chain) {
+        deferred.remove(targetRef, chain);
+    }
+
+    /**
+     * Drops the chain of the command's output, which the command is about to write.
+     */
+    void written(FFmpegCommand command) {
+        String output = command.size() == 0 ? null : command.reference(command.size() - 1);
+        if (output != null) {
+            discard(output);
+        }
+    }
+
+    /**
+     * Drops the chain of a target which is about to be written some other way.
+     */
+    void discard(String targetRef) {
+        deferred.remove(targetRef);
+    }
+
+    /**
+     * Splits a simple command, {@code [global options] -i {{input}} [output options] {{output}}}.
+     * @return The parts, or null if the command is not that simple
+     */
+    static Step parse(FFmpegCommand command) {
+        List<String> arguments = command.arguments();
+        List<String> global = new ArrayList<>();
+        int i = 0;
+        while (i < arguments.size() && !arguments.get(i).equals("-i")) {
+            String argument = arguments.get(i);
+            if (GLOBAL_FLAGS.contains(argument)) {
+                global.add(argument);
+            } else if (GLOBAL_OPTIONS.contains(argument) && i + 1 < arguments.size()) {
+                global.add(argument);
+                global.add(arguments.get(++i));
+            } else {
+                return null; // an input option, which fusing would apply to a different input
+            }
+            i++;
+        }
+        if (i + 2 >= arguments.size()) {
+            return null;
+        }
+        String input = command.reference(i + 1);
+        String output = command.reference(arguments.size() - 1);
+        if (input == null || output == null) {
+            return null;
+        }
+
+        List<String> videoFilters = new ArrayList<>();
+        List<String> audioFilters = new ArrayList<>();
+        Set<String> disabled = new LinkedHashSet<>();
+        List<String> options = new ArrayList<>();
+        boolean encodingOnly = true;
+        for (i += 2; i < arguments.size() - 1; i++) {
+            String argument = arguments.get(i);
+            boolean hasValue = i + 1 < arguments.size() - 1;
+            if (MULTI_INPUT_OPTIONS.contains(argument) || argument.contains("{{")) {
+                return null;
+            } else if (VIDEO_FILTER.contains(argument) && hasValue) {
+                videoFilters.add(arguments.get(++i));
+            } else if (AUDIO_FILTER.contains(argument) && hasValue) {
+                audioFilters.add(arguments.get(++i));
+            } else if (STREAM_FLAGS.contains(argument)) {
+                disabled.add(argument);
+            } else if (ENCODING_OPTIONS.contains(argument) && hasValue) {
+                options.add(argument);
+                options.add(arguments.get(++i));
+            } else {
+                options.add(argument);
+                encodingOnly = false;
+            }
+        }
+        return new Step(List.copyOf(global), input, List.copyOf(videoFilters), List.copyOf(audioFilters),
+                Set.copyOf(disabled), List.copyOf(options), encodingOnly, output);
+    }
+
+    private static void addFilters(List<String> arguments, List<String> videoFilters, List<String> audioFilters,
+                                   Set<String> disabled) {
+        if (!videoFilters.isEmpty()) {
+            arguments.add("-vf");
+            arguments.add(String.join(",", videoFilters));
+        }
+        if (!audioFilters.isEmpty()) {
+            arguments.add("-af");
+            arguments.add(String.join(",", audioFilters));
+        }
+        // Fixed order, so the same chain always gives the same command for the result cache
+        STREAM_FLAGS.stream().sorted().filter(disabled::contains).forEach(arguments::add);
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> both = new ArrayList<>(first);
+        both.addAll(second);
+        return List.copyOf(both);
+    }
+}
@@ -0,0 +1,139 @@
+package no.lau.mcp.ffmpeg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Descriptions of source videos, keyed by content hash, so {@code video_info} on the same source
+ * probes it once.
+ *
+ * An entry is valid while the file is at the same path with the same size and modification time;
+ * otherwise it is probed again. Concurrent requests for the same video share one probe: the first
+ * caller runs it and the others wait for its result. Failed probes are not kept. Beyond
+ * {@code maxEntries}, the least recently used entry is dropped.
+ */
+public class MetadataCache {
+
+    public static final String MAX_ENTRIES_PROPERTY = "ffmpeg.mcp.metadata.maxEntries";
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** Describes a video file. */
+    public interface Prober {
+        String probe(Path file) throws IOException;
+    }
+
+    /**
+     * @param hits Requests answered from a finished probe
+     * @param misses Requests which ran a probe
+     * @param coalesced Requests which waited for a probe another request was running
+     */
+    public record Statistics(long hits, long misses, long coalesced, int entries) {
+    }
+
+    private static final class Entry {
+        final FutureTask<String> probe;
+        final Path file;
+        final long size;
+        final long modified;
+        volatile long lastUsed = System.nanoTime();
+
+        Entry(FutureTask<String> probe, Path file, long size, long modified) {
+            this.probe = probe;
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean describes(Path file, BasicFileAttributes attributes) {
+            return this.file.equals(file) && size == attributes.size() && modified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * Keeps up to {@value #MAX_ENTRIES_PROPERTY} descriptions, {@value #DEFAULT_MAX_ENTRIES} by default.
+     */
+    public MetadataCache() {
+        this(Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+    }
+
+    public MetadataCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1, was " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the description of the file, probing it if there is no valid entry for its content hash.
+     * @param contentHash The content hash the source is registered under
+     * @throws IOException if the file cannot be read or the probe fails
+     */
+    public String get(String contentHash, Path file, Prober prober) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Entry entry = entries.get(contentHash);
+        if (entry != null && !entry.describes(file, attributes)) {
+            entries.remove(contentHash, entry);
+            entry = null;
+        }
+        boolean probed = false;
+        if (entry == null) {
+            Entry fresh = new Entry(new FutureTask<>(() -> prober.probe(file)), file, attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+            entry = entries.putIfAbsent(contentHash, fresh);
+            if (entry == null) {
+                entry = fresh;
+                probed = true;
+                misses.incrementAndGet();
+                evictIfFull();
+                fresh.probe.run();
+            }
+        }
+        if (!probed) {
+            (entry.probe.isDone() ? hits : coalesced).incrementAndGet();
+        }
+        entry.lastUsed = System.nanoTime();
+        try {
+            return entry.probe.get();
+        } catch (ExecutionException e) {
+            entries.remove(contentHash, entry);
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Probing " + file + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for video information", e);
+        }
+    }
+
+    public Statistics statistics() {
+        return new Statistics(hits.get(), misses.get(), coalesced.get(), entries.size());
+    }
+
+    private void evictIfFull() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry> eldest = null;
+            for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+                if (eldest == null || candidate.getValue().lastUsed < eldest.getValue().lastUsed) {
+                    eldest = candidate;
+                }
+            }
+            if (eldest == null || !entries.remove(eldest.getKey(), eldest.getValue())) {
+                return;
+            }
+        }
+    }
+}
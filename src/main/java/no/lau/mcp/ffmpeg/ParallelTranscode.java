@@ -0,0 +1,149 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans an encode split into segments which run as separate ffmpeg processes at the same time.
+ *
+ * A single encoder process stops scaling well before the core count of a large machine. Here the
+ * source's video is cut at keyframes into segments, each encoded by its own process with a share of the
+ * cores, while the audio is encoded once by one more process, as encoding it in pieces would leave
+ * priming gaps at every joint. The encoded segments are then joined with the concat demuxer and muxed
+ * with the audio, without re-encoding.
+ *
+ * Segment {@code i} reads the source from boundary {@code i} up to boundary {@code i + 1}: the input seek
+ * keeps the frames at or after the start and {@code -t} the ones before the end, so every frame lands in
+ * exactly one segment. Cutting at keyframes makes each seek start decoding right at the boundary.
+ */
+final class ParallelTranscode {
+
+    /** Options which would change which frames a segment holds, or the streams it has */
+    private static final Set<String> RESERVED_OPTIONS = Set.of("-i", "-ss", "-t", "-to", "-sseof", "-itsoffset",
+            "-copyts", "-map", "-filter_complex", "-lavfi", "-f", "-an", "-vn", "-y", "-n", "-threads");
+
+    private ParallelTranscode() {
+    }
+
+    /**
+     * A piece of the video, in microseconds from the start of the source.
+     * @param last Whether the segment runs to the end of the source, rather than to {@code to}
+     */
+    record Segment(long from, long to, boolean last) {
+        long duration() {
+            return to - from;
+        }
+    }
+
+    /**
+     * Splits the source into about {@code count} segments of equal length, each starting on a keyframe.
+     * Fewer segments are returned when keyframes are further apart than the segments would be long.
+     * @param duration Duration of the source in microseconds
+     */
+    static List<Segment> segments(Keyframes keyframes, long duration, int count) {
+        List<Long> boundaries = new ArrayList<>(List.of(0L));
+        for (int i = 1; i < count; i++) {
+            int keyframe = keyframes.floor(duration * i / count / 1e6);
+            long boundary = keyframe < 0 ? 0 : keyframes.timeMicros(keyframe);
+            if (boundary > boundaries.get(boundaries.size() - 1) && boundary < duration) {
+                boundaries.add(boundary);
+            }
+        }
+        boundaries.add(duration);
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.size(); i++) {
+            segments.add(new Segment(boundaries.get(i), boundaries.get(i + 1), i + 2 == boundaries.size()));
+        }
+        return List.copyOf(segments);
+    }
+
+    /**
+     * The options go into commands with real paths, so they are held to the rules of {@link CommandValidator}
+     * like any other command: no paths, traversal or file names, such as an extra output or a {@code movie} source.
+     * @throws IllegalArgumentException if the options contain video references or options reserved for the split,
+     *                                  including {@code -threads}, which is set from the segments' share of the cores,
+     *                                  or refer to a file directly
+     */
+    static void checkOptions(List<String> options) {
+        for (String argument : options) {
+            if (RESERVED_OPTIONS.contains(argument) || argument.contains("{{")) {
+                throw new IllegalArgumentException("Encoding options cannot contain '" + argument
+                        + "', as the source is split and joined by the server");
+            }
+        }
+        CommandValidator.check(FFmpegCommand.of(options));
+    }
+
+    /**
+     * @return ffmpeg arguments encoding the segment's video into {@code output}
+     */
+    static List<String> segmentCommand(Segment segment, Path source, List<String> videoOptions, int threads, Path output) {
+        List<String> command = new ArrayList<>(List.of("-y"));
+        if (segment.from() > 0) {
+            command.addAll(List.of("-ss", KeyframeSeek.seconds(segment.from())));
+        }
+        command.addAll(List.of("-i", source.toString()));
+        if (!segment.last()) {
+            command.addAll(List.of("-t", KeyframeSeek.seconds(segment.duration())));
+        }
+        command.addAll(List.of("-map", "0:v:0", "-an"));
+        command.addAll(videoOptions);
+        command.addAll(List.of("-threads", String.valueOf(threads), output.toString()));
+        return command;
+    }
+
+    /**
+     * @return ffmpeg arguments encoding the first audio stream of the source into {@code output}, on one
+     *         thread, so it runs beside the segments instead of waiting for a share of the cores
+     */
+    static List<String> audioCommand(Path source, List<String> audioOptions, Path output) {
+        List<String> command = new ArrayList<>(List.of("-y", "-i", source.toString(), "-map", "0:a:0", "-vn"));
+        command.addAll(audioOptions);
+        command.addAll(List.of("-threads", "1", output.toString()));
+        return command;
+    }
+
+    /**
+     * @param list Concat demuxer script naming the segments, in the same folder as them
+     * @param audio The encoded audio, or null if the source has none
+     * @return ffmpeg arguments joining the segments, and the audio, into {@code output}
+     */
+    static List<String> joinCommand(Path list, Path audio, Path output) {
+        List<String> command = new ArrayList<>(List.of("-y", "-f", "concat", "-i", list.toString()));
+        if (audio != null) {
+            command.addAll(List.of("-i", audio.toString(), "-map", "0:v", "-map", "1:a"));
+        }
+        command.addAll(List.of("-c", "copy", output.toString()));
+        return command;
+    }
+
+    /**
+     * Compares how long each encoded segment is with how long it should be. A short segment leaves a gap
+     * in the timestamps of the joined video, and a long one makes them overlap.
+     * @param durations Duration of each encoded segment, or null where it could not be read
+     * @param tolerance Largest difference accepted, in microseconds; about a frame
+     * @return A description of each segment out of line; empty if the timestamps are continuous
+     */
+    static List<String> discontinuities(List<Segment> segments, List<Duration> durations, long tolerance) {
+        List<String> problems = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            Duration actual = durations.get(i);
+            // The source's duration may be its audio's, so the last segment's length is not known exactly
+            if (actual == null || segment.last()) {
+                continue;
+            }
+            long encoded = actual.toNanos() / 1000;
+            if (Math.abs(encoded - segment.duration()) > tolerance) {
+                problems.add("segment " + (i + 1) + " from " + KeyframeSeek.seconds(segment.from()) + "s is "
+                        + KeyframeSeek.seconds(encoded) + "s long instead of " + KeyframeSeek.seconds(segment.duration()) + "s");
+            }
+        }
+        return problems;
+    }
+}
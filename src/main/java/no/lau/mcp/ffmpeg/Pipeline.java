@@ -0,0 +1,100 @@
+package no.lau.mcp.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Connects dependent commands through pipes instead of files.
+ *
+ * In {@code -i {{movie}} -vf ... {{stream}}} followed by {@code -i {{stream}} -c:v libx264 {{final}}},
+ * where {@code stream} is a pipe target, the first command writes NUT to {@code pipe:1} and the second
+ * reads NUT from {@code pipe:0}. Both run at the same time, see {@link FFmpegExecutor#executePipeline},
+ * and no intermediate file is written. NUT carries any codec, including raw video and PCM audio, which
+ * is what the producer writes unless it chooses codecs itself: the stream is decoded right away, so
+ * compressing it only costs CPU.
+ */
+final class Pipeline {
+
+    /** Format of the stream between two commands */
+    static final String FORMAT = "nut";
+    private static final Set<String> VIDEO_CODEC_OPTIONS = Set.of("-c", "-codec", "-c:v", "-codec:v", "-vcodec");
+    private static final Set<String> AUDIO_CODEC_OPTIONS = Set.of("-c", "-codec", "-c:a", "-codec:a", "-acodec");
+
+    private Pipeline() {
+    }
+
+    /**
+     * @param commands Commands with {@code {{video}}} placeholders, producer first. Every command but the
+     *                 last writes a pipe target as its output, which the next command reads with {@code -i}.
+     * @return The commands with the pipe targets replaced by {@code pipe:1} and {@code pipe:0}
+     * @throws IllegalArgumentException if the commands are not connected that way
+     */
+    static List<FFmpegCommand> connect(List<FFmpegCommand> commands, Predicate<String> isPipeTarget) {
+        if (commands.size() < 2) {
+            throw new IllegalArgumentException("A pipeline needs at least two commands");
+        }
+        List<String> pipes = new ArrayList<>();
+        for (FFmpegCommand command : commands) {
+            pipes.add(pipeOutput(command, isPipeTarget));
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            FFmpegCommand command = commands.get(i);
+            String output = i + 1 < commands.size() ? pipes.get(i) : null;
+            if (i + 1 < commands.size() && output == null) {
+                throw new IllegalArgumentException("Command " + (i + 1) + " must end with a pipe target for command "
+                        + (i + 2) + " to read");
+            }
+            String input = i > 0 ? pipes.get(i - 1) : null;
+            int inputs = 0;
+            for (int j = 0; j < command.size(); j++) {
+                for (String ref : command.argument(j).references()) {
+                    boolean isInput = ref.equals(input) && j > 0 && command.get(j - 1).equals("-i")
+                            && ref.equals(command.reference(j));
+                    boolean isOutput = ref.equals(output) && j == command.size() - 1;
+                    if (isInput) {
+                        inputs++;
+                    } else if (!isOutput && isPipeTarget.test(ref)) {
+                        throw new IllegalArgumentException("Pipe target '" + ref + "' can only be the output of one command"
+                                + " and the input of the next");
+                    }
+                }
+            }
+            if (input != null && inputs != 1) {
+                throw new IllegalArgumentException("Command " + (i + 1) + " must read pipe target '" + input
+                        + "' once, with -i");
+            }
+        }
+
+        List<FFmpegCommand> connected = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            List<String> command = new ArrayList<>(commands.get(i).arguments());
+            if (i > 0) {
+                int input = command.indexOf("{{" + pipes.get(i - 1) + "}}");
+                command.set(input, "pipe:0");
+                command.addAll(input - 1, List.of("-f", FORMAT));
+            }
+            if (i + 1 < commands.size()) {
+                command.remove(command.size() - 1);
+                if (command.stream().noneMatch(VIDEO_CODEC_OPTIONS::contains)) {
+                    command.addAll(List.of("-c:v", "rawvideo"));
+                }
+                if (command.stream().noneMatch(AUDIO_CODEC_OPTIONS::contains)) {
+                    command.addAll(List.of("-c:a", "pcm_s16le"));
+                }
+                command.addAll(List.of("-f", FORMAT, "pipe:1"));
+            }
+            connected.add(FFmpegCommand.of(command));
+        }
+        return connected;
+    }
+
+    /**
+     * @return The pipe target the command writes as its last argument, or null if it writes none
+     */
+    private static String pipeOutput(FFmpegCommand command, Predicate<String> isPipeTarget) {
+        String output = command.size() == 0 ? null : command.reference(command.size() - 1);
+        return output != null && isPipeTarget.test(output) ? output : null;
+    }
+}
@@ -0,0 +1,153 @@
+package no.lau.mcp.ffmpeg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+/**
+ * Incremental parser for the {@code key=value} lines ffmpeg writes with {@code -progress}.
+ *
+ * Characters are fed one at a time as they arrive from the pipe. Keys and values are collected in
+ * fixed buffers and numbers are parsed in place, so the only allocation is the {@link FFmpegProgress}
+ * handed to the listener. Each block of values ends with a {@code progress=continue} or
+ * {@code progress=end} line; blocks arriving sooner than the minimum interval after the last
+ * delivered one are dropped, except the final one.
+ */
+class ProgressParser {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressParser.class);
+    private static final int MAX_KEY = 32;
+    private static final int MAX_VALUE = 64;
+
+    private final Consumer<FFmpegProgress> listener;
+    private final long minIntervalNanos;
+    private final char[] key = new char[MAX_KEY];
+    private final char[] value = new char[MAX_VALUE];
+    private int keyLength;
+    private int valueLength;
+    private boolean inValue;
+    private long lastDelivered = Long.MIN_VALUE;
+
+    private long frame;
+    private double fps;
+    private long outTimeUs;
+    private double speed = Double.NaN;
+
+    /**
+     * @param minIntervalNanos Minimum time between two updates passed to the listener
+     */
+    ProgressParser(Consumer<FFmpegProgress> listener, long minIntervalNanos) {
+        this.listener = listener;
+        this.minIntervalNanos = minIntervalNanos;
+    }
+
+    void accept(char c) {
+        if (c == '\n') {
+            if (inValue) {
+                field();
+            }
+            keyLength = 0;
+            valueLength = 0;
+            inValue = false;
+        } else if (c == '=' && !inValue) {
+            inValue = true;
+        } else if (inValue) {
+            if (valueLength < MAX_VALUE) {
+                value[valueLength++] = c;
+            }
+        } else if (keyLength < MAX_KEY) {
+            key[keyLength++] = c;
+        }
+    }
+
+    private void field() {
+        if (keyIs("frame")) {
+            frame = parseLong(frame);
+        } else if (keyIs("fps")) {
+            fps = parseDouble(fps);
+        } else if (keyIs("out_time_us") || keyIs("out_time_ms")) {
+            // Despite its name, out_time_ms is also in microseconds
+            outTimeUs = parseLong(outTimeUs);
+        } else if (keyIs("speed")) {
+            speed = parseDouble(Double.NaN);
+        } else if (keyIs("progress")) {
+            boolean finished = valueLength == 3 && value[0] == 'e' && value[1] == 'n' && value[2] == 'd';
+            long now = System.nanoTime();
+            if (finished || lastDelivered == Long.MIN_VALUE || now - lastDelivered >= minIntervalNanos) {
+                lastDelivered = now;
+                try {
+                    listener.accept(new FFmpegProgress(frame, fps, outTimeUs, speed, finished));
+                } catch (RuntimeException e) {
+                    // The pipe must keep draining whatever happens to the update
+                    log.debug("Progress listener failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean keyIs(String name) {
+        if (keyLength != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (key[i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The value as a long, or the fallback if it is not a number (ffmpeg writes N/A before the first frame)
+     */
+    private long parseLong(long fallback) {
+        int i = valueLength > 0 && value[0] == '-' ? 1 : 0;
+        if (i == valueLength) {
+            return fallback;
+        }
+        long result = 0;
+        for (int j = i; j < valueLength; j++) {
+            char c = value[j];
+            if (c < '0' || c > '9') {
+                return fallback;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return i == 1 ? -result : result;
+    }
+
+    /**
+     * Parses values like {@code 29.97} or {@code 1.5x}; a trailing {@code x} is ignored.
+     */
+    private double parseDouble(double fallback) {
+        int end = valueLength > 0 && value[valueLength - 1] == 'x' ? valueLength - 1 : valueLength;
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean afterPoint = false;
+        boolean digits = false;
+        for (int i = 0; i < end; i++) {
+            char c = value[i];
+            if (c == ' ') {
+                continue; // speed is padded, as in "speed=   1x"
+            }
+            if (c == '.' && !afterPoint) {
+                afterPoint = true;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (afterPoint) {
+                    if (scale < 1_000_000_000L) {
+                        fraction = fraction * 10 + (c - '0');
+                        scale *= 10;
+                    }
+                } else {
+                    whole = whole * 10 + (c - '0');
+                }
+            } else {
+                return fallback;
+            }
+        }
+        return digits ? whole + (double) fraction / scale : fallback;
+    }
+}
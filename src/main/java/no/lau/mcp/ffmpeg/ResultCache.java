@@ -0,0 +1,339 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.file.VideoRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Content-addressed cache of the files written by ffmpeg commands, so running the same command on
+ * the same sources again links the earlier result into place instead of encoding it again.
+ *
+ * The key is a SHA-256 over the command's arguments, with each source placeholder replaced by the
+ * content hash, size and modification time of the source, and each output placeholder by its
+ * position. Outputs are hard linked into the cache folder, or copied where linking is not possible,
+ * and hard linked out again on a hit. A cached file whose size or modification time has changed,
+ * for instance because a linked target was overwritten, is dropped instead of served. The least
+ * recently used entries are evicted once the cached files take more than {@code maxBytes}.
+ *
+ * Only commands whose every file is a video reference are cached: inputs must be content hashed
+ * sources, and outputs must be whole arguments. A literal path or output file anywhere in the
+ * command, or a reference which is not a source used as an input, makes the command uncacheable.
+ */
+public class ResultCache {
+
+    public static final String MAX_BYTES_PROPERTY = "ffmpeg.mcp.cache.maxBytes";
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    private final Path folder;
+    private final long maxBytes;
+    /** In access order, so the eldest entry is the least recently used. Guarded by this. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long stores;
+    private long evictions;
+
+    /**
+     * The cache key of a command, and the files the command writes, in the order they appear.
+     */
+    public record Key(String hash, List<Path> outputs) {
+    }
+
+    /**
+     * @param entries Cached commands
+     * @param bytes Size of the cached files
+     * @param stores Results added to the cache
+     * @param evictions Entries dropped to stay within the size limit or because a file had changed
+     */
+    public record Statistics(long hits, long misses, long stores, long evictions, int entries, long bytes, long maxBytes) {
+    }
+
+    private record Entry(List<Path> files, List<Long> sizes, List<Long> modified, List<Path> outputs, String output,
+                         long bytes) {
+    }
+
+    /**
+     * Keeps up to {@value #MAX_BYTES_PROPERTY} bytes, 2 GiB by default.
+     */
+    public ResultCache(Path folder) {
+        this(folder, Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * Files left in the folder by an earlier process are deleted, as the cache index is kept in memory only.
+     * @param maxBytes Maximum size of the cached files
+     */
+    public ResultCache(Path folder, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative, was " + maxBytes);
+        }
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(folder)) {
+                for (Path file : stale) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                log.warn("Could not clear result cache folder {}: {}", folder, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Computes the cache key of a command.
+     * @param template The command with final video reference placeholders
+     * @param references The snapshot the command is resolved against
+     * @param contentHash Content hash of a source video reference, or null if the reference is not a source
+     * @return The key, or null if the command cannot be cached
+     */
+    public static Key keyFor(FFmpegCommand template, VideoRegistry.Snapshot references, Function<String, String> contentHash) {
+        List<String> arguments = template.arguments();
+        List<Path> outputs = new ArrayList<>();
+        MessageDigest digest = sha256();
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            FFmpegCommand.Argument parts = template.argument(i);
+            boolean optionValue = !argument.startsWith("-") && !template.isOutput(i);
+            if (containsPath(parts.render(id -> ""))) {
+                return null;
+            }
+            List<String> others = new ArrayList<>();
+            String normalized = parts.render(id -> {
+                String hash = contentHash.apply(id);
+                Path path = references.get(id);
+                BasicFileAttributes attributes = hash == null || path == null ? null : attributes(path);
+                if (attributes == null) {
+                    others.add(id);
+                    return null;
+                }
+                return "{{source " + hash + " " + attributes.size() + " " + attributes.lastModifiedTime().toMillis() + "}}";
+            });
+            if (!others.isEmpty()) {
+                // Not a source, so an output: it must be a whole argument in an output position
+                Path output = references.get(others.get(0));
+                if (others.size() > 1 || optionValue || output == null || outputs.contains(output)
+                        || !others.get(0).equals(parts.reference())) {
+                    return null;
+                }
+                normalized = "{{output " + outputs.size() + "}}";
+                outputs.add(output);
+            } else if (!argument.startsWith("-") && !optionValue) {
+                return null; // an output ffmpeg writes outside the video references
+            }
+            digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        if (outputs.isEmpty()) {
+            return null;
+        }
+        return new Key(HexFormat.of().formatHex(digest.digest()), List.copyOf(outputs));
+    }
+
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A path starts at the beginning of an argument or after a separator, as in {@code movie=/x.mp4};
+     * a slash after a name or closing parenthesis is a division, as in {@code scale=iw/2:-1}.
+     */
+    private static boolean containsPath(String argument) {
+        if (argument.contains("://")) {
+            return true;
+        }
+        for (int i = argument.indexOf('/'); i >= 0; i = argument.indexOf('/', i + 1)) {
+            if (i == 0) {
+                return true;
+            }
+            char before = argument.charAt(i - 1);
+            if (!Character.isLetterOrDigit(before) && before != ')' && before != '_') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Links the cached result of a command into its output paths.
+     * @return The output of the ffmpeg run that produced the result, with its output paths replaced
+     * by the ones of this key, or null on a miss
+     */
+    public synchronized String restore(Key key) {
+        Entry entry = entries.get(key.hash());
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (!unchanged(entry)) {
+            log.info("Dropping result cache entry {}, a cached file has changed", key.hash());
+            remove(key.hash());
+            evictions++;
+            misses++;
+            return null;
+        }
+        try {
+            for (int i = 0; i < entry.files().size(); i++) {
+                Path target = key.outputs().get(i);
+                if (Files.exists(target) && Files.size(target) > 0) {
+                    // Something is there already; let ffmpeg decide whether to overwrite it
+                    misses++;
+                    return null;
+                }
+            }
+            for (int i = 0; i < entry.files().size(); i++) {
+                Path target = key.outputs().get(i);
+                Files.deleteIfExists(target);
+                link(target, entry.files().get(i));
+            }
+        } catch (IOException e) {
+            log.warn("Could not restore result cache entry {}: {}", key.hash(), e.getMessage());
+            misses++;
+            return null;
+        }
+        hits++;
+        String output = entry.output();
+        for (int i = 0; i < entry.outputs().size(); i++) {
+            output = output.replace(entry.outputs().get(i).toString(), key.outputs().get(i).toString());
+        }
+        return output;
+    }
+
+    /**
+     * Adds the outputs of a successful run to the cache, evicting the least recently used entries if needed.
+     * Outputs which are missing or empty are not cached.
+     * @param output What ffmpeg printed, returned again on a hit
+     */
+    public synchronized void store(Key key, String output) {
+        if (maxBytes == 0) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Long> modified = new ArrayList<>();
+        long entryBytes = 0;
+        try {
+            remove(key.hash());
+            Files.createDirectories(folder);
+            for (int i = 0; i < key.outputs().size(); i++) {
+                Path source = key.outputs().get(i);
+                if (!Files.isRegularFile(source) || Files.size(source) == 0) {
+                    deleteAll(files);
+                    return;
+                }
+                Path file = folder.resolve(key.hash() + "-" + i + extension(source));
+                Files.deleteIfExists(file);
+                link(file, source);
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                files.add(file);
+                sizes.add(attributes.size());
+                modified.add(attributes.lastModifiedTime().toMillis());
+                entryBytes += attributes.size();
+            }
+        } catch (IOException e) {
+            log.warn("Could not add result cache entry {}: {}", key.hash(), e.getMessage());
+            deleteAll(files);
+            return;
+        }
+        if (entryBytes > maxBytes) {
+            deleteAll(files);
+            return;
+        }
+        entries.put(key.hash(), new Entry(files, sizes, modified, key.outputs(), output, entryBytes));
+        bytes += entryBytes;
+        stores++;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.bytes();
+            deleteAll(evicted.files());
+            evictions++;
+        }
+    }
+
+    public synchronized Statistics statistics() {
+        return new Statistics(hits, misses, stores, evictions, entries.size(), bytes, maxBytes);
+    }
+
+    private void remove(String hash) {
+        Entry entry = entries.remove(hash);
+        if (entry != null) {
+            bytes -= entry.bytes();
+            deleteAll(entry.files());
+        }
+    }
+
+    private static boolean unchanged(Entry entry) {
+        for (int i = 0; i < entry.files().size(); i++) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry.files().get(i), BasicFileAttributes.class);
+                if (attributes.size() != entry.sizes().get(i)
+                        || attributes.lastModifiedTime().toMillis() != entry.modified().get(i)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hard links the file, falling back to a copy across file systems.
+     */
+    private static void link(Path link, Path existing) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(existing, link);
+        }
+    }
+
+    private static void deleteAll(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Could not delete cached file {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
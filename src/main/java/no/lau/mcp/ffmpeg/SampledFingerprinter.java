@@ -0,0 +1,79 @@
+package no.lau.mcp.ffmpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Fast fingerprint which hashes the file size plus fixed-size samples from the head, middle and tail.
+ * Cost is constant per file, so indexing a library of large videos reads a few hundred kilobytes per file
+ * instead of every byte. Files no larger than three samples are hashed in full.
+ *
+ * Two files differing only outside the sampled regions get the same fingerprint, so this strategy is not
+ * {@link #isExact() exact}; the indexer falls back to a full MD5 when fingerprints collide.
+ */
+public class SampledFingerprinter implements FileFingerprinter {
+
+    static final String NAME = "sampled";
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    private final int sampleSize;
+
+    public SampledFingerprinter(int sampleSize) {
+        if (sampleSize < 1 || sampleSize > FileHasher.BUFFER_SIZE) {
+            throw new IllegalArgumentException("Sample size must be between 1 and " + FileHasher.BUFFER_SIZE + " bytes.");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    @Override
+    public String fingerprint(Path file) throws IOException {
+        MessageDigest md = FileHasher.digest();
+        ByteBuffer buffer = FileHasher.readBuffer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            buffer.putLong(size).flip();
+            md.update(buffer);
+            if (size <= 3L * sampleSize) {
+                sample(channel, 0, size, buffer, md);
+            } else {
+                sample(channel, 0, sampleSize, buffer, md);
+                sample(channel, (size - sampleSize) / 2, sampleSize, buffer, md);
+                sample(channel, size - sampleSize, sampleSize, buffer, md);
+            }
+        } finally {
+            buffer.clear();
+        }
+        return FileHasher.bytesToHex(md.digest());
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    /**
+     * Feeds {@code length} bytes starting at {@code position} into the digest.
+     */
+    private static void sample(FileChannel channel, long position, long length, ByteBuffer buffer, MessageDigest md) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                break; // file shrank while sampling
+            }
+            position += read;
+            buffer.flip();
+            md.update(buffer);
+        }
+    }
+}
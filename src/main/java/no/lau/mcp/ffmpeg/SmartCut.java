@@ -0,0 +1,181 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.ffmpeg.probe.MediaInfo;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans a trim which re-encodes only the partial GOPs at the edges of the range.
+ *
+ * The range is split at the first keyframe at or after its start and the last keyframe at or before
+ * its end. The head up to the first keyframe and the tail from the last one are re-encoded with an
+ * encoder for the source's own codec; the body between them is stream copied. The parts are written
+ * as intermediates which carry codec parameters in-band, MPEG-TS for H.264 and HEVC, so a body whose
+ * parameters differ from the re-encoded edges still decodes, and are joined with the concat demuxer.
+ *
+ * When no whole GOP lies inside the range, or there is no encoder for the source's codecs, the range
+ * is re-encoded in one piece.
+ */
+final class SmartCut {
+
+    /** Encoders writing the codec ffmpeg reports for a video stream, with high quality settings */
+    private static final Map<String, String> VIDEO_ENCODERS = Map.of(
+            "h264", "libx264 -preset fast -crf 16",
+            "hevc", "libx265 -preset fast -crf 18",
+            "mpeg2video", "mpeg2video -q:v 2",
+            "mpeg4", "mpeg4 -q:v 2",
+            "vp8", "libvpx -crf 4 -b:v 0",
+            "vp9", "libvpx-vp9 -crf 18 -b:v 0 -row-mt 1",
+            "mjpeg", "mjpeg -q:v 2",
+            "prores", "prores_ks");
+    private static final Map<String, String> AUDIO_ENCODERS = Map.of(
+            "aac", "aac", "mp3", "libmp3lame", "ac3", "ac3", "eac3", "eac3", "opus", "libopus",
+            "vorbis", "libvorbis", "flac", "flac", "alac", "alac", "pcm_s16le", "pcm_s16le", "pcm_s16be", "pcm_s16be");
+    /** Codecs whose parameter sets MPEG-TS repeats in-band before every keyframe */
+    private static final Set<String> TRANSPORT_STREAM_VIDEO = Set.of("h264", "hevc", "mpeg2video", "mpeg4");
+    private static final Set<String> TRANSPORT_STREAM_AUDIO = Set.of("aac", "mp3", "ac3", "eac3");
+
+    private SmartCut() {
+    }
+
+    /**
+     * A piece of the range, in microseconds from the start of the source.
+     * @param copy Stream copied rather than re-encoded
+     */
+    record Part(long from, long to, boolean copy) {
+        long duration() {
+            return to - from;
+        }
+    }
+
+    /**
+     * @param parts Pieces in order; a single re-encoded piece when the range is not cut smartly
+     * @param videoEncoder Encoder arguments for re-encoded video, or null to leave the choice to ffmpeg
+     * @param audioEncoder Encoder arguments for re-encoded audio, or null to leave the choice to ffmpeg
+     * @param intermediate File extension of the parts before they are joined, or null if there is one part
+     * @param reason Why the range is re-encoded in one piece, or null if it is not
+     */
+    record Plan(List<Part> parts, String videoEncoder, String audioEncoder, String intermediate, String reason) {
+
+        boolean smart() {
+            return reason == null;
+        }
+
+        long copiedMicros() {
+            return parts.stream().filter(Part::copy).mapToLong(Part::duration).sum();
+        }
+
+        long encodedMicros() {
+            return parts.stream().filter(part -> !part.copy()).mapToLong(Part::duration).sum();
+        }
+
+        /**
+         * @return ffmpeg arguments writing part {@code i} of the source to {@code output}
+         */
+        List<String> command(int i, Path source, Path output) {
+            Part part = parts.get(i);
+            // A hair past the keyframe, so rounding its time down cannot make the seek land on the one before
+            long seek = part.copy() ? part.from() + 1 : part.from();
+            List<String> command = new ArrayList<>(List.of("-y"));
+            if (seek > 0) {
+                command.addAll(List.of("-ss", KeyframeSeek.seconds(seek)));
+            }
+            command.addAll(List.of("-i", source.toString(), "-t", KeyframeSeek.seconds(part.duration()),
+                    "-map", "0:v:0", "-map", "0:a?"));
+            if (part.copy()) {
+                command.addAll(List.of("-c", "copy"));
+            } else {
+                if (videoEncoder != null) {
+                    command.add("-c:v");
+                    command.addAll(List.of(videoEncoder.split(" ")));
+                }
+                if (audioEncoder != null) {
+                    command.add("-c:a");
+                    command.addAll(List.of(audioEncoder.split(" ")));
+                }
+            }
+            if (smart()) {
+                command.addAll(List.of("-avoid_negative_ts", "make_zero"));
+            }
+            command.add(output.toString());
+            return command;
+        }
+
+        /**
+         * @param list Concat demuxer script naming the parts, in the same folder as them
+         * @return ffmpeg arguments joining the parts into {@code output}
+         */
+        static List<String> joinCommand(Path list, Path output) {
+            return List.of("-y", "-f", "concat", "-i", list.toString(), "-map", "0", "-c", "copy", output.toString());
+        }
+    }
+
+    /**
+     * @param start Start of the range in microseconds from the start of the source
+     * @param end End of the range in microseconds
+     * @param keyframes Keyframes of the source's first video stream, or null if unknown
+     */
+    static Plan plan(MediaInfo info, Keyframes keyframes, long start, long end) {
+        MediaInfo.Stream video = firstStream(info, MediaInfo.StreamType.VIDEO);
+        MediaInfo.Stream audio = firstStream(info, MediaInfo.StreamType.AUDIO);
+        String videoEncoder = video == null ? null : VIDEO_ENCODERS.get(video.codec());
+        String audioEncoder = audio == null ? null : audioEncoder(audio);
+        List<Part> whole = List.of(new Part(start, end, false));
+
+        if (video == null) {
+            return new Plan(whole, null, null, null, "the source has no video stream");
+        }
+        if (videoEncoder == null) {
+            return new Plan(whole, null, null, null, "there is no encoder for " + video.codec() + " video");
+        }
+        if (audio != null && audioEncoder == null) {
+            return new Plan(whole, videoEncoder, null, null, "there is no encoder for " + audio.codec() + " audio");
+        }
+        if (keyframes == null || keyframes.size() == 0) {
+            return new Plan(whole, videoEncoder, audioEncoder, null, "the source's keyframes are unknown");
+        }
+
+        int before = keyframes.floor(start / 1e6);
+        int first = before >= 0 && keyframes.timeMicros(before) == start ? before : before + 1;
+        int last = keyframes.floor(end / 1e6);
+        if (first >= keyframes.size() || last < 0 || first >= last) {
+            return new Plan(whole, videoEncoder, audioEncoder, null, "no whole keyframe interval lies inside the range");
+        }
+        long bodyStart = keyframes.timeMicros(first);
+        long bodyEnd = keyframes.timeMicros(last);
+        List<Part> parts = new ArrayList<>(3);
+        if (bodyStart > start) {
+            parts.add(new Part(start, bodyStart, false));
+        }
+        parts.add(new Part(bodyStart, bodyEnd, true));
+        if (end > bodyEnd) {
+            parts.add(new Part(bodyEnd, end, false));
+        }
+        boolean transportStream = TRANSPORT_STREAM_VIDEO.contains(video.codec())
+                && (audio == null || TRANSPORT_STREAM_AUDIO.contains(audio.codec()));
+        if (!transportStream && TRANSPORT_STREAM_VIDEO.contains(video.codec())) {
+            // Matroska keeps one set of parameters, which need not fit the copied body
+            return new Plan(whole, videoEncoder, audioEncoder, null,
+                    "MPEG-TS cannot carry " + audio.codec() + " audio between the parts");
+        }
+        return new Plan(List.copyOf(parts), videoEncoder, audioEncoder, transportStream ? ".ts" : ".mkv", null);
+    }
+
+    private static String audioEncoder(MediaInfo.Stream audio) {
+        String encoder = AUDIO_ENCODERS.get(audio.codec());
+        if (encoder == null || audio.bitRate() <= 0 || encoder.startsWith("pcm") || encoder.equals("flac")
+                || encoder.equals("alac")) {
+            return encoder;
+        }
+        return encoder + " -b:a " + audio.bitRate();
+    }
+
+    private static MediaInfo.Stream firstStream(MediaInfo info, MediaInfo.StreamType type) {
+        return info.streams().stream().filter(stream -> stream.type() == type).findFirst().orElse(null);
+    }
+}
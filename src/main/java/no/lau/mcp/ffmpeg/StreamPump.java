@@ -0,0 +1,172 @@
+package no.lau.mcp.ffmpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Drains one process stream on its own daemon thread, so a process writing heavily to one pipe
+ * cannot stall while the other is being read.
+ *
+ * Memory use is fixed whatever the amount of output: the first quarter of the limit keeps the head of
+ * the stream, where ffmpeg prints its input and stream information, and the rest is a ring buffer with
+ * the tail, where errors and the final statistics end up. What falls between is reported as omitted.
+ * With an {@link ExecutionLogs.Writer}, the whole stream is also copied there, line by line, and the log
+ * is kept on disk once the stream goes past the limit.
+ * A stream carrying ffmpeg's {@code -progress} output is fed to a {@link ProgressParser} instead.
+ * Line terminators are normalised to {@code \n}, which also splits ffmpeg's {@code \r} progress
+ * updates into separate lines.
+ */
+class StreamPump {
+
+    /** Longest piece of a line buffered before it is written to the log. */
+    private static final int LOG_CHUNK = 8192;
+
+    private final Reader reader;
+    private final ExecutionLogs.Writer spill;
+    private final ProgressParser progress;
+    private final StringBuilder head;
+    private final int headLimit;
+    private final char[] tail;
+    private final StringBuilder pendingLine = new StringBuilder();
+    private final Thread thread;
+    private int tailEnd;
+    private int tailCount;
+    private long totalChars;
+    private IOException failure;
+
+    private StreamPump(InputStream stream, String name, int limit, ExecutionLogs.Writer spill, ProgressParser progress) {
+        this.reader = new InputStreamReader(stream);
+        this.spill = spill;
+        this.progress = progress;
+        this.headLimit = limit / 4;
+        this.head = new StringBuilder(headLimit);
+        this.tail = new char[limit - headLimit];
+        this.thread = new Thread(this::drain, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts draining the stream.
+     * @param limit Maximum number of characters to keep in memory
+     */
+    static StreamPump start(InputStream stream, String name, int limit) {
+        return start(stream, name, limit, null);
+    }
+
+    /**
+     * Starts draining the stream, copying everything to the given log.
+     * @param limit Maximum number of characters to keep in memory
+     * @param spill Log receiving the full stream, or null
+     */
+    static StreamPump start(InputStream stream, String name, int limit, ExecutionLogs.Writer spill) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative, was " + limit);
+        }
+        StreamPump pump = new StreamPump(stream, name, limit, spill, null);
+        pump.thread.start();
+        return pump;
+    }
+
+    /**
+     * Starts feeding the stream to a progress parser. Nothing is captured.
+     */
+    static StreamPump start(InputStream stream, String name, ProgressParser progress) {
+        StreamPump pump = new StreamPump(stream, name, 0, null, progress);
+        pump.thread.start();
+        return pump;
+    }
+
+    private void drain() {
+        char[] buffer = new char[8192];
+        boolean afterCarriageReturn = false;
+        boolean lineOpen = false;
+        try (reader) {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (c == '\n' && afterCarriageReturn) {
+                        afterCarriageReturn = false;
+                        continue;
+                    }
+                    afterCarriageReturn = c == '\r';
+                    c = afterCarriageReturn ? '\n' : c;
+                    lineOpen = c != '\n';
+                    keep(c);
+                }
+            }
+            if (lineOpen) {
+                keep('\n');
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        flushLine();
+    }
+
+    private void keep(char c) {
+        if (progress != null) {
+            progress.accept(c);
+            return;
+        }
+        totalChars++;
+        if (spill != null && totalChars == headLimit + tail.length + 1) {
+            // Output is left out of the reply from here on, so it has to be readable from the log
+            spill.keep();
+        }
+        if (head.length() < headLimit) {
+            head.append(c);
+        } else if (tail.length > 0) {
+            tail[tailEnd] = c;
+            tailEnd = (tailEnd + 1) % tail.length;
+            tailCount = Math.min(tailCount + 1, tail.length);
+        }
+        if (spill != null) {
+            pendingLine.append(c);
+            if (c == '\n' || pendingLine.length() >= LOG_CHUNK) {
+                flushLine();
+            }
+        }
+    }
+
+    private void flushLine() {
+        if (spill != null && pendingLine.length() > 0) {
+            spill.append(pendingLine);
+            pendingLine.setLength(0);
+        }
+    }
+
+    /**
+     * Waits for the stream to reach end of file and returns the head and tail that were kept.
+     * A notice marks the place where output was omitted.
+     * @throws IOException if reading the stream failed
+     */
+    String await() throws IOException, InterruptedException {
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+        StringBuilder result = new StringBuilder(head.length() + tailCount + 96).append(head);
+        long omitted = omittedChars();
+        if (omitted > 0) {
+            result.append("\n[... ").append(omitted).append(" characters omitted");
+            if (spill != null && spill.kept()) {
+                result.append(", full output in ffmpeg log ").append(spill.id());
+            }
+            result.append(" ...]\n");
+        }
+        for (int i = tailCount; i > 0; i--) {
+            result.append(tail[(tailEnd - i + tail.length) % tail.length]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Number of characters read but not kept in memory, valid after {@link #await()}.
+     */
+    long omittedChars() {
+        return totalChars - head.length() - tailCount;
+    }
+}
@@ -0,0 +1,82 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads container metadata of MP4/MOV and Matroska/WebM files in Java, without starting ffmpeg.
+ *
+ * Only the headers are touched: the box or element headers are read one at a time to find the
+ * movie or track metadata, which is then memory-mapped and parsed. Media data is skipped by size, so
+ * probing costs the same for a short clip and a feature film. Files in any other format, or which
+ * lack what is needed, such as fragmented MP4 without a duration, are left to ffmpeg.
+ */
+public final class ContainerProbe {
+
+    private static final Logger log = LoggerFactory.getLogger(ContainerProbe.class);
+
+    private ContainerProbe() {
+    }
+
+    /**
+     * @return The file's metadata, or null if the format is not one this probe knows
+     * @throws IOException if the file cannot be read
+     */
+    public static MediaInfo probe(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(8);
+            if (channel.read(head, 0) < 8) {
+                return null;
+            }
+            if (head.getInt(0) == MatroskaProbe.EBML) {
+                return MatroskaProbe.probe(channel);
+            }
+            if (Mp4Probe.isTopLevelBox(head.getInt(4))) {
+                return Mp4Probe.probe(channel);
+            }
+            return null;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // A header pointing outside its parent; let ffmpeg report on the file
+            log.debug("Could not probe {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Lists the keyframes of the first video stream of an MP4/MOV file from its sample tables.
+     * @return The keyframes, or null if the file is not an MP4/MOV with an indexed video track
+     * @throws IOException if the file cannot be read
+     */
+    public static Keyframes keyframes(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(8);
+            if (channel.read(head, 0) < 8 || !Mp4Probe.isTopLevelBox(head.getInt(4))) {
+                return null;
+            }
+            return Mp4Probe.keyframes(channel);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            log.debug("Could not read keyframes of {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes at {@code position}, or fewer at the end of the file.
+     */
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+}
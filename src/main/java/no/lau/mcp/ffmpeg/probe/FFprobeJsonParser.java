@@ -0,0 +1,203 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a {@link MediaInfo} from the JSON ffprobe writes with
+ * {@code -print_format json -show_format -show_streams}, token by token as it is read.
+ *
+ * Only the fields of the model are kept; tags, dispositions and side data are skipped without being
+ * built. With {@code -show_entries packet=stream_index,pts_time,flags}, the keyframes among the
+ * packets give each video stream's keyframe interval. Sections may come in any order.
+ */
+public final class FFprobeJsonParser {
+
+    /** Leaves the stream open, so the caller can drain what follows the JSON. */
+    private static final JsonFactory JSON = JsonFactory.builder().disable(StreamReadFeature.AUTO_CLOSE_SOURCE).build();
+
+    private FFprobeJsonParser() {
+    }
+
+    /** Fields of one stream, filled in as they are read. */
+    private static final class StreamFields {
+        int index;
+        String codecType;
+        String codec;
+        String codecTag;
+        String profile;
+        int width;
+        int height;
+        String pixelFormat;
+        double frameRate;
+        int sampleRate;
+        int channels;
+        String channelLayout;
+        long bitRate;
+    }
+
+    /** First and last keyframe time and keyframe count of a stream. */
+    private static final class Keyframes {
+        double first = -1;
+        double last;
+        int count;
+    }
+
+    /**
+     * Reads the JSON object at the start of the stream. The stream is not closed.
+     * @throws IOException if the input is not ffprobe JSON with a format section
+     */
+    public static MediaInfo parse(InputStream json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            return parse(parser);
+        }
+    }
+
+    public static MediaInfo parse(String json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            return parse(parser);
+        }
+    }
+
+    private static MediaInfo parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("ffprobe output is not a JSON object");
+        }
+        List<StreamFields> streams = new ArrayList<>();
+        Map<Integer, Keyframes> keyframes = new HashMap<>();
+        String format = null;
+        double duration = 0;
+        long bitRate = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String section = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (section.equals("streams") && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    streams.add(parseStream(parser));
+                }
+            } else if (section.equals("packets") && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parsePacket(parser, keyframes);
+                }
+            } else if (section.equals("format") && value == JsonToken.START_OBJECT) {
+                format = "";
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "format_name" -> format = parser.getValueAsString();
+                        case "duration" -> duration = parser.getValueAsDouble();
+                        case "bit_rate" -> bitRate = parser.getValueAsLong();
+                        default -> parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (format == null) {
+            throw new IOException("ffprobe output has no format section");
+        }
+
+        List<MediaInfo.Stream> result = new ArrayList<>(streams.size());
+        for (StreamFields stream : streams) {
+            MediaInfo.StreamType type = switch (stream.codecType == null ? "" : stream.codecType) {
+                case "video" -> MediaInfo.StreamType.VIDEO;
+                case "audio" -> MediaInfo.StreamType.AUDIO;
+                case "subtitle" -> MediaInfo.StreamType.SUBTITLE;
+                default -> MediaInfo.StreamType.DATA;
+            };
+            Keyframes frames = keyframes.get(stream.index);
+            double keyframeInterval = type == MediaInfo.StreamType.VIDEO && frames != null && frames.count > 1
+                    ? (frames.last - frames.first) / (frames.count - 1) : 0;
+            result.add(new MediaInfo.Stream(stream.index, type, stream.codec == null ? "none" : stream.codec,
+                    stream.codecTag, stream.profile, stream.width, stream.height, stream.pixelFormat,
+                    stream.frameRate, stream.sampleRate, stream.channels, stream.channelLayout, stream.bitRate,
+                    keyframeInterval));
+        }
+        return new MediaInfo(format, Duration.ofNanos(Math.round(duration * 1e9)), bitRate, List.copyOf(result));
+    }
+
+    private static StreamFields parseStream(JsonParser parser) throws IOException {
+        StreamFields stream = new StreamFields();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "index" -> stream.index = parser.getValueAsInt();
+                case "codec_type" -> stream.codecType = parser.getValueAsString();
+                case "codec_name" -> stream.codec = parser.getValueAsString();
+                case "codec_tag_string" -> stream.codecTag = tag(parser.getValueAsString());
+                case "profile" -> stream.profile = parser.getValueAsString();
+                case "width" -> stream.width = parser.getValueAsInt();
+                case "height" -> stream.height = parser.getValueAsInt();
+                case "pix_fmt" -> stream.pixelFormat = parser.getValueAsString();
+                case "avg_frame_rate" -> stream.frameRate = rational(parser.getValueAsString());
+                case "sample_rate" -> stream.sampleRate = parser.getValueAsInt();
+                case "channels" -> stream.channels = parser.getValueAsInt();
+                case "channel_layout" -> stream.channelLayout = parser.getValueAsString();
+                case "bit_rate" -> stream.bitRate = parser.getValueAsLong();
+                default -> parser.skipChildren();
+            }
+        }
+        return stream;
+    }
+
+    private static void parsePacket(JsonParser parser, Map<Integer, Keyframes> keyframes) throws IOException {
+        int streamIndex = -1;
+        double time = Double.NaN;
+        boolean keyframe = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "stream_index" -> streamIndex = parser.getValueAsInt();
+                case "pts_time" -> time = parser.getValueAsDouble(Double.NaN);
+                case "flags" -> keyframe = parser.getValueAsString("").startsWith("K");
+                default -> parser.skipChildren();
+            }
+        }
+        if (keyframe && !Double.isNaN(time)) {
+            Keyframes frames = keyframes.computeIfAbsent(streamIndex, index -> new Keyframes());
+            if (frames.first < 0) {
+                frames.first = time;
+            }
+            frames.last = time;
+            frames.count++;
+        }
+    }
+
+    /**
+     * @return The frame rate of an ffprobe rational like {@code 30000/1001}, or 0 for {@code 0/0}
+     */
+    static double rational(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int slash = value.indexOf('/');
+        try {
+            if (slash < 0) {
+                return Double.parseDouble(value);
+            }
+            double denominator = Double.parseDouble(value.substring(slash + 1));
+            return denominator == 0 ? 0 : Double.parseDouble(value.substring(0, slash)) / denominator;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** ffprobe writes {@code [0][0][0][0]} for streams without a tag. */
+    private static String tag(String value) {
+        return value == null || value.startsWith("[") ? null : value;
+    }
+}
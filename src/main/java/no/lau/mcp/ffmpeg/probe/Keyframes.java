@@ -0,0 +1,172 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Presentation times and byte offsets of the keyframes of a video stream, in time order.
+ */
+public final class Keyframes {
+
+    private static final JsonFactory JSON = JsonFactory.builder().enable(StreamWriteFeature.WRITE_BIGDECIMAL_AS_PLAIN).build();
+
+    /** Microseconds */
+    private final long[] times;
+    /** Byte offsets in the file, -1 where unknown */
+    private final long[] positions;
+
+    /**
+     * @param times Presentation times in microseconds, ascending
+     * @param positions Byte offsets of the keyframes, -1 where unknown
+     */
+    public Keyframes(long[] times, long[] positions) {
+        if (times.length != positions.length) {
+            throw new IllegalArgumentException("Got " + times.length + " times for " + positions.length + " positions");
+        }
+        this.times = times;
+        this.positions = positions;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * @return Presentation time of keyframe {@code i}, in seconds
+     */
+    public double time(int i) {
+        return times[i] / 1e6;
+    }
+
+    public long timeMicros(int i) {
+        return times[i];
+    }
+
+    /**
+     * @return Byte offset of keyframe {@code i}, or -1 if unknown
+     */
+    public long position(int i) {
+        return positions[i];
+    }
+
+    /**
+     * @return Index of the last keyframe at or before {@code seconds}, or -1 if there is none
+     */
+    public int floor(double seconds) {
+        int found = Arrays.binarySearch(times, Math.round(seconds * 1e6));
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * @return Mean time between keyframes in seconds, or 0 with fewer than two
+     */
+    public double averageInterval() {
+        return times.length < 2 ? 0 : (times[times.length - 1] - times[0]) / 1e6 / (times.length - 1);
+    }
+
+    /**
+     * @return Longest time between two keyframes in seconds, or 0 with fewer than two
+     */
+    public double maxInterval() {
+        long max = 0;
+        for (int i = 1; i < times.length; i++) {
+            max = Math.max(max, times[i] - times[i - 1]);
+        }
+        return max / 1e6;
+    }
+
+    /**
+     * Writes a summary and the keyframes between two times as compact JSON:
+     * <pre>
+     * {"count":300,"averageInterval":2.002,"maxInterval":2.002,"keyframes":[{"time":118.118,"position":88012345},...]}
+     * </pre>
+     * The keyframe a seek to {@code from} lands on is included. With more than {@code limit}
+     * keyframes in range, the first {@code limit} are listed and {@code "truncated":true} is added.
+     */
+    public String toJson(double from, double to, int limit) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JSON.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("count", times.length);
+            generator.writeNumberField("averageInterval", seconds(Math.round(averageInterval() * 1e6)));
+            generator.writeNumberField("maxInterval", seconds(Math.round(maxInterval() * 1e6)));
+            generator.writeArrayFieldStart("keyframes");
+            int listed = 0;
+            int i = Math.max(0, floor(from));
+            for (; i < times.length && times[i] <= to * 1e6 && listed < limit; i++, listed++) {
+                generator.writeStartObject();
+                generator.writeNumberField("time", seconds(times[i]));
+                if (positions[i] >= 0) {
+                    generator.writeNumberField("position", positions[i]);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            if (i < times.length && times[i] <= to * 1e6) {
+                generator.writeBooleanField("truncated", true);
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing JSON to a string failed", e);
+        }
+        return json.toString();
+    }
+
+    private static BigDecimal seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros();
+    }
+
+    /**
+     * Collects keyframes in any order.
+     */
+    public static final class Builder {
+        private long[] times = new long[256];
+        private long[] positions = new long[256];
+        private int size;
+
+        public Builder add(double seconds, long position) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            times[size] = Math.round(seconds * 1e6);
+            positions[size] = position;
+            size++;
+            return this;
+        }
+
+        /**
+         * Sorts the keyframes by time, dropping repeated times.
+         */
+        public Keyframes build() {
+            long[][] pairs = new long[size][];
+            boolean sorted = true;
+            for (int i = 0; i < size; i++) {
+                pairs[i] = new long[]{times[i], positions[i]};
+                sorted &= i == 0 || times[i - 1] <= times[i];
+            }
+            if (!sorted) {
+                Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+            }
+            long[] sortedTimes = new long[size];
+            long[] sortedPositions = new long[size];
+            int count = 0;
+            for (long[] pair : pairs) {
+                if (count > 0 && sortedTimes[count - 1] == pair[0]) {
+                    continue;
+                }
+                sortedTimes[count] = pair[0];
+                sortedPositions[count] = pair[1];
+                count++;
+            }
+            return new Keyframes(Arrays.copyOf(sortedTimes, count), Arrays.copyOf(sortedPositions, count));
+        }
+    }
+}
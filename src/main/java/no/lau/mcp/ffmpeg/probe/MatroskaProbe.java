@@ -0,0 +1,269 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the EBML element tree of Matroska and WebM files.
+ *
+ * The children of {@code Segment} are walked by their headers, skipping clusters by size, until both
+ * {@code Info} and {@code Tracks} are found. Those two elements are mapped and parsed; they are
+ * usually a few kilobytes at the start of the file.
+ */
+final class MatroskaProbe {
+
+    static final String FORMAT = "matroska,webm";
+    static final int EBML = 0x1A45DFA3;
+    private static final int SEGMENT = 0x18538067;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMESTAMP_SCALE = 0x2AD7B1;
+    private static final int DURATION = 0x4489;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_TYPE = 0x83;
+    private static final int CODEC_ID = 0x86;
+    private static final int DEFAULT_DURATION = 0x23E383;
+    private static final int VIDEO = 0xE0;
+    private static final int PIXEL_WIDTH = 0xB0;
+    private static final int PIXEL_HEIGHT = 0xBA;
+    private static final int AUDIO = 0xE1;
+    private static final int SAMPLING_FREQUENCY = 0xB5;
+    private static final int CHANNELS = 0x9F;
+    /** Info or Tracks larger than this is not mapped; ffmpeg gets the file instead. */
+    private static final long MAX_ELEMENT = 16L * 1024 * 1024;
+
+    private static final Map<String, String> CODECS = Map.ofEntries(
+            Map.entry("V_MPEG4/ISO/AVC", "h264"), Map.entry("V_MPEGH/ISO/HEVC", "hevc"), Map.entry("V_AV1", "av1"),
+            Map.entry("V_VP8", "vp8"), Map.entry("V_VP9", "vp9"), Map.entry("V_MPEG4/ISO/ASP", "mpeg4"),
+            Map.entry("V_MPEG2", "mpeg2video"), Map.entry("V_THEORA", "theora"), Map.entry("V_PRORES", "prores"),
+            Map.entry("V_MJPEG", "mjpeg"), Map.entry("A_AAC", "aac"), Map.entry("A_OPUS", "opus"),
+            Map.entry("A_VORBIS", "vorbis"), Map.entry("A_AC3", "ac3"), Map.entry("A_EAC3", "eac3"),
+            Map.entry("A_MPEG/L3", "mp3"), Map.entry("A_MPEG/L2", "mp2"), Map.entry("A_FLAC", "flac"),
+            Map.entry("A_DTS", "dts"), Map.entry("A_TRUEHD", "truehd"), Map.entry("A_PCM/INT/LIT", "pcm_s16le"),
+            Map.entry("A_PCM/INT/BIG", "pcm_s16be"), Map.entry("A_PCM/FLOAT/IEEE", "pcm_f32le"),
+            Map.entry("S_TEXT/UTF8", "subrip"), Map.entry("S_TEXT/ASS", "ass"), Map.entry("S_TEXT/SSA", "ass"),
+            Map.entry("S_ASS", "ass"), Map.entry("S_SSA", "ass"), Map.entry("S_TEXT/WEBVTT", "webvtt"),
+            Map.entry("S_VOBSUB", "dvd_subtitle"), Map.entry("S_HDMV/PGS", "hdmv_pgs_subtitle"));
+
+    private MatroskaProbe() {
+    }
+
+    /** Position and size of an element, and where its body starts. */
+    private record Header(int id, long bodyStart, long size) {
+        static final long UNKNOWN = -1;
+
+        long end() {
+            return bodyStart + size;
+        }
+    }
+
+    private static final class Track {
+        long type;
+        String codecId = "";
+        long defaultDuration;
+        long width;
+        long height;
+        double sampleRate;
+        long channels;
+    }
+
+    static MediaInfo probe(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        Header ebml = header(channel, 0);
+        if (ebml == null || ebml.size() == Header.UNKNOWN) {
+            return null;
+        }
+        Header segment = header(channel, ebml.end());
+        if (segment == null || segment.id() != SEGMENT) {
+            return null;
+        }
+        long segmentEnd = segment.size() == Header.UNKNOWN ? fileSize : Math.min(segment.end(), fileSize);
+
+        double[] duration = {-1};
+        long[] timestampScale = {1_000_000};
+        List<Track> tracks = null;
+        long position = segment.bodyStart();
+        while (position < segmentEnd && (duration[0] < 0 || tracks == null)) {
+            Header child = header(channel, position);
+            if (child == null || child.size() == Header.UNKNOWN) {
+                return null; // a live stream's cluster, its end cannot be found without reading it
+            }
+            if (child.id() == INFO || child.id() == TRACKS) {
+                if (child.size() > MAX_ELEMENT || child.end() > fileSize) {
+                    return null;
+                }
+                ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, child.bodyStart(), child.size());
+                if (child.id() == INFO) {
+                    forEachChild(body, 0, body.limit(), (id, start, end) -> {
+                        if (id == TIMESTAMP_SCALE) {
+                            timestampScale[0] = unsigned(body, start, end);
+                        } else if (id == DURATION) {
+                            duration[0] = end - start == 4 ? body.getFloat(start) : body.getDouble(start);
+                        }
+                    });
+                    duration[0] = Math.max(duration[0], 0);
+                } else {
+                    tracks = parseTracks(body);
+                }
+            }
+            position = child.end();
+        }
+        if (tracks == null || duration[0] <= 0) {
+            return null;
+        }
+
+        double seconds = duration[0] * timestampScale[0] / 1e9;
+        List<MediaInfo.Stream> streams = new ArrayList<>();
+        for (Track track : tracks) {
+            MediaInfo.StreamType type = switch ((int) track.type) {
+                case 1 -> MediaInfo.StreamType.VIDEO;
+                case 2 -> MediaInfo.StreamType.AUDIO;
+                case 17 -> MediaInfo.StreamType.SUBTITLE;
+                default -> MediaInfo.StreamType.DATA;
+            };
+            String codec = CODECS.get(track.codecId);
+            if (codec == null) {
+                int slash = track.codecId.indexOf('/');
+                codec = CODECS.getOrDefault(slash < 0 ? track.codecId : track.codecId.substring(0, slash), track.codecId.toLowerCase(Locale.ROOT));
+            }
+            streams.add(new MediaInfo.Stream(streams.size(), type, codec, track.codecId, null,
+                    (int) track.width, (int) track.height, null,
+                    track.defaultDuration > 0 ? 1e9 / track.defaultDuration : 0,
+                    (int) track.sampleRate, (int) track.channels, null, 0, 0));
+        }
+        return new MediaInfo(FORMAT, Duration.ofNanos(Math.round(seconds * 1e9)), Math.round(fileSize * 8 / seconds),
+                List.copyOf(streams));
+    }
+
+    private static List<Track> parseTracks(ByteBuffer body) {
+        List<Track> tracks = new ArrayList<>();
+        forEachChild(body, 0, body.limit(), (id, start, end) -> {
+            if (id != TRACK_ENTRY) {
+                return;
+            }
+            Track track = new Track();
+            forEachChild(body, start, end, (entryId, entryStart, entryEnd) -> {
+                if (entryId == TRACK_TYPE) {
+                    track.type = unsigned(body, entryStart, entryEnd);
+                } else if (entryId == CODEC_ID) {
+                    byte[] bytes = new byte[entryEnd - entryStart];
+                    body.get(entryStart, bytes);
+                    track.codecId = new String(bytes, StandardCharsets.US_ASCII).replace("\0", "");
+                } else if (entryId == DEFAULT_DURATION) {
+                    track.defaultDuration = unsigned(body, entryStart, entryEnd);
+                } else if (entryId == VIDEO || entryId == AUDIO) {
+                    forEachChild(body, entryStart, entryEnd, (formatId, formatStart, formatEnd) -> {
+                        if (formatId == PIXEL_WIDTH) {
+                            track.width = unsigned(body, formatStart, formatEnd);
+                        } else if (formatId == PIXEL_HEIGHT) {
+                            track.height = unsigned(body, formatStart, formatEnd);
+                        } else if (formatId == SAMPLING_FREQUENCY) {
+                            track.sampleRate = formatEnd - formatStart == 4 ? body.getFloat(formatStart) : body.getDouble(formatStart);
+                        } else if (formatId == CHANNELS) {
+                            track.channels = unsigned(body, formatStart, formatEnd);
+                        }
+                    });
+                }
+            });
+            tracks.add(track);
+        });
+        return tracks;
+    }
+
+    interface ElementVisitor {
+        void visit(int id, int start, int end);
+    }
+
+    /**
+     * Calls the visitor with the ID and body bounds of every element between {@code start} and {@code end}.
+     */
+    private static void forEachChild(ByteBuffer buffer, int start, int end, ElementVisitor visitor) {
+        int position = start;
+        while (position < end) {
+            int idLength = vintLength(buffer.get(position));
+            if (idLength > 4 || position + idLength >= end) {
+                return;
+            }
+            int id = 0;
+            for (int i = 0; i < idLength; i++) {
+                id = id << 8 | buffer.get(position + i) & 0xFF;
+            }
+            int sizeLength = vintLength(buffer.get(position + idLength));
+            if (sizeLength > 8 || position + idLength + sizeLength > end) {
+                return;
+            }
+            int sizeStart = position + idLength;
+            long size = vint(buffer.get(sizeStart), sizeLength, i -> buffer.get(sizeStart + i));
+            int bodyStart = sizeStart + sizeLength;
+            if (size == Header.UNKNOWN || size > end - bodyStart) {
+                return;
+            }
+            visitor.visit(id, bodyStart, (int) (bodyStart + size));
+            position = (int) (bodyStart + size);
+        }
+    }
+
+    /**
+     * Reads the element header at the position, or null if there is none.
+     */
+    private static Header header(FileChannel channel, long position) throws IOException {
+        ByteBuffer bytes = ContainerProbe.read(channel, position, 12);
+        if (bytes.remaining() < 2) {
+            return null;
+        }
+        int idLength = vintLength(bytes.get(0));
+        if (idLength > 4 || idLength >= bytes.remaining()) {
+            return null;
+        }
+        int id = 0;
+        for (int i = 0; i < idLength; i++) {
+            id = id << 8 | bytes.get(i) & 0xFF;
+        }
+        int sizeLength = vintLength(bytes.get(idLength));
+        if (sizeLength > 8 || idLength + sizeLength > bytes.remaining()) {
+            return null;
+        }
+        long size = vint(bytes.get(idLength), sizeLength, i -> bytes.get(idLength + i));
+        return new Header(id, position + idLength + sizeLength, size);
+    }
+
+    /**
+     * @return The length of the variable size integer starting with this byte, 9 if the byte is invalid
+     */
+    private static int vintLength(byte first) {
+        return first == 0 ? 9 : Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+    }
+
+    interface ByteAt {
+        byte get(int index);
+    }
+
+    /**
+     * Decodes a size with its length marker removed. All value bits set means unknown size.
+     */
+    private static long vint(byte first, int length, ByteAt bytes) {
+        long value = first & (0xFF >> length);
+        boolean allOnes = value == 0xFF >> length;
+        for (int i = 1; i < length; i++) {
+            int next = bytes.get(i) & 0xFF;
+            allOnes &= next == 0xFF;
+            value = value << 8 | next;
+        }
+        return allOnes ? Header.UNKNOWN : value;
+    }
+
+    private static long unsigned(ByteBuffer buffer, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end && i < start + 8; i++) {
+            value = value << 8 | buffer.get(i) & 0xFF;
+        }
+        return value;
+    }
+}
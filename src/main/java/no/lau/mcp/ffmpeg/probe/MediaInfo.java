@@ -0,0 +1,163 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Container level description of a media file: duration, overall bitrate and streams.
+ *
+ * @param format Container format, named like ffmpeg's demuxers, e.g. {@code mov,mp4,m4a,3gp,3g2,mj2}
+ * @param duration Length of the presentation
+ * @param bitRate Overall bitrate in bits per second, or 0 if unknown
+ */
+public record MediaInfo(String format, Duration duration, long bitRate, List<Stream> streams) {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public enum StreamType {
+        VIDEO, AUDIO, SUBTITLE, DATA
+    }
+
+    /**
+     * One track of the file. Numbers the container does not state are 0, and text is null.
+     *
+     * @param codec Codec name as ffmpeg reports it, e.g. {@code h264}
+     * @param codecTag The container's own code for the codec, e.g. {@code avc1} or {@code V_MPEG4/ISO/AVC}
+     * @param profile Codec profile, e.g. {@code High}
+     * @param pixelFormat Pixel format of video, e.g. {@code yuv420p}
+     * @param frameRate Average frames per second, for video
+     * @param channelLayout Channel layout of audio, e.g. {@code stereo}
+     * @param bitRate Average bitrate in bits per second
+     * @param keyframeInterval Average time between keyframes in seconds, for video
+     */
+    public record Stream(int index, StreamType type, String codec, String codecTag, String profile,
+                         int width, int height, String pixelFormat, double frameRate,
+                         int sampleRate, int channels, String channelLayout, long bitRate, double keyframeInterval) {
+    }
+
+    /**
+     * Writes the metadata as compact JSON, leaving out what is not known:
+     * <pre>
+     * {"format":"mov,mp4,m4a,3gp,3g2,mj2","duration":10.0,"bitRate":801000,"streams":[
+     *   {"index":0,"type":"video","codec":"h264","codecTag":"avc1","width":1280,"height":720,"frameRate":29.97,...}]}
+     * </pre>
+     */
+    public String toJson() {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JSON.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeStringField("format", format);
+            generator.writeNumberField("duration", round(duration.toNanos() / 1e9, 3));
+            if (bitRate > 0) {
+                generator.writeNumberField("bitRate", bitRate);
+            }
+            generator.writeArrayFieldStart("streams");
+            for (Stream stream : streams) {
+                generator.writeStartObject();
+                generator.writeNumberField("index", stream.index());
+                generator.writeStringField("type", stream.type().name().toLowerCase(Locale.ROOT));
+                writeText(generator, "codec", stream.codec());
+                writeText(generator, "codecTag", stream.codecTag());
+                writeText(generator, "profile", stream.profile());
+                writeNumber(generator, "width", stream.width());
+                writeNumber(generator, "height", stream.height());
+                writeText(generator, "pixelFormat", stream.pixelFormat());
+                writeNumber(generator, "frameRate", round(stream.frameRate(), 3));
+                writeNumber(generator, "sampleRate", stream.sampleRate());
+                writeNumber(generator, "channels", stream.channels());
+                writeText(generator, "channelLayout", stream.channelLayout());
+                writeNumber(generator, "bitRate", stream.bitRate());
+                writeNumber(generator, "keyframeInterval", round(stream.keyframeInterval(), 3));
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing JSON to a string failed", e);
+        }
+        return json.toString();
+    }
+
+    private static void writeText(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void writeNumber(JsonGenerator generator, String name, double value) throws IOException {
+        if (value > 0) {
+            if (value == Math.rint(value)) {
+                generator.writeNumberField(name, (long) value);
+            } else {
+                generator.writeNumberField(name, value);
+            }
+        }
+    }
+
+    private static double round(double value, int decimals) {
+        double scale = Math.pow(10, decimals);
+        return Math.round(value * scale) / scale;
+    }
+
+    /**
+     * Describes the file in the layout of ffmpeg's {@code -i} banner, so callers see the same shape of
+     * text whether the file was probed natively or by running ffmpeg.
+     */
+    public String describe(String source) {
+        StringBuilder text = new StringBuilder("Input #0, ").append(format).append(", from '").append(source).append("':\n");
+        text.append("  Duration: ").append(timestamp(duration)).append(", bitrate: ")
+                .append(bitRate > 0 ? bitRate / 1000 + " kb/s" : "N/A").append('\n');
+        for (Stream stream : streams) {
+            text.append("  Stream #0:").append(stream.index()).append(": ")
+                    .append(switch (stream.type()) {
+                        case VIDEO -> "Video";
+                        case AUDIO -> "Audio";
+                        case SUBTITLE -> "Subtitle";
+                        case DATA -> "Data";
+                    })
+                    .append(": ").append(stream.codec());
+            if (stream.profile() != null) {
+                text.append(" (").append(stream.profile()).append(')');
+            }
+            if (stream.codecTag() != null && !stream.codecTag().equals(stream.codec())) {
+                text.append(" (").append(stream.codecTag()).append(')');
+            }
+            if (stream.pixelFormat() != null) {
+                text.append(", ").append(stream.pixelFormat());
+            }
+            if (stream.width() > 0 && stream.height() > 0) {
+                text.append(", ").append(stream.width()).append('x').append(stream.height());
+            }
+            if (stream.frameRate() > 0) {
+                double rate = stream.frameRate();
+                text.append(", ").append(rate == Math.rint(rate) ? String.valueOf((long) rate) : String.format(Locale.ROOT, "%.2f", rate))
+                        .append(" fps");
+            }
+            if (stream.sampleRate() > 0) {
+                text.append(", ").append(stream.sampleRate()).append(" Hz");
+            }
+            if (stream.channelLayout() != null) {
+                text.append(", ").append(stream.channelLayout());
+            } else if (stream.channels() > 0) {
+                text.append(", ").append(stream.channels()).append(stream.channels() == 1 ? " channel" : " channels");
+            }
+            if (stream.bitRate() > 0) {
+                text.append(", ").append(stream.bitRate() / 1000).append(" kb/s");
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String timestamp(Duration duration) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d.%02d", duration.toHours(), duration.toMinutesPart(),
+                duration.toSecondsPart(), duration.toMillisPart() / 10);
+    }
+}
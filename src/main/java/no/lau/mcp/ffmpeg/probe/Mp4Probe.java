@@ -0,0 +1,483 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the box tree of ISO base media (MP4) and QuickTime (MOV) files.
+ *
+ * Top-level boxes are walked by their headers until {@code moov} is found, wherever it is in the
+ * file. {@code moov} is mapped and {@code mvhd}, and for each track {@code tkhd}, {@code mdhd},
+ * {@code hdlr}, {@code stsd}, {@code stsz} and {@code stss}, are read from it. For the keyframe
+ * index, the sample tables of the first video track are walked sample by sample.
+ */
+final class Mp4Probe {
+
+    static final String FORMAT = "mov,mp4,m4a,3gp,3g2,mj2";
+    /** A movie header larger than this is not mapped; ffmpeg gets the file instead. */
+    private static final long MAX_MOOV = 64L * 1024 * 1024;
+
+    private static final int FTYP = type("ftyp");
+    private static final int MOOV = type("moov");
+    private static final int MVHD = type("mvhd");
+    private static final int TRAK = type("trak");
+    private static final int TKHD = type("tkhd");
+    private static final int MDIA = type("mdia");
+    private static final int MDHD = type("mdhd");
+    private static final int HDLR = type("hdlr");
+    private static final int MINF = type("minf");
+    private static final int STBL = type("stbl");
+    private static final int STSD = type("stsd");
+    private static final int STSZ = type("stsz");
+    private static final int STSS = type("stss");
+    private static final int STTS = type("stts");
+    private static final int CTTS = type("ctts");
+    private static final int STSC = type("stsc");
+    private static final int STCO = type("stco");
+    private static final int CO64 = type("co64");
+    private static final int EDTS = type("edts");
+    private static final int ELST = type("elst");
+    private static final List<Integer> TOP_LEVEL = List.of(FTYP, MOOV, type("mdat"), type("free"), type("skip"),
+            type("wide"), type("pnot"));
+
+    private static final Map<String, String> CODECS = Map.ofEntries(
+            Map.entry("avc1", "h264"), Map.entry("avc3", "h264"), Map.entry("hvc1", "hevc"), Map.entry("hev1", "hevc"),
+            Map.entry("av01", "av1"), Map.entry("vp08", "vp8"), Map.entry("vp09", "vp9"), Map.entry("mp4v", "mpeg4"),
+            Map.entry("jpeg", "mjpeg"), Map.entry("mjpa", "mjpeg"), Map.entry("apch", "prores"), Map.entry("apcn", "prores"),
+            Map.entry("apcs", "prores"), Map.entry("apco", "prores"), Map.entry("ap4h", "prores"), Map.entry("png ", "png"),
+            Map.entry("mp4a", "aac"), Map.entry("ac-3", "ac3"), Map.entry("ec-3", "eac3"), Map.entry("Opus", "opus"),
+            Map.entry("fLaC", "flac"), Map.entry(".mp3", "mp3"), Map.entry("alac", "alac"), Map.entry("sowt", "pcm_s16le"),
+            Map.entry("twos", "pcm_s16be"), Map.entry("lpcm", "pcm"), Map.entry("tx3g", "mov_text"), Map.entry("text", "text"),
+            Map.entry("wvtt", "webvtt"), Map.entry("c608", "eia_608"), Map.entry("tmcd", "none"));
+
+    private Mp4Probe() {
+    }
+
+    private static final class Track {
+        String handler = "";
+        long timescale;
+        long duration;
+        int width;
+        int height;
+        String tag;
+        int sampleRate;
+        int channels;
+        long samples;
+        long bytes;
+        /** Number of sync samples; -1 when every sample is one. */
+        long keyframes = -1;
+    }
+
+    static boolean isTopLevelBox(int type) {
+        return TOP_LEVEL.contains(type);
+    }
+
+    static MediaInfo probe(FileChannel channel) throws IOException {
+        ByteBuffer moov = moov(channel);
+        return moov == null ? null : parseMoov(moov, channel.size());
+    }
+
+    /**
+     * Lists the keyframes of the first video track, from its sample tables: sync samples ({@code stss}),
+     * their decode times ({@code stts}), composition offsets ({@code ctts}) and the first edit
+     * ({@code elst}) give presentation times, and the chunk tables ({@code stsc}, {@code stco} or
+     * {@code co64}) with the sample sizes ({@code stsz}) give byte offsets.
+     * @return The keyframes, or null if there is no video track with sample tables
+     */
+    static Keyframes keyframes(FileChannel channel) throws IOException {
+        ByteBuffer moov = moov(channel);
+        if (moov == null) {
+            return null;
+        }
+        long[] movieTimescale = new long[1];
+        List<SampleTables> videoTracks = new ArrayList<>();
+        forEachChild(moov, 0, moov.limit(), (type, start, end) -> {
+            if (type == MVHD) {
+                movieTimescale[0] = Integer.toUnsignedLong(moov.getInt(start + (moov.get(start) == 1 ? 20 : 12)));
+            } else if (type == TRAK) {
+                SampleTables tables = new SampleTables();
+                findSampleTables(moov, start, end, tables);
+                if (tables.handler.equals("vide") && tables.complete()) {
+                    videoTracks.add(tables);
+                }
+            }
+        });
+        return videoTracks.isEmpty() ? null : videoTracks.get(0).keyframes(moov, movieTimescale[0]);
+    }
+
+    /**
+     * Walks the top-level boxes by their headers and maps {@code moov}.
+     * @return The body of {@code moov}, or null if there is none or it is too large
+     */
+    private static ByteBuffer moov(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            ByteBuffer header = ContainerProbe.read(channel, position, 16);
+            long size = Integer.toUnsignedLong(header.getInt(0));
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                return null;
+            }
+            if (type == MOOV) {
+                if (size > MAX_MOOV) {
+                    return null;
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, position + headerSize, size - headerSize);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static MediaInfo parseMoov(ByteBuffer moov, long fileSize) {
+        long[] movie = new long[2]; // timescale, duration
+        List<Track> tracks = new ArrayList<>();
+        forEachChild(moov, 0, moov.limit(), (type, start, end) -> {
+            if (type == MVHD) {
+                int version = moov.get(start);
+                movie[0] = Integer.toUnsignedLong(moov.getInt(start + (version == 1 ? 20 : 12)));
+                movie[1] = version == 1 ? moov.getLong(start + 24) : Integer.toUnsignedLong(moov.getInt(start + 16));
+            } else if (type == TRAK) {
+                Track track = new Track();
+                parseTrak(moov, start, end, track);
+                tracks.add(track);
+            }
+        });
+
+        double seconds = movie[0] > 0 ? (double) movie[1] / movie[0] : 0;
+        if (seconds <= 0) {
+            for (Track track : tracks) {
+                seconds = Math.max(seconds, track.timescale > 0 ? (double) track.duration / track.timescale : 0);
+            }
+        }
+        if (seconds <= 0) {
+            return null; // fragmented, the duration is in the fragments
+        }
+        List<MediaInfo.Stream> streams = new ArrayList<>();
+        for (Track track : tracks) {
+            double trackSeconds = track.timescale > 0 ? (double) track.duration / track.timescale : 0;
+            MediaInfo.StreamType streamType = switch (track.handler) {
+                case "vide" -> MediaInfo.StreamType.VIDEO;
+                case "soun" -> MediaInfo.StreamType.AUDIO;
+                case "sbtl", "subt", "text", "clcp" -> MediaInfo.StreamType.SUBTITLE;
+                default -> MediaInfo.StreamType.DATA;
+            };
+            String tag = track.tag == null ? "none" : track.tag.strip();
+            boolean video = streamType == MediaInfo.StreamType.VIDEO && trackSeconds > 0;
+            long keyframes = track.keyframes < 0 ? track.samples : track.keyframes;
+            streams.add(new MediaInfo.Stream(streams.size(), streamType,
+                    track.tag == null ? "none" : CODECS.getOrDefault(track.tag, tag), tag, null,
+                    track.width, track.height, null,
+                    video ? track.samples / trackSeconds : 0,
+                    track.sampleRate, track.channels, null,
+                    trackSeconds > 0 ? Math.round(track.bytes * 8 / trackSeconds) : 0,
+                    video && keyframes > 0 ? trackSeconds / keyframes : 0));
+        }
+        return new MediaInfo(FORMAT, Duration.ofNanos(Math.round(seconds * 1e9)), Math.round(fileSize * 8 / seconds),
+                List.copyOf(streams));
+    }
+
+    private static void parseTrak(ByteBuffer moov, int start, int end, Track track) {
+        forEachChild(moov, start, end, (type, childStart, childEnd) -> {
+            if (type == TKHD) {
+                int offset = moov.get(childStart) == 1 ? 88 : 76;
+                if (track.width == 0 && childStart + offset + 8 <= childEnd) {
+                    track.width = moov.getInt(childStart + offset) >>> 16;
+                    track.height = moov.getInt(childStart + offset + 4) >>> 16;
+                }
+            } else if (type == MDIA || type == MINF || type == STBL) {
+                parseTrak(moov, childStart, childEnd, track);
+            } else if (type == MDHD) {
+                boolean version1 = moov.get(childStart) == 1;
+                track.timescale = Integer.toUnsignedLong(moov.getInt(childStart + (version1 ? 20 : 12)));
+                track.duration = version1 ? moov.getLong(childStart + 24) : Integer.toUnsignedLong(moov.getInt(childStart + 16));
+            } else if (type == HDLR) {
+                track.handler = fourcc(moov, childStart + 8);
+            } else if (type == STSD) {
+                parseSampleEntry(moov, childStart + 8, childEnd, track);
+            } else if (type == STSS) {
+                track.keyframes = Integer.toUnsignedLong(moov.getInt(childStart + 4));
+            } else if (type == STSZ) {
+                int sampleSize = moov.getInt(childStart + 4);
+                track.samples = Integer.toUnsignedLong(moov.getInt(childStart + 8));
+                if (sampleSize != 0) {
+                    track.bytes = Integer.toUnsignedLong(sampleSize) * track.samples;
+                } else {
+                    long bytes = 0;
+                    int table = childStart + 12;
+                    for (long i = 0; i < track.samples && table + 4 <= childEnd; i++, table += 4) {
+                        bytes += Integer.toUnsignedLong(moov.getInt(table));
+                    }
+                    track.bytes = bytes;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the first sample description: the codec, and the frame size or audio format.
+     */
+    private static void parseSampleEntry(ByteBuffer moov, int entry, int end, Track track) {
+        if (entry + 8 > end) {
+            return;
+        }
+        track.tag = fourcc(moov, entry + 4);
+        int body = entry + 8;
+        if (track.handler.equals("vide") && body + 28 <= end) {
+            // reserved, data reference index and pre-defined fields come first
+            track.width = Short.toUnsignedInt(moov.getShort(body + 24));
+            track.height = Short.toUnsignedInt(moov.getShort(body + 26));
+        } else if (track.handler.equals("soun") && body + 28 <= end) {
+            int version = moov.getShort(body + 8);
+            track.channels = Short.toUnsignedInt(moov.getShort(body + 16));
+            track.sampleRate = moov.getInt(body + 24) >>> 16;
+            if (version == 2 && body + 44 <= end) {
+                // QuickTime sound description version 2 moves the rate and channels into an extension
+                track.sampleRate = (int) Double.longBitsToDouble(moov.getLong(body + 32));
+                track.channels = moov.getInt(body + 40);
+            }
+        }
+    }
+
+    /** Where the sample tables of a track start, as body offsets into {@code moov}; -1 if absent. */
+    private static final class SampleTables {
+        String handler = "";
+        long timescale;
+        int elst = -1;
+        int stts = -1;
+        int ctts = -1;
+        int stss = -1;
+        int stsc = -1;
+        int stsz = -1;
+        int stco = -1;
+        int co64 = -1;
+        /** End of each table, so counts cannot point past it */
+        int sttsEnd;
+        int cttsEnd;
+        int stssEnd;
+        int stscEnd;
+        int stszEnd;
+        int chunkEnd;
+
+        boolean complete() {
+            return timescale > 0 && stts >= 0 && stsc >= 0 && stsz >= 0 && (stco >= 0 || co64 >= 0);
+        }
+
+        Keyframes keyframes(ByteBuffer moov, long movieTimescale) {
+            // The first edit decides which media time is shown at 0; leading empty edits delay it
+            long mediaStart = 0;
+            double delay = 0;
+            if (elst >= 0) {
+                boolean version1 = moov.get(elst) == 1;
+                int entrySize = version1 ? 20 : 12;
+                long count = Integer.toUnsignedLong(moov.getInt(elst + 4));
+                for (int i = 0, entry = elst + 8; i < count && entry + entrySize <= moov.limit(); i++, entry += entrySize) {
+                    long duration = version1 ? moov.getLong(entry) : Integer.toUnsignedLong(moov.getInt(entry));
+                    long mediaTime = version1 ? moov.getLong(entry + 8) : moov.getInt(entry + 4);
+                    if (mediaTime >= 0) {
+                        mediaStart = mediaTime;
+                        break;
+                    }
+                    delay += movieTimescale > 0 ? (double) duration / movieTimescale : 0;
+                }
+            }
+
+            long samples = Integer.toUnsignedLong(moov.getInt(stsz + 8));
+            int fixedSize = moov.getInt(stsz + 4);
+            Cursor timing = new Cursor(moov, stts, sttsEnd);
+            Cursor offsets = ctts >= 0 ? new Cursor(moov, ctts, cttsEnd) : null;
+            boolean signedOffsets = ctts >= 0 && moov.get(ctts) == 1;
+            long syncCount = stss >= 0 ? Math.min(Integer.toUnsignedLong(moov.getInt(stss + 4)), (stssEnd - stss - 8) / 4) : -1;
+            int syncIndex = 0;
+            long stscCount = Math.min(Integer.toUnsignedLong(moov.getInt(stsc + 4)), (stscEnd - stsc - 8) / 12);
+            int chunkTable = stco >= 0 ? stco : co64;
+            int chunkEntry = stco >= 0 ? 4 : 8;
+            long chunks = Math.min(Integer.toUnsignedLong(moov.getInt(chunkTable + 4)), (chunkEnd - chunkTable - 8) / chunkEntry);
+
+            Keyframes.Builder keyframes = new Keyframes.Builder();
+            long decodeTime = 0;
+            long chunk = 0;
+            int stscIndex = 0;
+            long samplesPerChunk = stscCount > 0 ? Integer.toUnsignedLong(moov.getInt(stsc + 12)) : 0;
+            long sampleInChunk = 0;
+            long offset = chunks > 0 ? chunkOffset(moov, chunkTable, chunkEntry, 0) : 0;
+            for (long sample = 1; sample <= samples; sample++) {
+                if (sampleInChunk == samplesPerChunk) {
+                    chunk++;
+                    if (chunk >= chunks) {
+                        break;
+                    }
+                    sampleInChunk = 0;
+                    offset = chunkOffset(moov, chunkTable, chunkEntry, chunk);
+                    // stsc entries apply from a first chunk, numbered from 1, until the next entry's
+                    while (stscIndex + 1 < stscCount
+                            && chunk + 1 >= Integer.toUnsignedLong(moov.getInt(stsc + 8 + (stscIndex + 1) * 12))) {
+                        stscIndex++;
+                        samplesPerChunk = Integer.toUnsignedLong(moov.getInt(stsc + 8 + stscIndex * 12 + 4));
+                    }
+                    if (samplesPerChunk == 0) {
+                        break;
+                    }
+                }
+                long size;
+                if (fixedSize != 0) {
+                    size = Integer.toUnsignedLong(fixedSize);
+                } else if (stsz + 12 + (sample - 1) * 4 + 4 <= stszEnd) {
+                    size = Integer.toUnsignedLong(moov.getInt((int) (stsz + 12 + (sample - 1) * 4)));
+                } else {
+                    break;
+                }
+                long compositionOffset = offsets == null ? 0 : offsets.value(signedOffsets);
+                boolean sync = syncCount < 0;
+                if (!sync && syncIndex < syncCount
+                        && Integer.toUnsignedLong(moov.getInt(stss + 8 + syncIndex * 4)) == sample) {
+                    sync = true;
+                    syncIndex++;
+                }
+                if (sync) {
+                    double seconds = (double) (decodeTime + compositionOffset - mediaStart) / timescale + delay;
+                    keyframes.add(Math.max(0, seconds), offset);
+                }
+                offset += size;
+                sampleInChunk++;
+                decodeTime += timing.value(false);
+                timing.next();
+                if (offsets != null) {
+                    offsets.next();
+                }
+            }
+            return keyframes.build();
+        }
+
+        private static long chunkOffset(ByteBuffer moov, int table, int entrySize, long chunk) {
+            int entry = (int) (table + 8 + chunk * entrySize);
+            return entrySize == 8 ? moov.getLong(entry) : Integer.toUnsignedLong(moov.getInt(entry));
+        }
+    }
+
+    /**
+     * Steps through a run-length table of (sample count, value) pairs, as in {@code stts} and {@code ctts}.
+     */
+    private static final class Cursor {
+        private final ByteBuffer buffer;
+        private final long count;
+        private int entry;
+        private int index;
+        private long left;
+
+        Cursor(ByteBuffer buffer, int body, int end) {
+            this.buffer = buffer;
+            this.count = Math.min(Integer.toUnsignedLong(buffer.getInt(body + 4)), (end - body - 8) / 8);
+            this.entry = body + 8;
+            this.left = count > 0 ? Integer.toUnsignedLong(buffer.getInt(entry)) : 0;
+        }
+
+        /** The value for the current sample; 0 past the end of the table. */
+        long value(boolean signed) {
+            if (index >= count) {
+                return 0;
+            }
+            int value = buffer.getInt(entry + 4);
+            return signed ? value : Integer.toUnsignedLong(value);
+        }
+
+        void next() {
+            if (index >= count) {
+                return;
+            }
+            left--;
+            while (left <= 0 && ++index < count) {
+                entry += 8;
+                left = Integer.toUnsignedLong(buffer.getInt(entry));
+            }
+        }
+    }
+
+    private static void findSampleTables(ByteBuffer moov, int start, int end, SampleTables tables) {
+        forEachChild(moov, start, end, (type, childStart, childEnd) -> {
+            if (type == MDIA || type == MINF || type == STBL || type == EDTS) {
+                findSampleTables(moov, childStart, childEnd, tables);
+            } else if (type == MDHD) {
+                boolean version1 = moov.get(childStart) == 1;
+                tables.timescale = Integer.toUnsignedLong(moov.getInt(childStart + (version1 ? 20 : 12)));
+            } else if (type == HDLR) {
+                tables.handler = fourcc(moov, childStart + 8);
+            } else if (type == ELST) {
+                tables.elst = childStart;
+            } else if (type == STTS) {
+                tables.stts = childStart;
+                tables.sttsEnd = childEnd;
+            } else if (type == CTTS) {
+                tables.ctts = childStart;
+                tables.cttsEnd = childEnd;
+            } else if (type == STSS) {
+                tables.stss = childStart;
+                tables.stssEnd = childEnd;
+            } else if (type == STSC) {
+                tables.stsc = childStart;
+                tables.stscEnd = childEnd;
+            } else if (type == STSZ) {
+                tables.stsz = childStart;
+                tables.stszEnd = childEnd;
+            } else if (type == STCO || type == CO64) {
+                if (type == STCO) {
+                    tables.stco = childStart;
+                } else {
+                    tables.co64 = childStart;
+                }
+                tables.chunkEnd = childEnd;
+            }
+        });
+    }
+
+    interface BoxVisitor {
+        void visit(int type, int start, int end);
+    }
+
+    /**
+     * Calls the visitor with the type and body bounds of every box between {@code start} and {@code end}.
+     */
+    static void forEachChild(ByteBuffer buffer, int start, int end, BoxVisitor visitor) {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = Integer.toUnsignedLong(buffer.getInt(position));
+            int headerSize = 8;
+            if (size == 1) {
+                size = buffer.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerSize || position + size > end) {
+                return;
+            }
+            visitor.visit(buffer.getInt(position + 4), position + headerSize, (int) (position + size));
+            position += (int) size;
+        }
+    }
+
+    private static String fourcc(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[4];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static int type(String fourcc) {
+        byte[] bytes = fourcc.getBytes(StandardCharsets.ISO_8859_1);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+}
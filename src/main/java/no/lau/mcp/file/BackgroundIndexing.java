@@ -0,0 +1,165 @@
+package no.lau.mcp.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Registers source files right away and hashes them in the background.
+ *
+ * Files without a valid cached hash are first registered under a provisional ID derived from their path.
+ * Once hashed, the file moves to its content hash and the provisional ID stays behind as an alias,
+ * so commands already using it keep working. A command referencing a file which is still pending
+ * hashes it on the calling thread instead of waiting for its turn in the queue.
+ */
+class BackgroundIndexing {
+
+    static final String PROVISIONAL_PREFIX = "pending-";
+    private static final Logger log = LoggerFactory.getLogger(BackgroundIndexing.class);
+
+    private final VideoRegistry videoReferences;
+    private final Map<String, FutureTask<String>> pending = new ConcurrentHashMap<>();
+    private final Map<String, String> aliases = new ConcurrentHashMap<>();
+
+    BackgroundIndexing(VideoRegistry videoReferences) {
+        this.videoReferences = videoReferences;
+    }
+
+    /**
+     * Registers every file in the folder and starts hashing the ones the index does not know.
+     * The hash index is flushed when background hashing is done.
+     */
+    void start(Path sourceFolder, SourceIndexer indexer, HashIndex hashIndex) {
+        List<Path> files = SourceIndexer.listRegularFiles(sourceFolder);
+        Semaphore ioPermits = new Semaphore(indexer.ioConcurrency());
+        Map<String, FutureTask<String>> tasks = new LinkedHashMap<>();
+        Map<String, Path> registrations = new HashMap<>();
+        Map<String, List<Path>> cachedGroups = new LinkedHashMap<>();
+        for (Path file : files) {
+            String cached = cachedHash(file, hashIndex);
+            if (cached != null) {
+                cachedGroups.computeIfAbsent(cached, fingerprint -> new ArrayList<>()).add(file);
+                continue;
+            }
+            String provisionalId = provisionalId(file);
+            FutureTask<String> task = new FutureTask<>(() -> {
+                String hash = indexer.register(indexer.hash(file, hashIndex, ioPermits), file, videoReferences, hashIndex);
+                aliases.put(provisionalId, hash);
+                return hash;
+            });
+            registrations.put(provisionalId, file);
+            tasks.put(provisionalId, task);
+        }
+        cachedGroups.forEach((fingerprint, group) -> registrations.putAll(indexer.keysFor(fingerprint, group, hashIndex)));
+        // Registered in one step, before any task can rename its provisional ID
+        videoReferences.putAll(registrations);
+        pending.putAll(tasks);
+        log.info("Registered {} source files, {} waiting to be hashed", files.size(), tasks.size());
+
+        Thread coordinator = new Thread(() -> {
+            ExecutorService executor = indexer.newExecutor();
+            try {
+                tasks.values().forEach(executor::execute);
+                for (FutureTask<String> task : tasks.values()) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        log.warn("Could not hash source file: {}", e.getCause().getMessage());
+                    }
+                }
+                hashIndex.retainOnly(new HashSet<>(files));
+                log.info("Background indexing of {} files done", tasks.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+                hashIndex.flush();
+            }
+        }, "source-indexer");
+        coordinator.setDaemon(true);
+        coordinator.start();
+    }
+
+    /**
+     * Rewrites provisional placeholders in the command to content hash placeholders,
+     * hashing referenced files which have not been picked up by the background workers yet.
+     */
+    String awaitReferencedHashes(String command) {
+        return FileManagerUtils.replacePlaceholders(command, id -> {
+            String hash = await(id);
+            return hash == null ? null : "{{" + hash + "}}";
+        });
+    }
+
+    /**
+     * @return The content hash a provisional ID is registered under once hashed, or the ID itself
+     */
+    String awaitFinalId(String id) {
+        String hash = await(id);
+        return hash == null ? id : hash;
+    }
+
+    IndexingState state(String id) {
+        FutureTask<String> task = pending.get(id);
+        if (task == null) {
+            return videoReferences.snapshot().contains(id) ? IndexingState.INDEXED : null;
+        }
+        if (!task.isDone()) {
+            return IndexingState.PENDING;
+        }
+        return aliases.containsKey(id) ? IndexingState.INDEXED : IndexingState.FAILED;
+    }
+
+    /**
+     * @return The content hash a provisional ID was promoted to, or null if the ID is not provisional or not hashed yet.
+     */
+    String contentHash(String id) {
+        return aliases.get(id);
+    }
+
+    private String await(String id) {
+        FutureTask<String> task = pending.get(id);
+        if (task == null) {
+            return null;
+        }
+        task.run(); // no-op if a background worker already started it
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            log.warn("Hashing {} on demand failed: {}", id, e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing video reference '" + id + "'", e);
+        }
+    }
+
+    private static String cachedHash(Path file, HashIndex hashIndex) {
+        try {
+            return hashIndex.lookup(file, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static String provisionalId(Path file) {
+        return PROVISIONAL_PREFIX + UUID.nameUUIDFromBytes(file.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -20,10 +20,38 @@ public interface FileManager {
 
     /**
      * Lists all video references managed by this FileManager.
-     * @return A map of video reference IDs to their paths
+     * @return A map of video reference IDs to their paths. Changes to it are not written back.
      */
     Map<String, Path> videoReferences();
 
+    /**
+     * Takes an immutable snapshot of the video references.
+     * Resolve a command and sanitize its output against the same snapshot so both agree on every ID.
+     * @return The current snapshot
+     */
+    default VideoRegistry.Snapshot snapshot() {
+        return VideoRegistry.Snapshot.of(videoReferences());
+    }
+
+    /**
+     * Gives every video reference in the command its final ID, e.g. by finishing content hashing
+     * of files still registered under a provisional ID. Call before taking the snapshot the command is resolved against.
+     * @param command The command with potential {{videoref}} placeholders
+     * @return The command with final video reference IDs
+     */
+    default String finalizeVideoReferences(String command) {
+        return command;
+    }
+
+    /**
+     * Gives a video reference its final ID, see {@link #finalizeVideoReferences(String)}.
+     * @param videoRef The video reference ID
+     * @return The final ID, which is the same ID unless it was provisional
+     */
+    default String finalVideoReference(String videoRef) {
+        return videoRef;
+    }
+
     /**
      * Replace video references in the command with their actual paths.
      * @param command The command with potential {{videoref}} placeholders
@@ -37,4 +65,47 @@ public interface FileManager {
      * @param path The path to the video file
      */
     void addTargetVideoReference(String id, Path path);
+
+    /**
+     * Registers a target which is streamed from one command of a pipeline into the next, and never
+     * written to a file. It has no path, so commands outside a pipeline cannot resolve it.
+     * @param id The video reference ID
+     * @throws IllegalArgumentException if the ID is already a video reference
+     */
+    void addPipeTarget(String id);
+
+    /**
+     * @param videoRef The video reference ID
+     * @return Whether the reference is a pipe target
+     */
+    default boolean isPipeTarget(String videoRef) {
+        return false;
+    }
+
+    /**
+     * Looks up the path of a single video reference.
+     * @param videoRef The video reference ID
+     * @return The path, or null if the reference is unknown
+     */
+    default Path resolveVideoReference(String videoRef) {
+        return snapshot().get(videoRef);
+    }
+
+    /**
+     * Looks up the content hash of a source video, for keying results derived from it.
+     * @param videoRef The video reference ID
+     * @return The content hash, or null if the reference is not a hashed source video
+     */
+    default String contentHash(String videoRef) {
+        return null;
+    }
+
+    /**
+     * Reports whether a source video has been content hashed yet.
+     * @param videoRef The video reference ID
+     * @return The indexing state, or null if the reference is unknown
+     */
+    default IndexingState indexingState(String videoRef) {
+        return resolveVideoReference(videoRef) == null ? null : IndexingState.INDEXED;
+    }
 }
@@ -1,27 +1,34 @@
 package no.lau.mcp.file;
 
-import no.lau.mcp.ffmpeg.FileHasher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages file operations such as listing files, creating new files with auto-generated names,
  * and generating temporary files.
  * This class is designed for Java 23 applications.
  */
-public class FileManagerImpl implements FileManager {
+public class FileManagerImpl implements FileManager, Closeable {
 
     public final Path sourceFolder;
     public final Path destinationFolder;
     private static final String DEFAULT_GENERATED_FILE_EXTENSION = ".mp4";
-    private final Map<String, Path> videoReferences = new HashMap<>();
+    private final VideoRegistry videoReferences = new VideoRegistry();
+    /** Targets streamed between the commands of a pipeline; they have no file, so are kept out of the registry */
+    private final Set<String> pipeTargets = ConcurrentHashMap.newKeySet();
+    private final BackgroundIndexing backgroundIndexing;
+    private final SourceIndexer indexer;
+    private final HashIndex hashIndex;
+    private SourceFolderWatcher watcher;
 
     private static final Logger log = LoggerFactory.getLogger(FileManagerImpl.class);
 
@@ -34,6 +41,17 @@ public class FileManagerImpl implements FileManager {
      * @throws IllegalArgumentException if either path is not a directory after attempting creation.
      */
     public FileManagerImpl(String sourceFolderPath, String destinationFolderPath) {
+        this(sourceFolderPath, destinationFolderPath, SourceIndexer.fromSystemProperties());
+    }
+
+    /**
+     * Constructs a FileManager instance which indexes the source folder with the given indexer.
+     *
+     * @param sourceFolderPath      The path to the source folder for listing files.
+     * @param destinationFolderPath The path to the destination folder for creating new files.
+     * @param indexer               Decides how the source files are hashed at startup.
+     */
+    public FileManagerImpl(String sourceFolderPath, String destinationFolderPath, SourceIndexer indexer) {
         if (sourceFolderPath == null || sourceFolderPath.trim().isEmpty()) {
             throw new IllegalArgumentException("Source folder path cannot be null or empty.");
         }
@@ -68,31 +86,59 @@ public class FileManagerImpl implements FileManager {
         } else if (!Files.isDirectory(this.destinationFolder)) {
             throw new IllegalArgumentException("Destination path exists but is not a directory: " + destinationFolderPath);
         }
-        videoReferences.putAll(listFilesWithGeneratedKeys(sourceFolder));
+        this.indexer = indexer;
+        this.hashIndex = HashIndex.forSourceFolder(this.sourceFolder, indexer.fingerprinter());
+        if (indexer.isBackground()) {
+            // Answer right away, hashing continues on the indexer's pool
+            backgroundIndexing = new BackgroundIndexing(videoReferences);
+            backgroundIndexing.start(sourceFolder, indexer, hashIndex);
+            return;
+        }
+        backgroundIndexing = null;
+        videoReferences.putAll(listFilesWithGeneratedKeys(sourceFolder, indexer, hashIndex));
+        hashIndex.flush();
+    }
+
+    /**
+     * Starts watching the source folder, so files added, changed or removed after startup
+     * are registered, re-hashed or evicted without a restart. Calling it again returns the running watcher.
+     *
+     * @param debounce How long a file must stay unchanged before it is hashed.
+     * @return The running watcher.
+     * @throws IOException if the folder cannot be watched.
+     */
+    public synchronized SourceFolderWatcher watchSourceFolder(Duration debounce) throws IOException {
+        if (watcher == null) {
+            watcher = new SourceFolderWatcher(sourceFolder, videoReferences, indexer, hashIndex, debounce);
+        }
+        return watcher;
+    }
+
+    /**
+     * Stops the source folder watcher, if any, and closes the hash index.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        hashIndex.close();
     }
 
     /**
      * Lists all regular files in the source folder and returns them in a map.
-     * The keys of the map are randomly generated UUIDs, and the values are the Paths to the files.
-     * The 'mapName' parameter is a conceptual identifier for the map being generated,
-     * potentially for logging or external reference.
+     * The keys of the map are content hashes of the files, and the values are the Paths to the files.
      *
+     * @param sourceFolder The folder to list.
+     * @param indexer      Decides how the files are hashed.
+     * @param hashIndex    Persistent cache of hashes, so only new or changed files are read.
      * @return A Map where keys are generated String IDs and values are Path objects of the files.
-     * @throws IOException if an I/O error occurs when reading the directory.
      */
-    static Map<String, Path> listFilesWithGeneratedKeys(Path sourceFolder) {
-        Map<String, Path> fileMap = new HashMap<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceFolder)) {
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) {
-                    String hashBrown = FileHasher.getMd5Hash(entry);
-                    fileMap.put(hashBrown, entry.toAbsolutePath());
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        //log.info("Found " + fileMap.size() + " files in " + sourceFolder);
+    static Map<String, Path> listFilesWithGeneratedKeys(Path sourceFolder, SourceIndexer indexer, HashIndex hashIndex) {
+        long start = System.nanoTime();
+        Map<String, Path> fileMap = indexer.index(sourceFolder, hashIndex);
+        log.info("Indexed {} files in {} ms", fileMap.size(), (System.nanoTime() - start) / 1_000_000);
         System.err.println("Found " + fileMap.size() + " files in " + sourceFolder);
         return fileMap;
     }
@@ -163,7 +209,12 @@ public class FileManagerImpl implements FileManager {
 
     @Override
     public Map<String, Path> videoReferences() {
-        return videoReferences;
+        return videoReferences.snapshot().references();
+    }
+
+    @Override
+    public VideoRegistry.Snapshot snapshot() {
+        return videoReferences.snapshot();
     }
 
 
@@ -189,7 +240,56 @@ public class FileManagerImpl implements FileManager {
     }
 
     public String replaceVideoReferences(String command)  {
-        return FileManagerUtils.replaceVideoReferences(command, videoReferences);
+        String finalCommand = finalizeVideoReferences(command);
+        return videoReferences.snapshot().resolve(finalCommand);
+    }
+
+    @Override
+    public String finalizeVideoReferences(String command) {
+        return backgroundIndexing == null ? command : backgroundIndexing.awaitReferencedHashes(command);
+    }
+
+    @Override
+    public String finalVideoReference(String videoRef) {
+        return backgroundIndexing == null ? videoRef : backgroundIndexing.awaitFinalId(videoRef);
+    }
+
+    @Override
+    public Path resolveVideoReference(String videoRef) {
+        VideoRegistry.Snapshot snapshot = videoReferences.snapshot();
+        Path path = snapshot.get(videoRef);
+        if (path == null && backgroundIndexing != null) {
+            String hash = backgroundIndexing.contentHash(videoRef);
+            return hash == null ? null : snapshot.get(hash);
+        }
+        return path;
+    }
+
+    /**
+     * Source videos are registered under their content hash once hashed; target videos have none.
+     */
+    @Override
+    public String contentHash(String videoRef) {
+        Path path = resolveVideoReference(videoRef);
+        if (path == null || !path.startsWith(sourceFolder)) {
+            return null;
+        }
+        if (backgroundIndexing == null) {
+            return videoRef;
+        }
+        String hash = backgroundIndexing.contentHash(videoRef);
+        if (hash != null) {
+            return hash;
+        }
+        return backgroundIndexing.state(videoRef) == IndexingState.INDEXED ? videoRef : null;
+    }
+
+    @Override
+    public IndexingState indexingState(String videoRef) {
+        if (backgroundIndexing != null) {
+            return backgroundIndexing.state(videoRef);
+        }
+        return FileManager.super.indexingState(videoRef);
     }
     
 
@@ -197,5 +297,18 @@ public class FileManagerImpl implements FileManager {
     public void addTargetVideoReference(String id, Path path) {
         videoReferences.put(id, path);
     }
+
+    @Override
+    public void addPipeTarget(String id) {
+        if (resolveVideoReference(id) != null) {
+            throw new IllegalArgumentException("'" + id + "' is already a video reference");
+        }
+        pipeTargets.add(id);
+    }
+
+    @Override
+    public boolean isPipeTarget(String videoRef) {
+        return pipeTargets.contains(videoRef);
+    }
 }
 
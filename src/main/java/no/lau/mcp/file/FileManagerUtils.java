@@ -7,9 +7,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 
 /**
  * Utility class for FileManager operations.
@@ -18,7 +16,6 @@ import java.util.regex.Pattern;
 public final class FileManagerUtils {
     
     private static final Logger log = LoggerFactory.getLogger(FileManagerUtils.class);
-    private static final Pattern VIDEO_REF_PATTERN = Pattern.compile("\\{\\{([^{}]+)}}");
     
     // Private constructor to prevent instantiation
     private FileManagerUtils() {
@@ -31,13 +28,11 @@ public final class FileManagerUtils {
      * @return List of extracted IDs (without the braces)
      */
     public static List<String> extractIds(String text) {
-        Matcher matcher = VIDEO_REF_PATTERN.matcher(text);
-        
         List<String> ids = new ArrayList<>();
-        while (matcher.find()) {
-            // Extract just the ID part without the braces
-            ids.add(matcher.group(1));
-        }
+        replacePlaceholders(text, id -> {
+            ids.add(id);
+            return null;
+        });
         return ids;
     }
     
@@ -49,25 +44,94 @@ public final class FileManagerUtils {
      * @throws IllegalArgumentException if a video reference is not found
      */
     public static String replaceVideoReferences(String command, Map<String, Path> videoReferences) {
-        // First check for direct {{name}} references
-        log.debug("Replace in FFmpeg command: " + command);
-        
-        for (String id : extractIds(command)) {
-            if (!videoReferences.containsKey(id)) {
+        log.debug("Replace in FFmpeg command: {}", command);
+        return replacePlaceholders(command, id -> {
+            Path path = videoReferences.get(id);
+            if (path == null) {
                 log.error("No video reference found for ID: " + id);
                 throw new IllegalArgumentException("Video reference '" + id + "' not found.");
             }
-            String path = videoReferences.get(id).toAbsolutePath().toString();
-            command = command.replace("{{" + id + "}}", path);
+            return path.toAbsolutePath().toString();
+        });
+    }
+    
+    /**
+     * Receives each placeholder found by {@link #scanPlaceholders}, in order.
+     */
+    @FunctionalInterface
+    public interface PlaceholderVisitor {
+        /**
+         * @param start Index of the opening braces
+         * @param end   Index just past the closing braces
+         * @param id    The ID between the braces
+         */
+        void placeholder(int start, int end, String id);
+    }
+
+    /**
+     * Scans the text once for {{id}} placeholders. This is the only place placeholders are recognised, so
+     * every reader of commands agrees on them. IDs are everything between the braces and cannot be empty
+     * or contain braces themselves: {@code {{{a}}} } yields {@code a}, while {@code {{}}} and an unclosed
+     * {@code {{a} } are plain text.
+     * @param text The text containing potential {{id}} placeholders
+     * @param visitor Called for every placeholder
+     */
+    public static void scanPlaceholders(String text, PlaceholderVisitor visitor) {
+        int length = text.length();
+        int i = text.indexOf("{{");
+        while (i >= 0) {
+            int end = i + 2;
+            while (end < length && text.charAt(end) != '{' && text.charAt(end) != '}') {
+                end++;
+            }
+            if (end == i + 2 || end + 1 >= length || text.charAt(end) != '}' || text.charAt(end + 1) != '}') {
+                // Not a placeholder here, but one may start at the next brace
+                i = text.indexOf("{{", i + 1);
+                continue;
+            }
+            visitor.placeholder(i, end + 2, text.substring(i + 2, end));
+            i = text.indexOf("{{", end + 2);
         }
-        // If we still have {{videoref}}, use the default replacement from FFmpegWrapper
-        return command;
+    }
+
+    /**
+     * Scans the text once and replaces every {{id}} placeholder with what the function returns for the ID.
+     * A placeholder is kept as it is when the function returns null. Placeholders are found by
+     * {@link #scanPlaceholders}.
+     * @param text The text containing potential {{id}} placeholders
+     * @param replacement Maps an ID to its replacement; may throw to reject the ID
+     * @return The text with placeholders replaced, or the text itself if nothing changed
+     */
+    public static String replacePlaceholders(String text, Function<String, String> replacement) {
+        class Replacer implements PlaceholderVisitor {
+            StringBuilder result;
+            int copiedUpTo;
+
+            @Override
+            public void placeholder(int start, int end, String id) {
+                String value = replacement.apply(id);
+                if (value != null) {
+                    if (result == null) {
+                        result = new StringBuilder(text.length() + 64);
+                    }
+                    result.append(text, copiedUpTo, start).append(value);
+                    copiedUpTo = end;
+                }
+            }
+        }
+        Replacer replacer = new Replacer();
+        scanPlaceholders(text, replacer);
+        if (replacer.result == null) {
+            return text;
+        }
+        return replacer.result.append(text, replacer.copiedUpTo, text.length()).toString();
     }
     
     /**
      * Sanitize output by replacing actual file paths with their corresponding video references.
      * This improves security by not exposing actual file system paths in the output.
-     * 
+     * Compiles the paths on every call; use {@link VideoRegistry.Snapshot#sanitize(String)} to reuse them.
+     *
      * @param output The FFmpeg output containing file paths
      * @param videoReferences Map of video reference IDs to their paths
      * @return Sanitized output with file paths replaced by {{videoRef}}
@@ -76,19 +140,6 @@ public final class FileManagerUtils {
         if (output == null || output.isEmpty() || videoReferences.isEmpty()) {
             return output;
         }
-        
-        String sanitized = output;
-        for (Entry<String, Path> entry : videoReferences.entrySet()) {
-            String videoRef = entry.getKey();
-            Path path = entry.getValue();
-            
-            // Replace the absolute path with the videoRef placeholder
-            if (path != null) {
-                String absolutePath = path.toAbsolutePath().toString();
-                sanitized = sanitized.replace(absolutePath, "{{" + videoRef + "}}");
-            }
-        }
-        
-        return sanitized;
+        return OutputSanitizer.of(videoReferences).sanitize(output);
     }
 }
\ No newline at end of file
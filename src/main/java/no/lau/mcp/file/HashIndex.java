@@ -0,0 +1,354 @@
+package no.lau.mcp.file;
+
+import no.lau.mcp.ffmpeg.FileFingerprinter;
+import no.lau.mcp.ffmpeg.FileHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of content hashes, so unchanged source files are not re-hashed on every restart.
+ *
+ * Entries are keyed by absolute path and are only trusted while the file's size, modification time
+ * and file key (inode on Unix) are unchanged. The file is an append-only log of length-prefixed,
+ * CRC-checked records. A record torn by a crash fails its checksum and is dropped together with
+ * everything after it, and the log is then rewritten through a temporary file and an atomic move.
+ * Besides its fingerprint, an entry may hold the full MD5 a fingerprint collision was told apart with,
+ * so colliding files are not read in full again after a restart.
+ */
+public class HashIndex implements Closeable {
+
+    public static final String ENABLED_PROPERTY = "ffmpeg.mcp.indexing.cache";
+    static final String FILE_SUFFIX = ".hashindex";
+
+    private static final int MAGIC = 0x46464849; // "FFHI"
+    private static final int VERSION = 2;
+    /** Version 1 records have no full hash. Such logs are loaded and rewritten in the current version. */
+    private static final int VERSION_WITHOUT_FULL_HASH = 1;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(HashIndex.class);
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel appender;
+    private int staleRecords;
+
+    /**
+     * @param fullHash The full MD5 of the file, or null if it was never needed
+     */
+    record Entry(long size, long modifiedNanos, String fileKey, String hash, String fullHash) {
+        static Entry of(BasicFileAttributes attrs, String hash) {
+            Object key = attrs.fileKey();
+            return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    key == null ? "" : key.toString(), hash, null);
+        }
+
+        Entry withFullHash(String fullHash) {
+            return new Entry(size, modifiedNanos, fileKey, hash, fullHash);
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            Object key = attrs.fileKey();
+            return size == attrs.size()
+                    && modifiedNanos == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && fileKey.equals(key == null ? "" : key.toString());
+        }
+    }
+
+    private HashIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * An index which remembers nothing between runs. Used when caching is disabled.
+     */
+    public static HashIndex inMemory() {
+        return new HashIndex(null);
+    }
+
+    /**
+     * Opens the MD5 index stored next to the source folder.
+     */
+    public static HashIndex forSourceFolder(Path sourceFolder) {
+        return forSourceFolder(sourceFolder, FileHasher.MD5);
+    }
+
+    /**
+     * Opens the index stored next to the source folder, e.g. {@code /tmp/vids/sources.hashindex}
+     * for {@code /tmp/vids/sources}. Fingerprints other than MD5 get their own file, such as
+     * {@code sources.sampled.hashindex}, so switching strategy never mixes IDs.
+     * Falls back to {@link #inMemory()} when caching is disabled through {@value #ENABLED_PROPERTY},
+     * or the index cannot be read.
+     */
+    public static HashIndex forSourceFolder(Path sourceFolder, FileFingerprinter fingerprinter) {
+        Path parent = sourceFolder.getParent();
+        if (parent == null || !Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+            return inMemory();
+        }
+        try {
+            String strategy = fingerprinter == FileHasher.MD5 ? "" : "." + fingerprinter.name();
+            return open(parent.resolve(sourceFolder.getFileName() + strategy + FILE_SUFFIX));
+        } catch (IOException e) {
+            log.warn("Could not open hash index for {}, hashing all files: {}", sourceFolder, e.getMessage());
+            return inMemory();
+        }
+    }
+
+    /**
+     * Opens or creates the index at the given location.
+     */
+    public static HashIndex open(Path indexFile) throws IOException {
+        HashIndex index = new HashIndex(indexFile);
+        boolean intact = Files.notExists(indexFile) || index.load();
+        if (!intact || Files.notExists(indexFile)) {
+            index.rewrite();
+        }
+        index.appender = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return index;
+    }
+
+    /**
+     * Returns the cached hash of the file if its size, modification time and file key are unchanged.
+     */
+    public String lookup(Path file, BasicFileAttributes attrs) {
+        Entry entry = entries.get(file.toString());
+        return entry != null && entry.matches(attrs) ? entry.hash() : null;
+    }
+
+    /**
+     * Returns the cached full MD5 of the file if it is unchanged and its full hash was recorded.
+     */
+    public String lookupFullHash(Path file, BasicFileAttributes attrs) {
+        Entry entry = entries.get(file.toString());
+        return entry != null && entry.matches(attrs) ? entry.fullHash() : null;
+    }
+
+    /**
+     * Remembers the hash of a file, appending it to the log. A full hash recorded for the same content is kept.
+     */
+    public void record(Path file, BasicFileAttributes attrs, String hash) {
+        Entry entry = Entry.of(attrs, hash);
+        Entry previous = entries.get(file.toString());
+        if (previous != null && previous.matches(attrs) && previous.hash().equals(hash)) {
+            entry = previous;
+        }
+        record(file, entry);
+    }
+
+    /**
+     * Remembers the full MD5 of a file next to its fingerprint. Ignored if the file has changed since it was fingerprinted.
+     */
+    public void recordFullHash(Path file, BasicFileAttributes attrs, String fullHash) {
+        Entry entry = entries.get(file.toString());
+        if (entry != null && entry.matches(attrs)) {
+            record(file, entry.withFullHash(fullHash));
+        }
+    }
+
+    private void record(Path file, Entry entry) {
+        Entry previous = entries.put(file.toString(), entry);
+        if (entry.equals(previous)) {
+            return;
+        }
+        synchronized (this) {
+            if (previous != null) {
+                staleRecords++;
+            }
+            if (appender == null) {
+                return;
+            }
+            try {
+                ByteBuffer record = encode(file.toString(), entry);
+                while (record.hasRemaining()) {
+                    appender.write(record);
+                }
+            } catch (IOException e) {
+                log.warn("Could not append to hash index {}: {}", indexFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forgets a deleted file, and compacts the log if it holds many superseded records.
+     * Until then its record stays in the log, and is dropped by {@link #retainOnly} after a restart.
+     */
+    public synchronized void remove(Path file) {
+        if (entries.remove(file.toString()) != null) {
+            staleRecords++;
+            compactIfStale();
+        }
+    }
+
+    /**
+     * Forgets every file not in the given set, and compacts the log if it holds many superseded records.
+     */
+    public synchronized void retainOnly(Set<Path> files) {
+        int before = entries.size();
+        entries.keySet().removeIf(path -> !files.contains(Path.of(path)));
+        staleRecords += before - entries.size();
+        compactIfStale();
+    }
+
+    private void compactIfStale() {
+        if (appender != null && staleRecords > Math.max(64, entries.size())) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                log.warn("Could not compact hash index {}: {}", indexFile, e.getMessage());
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    public synchronized void flush() {
+        if (appender != null) {
+            try {
+                appender.force(false);
+            } catch (IOException e) {
+                log.warn("Could not flush hash index {}: {}", indexFile, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (appender != null) {
+            appender.force(false);
+            appender.close();
+            appender = null;
+        }
+    }
+
+    /**
+     * Reads all intact records.
+     * @return false if the log ended in a torn or corrupt record, or is of an older version
+     */
+    private boolean load() throws IOException {
+        try (InputStream fileIn = Files.newInputStream(indexFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            int version;
+            try {
+                if (in.readInt() != MAGIC) {
+                    log.warn("Ignoring hash index {} with unknown format", indexFile);
+                    return false;
+                }
+                version = in.readInt();
+                if (version != VERSION && version != VERSION_WITHOUT_FULL_HASH) {
+                    log.warn("Ignoring hash index {} with unknown format", indexFile);
+                    return false;
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            int records = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int first = in.read();
+                if (first == -1) {
+                    break; // clean end of log
+                }
+                try {
+                    int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        return false;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    long checksum = in.readLong();
+                    crc.reset();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        return false;
+                    }
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    String path = record.readUTF();
+                    long size = record.readLong();
+                    long modifiedNanos = record.readLong();
+                    String fileKey = record.readUTF();
+                    String hash = record.readUTF();
+                    String fullHash = version == VERSION_WITHOUT_FULL_HASH ? "" : record.readUTF();
+                    entries.put(path, new Entry(size, modifiedNanos, fileKey, hash, fullHash.isEmpty() ? null : fullHash));
+                    records++;
+                } catch (EOFException e) {
+                    log.warn("Hash index {} ends in a torn record, discarding it", indexFile);
+                    return false;
+                }
+            }
+            staleRecords = records - entries.size();
+            log.info("Loaded {} cached hashes from {}", entries.size(), indexFile);
+            // An older log is rewritten, as records of the current version cannot be appended to it
+            return version == VERSION;
+        }
+    }
+
+    /**
+     * Writes the current entries to a temporary file and atomically replaces the log with it.
+     */
+    private void rewrite() throws IOException {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).flip();
+            out.write(header);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                ByteBuffer record = encode(e.getKey(), e.getValue());
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(true);
+        }
+        if (appender != null) {
+            appender.close();
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (appender != null) {
+            appender = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        staleRecords = 0;
+    }
+
+    private static ByteBuffer encode(String path, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeUTF(path);
+            payload.writeLong(entry.size());
+            payload.writeLong(entry.modifiedNanos());
+            payload.writeUTF(Objects.requireNonNullElse(entry.fileKey(), ""));
+            payload.writeUTF(entry.hash());
+            payload.writeUTF(Objects.requireNonNullElse(entry.fullHash(), ""));
+        }
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return ByteBuffer.allocate(4 + data.length + 8).putInt(data.length).put(data).putLong(crc.getValue()).flip();
+    }
+}
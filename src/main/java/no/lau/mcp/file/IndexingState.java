@@ -0,0 +1,13 @@
+package no.lau.mcp.file;
+
+/**
+ * Progress of content hashing for a registered video.
+ */
+public enum IndexingState {
+    /** Registered under a provisional ID, content hash not computed yet. */
+    PENDING,
+    /** Registered under its content hash. */
+    INDEXED,
+    /** Hashing failed. The file stays usable under its provisional ID. */
+    FAILED
+}
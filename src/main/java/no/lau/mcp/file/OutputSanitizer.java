@@ -0,0 +1,205 @@
+package no.lau.mcp.file;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rewrites absolute paths in ffmpeg output to their {@code {{id}}} placeholders in a single pass.
+ *
+ * The paths are compiled once into an Aho-Corasick automaton, so sanitizing costs time proportional
+ * to the output length, whatever the number of registered references. Where paths overlap, the
+ * leftmost match wins and, among matches starting at the same place, the longest one.
+ * If several IDs share a path, the first one in the map's iteration order is used.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class OutputSanitizer {
+
+    private static final OutputSanitizer EMPTY = new OutputSanitizer(new Node[]{new Node()}, new String[0]);
+
+    /** Flattened trie: the children of node n are edgeChars/edgeTargets[edgeStart[n] .. edgeStart[n+1]), sorted by char. */
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] fail;
+    /** Nearest node on the fail chain, including the node itself, where a path ends; -1 if none. */
+    private final int[] matchLink;
+    /** Index into replacements of the path ending at this node; -1 if none. */
+    private final int[] match;
+    private final int[] depth;
+    private final String[] replacements;
+    /** Dense transitions out of the root for ASCII, where the scan spends most of its time. */
+    private final int[] rootAscii = new int[128];
+
+    private static final class Node {
+        final TreeMap<Character, Integer> children = new TreeMap<>();
+        int match = -1;
+        int depth;
+    }
+
+    /**
+     * Compiles the absolute paths of the given references. Null paths are ignored.
+     */
+    public static OutputSanitizer of(Map<String, Path> videoReferences) {
+        Map<String, String> placeholderByPath = new LinkedHashMap<>();
+        videoReferences.forEach((id, path) -> {
+            if (path != null) {
+                placeholderByPath.putIfAbsent(path.toAbsolutePath().toString(), "{{" + id + "}}");
+            }
+        });
+        placeholderByPath.remove("");
+        if (placeholderByPath.isEmpty()) {
+            return EMPTY;
+        }
+
+        List<Node> trie = new ArrayList<>();
+        trie.add(new Node());
+        String[] replacements = new String[placeholderByPath.size()];
+        int index = 0;
+        for (Map.Entry<String, String> entry : placeholderByPath.entrySet()) {
+            String path = entry.getKey();
+            int node = 0;
+            for (int i = 0; i < path.length(); i++) {
+                Node current = trie.get(node);
+                Integer next = current.children.get(path.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    Node child = new Node();
+                    child.depth = current.depth + 1;
+                    trie.add(child);
+                    current.children.put(path.charAt(i), next);
+                }
+                node = next;
+            }
+            trie.get(node).match = index;
+            replacements[index++] = entry.getValue();
+        }
+        return new OutputSanitizer(trie.toArray(new Node[0]), replacements);
+    }
+
+    private OutputSanitizer(Node[] trie, String[] replacements) {
+        int nodes = trie.length;
+        this.replacements = replacements;
+        this.edgeStart = new int[nodes + 1];
+        this.fail = new int[nodes];
+        this.matchLink = new int[nodes];
+        this.match = new int[nodes];
+        this.depth = new int[nodes];
+
+        int edges = 0;
+        for (int n = 0; n < nodes; n++) {
+            edgeStart[n] = edges;
+            edges += trie[n].children.size();
+            match[n] = trie[n].match;
+            depth[n] = trie[n].depth;
+        }
+        edgeStart[nodes] = edges;
+        this.edgeChars = new char[edges];
+        this.edgeTargets = new int[edges];
+        for (int n = 0; n < nodes; n++) {
+            int e = edgeStart[n];
+            for (Map.Entry<Character, Integer> child : trie[n].children.entrySet()) {
+                edgeChars[e] = child.getKey();
+                edgeTargets[e++] = child.getValue();
+            }
+        }
+
+        for (int e = edgeStart[0]; e < edgeStart[1] && edgeChars[e] < rootAscii.length; e++) {
+            rootAscii[edgeChars[e]] = edgeTargets[e];
+        }
+
+        // Breadth-first, so every fail target is finished before the nodes that point to it
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        matchLink[0] = -1;
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+            int child = edgeTargets[e];
+            fail[child] = 0;
+            matchLink[child] = match[child] >= 0 ? child : -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                int child = edgeTargets[e];
+                int f = step(fail[node], edgeChars[e]);
+                fail[child] = f;
+                matchLink[child] = match[child] >= 0 ? child : matchLink[f];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Replace every registered path in the output with its {@code {{id}}} placeholder.
+     */
+    public String sanitize(String output) {
+        if (output == null || output.isEmpty() || replacements.length == 0) {
+            return output;
+        }
+        StringBuilder sanitized = null;
+        int copiedUpTo = 0;
+        int state = 0;
+        int bestStart = -1;
+        int bestEnd = -1;
+        int bestMatch = -1;
+        int length = output.length();
+        int i = 0;
+        while (i < length || bestMatch >= 0) {
+            if (i < length) {
+                state = step(state, output.charAt(i));
+                for (int m = matchLink[state]; m >= 0; m = matchLink[fail[m]]) {
+                    int start = i + 1 - depth[m];
+                    if (bestMatch < 0 || start < bestStart || (start == bestStart && i + 1 > bestEnd)) {
+                        bestStart = start;
+                        bestEnd = i + 1;
+                        bestMatch = match[m];
+                    }
+                }
+                i++;
+            }
+            // Commit once no match still in progress can start at or before the best one,
+            // then rescan from its end since later matches were not tracked
+            if (bestMatch >= 0 && (i == length || i - depth[state] > bestStart)) {
+                if (sanitized == null) {
+                    sanitized = new StringBuilder(length);
+                }
+                sanitized.append(output, copiedUpTo, bestStart).append(replacements[bestMatch]);
+                copiedUpTo = bestEnd;
+                i = bestEnd;
+                state = 0;
+                bestMatch = -1;
+            }
+        }
+        if (sanitized == null) {
+            return output;
+        }
+        return sanitized.append(output, copiedUpTo, length).toString();
+    }
+
+    private int step(int state, char c) {
+        if (state == 0 && c < rootAscii.length) {
+            return rootAscii[c];
+        }
+        while (true) {
+            int next = child(state, c);
+            if (next >= 0) {
+                return next;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    private int child(int node, char c) {
+        int index = Arrays.binarySearch(edgeChars, edgeStart[node], edgeStart[node + 1], c);
+        return index >= 0 ? edgeTargets[index] : -1;
+    }
+}
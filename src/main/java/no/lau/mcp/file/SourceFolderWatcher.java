@@ -0,0 +1,195 @@
+package no.lau.mcp.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the source entries of the video reference map in sync with the source folder after startup.
+ *
+ * Change events are debounced: a file is only hashed once it has produced no events for the debounce
+ * period and its size and modification time have stopped changing, so uploads still being written are
+ * left alone. Hashing runs on the indexer's pool under the same I/O limit as startup indexing.
+ * Each change costs one stat and at most one hash of the changed file. Deleted files are evicted
+ * through the registry's IDs by path, which follow every rename, including those of background indexing,
+ * and their hash index entries are dropped. Deletes of files which were never registered are ignored.
+ */
+public class SourceFolderWatcher implements Closeable {
+
+    public static final String WATCH_PROPERTY = "ffmpeg.mcp.indexing.watch";
+    public static final Duration DEFAULT_DEBOUNCE = Duration.ofSeconds(2);
+
+    private static final Logger log = LoggerFactory.getLogger(SourceFolderWatcher.class);
+
+    private final Path sourceFolder;
+    private final VideoRegistry videoReferences;
+    private final SourceIndexer indexer;
+    private final HashIndex hashIndex;
+    private final long debounceNanos;
+    private final WatchService watchService;
+    private final ExecutorService hashers;
+    private final Semaphore ioPermits;
+    /** Only touched by the watch thread. */
+    private final Map<Path, PendingChange> pending = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private record PendingChange(long lastEventNanos, long size, long modified) {
+    }
+
+    SourceFolderWatcher(Path sourceFolder, VideoRegistry videoReferences, SourceIndexer indexer,
+                        HashIndex hashIndex, Duration debounce) throws IOException {
+        this.sourceFolder = sourceFolder;
+        this.videoReferences = videoReferences;
+        this.indexer = indexer;
+        this.hashIndex = hashIndex;
+        this.debounceNanos = debounce.toNanos();
+        this.hashers = indexer.newExecutor();
+        this.ioPermits = new Semaphore(indexer.ioConcurrency());
+        this.watchService = sourceFolder.getFileSystem().newWatchService();
+        sourceFolder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        // Files created between the startup scan and registering the watch would otherwise be missed
+        Set<Path> registered = new HashSet<>(videoReferences.snapshot().references().values());
+        long now = System.nanoTime();
+        for (Path file : SourceIndexer.listRegularFiles(sourceFolder)) {
+            if (!registered.contains(file)) {
+                pending.put(file, new PendingChange(now, -1, -1));
+            }
+        }
+
+        thread = new Thread(this::run, "source-folder-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Watching {} for new, changed and deleted files", sourceFolder);
+    }
+
+    private void run() {
+        long pollMillis = Math.max(10, TimeUnit.NANOSECONDS.toMillis(debounceNanos) / 2);
+        while (running) {
+            try {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    collect(key);
+                }
+                processSettledChanges();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.warn("Error while watching {}: {}", sourceFolder, e.getMessage());
+            }
+        }
+    }
+
+    private void collect(WatchKey key) {
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Watch events for {} overflowed, rescanning the folder", sourceFolder);
+                videoReferences.snapshot().references().values().stream()
+                        .filter(path -> sourceFolder.equals(path.getParent()))
+                        .forEach(path -> pending.put(path, new PendingChange(now, -1, -1)));
+                SourceIndexer.listRegularFiles(sourceFolder).forEach(path -> pending.put(path, new PendingChange(now, -1, -1)));
+                continue;
+            }
+            Path file = sourceFolder.resolve((Path) event.context()).toAbsolutePath();
+            PendingChange previous = pending.get(file);
+            pending.put(file, new PendingChange(now,
+                    previous == null ? -1 : previous.size(), previous == null ? -1 : previous.modified()));
+        }
+        if (!key.reset()) {
+            log.warn("Source folder {} is no longer accessible, stopping watcher", sourceFolder);
+            running = false;
+        }
+    }
+
+    /**
+     * Handles files which have been quiet for the debounce period and whose size and mtime are stable.
+     */
+    private void processSettledChanges() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, PendingChange>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, PendingChange> entry = it.next();
+            Path file = entry.getKey();
+            PendingChange change = entry.getValue();
+            if (now - change.lastEventNanos() < debounceNanos) {
+                continue;
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                it.remove();
+                evict(file);
+                continue;
+            } catch (IOException e) {
+                log.warn("Could not read attributes of {}: {}", file, e.getMessage());
+                it.remove();
+                continue;
+            }
+            if (!attrs.isRegularFile()) {
+                it.remove();
+                continue;
+            }
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (attrs.size() != change.size() || modified != change.modified()) {
+                // Still being written, or first look: check again after another quiet period
+                entry.setValue(new PendingChange(now, attrs.size(), modified));
+                continue;
+            }
+            it.remove();
+            hashers.execute(() -> register(file));
+        }
+    }
+
+    private void register(Path file) {
+        try {
+            String fingerprint = indexer.hash(file, hashIndex, ioPermits);
+            if (Files.notExists(file)) {
+                return; // deleted while hashing, the delete event evicts it
+            }
+            String key = indexer.register(fingerprint, file, videoReferences, hashIndex);
+            log.info("Registered source file {} as {}", file.getFileName(), key);
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Could not hash {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void evict(Path file) {
+        hashIndex.remove(file);
+        if (videoReferences.removePath(file)) {
+            log.info("Evicted deleted source file {}", file.getFileName());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watchService.close();
+        thread.interrupt();
+        hashers.shutdownNow();
+    }
+}
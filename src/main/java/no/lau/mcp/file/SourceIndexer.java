@@ -0,0 +1,342 @@
+package no.lau.mcp.file;
+
+import no.lau.mcp.ffmpeg.FileFingerprinter;
+import no.lau.mcp.ffmpeg.FileHasher;
+import no.lau.mcp.ffmpeg.SampledFingerprinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes the files of a source folder to build the initial video reference map.
+ * Files can be hashed one at a time, on a bounded fork-join pool, or on virtual threads.
+ * Independent of the pool size, at most {@code ioConcurrency} files are read at the same time,
+ * so spinning disks are not thrashed by many concurrent sequential reads.
+ *
+ * The resulting map is the same as the one produced by a sequential scan: files sharing a
+ * fingerprint are keyed in directory order, so identical files resolve to the same path either way.
+ * Files whose hash is still valid in the {@link HashIndex} are not read at all.
+ *
+ * In background mode the indexer only decides how hashing is scheduled; registration under
+ * provisional IDs is done by {@link FileManagerImpl} so the server can answer before hashing is done.
+ */
+public class SourceIndexer {
+
+    public enum Mode { SEQUENTIAL, FORK_JOIN, VIRTUAL_THREADS }
+
+    public static final String MODE_PROPERTY = "ffmpeg.mcp.indexing.mode";
+    public static final String PARALLELISM_PROPERTY = "ffmpeg.mcp.indexing.parallelism";
+    public static final String IO_CONCURRENCY_PROPERTY = "ffmpeg.mcp.indexing.ioConcurrency";
+    public static final String BACKGROUND_PROPERTY = "ffmpeg.mcp.indexing.background";
+    public static final String FINGERPRINT_PROPERTY = "ffmpeg.mcp.indexing.fingerprint";
+    public static final String SAMPLE_SIZE_PROPERTY = "ffmpeg.mcp.indexing.sampleSize";
+
+    private static final int DEFAULT_IO_CONCURRENCY = 4;
+    private static final Logger log = LoggerFactory.getLogger(SourceIndexer.class);
+
+    private final Mode mode;
+    private final int parallelism;
+    private final int ioConcurrency;
+    private final boolean background;
+    private final FileFingerprinter fingerprinter;
+
+    /**
+     * @param mode          How hashing work is scheduled.
+     * @param parallelism   Number of worker threads for {@link Mode#FORK_JOIN}. Ignored by the other modes.
+     * @param ioConcurrency Maximum number of files being read at the same time.
+     */
+    public SourceIndexer(Mode mode, int parallelism, int ioConcurrency) {
+        this(mode, parallelism, ioConcurrency, false);
+    }
+
+    /**
+     * @param mode          How hashing work is scheduled.
+     * @param parallelism   Number of worker threads for {@link Mode#FORK_JOIN}. Ignored by the other modes.
+     * @param ioConcurrency Maximum number of files being read at the same time.
+     * @param background    Register files right away and hash them after the file manager is constructed.
+     */
+    public SourceIndexer(Mode mode, int parallelism, int ioConcurrency, boolean background) {
+        this(mode, parallelism, ioConcurrency, background, FileHasher.MD5);
+    }
+
+    /**
+     * @param mode          How hashing work is scheduled.
+     * @param parallelism   Number of worker threads for {@link Mode#FORK_JOIN}. Ignored by the other modes.
+     * @param ioConcurrency Maximum number of files being read at the same time.
+     * @param background    Register files right away and hash them after the file manager is constructed.
+     * @param fingerprinter Computes the ID each file is registered under.
+     */
+    public SourceIndexer(Mode mode, int parallelism, int ioConcurrency, boolean background, FileFingerprinter fingerprinter) {
+        if (mode == null || fingerprinter == null) {
+            throw new IllegalArgumentException("Indexing mode and fingerprinter cannot be null.");
+        }
+        if (parallelism < 1 || ioConcurrency < 1) {
+            throw new IllegalArgumentException("Parallelism and I/O concurrency must be at least 1.");
+        }
+        this.mode = mode;
+        this.parallelism = parallelism;
+        this.ioConcurrency = ioConcurrency;
+        this.background = background;
+        this.fingerprinter = fingerprinter;
+    }
+
+    /**
+     * Hashes one file at a time on the calling thread. This is the original behaviour.
+     */
+    public static SourceIndexer sequential() {
+        return new SourceIndexer(Mode.SEQUENTIAL, 1, 1);
+    }
+
+    /**
+     * Builds an indexer from system properties, defaulting to a fork-join pool sized to the available cores
+     * with at most 4 concurrent file reads, hashing the full content with MD5 before the file manager is returned.
+     */
+    public static SourceIndexer fromSystemProperties() {
+        Mode mode = Mode.valueOf(System.getProperty(MODE_PROPERTY, Mode.FORK_JOIN.name()).toUpperCase());
+        int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+        int ioConcurrency = Integer.getInteger(IO_CONCURRENCY_PROPERTY, DEFAULT_IO_CONCURRENCY);
+        boolean background = Boolean.getBoolean(BACKGROUND_PROPERTY);
+        FileFingerprinter fingerprinter = FileFingerprinter.named(System.getProperty(FINGERPRINT_PROPERTY, FileHasher.MD5.name()),
+                Integer.getInteger(SAMPLE_SIZE_PROPERTY, SampledFingerprinter.DEFAULT_SAMPLE_SIZE));
+        return new SourceIndexer(mode, parallelism, ioConcurrency, background, fingerprinter);
+    }
+
+    public FileFingerprinter fingerprinter() {
+        return fingerprinter;
+    }
+
+    public boolean isBackground() {
+        return background;
+    }
+
+    int ioConcurrency() {
+        return ioConcurrency;
+    }
+
+    /**
+     * Lists all regular files in the folder and maps their content hash to their absolute path.
+     *
+     * @param sourceFolder The folder to index
+     * @return A Map where keys are content hashes and values are absolute paths of the files
+     */
+    public Map<String, Path> index(Path sourceFolder) {
+        return index(sourceFolder, HashIndex.inMemory());
+    }
+
+    /**
+     * Lists all regular files in the folder and maps their content hash to their absolute path,
+     * reusing hashes from the index for files which have not changed.
+     *
+     * @param sourceFolder The folder to index
+     * @param hashIndex    Cache of previously computed hashes, updated with every newly hashed file
+     * @return A Map where keys are content hashes and values are absolute paths of the files
+     */
+    public Map<String, Path> index(Path sourceFolder, HashIndex hashIndex) {
+        List<Path> files = listRegularFiles(sourceFolder);
+        String[] hashes = mode == Mode.SEQUENTIAL || files.size() < 2
+                ? hashSequentially(files, hashIndex)
+                : hashInParallel(files, hashIndex);
+        hashIndex.retainOnly(new HashSet<>(files));
+
+        Map<String, List<Path>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            groups.computeIfAbsent(hashes[i], fingerprint -> new ArrayList<>()).add(files.get(i));
+        }
+        Map<String, Path> fileMap = new HashMap<>();
+        groups.forEach((fingerprint, group) -> fileMap.putAll(keysFor(fingerprint, group, hashIndex)));
+        return fileMap;
+    }
+
+    /**
+     * Registers a file with the given fingerprint, re-keying the files already registered under it if
+     * the file turns their group into a collision, and removing any other ID the file had. See {@link #keysFor}.
+     *
+     * @return The key the file is registered under
+     */
+    String register(String fingerprint, Path file, VideoRegistry registry, HashIndex hashIndex) {
+        return registry.register(fingerprint, file, group -> keysFor(fingerprint, group, hashIndex));
+    }
+
+    /**
+     * Returns the keys to register files sharing a fingerprint under, a later file winning over an identical
+     * earlier one. With an inexact fingerprint, a group of several files is hashed in full, reusing and
+     * recording full hashes in the hash index. Identical content keeps the bare fingerprint, like a full hash
+     * would; otherwise every file gets {@code fingerprint-md5}, so neither is lost and the keys do not depend
+     * on the order the files were registered in.
+     */
+    Map<String, Path> keysFor(String fingerprint, List<Path> files, HashIndex hashIndex) {
+        Map<String, Path> keys = new LinkedHashMap<>();
+        if (fingerprinter.isExact() || files.size() == 1) {
+            keys.put(fingerprint, files.get(files.size() - 1));
+            return keys;
+        }
+        try {
+            Map<Path, String> fullHashes = new LinkedHashMap<>();
+            for (Path file : files) {
+                fullHashes.put(file, fullHash(file, hashIndex));
+            }
+            if (new HashSet<>(fullHashes.values()).size() == 1) {
+                keys.put(fingerprint, files.get(files.size() - 1));
+                return keys;
+            }
+            log.info("Fingerprint collision between {}, telling them apart by full hash", files);
+            fullHashes.forEach((file, fullHash) -> keys.put(fingerprint + "-" + fullHash, file));
+            return keys;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String fullHash(Path file, HashIndex hashIndex) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String cached = hashIndex.lookupFullHash(file, attrs);
+        if (cached != null) {
+            return cached;
+        }
+        String fullHash = FileHasher.getMd5Hash(file);
+        hashIndex.recordFullHash(file, attrs, fullHash);
+        return fullHash;
+    }
+
+    static List<Path> listRegularFiles(Path sourceFolder) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceFolder)) {
+            for (Path entry : stream) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry.toAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return files;
+    }
+
+    private String[] hashSequentially(List<Path> files, HashIndex hashIndex) {
+        String[] hashes = new String[files.size()];
+        Progress progress = new Progress(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                hashes[i] = hash(files.get(i), hashIndex, null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            progress.fileDone();
+        }
+        return hashes;
+    }
+
+    private String[] hashInParallel(List<Path> files, HashIndex hashIndex) {
+        String[] hashes = new String[files.size()];
+        Semaphore ioPermits = new Semaphore(ioConcurrency);
+        Progress progress = new Progress(files.size());
+        ExecutorService executor = newExecutor();
+        try {
+            List<Future<?>> futures = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                futures.add(executor.submit(() -> {
+                    try {
+                        hashes[index] = hash(files.get(index), hashIndex, ioPermits);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    progress.fileDone();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Indexing interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the cached fingerprint if the file is unchanged, otherwise reads the file while holding an I/O permit.
+     */
+    String hash(Path file, HashIndex hashIndex, Semaphore ioPermits) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String cached = hashIndex.lookup(file, attrs);
+        if (cached != null) {
+            return cached;
+        }
+        String hash;
+        if (ioPermits == null) {
+            hash = fingerprinter.fingerprint(file);
+        } else {
+            ioPermits.acquireUninterruptibly();
+            try {
+                hash = fingerprinter.fingerprint(file);
+            } finally {
+                ioPermits.release();
+            }
+        }
+        hashIndex.record(file, attrs, hash);
+        return hash;
+    }
+
+    /**
+     * Creates the pool hashing work runs on. {@link Mode#SEQUENTIAL} gets a single worker.
+     */
+    ExecutorService newExecutor() {
+        if (mode == Mode.SEQUENTIAL) {
+            return Executors.newSingleThreadExecutor();
+        }
+        if (mode == Mode.VIRTUAL_THREADS) {
+            try {
+                // Looked up reflectively so the project still targets Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available on this JVM, falling back to a fork-join pool");
+            }
+        }
+        return new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Logs indexing progress roughly every 10%.
+     */
+    private static class Progress {
+        private final int total;
+        private final int step;
+        private final AtomicInteger done = new AtomicInteger();
+
+        Progress(int total) {
+            this.total = total;
+            this.step = Math.max(1, total / 10);
+        }
+
+        void fileDone() {
+            int count = done.incrementAndGet();
+            if (count % step == 0 || count == total) {
+                log.info("Indexed {}/{} source files", count, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package no.lau.mcp.file;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Thread-safe registry of video reference IDs to paths.
+ *
+ * Writers change a single sorted map under the registry's lock, which costs O(log N) per entry, and bump its version.
+ * Readers take an immutable, versioned {@link Snapshot}. Reads are lock-free only while the registry is
+ * unchanged: the first reader after a change takes the lock and copies the whole map, and later readers
+ * share that copy with two volatile reads until the next change. A burst of writes without reads, like
+ * a folder being registered at startup, costs a single copy instead of one per write. When writes and
+ * reads alternate, as while background hashing renames files under ffmpeg calls, nearly every read
+ * pays the O(N) copy, the same as copying on every write would.
+ */
+public final class VideoRegistry {
+
+    /** Guarded by this. Sorted, so the IDs sharing a fingerprint are found by a range lookup. */
+    private final TreeMap<String, Path> references = new TreeMap<>();
+    /** Guarded by this. The IDs pointing to each path, so a path is unregistered without scanning every ID. */
+    private final Map<Path, Set<String>> idsByPath = new HashMap<>();
+    /** Held while a fingerprint group is read, keyed and replaced, so such registrations never interleave */
+    private final Object registrations = new Object();
+    /** Written under the lock, incremented by every change to {@link #references} */
+    private volatile long version;
+    /** The snapshot of {@link #version}, or of an older version until a reader asks for the latest */
+    private volatile Snapshot published = Snapshot.EMPTY;
+
+    /**
+     * Immutable view of the registry at one point in time.
+     * Resolving a command and sanitizing its output against the same snapshot guarantees
+     * both see the same set of references, whatever is registered in between.
+     */
+    public static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(0, Map.of());
+
+        private final long version;
+        private final Map<String, Path> references;
+        /** Compiled on first use, so only snapshots whose output is sanitized pay for it. */
+        private volatile OutputSanitizer sanitizer;
+
+        private Snapshot(long version, Map<String, Path> references) {
+            this.version = version;
+            this.references = references;
+        }
+
+        /**
+         * Wraps a copy of the given map in an unversioned snapshot.
+         */
+        public static Snapshot of(Map<String, Path> references) {
+            return new Snapshot(0, Collections.unmodifiableMap(new HashMap<>(references)));
+        }
+
+        /**
+         * Incremented by every change to the registry.
+         */
+        public long version() {
+            return version;
+        }
+
+        /**
+         * @return An unmodifiable map of video reference IDs to their paths
+         */
+        public Map<String, Path> references() {
+            return references;
+        }
+
+        public Path get(String id) {
+            return references.get(id);
+        }
+
+        public boolean contains(String id) {
+            return references.containsKey(id);
+        }
+
+        /**
+         * Replace video references in the command with their actual paths.
+         * @throws IllegalArgumentException if a video reference is not found
+         */
+        public String resolve(String command) {
+            return FileManagerUtils.replaceVideoReferences(command, references);
+        }
+
+        /**
+         * Replace file paths in the output with their corresponding video references.
+         */
+        public String sanitize(String output) {
+            OutputSanitizer compiled = sanitizer;
+            if (compiled == null) {
+                compiled = OutputSanitizer.of(references);
+                sanitizer = compiled;
+            }
+            return compiled.sanitize(output);
+        }
+    }
+
+    /**
+     * @return The current snapshot; copies the map under the lock if the registry changed since the last one
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = published;
+        if (snapshot.version == version) {
+            return snapshot;
+        }
+        synchronized (this) {
+            if (published.version != version) {
+                published = new Snapshot(version, Collections.unmodifiableMap(new HashMap<>(references)));
+            }
+            return published;
+        }
+    }
+
+    public synchronized void put(String id, Path path) {
+        changed(link(id, path));
+    }
+
+    public synchronized void putAll(Map<String, Path> references) {
+        boolean changed = false;
+        for (Map.Entry<String, Path> entry : references.entrySet()) {
+            changed |= link(entry.getKey(), entry.getValue());
+        }
+        changed(changed);
+    }
+
+    public synchronized void putIfAbsent(String id, Path path) {
+        changed(!references.containsKey(id) && link(id, path));
+    }
+
+    /**
+     * Removes the ID only if it still points to the given path.
+     * @return true if the entry was removed
+     */
+    public synchronized boolean remove(String id, Path path) {
+        return changed(unlink(id, path));
+    }
+
+    /**
+     * Removes every ID pointing to the given path, found through the IDs indexed by path.
+     * @return true if any entry was removed
+     */
+    public synchronized boolean removePath(Path path) {
+        Set<String> ids = idsByPath.remove(path);
+        if (ids == null) {
+            return false;
+        }
+        ids.forEach(references::remove);
+        return changed(true);
+    }
+
+    /**
+     * Moves a path from one ID to another in a single step, so no reader sees it under both or neither.
+     * The old ID is only removed if it still points to the path.
+     */
+    public synchronized void rename(String oldId, String newId, Path path) {
+        boolean changed = link(newId, path);
+        if (oldId != null && !oldId.equals(newId)) {
+            changed |= unlink(oldId, path);
+        }
+        changed(changed);
+    }
+
+    /**
+     * Registers a file under a key which depends on the other files sharing its fingerprint, like the keys
+     * telling a fingerprint collision apart. The group is read, re-keyed and replaced in one step relative to
+     * other registrations, so no two of them decide on a stale view of the group. The keys are computed
+     * without holding the registry lock: readers and plain writes do not wait for files being hashed.
+     * Any other ID the file is registered under, like a provisional one or the key of its previous content,
+     * is removed in the same step.
+     *
+     * @param fingerprint The ID the group shares, alone or followed by {@code -} and a suffix for each member
+     * @param file        The file to register
+     * @param keys        Given the files of the group with the new file last, returns the key of each of them.
+     *                    Files left out are unregistered.
+     * @return The key the file is registered under
+     */
+    public String register(String fingerprint, Path file, Function<List<Path>, Map<String, Path>> keys) {
+        synchronized (registrations) {
+            Map<String, Path> group;
+            synchronized (this) {
+                group = group(fingerprint);
+            }
+            List<Path> files = new ArrayList<>(group.values());
+            files.remove(file);
+            files.add(file);
+            Map<String, Path> regrouped = keys.apply(files);
+
+            synchronized (this) {
+                // Members removed while the keys were computed stay removed
+                Set<Path> present = new HashSet<>();
+                present.add(file);
+                group.forEach((id, path) -> {
+                    if (path.equals(references.get(id))) {
+                        present.add(path);
+                    }
+                });
+                boolean changed = false;
+                String key = null;
+                for (Map.Entry<String, Path> entry : regrouped.entrySet()) {
+                    if (entry.getValue().equals(file)) {
+                        key = entry.getKey();
+                    }
+                    if (present.contains(entry.getValue())) {
+                        changed |= link(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (Map.Entry<String, Path> entry : group.entrySet()) {
+                    if (!regrouped.containsKey(entry.getKey())) {
+                        changed |= unlink(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (String id : List.copyOf(idsByPath.getOrDefault(file, Set.of()))) {
+                    if (!id.equals(key)) {
+                        changed |= unlink(id, file);
+                    }
+                }
+                changed(changed);
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Guarded by this. Points the ID at the path, keeping the IDs indexed by path in step.
+     * @return Whether the registry changed
+     */
+    private boolean link(String id, Path path) {
+        Path previous = references.put(id, path);
+        if (path.equals(previous)) {
+            return false;
+        }
+        if (previous != null) {
+            unindex(id, previous);
+        }
+        idsByPath.computeIfAbsent(path, p -> new HashSet<>(2)).add(id);
+        return true;
+    }
+
+    /**
+     * Guarded by this. Removes the ID if it points to the path.
+     * @return Whether the registry changed
+     */
+    private boolean unlink(String id, Path path) {
+        if (!references.remove(id, path)) {
+            return false;
+        }
+        unindex(id, path);
+        return true;
+    }
+
+    private void unindex(String id, Path path) {
+        Set<String> ids = idsByPath.get(path);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            idsByPath.remove(path);
+        }
+    }
+
+    /**
+     * Guarded by this.
+     * @return The entries whose ID is the fingerprint, or the fingerprint followed by {@code -} and a suffix
+     */
+    private Map<String, Path> group(String fingerprint) {
+        Map<String, Path> group = new LinkedHashMap<>();
+        // '.' sorts right after '-'
+        references.subMap(fingerprint, true, fingerprint + ".", false).forEach((id, path) -> {
+            if (id.length() == fingerprint.length() || id.charAt(fingerprint.length()) == '-') {
+                group.put(id, path);
+            }
+        });
+        return group;
+    }
+
+    /**
+     * Publishes a change made under the lock by bumping the version, so the next reader takes a new snapshot.
+     * @return Whether the registry changed
+     */
+    private boolean changed(boolean changed) {
+        if (changed) {
+            version++;
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot snapshot = snapshot();
+        return "VideoRegistry{version=" + snapshot.version + ", references=" + snapshot.references.size() + "}";
+    }
+}
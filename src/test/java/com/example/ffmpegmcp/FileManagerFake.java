@@ -7,11 +7,14 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class FileManagerFake implements FileManager {
     
     private final Map<String, Path> targetVideoReferences = new HashMap<>();
+    private final Set<String> pipeTargets = new HashSet<>();
 
     public <V, K> FileManagerFake(Map<String, Path> testFiles) {
         targetVideoReferences.put("hello", Path.of("world"));
@@ -40,4 +43,14 @@ public class FileManagerFake implements FileManager {
     public void addTargetVideoReference(String id, Path path) {
         targetVideoReferences.put(id, path);
     }
+
+    @Override
+    public void addPipeTarget(String id) {
+        pipeTargets.add(id);
+    }
+
+    @Override
+    public boolean isPipeTarget(String videoRef) {
+        return pipeTargets.contains(videoRef);
+    }
 }
@@ -0,0 +1,91 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.benchmark.CommandValidatorBenchmark;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandValidatorTest {
+
+    @Test
+    public void testAcceptsPlaceholdersNumbersAndFilters() {
+        CommandValidator.check(FFmpegCommand.parse("-y -ss 12.5 -i {{movie}} -t 1.e3 -vf \"scale=1280:-2,fps=29.97,"
+                + "eq=contrast=1.2:gamma=0.05f,drawtext=text='Part 2':fontcolor=white@0.8\" -c:v libx264 -metadata:s:a:0"
+                + " language=nor -x264-params keyint=60 {{movie}}_{{output}}"));
+    }
+
+    @Test
+    public void testRejectsFilesNotReferencedByPlaceholders() {
+        assertMessage("potential direct filename ('output.mp4')", "-i {{movie}} -c copy output.mp4");
+        assertMessage("potential direct filename ('{{movie}}.mp4')", "-i {{movie}} -c copy {{movie}}.mp4");
+        assertMessage("potential direct filename ('1.0.mp4')", "-i {{movie}} -c copy 1.0.mp4");
+        assertMessage("direct path separator", "-i {{movie}} -vf subtitles=/srv/subs.srt {{output}}");
+        // Traversal is reported first, even after a separator in the same argument
+        assertMessage("path traversal attempt ('..')", "-i {{movie}} /srv/../etc/passwd");
+        assertMessage("direct path separator", "-i {{movie}} -f image2 /tmp/x -vf a..b");
+    }
+
+    @Test
+    public void testOnlyOptionsOnTheAllowListSkipTheScan() {
+        assertTrue(CommandValidator.isOption("-c:v"));
+        assertTrue(CommandValidator.isOption("-metadata:s:a:0"));
+        assertTrue(CommandValidator.isOption("-x264-params"));
+        assertFalse(CommandValidator.isOption("-"));
+        assertFalse(CommandValidator.isOption("-2"));
+        assertFalse(CommandValidator.isOption("-i.mp4"));
+        assertFalse(CommandValidator.isOption("-c:v/x"));
+        assertMessage("direct path separator", "-i {{movie}} -c:v/x {{output}}");
+    }
+
+    @Test
+    public void testCachesValidShapesRegardlessOfIds() {
+        CommandValidator validator = new CommandValidator();
+        validator.validate(FFmpegCommand.parse("-i {{a}} -vf scale=640:-2 {{b}}"));
+        validator.validate(FFmpegCommand.parse("-i {{c}} -vf scale=640:-2 {{d}}"));
+        assertEquals(1, validator.shapes());
+
+        FFmpegCommand invalid = FFmpegCommand.parse("-i {{a}} -vf scale=640:-2 out.mkv");
+        assertThrows(IllegalArgumentException.class, () -> validator.validate(invalid));
+        assertThrows(IllegalArgumentException.class, () -> validator.validate(invalid));
+        assertEquals(1, validator.shapes());
+    }
+
+    /**
+     * Generates arguments from fragments which the file name rules care about, and checks that each is
+     * accepted or rejected exactly as the previous regex implementation did.
+     */
+    @Test
+    public void testAgreesWithThePreviousImplementation() {
+        String[] fragments = {"a", "e", "f", "D", "1", "05", "_", ".", ":", "-", "=", ",", "/", "{{v}}", "{", "}", "mp4",
+                "tar", "webm5", "1.5", "e3"};
+        Random random = new Random(42);
+        for (int n = 0; n < 50_000; n++) {
+            StringBuilder argument = new StringBuilder();
+            for (int length = 1 + random.nextInt(8); length > 0; length--) {
+                argument.append(fragments[random.nextInt(fragments.length)]);
+            }
+            List<String> arguments = List.of("-i", argument.toString());
+            assertEquals(outcome(() -> CommandValidatorBenchmark.legacyValidate(arguments))
+                            .replace("MCP_GENERATED_PLACEHOLDER", "{{v}}"),
+                    outcome(() -> CommandValidator.check(FFmpegCommand.of(arguments))), argument.toString());
+        }
+    }
+
+    private static String outcome(Runnable validation) {
+        try {
+            validation.run();
+            return "valid";
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static void assertMessage(String expected, String command) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> new CommandValidator().validate(FFmpegCommand.parse(command)));
+        assertTrue(e.getMessage().contains(expected), e.getMessage());
+    }
+}
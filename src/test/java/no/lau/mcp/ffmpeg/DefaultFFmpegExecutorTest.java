@@ -0,0 +1,153 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DefaultFFmpegExecutorTest {
+
+    @TempDir
+    Path logFolder;
+
+    /**
+     * A fake ffmpeg which floods stderr before writing anything to stdout. Reading stdout to the end
+     * before stderr deadlocks here, as soon as the stderr pipe buffer fills up.
+     */
+    @Test
+    @Timeout(30)
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    public void testFloodingBothStreamsDoesNotStall() throws IOException {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 100_000, null);
+        String flood = "-c 'i=0; while [ $i -lt 20 ]; do head -c 262144 /dev/zero | tr \"\\0\" e >&2;"
+                + " head -c 262144 /dev/zero | tr \"\\0\" o; i=$((i+1)); done; echo done >&2'";
+
+        String output = executor.execute(flood);
+
+        assertTrue(output.startsWith("o".repeat(1000)));
+        assertTrue(output.contains("\n--- STDERR ---\neeee"));
+        assertTrue(output.endsWith("eeedone\n"));
+        // 5 MB per stream, capped at 100 000 characters each
+        assertTrue(output.length() < 201_000, "Output was " + output.length() + " characters");
+        assertTrue(output.contains("characters omitted ...]"));
+    }
+
+    @Test
+    @Timeout(30)
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    public void testFullOutputIsSpilledToPageableLog() throws IOException {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 1000, new ExecutionLogs(logFolder));
+
+        String output = executor.execute("-c 'i=0; while [ $i -lt 5000 ]; do echo \"frame=$i\" >&2; i=$((i+1)); done'");
+
+        Matcher logId = Pattern.compile("full output in ffmpeg log (log-[0-9a-f-]+)").matcher(output);
+        assertTrue(logId.find(), output);
+        assertTrue(output.startsWith("--- STDERR ---\nframe=0\n") || output.startsWith("frame=0\n"));
+        assertTrue(output.endsWith("frame=4999\n"));
+
+        ExecutionLogs.Page page = executor.readLog(logId.group(1), 2500, 2);
+        assertEquals("frame=2500\nframe=2501\n", page.text());
+        assertEquals(5000, page.totalLines());
+        assertTrue(page.hasMore());
+        assertFalse(executor.readLog(logId.group(1), 4999, 10).hasMore());
+    }
+
+    @Test
+    @Timeout(30)
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    public void testOutputWhichFitsInTheReplyLeavesNoLog() throws IOException {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 1000, new ExecutionLogs(logFolder));
+
+        String output = executor.execute("-c 'echo \"Input #0, mov,mp4\" >&2'");
+
+        assertEquals("Input #0, mov,mp4\n", output);
+        try (Stream<Path> logs = Files.list(logFolder)) {
+            assertEquals(0, logs.count());
+        }
+    }
+
+    @Test
+    public void testPagesSeekThroughAGrowingLog() throws IOException {
+        ExecutionLogs logs = new ExecutionLogs(logFolder);
+        String logId = "log-00000000-0000-0000-0000-000000000001";
+        Path file = logFolder.resolve(logId + ".log");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 2500; i++) {
+            lines.append("frame=").append(i).append(" \u00f8\n");
+        }
+        Files.writeString(file, lines);
+
+        assertEquals(new ExecutionLogs.Page(1999, 2, 2500, "frame=1999 \u00f8\nframe=2000 \u00f8\n"), logs.page(logId, 1999, 2));
+        assertEquals(new ExecutionLogs.Page(2500, 0, 2500, ""), logs.page(logId, 2500, 10));
+
+        Files.writeString(file, "frame=2500 \u00f8\nframe=25", StandardOpenOption.APPEND);
+        assertEquals(new ExecutionLogs.Page(2499, 3, 2502, "frame=2499 \u00f8\nframe=2500 \u00f8\nframe=25\n"), logs.page(logId, 2499, 5));
+        assertEquals(new ExecutionLogs.Page(0, 1, 2502, "frame=0 \u00f8\n"), logs.page(logId, 0, 1));
+    }
+
+    @Test
+    @Timeout(30)
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    public void testPipelineStreamsStdoutIntoTheNextCommand() throws IOException {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 1000, null);
+
+        List<String> outputs = executor.executePipeline(List.of(
+                List.of("-c", "head -c 50000000 /dev/zero; echo produced >&2"),
+                List.of("-c", "wc -c | tr -d ' '; echo consumed >&2; exit 3")), JobPriority.NORMAL);
+
+        assertEquals("produced\n", outputs.get(0));
+        assertEquals("50000000\n\n--- STDERR ---\nconsumed\n\n" + FFmpegExecutor.EXIT_CODE_NOTICE + "3]", outputs.get(1));
+    }
+
+    @Test
+    @Timeout(30)
+    @EnabledOnOs({OS.LINUX, OS.MAC})
+    public void testArgumentsReachTheProcessUnsplit() throws IOException {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 1000, null);
+        String path = "/videos/a \"quoted\" name with  spaces\\.mp4";
+
+        String output = executor.execute(List.of("-c", "printf '%s|%s' \"$#\" \"$0\"", path), null, JobPriority.NORMAL);
+
+        assertEquals("0|" + path + "\n", output);
+    }
+
+    @Test
+    public void testUnknownLogIds() {
+        DefaultFFmpegExecutor executor = new DefaultFFmpegExecutor("/bin/sh", 1000, new ExecutionLogs(logFolder));
+        assertThrows(FileNotFoundException.class, () -> executor.readLog("log-00000000-0000-0000-0000-000000000000", 0, 10));
+        assertThrows(FileNotFoundException.class, () -> executor.readLog("../../etc/passwd", 0, 10));
+        assertThrows(FileNotFoundException.class, () -> new DefaultFFmpegExecutor("/bin/sh").readLog("log-1", 0, 10));
+    }
+
+    @Test
+    public void testPumpNormalisesLineEndingsAndKeepsHeadAndTail() throws IOException, InterruptedException {
+        StreamPump pump = StreamPump.start(stream("frame=1\rframe=2\r\nend"), "test", 100);
+        assertEquals("frame=1\nframe=2\nend\n", pump.await());
+
+        StreamPump bounded = StreamPump.start(stream("h".repeat(10) + "x".repeat(1000) + "t".repeat(29) + "\n"), "test", 40);
+        assertEquals("h".repeat(10) + "\n[... 1000 characters omitted ...]\n" + "t".repeat(29) + "\n", bounded.await());
+        assertEquals(1000, bounded.omittedChars());
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
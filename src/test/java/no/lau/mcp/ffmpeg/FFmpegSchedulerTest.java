@@ -0,0 +1,164 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FFmpegSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final List<String> started = new CopyOnWriteArrayList<>();
+
+    /** Records each command and blocks until released. */
+    private final FFmpegExecutor blockingExecutor = command -> {
+        started.add(command);
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            release.await();
+            return command;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("FFmpeg execution interrupted", e);
+        } finally {
+            running.decrementAndGet();
+        }
+    };
+
+    @Test
+    public void testBudgetLimitsConcurrentCommands() throws Exception {
+        FFmpegScheduler scheduler = new FFmpegScheduler(blockingExecutor, 4, 2);
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            threads.add(start(scheduler, "-i in" + i + ".mp4 out" + i + ".mp4", JobPriority.NORMAL));
+        }
+        awaitStarted(2);
+        Thread.sleep(100);
+        assertEquals(2, started.size());
+        FFmpegScheduler.Statistics stats = scheduler.statistics();
+        assertEquals(4, stats.coresInUse());
+        assertEquals(2, stats.running());
+        assertEquals(3, stats.queued());
+
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+        assertEquals(5, started.size());
+        assertEquals(2, maxRunning.get());
+        stats = scheduler.statistics();
+        assertEquals(0, stats.coresInUse());
+        assertEquals(0, stats.queued());
+        assertEquals(5, stats.admitted());
+        assertTrue(stats.maxWait().toMillis() >= 100);
+    }
+
+    @Test
+    public void testHigherPriorityOvertakesEarlierQueuedCommands() throws Exception {
+        FFmpegScheduler scheduler = new FFmpegScheduler(blockingExecutor, 2, 2);
+        Thread first = start(scheduler, "-i first.mp4 first.mp4", JobPriority.NORMAL);
+        awaitStarted(1);
+        Thread low = start(scheduler, "-i low.mp4 low.mp4", JobPriority.LOW);
+        awaitQueued(scheduler, 1);
+        Thread high = start(scheduler, "-i high.mp4 high.mp4", JobPriority.HIGH);
+        awaitQueued(scheduler, 2);
+
+        release.countDown();
+        for (Thread thread : List.of(first, low, high)) {
+            thread.join(10_000);
+        }
+        assertEquals(3, started.size());
+        assertTrue(started.get(1).contains("high.mp4"), started.toString());
+        assertTrue(started.get(2).contains("low.mp4"), started.toString());
+    }
+
+    @Test
+    public void testCommandsAreGrantedTheirOwnThreadCount() {
+        FFmpegScheduler scheduler = new FFmpegScheduler(blockingExecutor, 8, 0);
+        assertEquals(4, scheduler.coresFor(args("-i in.mp4 out.mp4")));
+        assertEquals(2, scheduler.coresFor(args("-i in.mp4 -threads 2 out.mp4")));
+        assertEquals(8, scheduler.coresFor(args("-i in.mp4 -threads 32 out.mp4")));
+        assertEquals(4, scheduler.coresFor(args("-i in.mp4 -threads 0 out.mp4")));
+    }
+
+    @Test
+    public void testPipelinesAreAdmittedAsOne() throws Exception {
+        List<List<List<String>>> pipelines = new CopyOnWriteArrayList<>();
+        FFmpegExecutor pipelineExecutor = new FFmpegExecutor() {
+            @Override
+            public String execute(String command) {
+                return command;
+            }
+
+            @Override
+            public List<String> executePipeline(List<List<String>> commands, JobPriority priority) {
+                pipelines.add(commands);
+                return List.of("", "");
+            }
+        };
+        FFmpegScheduler scheduler = new FFmpegScheduler(pipelineExecutor, 4, 2);
+
+        scheduler.executePipeline(List.of(args("-i in.mp4 -threads 6 pipe:1"), args("-i pipe:0 out.mp4")), JobPriority.NORMAL);
+
+        // 4 cores, capped from 6, and 2 cores do not fit in 4, so both shares shrink
+        assertEquals(List.of(args("-filter_threads 2 -i in.mp4 -threads 2 pipe:1"), args("-filter_threads 1 -i pipe:0 -threads 1 out.mp4")),
+                pipelines.get(0));
+        assertEquals(0, scheduler.statistics().coresInUse());
+        assertEquals(1, scheduler.statistics().admitted());
+    }
+
+    @Test
+    public void testThreadsAreWrittenIntoTheCommand() {
+        assertEquals(args("-filter_threads 2 -i in.mp4 -c:v libx264 -threads 2 out.mp4"),
+                FFmpegScheduler.withThreads(args("-i in.mp4 -c:v libx264 out.mp4"), 2));
+        assertEquals(args("-filter_threads 3 -i in.mp4 -threads 3 out.mp4"),
+                FFmpegScheduler.withThreads(args("-i in.mp4 -threads 8 out.mp4"), 3));
+        assertEquals(List.of("-y", "-filter_threads", "2", "-i", "in.mp4", "-threads", "2", "my out.mp4"),
+                FFmpegScheduler.withThreads(args("-y -filter_threads 6 -i in.mp4 \"my out.mp4\""), 2));
+        // Probing a file has no output to put -threads in front of
+        assertEquals(args("-filter_threads 2 -i in.mp4"), FFmpegScheduler.withThreads(args("-i in.mp4"), 2));
+        assertEquals(args("-filter_threads 2 -version"), FFmpegScheduler.withThreads(args("-version"), 2));
+    }
+
+    private static List<String> args(String command) {
+        return FFmpegCommand.parse(command).arguments();
+    }
+
+    private Thread start(FFmpegScheduler scheduler, String command, JobPriority priority) {
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.execute(command, null, priority);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (started.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, started.size());
+    }
+
+    private void awaitQueued(FFmpegScheduler scheduler, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.statistics().queued() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.statistics().queued());
+    }
+}
@@ -1,14 +1,21 @@
 package no.lau.mcp.ffmpeg;
 
 import com.example.ffmpegmcp.FileManagerFake;
+import no.lau.mcp.ffmpeg.probe.MediaFixtures;
 import no.lau.mcp.file.FileManager;
 import no.lau.mcp.file.FileManagerUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -90,6 +97,184 @@ public class FFmpegWrapperTest {
         assertEquals(expected, result, "The video information should have file paths replaced with videoRef placeholders");
     }
     
+    @Test
+    public void testInformationFromVideoProbesKnownContainersWithoutFFmpeg(@TempDir Path folder) throws IOException {
+        Path videoPath = MediaFixtures.mp4(folder.resolve("video3.mp4"), 1000);
+        FFmpegExecutor failingExecutor = command -> {
+            throw new IOException("ffmpeg should not be started for an MP4");
+        };
+        FFmpegWrapper wrapper = new FFmpegWrapper(new FileManagerFake(Map.of("video3", videoPath)), failingExecutor);
+
+        String json = wrapper.informationFromVideo("video3");
+        assertTrue(json.startsWith("{\"format\":\"mov,mp4,m4a,3gp,3g2,mj2\",\"duration\":10.0"), json);
+        assertTrue(json.contains("\"type\":\"video\",\"codec\":\"h264\",\"codecTag\":\"avc1\",\"width\":1280,\"height\":720"), json);
+
+        String result = wrapper.informationFromVideo("video3", true);
+        assertTrue(result.startsWith("Input #0, mov,mp4,m4a,3gp,3g2,mj2, from '{{video3}}':\n  Duration: 00:00:10.00"), result);
+        assertTrue(result.contains("Video: h264 (avc1), 1280x720"), result);
+    }
+
+    @Test
+    public void testTrimsSeekToTheKeyframeBeforeTheCut(@TempDir Path folder) throws IOException {
+        Path videoPath = MediaFixtures.mp4(folder.resolve("video3.mp4"), 1000);
+        FileManager hashedSources = new FileManagerFake(Map.of("video3", videoPath)) {
+            @Override
+            public String contentHash(String videoRef) {
+                return videoRef;
+            }
+        };
+        StringBuilder executed = new StringBuilder();
+        FFmpegExecutor recordingExecutor = command -> {
+            executed.append(command);
+            return "done";
+        };
+        FFmpegWrapper wrapper = new FFmpegWrapper(hashedSources, recordingExecutor, null, null,
+                new KeyframeIndex(folder.resolve("keyframes"), null));
+
+        String result = wrapper.doffMPEGStuff("-i {{video3}} -ss 5 -t 2 -f null -");
+
+        assertEquals("-ss 4.004 -i " + videoPath + " -ss 0.996 -t 2 -f null -", executed.toString());
+        assertTrue(result.startsWith("[Input seeks to the keyframe at 4.004s and drops the next 0.996s]"), result);
+        assertTrue(wrapper.keyframesOfVideo("video3", 5, 7).startsWith(
+                "{\"count\":5,\"averageInterval\":2.002,\"maxInterval\":2.002,\"keyframes\":[{\"time\":4.004,"));
+    }
+
+    @Test
+    public void testIntermediateTargetsAreFusedIntoTheCommandReadingThem() throws IOException {
+        Map<String, Path> references = Map.of("movie", Path.of("/tmp/vids/sources/movie.mp4"),
+                "tmp1", Path.of("/tmp/vids/outputs/tmp1.mp4"), "tmp2", Path.of("/tmp/vids/outputs/tmp2.mp4"),
+                "final", Path.of("/tmp/vids/outputs/final.mp4"));
+        FileManager hashedSources = new FileManagerFake(references) {
+            @Override
+            public String contentHash(String videoRef) {
+                return videoRef.equals("movie") ? "abc123" : null;
+            }
+        };
+        List<String> executed = new ArrayList<>();
+        FFmpegWrapper wrapper = new FFmpegWrapper(hashedSources, command -> {
+            executed.add(command);
+            return "done";
+        });
+        wrapper.deferTarget("tmp1");
+        wrapper.deferTarget("tmp2");
+
+        assertTrue(wrapper.doffMPEGStuff("-y -i {{movie}} -vf scale=640:-2 -c:v libx264 {{tmp1}}").startsWith("[Deferred"));
+        assertTrue(wrapper.doffMPEGStuff("-y -i {{tmp1}} -vf \"eq=contrast=1.2\" -af volume=2 {{tmp2}}").startsWith("[Deferred"));
+        assertEquals(List.of(), executed);
+
+        String result = wrapper.doffMPEGStuff("-y -i {{tmp2}} -c:v libx264 -crf 20 {{final}}");
+        assertEquals("[Fused with the deferred steps writing {{tmp2}}: 2 encodes skipped]\ndone", result);
+        assertEquals(List.of("-y -i /tmp/vids/sources/movie.mp4 -vf scale=640:-2,eq=contrast=1.2 -af volume=2"
+                + " -c:v libx264 -crf 20 /tmp/vids/outputs/final.mp4"), executed);
+
+        // A command which cannot be fused renders the intermediate first
+        executed.clear();
+        result = wrapper.doffMPEGStuff("-y -i {{tmp1}} -i {{movie}} -map 0:v -map 1:a {{final}}");
+        assertEquals("[Rendered the deferred {{tmp1}} first]\ndone", result);
+        assertEquals(List.of("-y -i /tmp/vids/sources/movie.mp4 -vf scale=640:-2 -c:v libx264 /tmp/vids/outputs/tmp1.mp4",
+                "-y -i /tmp/vids/outputs/tmp1.mp4 -i /tmp/vids/sources/movie.mp4 -map 0:v -map 1:a /tmp/vids/outputs/final.mp4"),
+                executed);
+        wrapper.doffMPEGStuff("-y -i {{tmp1}} -i {{movie}} -map 0:v -map 1:a {{final}}");
+        assertEquals(3, executed.size());
+    }
+
+    @Test
+    public void testTrimCopiesBetweenKeyframesAndJoinsTheParts(@TempDir Path folder) throws IOException {
+        Path videoPath = MediaFixtures.mp4(folder.resolve("video3.mp4"), 1000);
+        Path clipPath = Files.createFile(folder.resolve("clip.mp4"));
+        Map<String, Path> references = new HashMap<>(Map.of("video3", videoPath, "clip", clipPath));
+        FileManager hashedSources = new FileManagerFake(references) {
+            @Override
+            public String contentHash(String videoRef) {
+                return videoRef.equals("video3") ? videoRef : null;
+            }
+        };
+        List<String> executed = new ArrayList<>();
+        List<String> joined = new ArrayList<>();
+        FFmpegExecutor recordingExecutor = new ArgumentsExecutor() {
+            @Override
+            public String execute(List<String> arguments, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+                executed.add(String.join(" ", arguments));
+                if (arguments.contains("concat")) {
+                    joined.addAll(Files.readAllLines(Path.of(arguments.get(arguments.indexOf("-i") + 1))));
+                }
+                return "done";
+            }
+        };
+        FFmpegWrapper wrapper = new FFmpegWrapper(hashedSources, recordingExecutor, null, null,
+                new KeyframeIndex(null, null));
+
+        String result = wrapper.trim("video3", "clip", 1, 9, JobPriority.HIGH);
+
+        assertTrue(result.startsWith("Trimmed {{video3}} from 1s to 9s into {{clip}}: stream copied 6.006s"
+                + " and re-encoded 1.994s at the edges."), result);
+        assertEquals(4, executed.size());
+        assertTrue(executed.get(0).contains(" -c:v libx264 "), executed.get(0));
+        assertTrue(executed.get(1).contains("-ss 2.002001 ") && executed.get(1).contains(" -c copy "), executed.get(1));
+        assertEquals(4, joined.size());
+        assertEquals("ffconcat version 1.0", joined.get(0));
+        // Intermediate parts are removed afterwards
+        try (var files = Files.list(folder)) {
+            assertEquals(List.of("clip.mp4", "video3.mp4"), files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> wrapper.trim("video3", "clip", 9, 1, JobPriority.HIGH));
+        assertThrows(IllegalArgumentException.class, () -> wrapper.trim("clip", "video3", 1, 9, JobPriority.HIGH));
+    }
+
+    @Test
+    public void testParallelTranscodeEncodesKeyframeAlignedSegments(@TempDir Path folder) throws IOException {
+        Path videoPath = MediaFixtures.mp4(folder.resolve("video4.mp4"), 1000);
+        Path encodedPath = Files.createFile(folder.resolve("encoded.mp4"));
+        Map<String, Path> references = new HashMap<>(Map.of("video4", videoPath, "encoded", encodedPath));
+        FileManager hashedSources = new FileManagerFake(references) {
+            @Override
+            public String contentHash(String videoRef) {
+                return videoRef.equals("video4") ? videoRef : null;
+            }
+        };
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        int[] segmentMillis = {4004};
+        FFmpegExecutor segmentWriter = new ArgumentsExecutor() {
+            @Override
+            public String execute(List<String> arguments, Consumer<FFmpegProgress> progress, JobPriority priority) throws IOException {
+                executed.add(String.join(" ", arguments));
+                if (arguments.contains("-an")) {
+                    MediaFixtures.mp4(Path.of(arguments.get(arguments.size() - 1)), 1000,
+                            arguments.contains("-t") ? segmentMillis[0] : 5996);
+                }
+                return "done";
+            }
+        };
+        FFmpegWrapper wrapper = new FFmpegWrapper(hashedSources, segmentWriter, null, null, new KeyframeIndex(null, null));
+
+        String result = wrapper.parallelTranscode("video4", "encoded", "-c:v libx264 -crf 20", "-c:a copy", 2, JobPriority.NORMAL);
+
+        assertTrue(result.contains("as 2 segments at the same time"), result);
+        assertTrue(result.contains("Split at the keyframes at 4.004s; segment timestamps are continuous."), result);
+        assertEquals(4, executed.size());
+        // One core goes to the audio, the segments share the others
+        String threads = " -threads " + Math.max(1, (Runtime.getRuntime().availableProcessors() - 1) / 2) + " ";
+        assertTrue(executed.stream().anyMatch(command -> command.startsWith("-y -i " + videoPath
+                + " -t 4.004 -map 0:v:0 -an -c:v libx264 -crf 20" + threads)), executed.toString());
+        assertTrue(executed.stream().anyMatch(command -> command.startsWith("-y -ss 4.004 -i " + videoPath
+                + " -map 0:v:0 -an -c:v libx264 -crf 20" + threads)), executed.toString());
+        assertTrue(executed.contains("-y -i " + videoPath + " -map 0:a:0 -vn -c:a copy -threads 1 "
+                + folder.resolve(executed.get(0).replaceAll(".*(parallel-[0-9a-f-]{36}).*", "$1-audio.mka"))), executed.toString());
+        assertTrue(executed.get(3).startsWith("-y -f concat -i "), executed.get(3));
+        try (var files = Files.list(folder)) {
+            assertEquals(List.of("encoded.mp4", "video4.mp4"), files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+
+        // A segment shorter than planned would leave a gap, so nothing is joined
+        segmentMillis[0] = 3500;
+        executed.clear();
+        IOException gap = assertThrows(IOException.class, () ->
+                wrapper.parallelTranscode("video4", "encoded", "-c:v libx264", "-c:a copy", 2, JobPriority.NORMAL));
+        assertTrue(gap.getMessage().contains("segment 1 from 0s is 3.5s long instead of 4.004s"), gap.getMessage());
+        assertEquals(3, executed.size());
+    }
+
     @Test
     public void testSanitizationWithBothSourceAndTargetReferences() throws IOException {
         // Create a mock executor that returns output containing both source and target paths
@@ -123,4 +308,12 @@ public class FFmpegWrapperTest {
         
         assertEquals(expected, result, "Both source and target paths should be replaced with videoRef placeholders");
     }
+
+    /** Executor for steps run as argument lists, which are never joined into a string */
+    private abstract static class ArgumentsExecutor implements FFmpegExecutor {
+        @Override
+        public String execute(String command) {
+            throw new AssertionError("Expected the arguments, got: " + command);
+        }
+    }
 }
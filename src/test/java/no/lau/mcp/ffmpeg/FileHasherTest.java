@@ -0,0 +1,42 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FileHasherTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testKnownHash() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("hello.txt"), "Hello");
+        assertEquals("8b1a9953c4611296a827abf8c47804d7", FileHasher.getMd5Hash(file));
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        Path file = Files.createFile(tempDir.resolve("empty.bin"));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", FileHasher.getMd5Hash(file));
+    }
+
+    @Test
+    public void testFileSpanningSeveralBuffersMatchesInMemoryDigest() throws Exception {
+        byte[] content = new byte[FileHasher.BUFFER_SIZE * 2 + 12345];
+        new Random(7).nextBytes(content);
+        Path file = Files.write(tempDir.resolve("large.bin"), content);
+
+        String expected = FileHasher.bytesToHex(MessageDigest.getInstance("MD5").digest(content));
+        assertEquals(expected, FileHasher.getMd5Hash(file));
+        // Second call reuses the thread's buffer and must give the same answer
+        assertEquals(expected, FileHasher.getMd5Hash(file));
+    }
+}
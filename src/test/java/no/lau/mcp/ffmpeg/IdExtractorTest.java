@@ -2,13 +2,39 @@ package no.lau.mcp.ffmpeg;
 
 import no.lau.mcp.file.FileManagerUtils;
 import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class IdExtractorTest {
     @Test
     public void testIdExtractor() {
         String text = "hello {{myid}} and goodbye {{yourname}} {{ostel  off mordi 123asdSAD asd\n}}";
         assertEquals(List.of("myid", "yourname", "ostel  off mordi 123asdSAD asd\n"), FileManagerUtils.extractIds(text));
+        assertEquals(List.of("a", "b"), FileManagerUtils.extractIds("{{{a}}} {{}} {{b}} {{c"));
+    }
+
+    @Test
+    public void testCommandsFindTheSamePlaceholders() {
+        for (String argument : List.of("{{{a}}}", "{{}}", "{{b}}x{{c", "{{a}}{{b}}", "x{{a}", "{{a{{b}}}}")) {
+            FFmpegCommand command = FFmpegCommand.of(List.of(argument));
+            assertEquals(FileManagerUtils.extractIds(argument), command.references(), argument);
+            assertEquals(argument, command.argument(0).render(id -> null), argument);
+        }
+    }
+
+    @Test
+    public void testReplaceVideoReferences() {
+        Map<String, Path> references = Map.of("in", Path.of("/videos/in.mp4"), "out", Path.of("/videos/out.mp4"));
+        assertEquals("-i /videos/in.mp4 -c copy /videos/out.mp4 -i /videos/in.mp4",
+                FileManagerUtils.replaceVideoReferences("-i {{in}} -c copy {{out}} -i {{in}}", references));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> FileManagerUtils.replaceVideoReferences("-i {{in}} {{missing}}", references));
+        assertEquals("Video reference 'missing' not found.", e.getMessage());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package no.lau.mcp.ffmpeg;
+
+import com.example.ffmpegmcp.FileManagerFake;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JobManagerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private JobManager jobs;
+
+    /**
+     * Blocks every command until released, or fails it when it mentions "fail",
+     * or returns a non-zero exit notice when it mentions "broken".
+     */
+    private final FFmpegExecutor blockingExecutor = command -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            if (command.contains("fail")) {
+                throw new IOException("ffmpeg exited with code 1");
+            }
+            if (command.contains("broken")) {
+                return "Invalid data found when processing input\n\n" + FFmpegExecutor.EXIT_CODE_NOTICE + "183]";
+            }
+            release.await();
+            return "encoded " + command;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("FFmpeg execution interrupted", e);
+        } finally {
+            running.decrementAndGet();
+        }
+    };
+
+    @AfterEach
+    public void close() {
+        release.countDown();
+        jobs.close();
+    }
+
+    @Test
+    public void testSubmitReturnsBeforeTheJobRuns() throws InterruptedException {
+        jobs = new JobManager(wrapper(), 2, 10);
+
+        JobManager.Job job = jobs.submit("-i {{video}} out");
+        assertTrue(job.id().startsWith("job-"));
+        assertEquals(JobManager.State.RUNNING, jobs.await(job.id(), Duration.ofMillis(200)).state());
+
+        release.countDown();
+        JobManager.Job done = jobs.await(job.id(), Duration.ofSeconds(10));
+        assertEquals(JobManager.State.SUCCEEDED, done.state());
+        // The path is resolved for ffmpeg and sanitized back in the output
+        assertEquals("encoded -i {{video}} out", done.output());
+    }
+
+    @Test
+    public void testWorkerCountBoundsConcurrentJobs() throws InterruptedException {
+        jobs = new JobManager(wrapper(), 2, 10);
+        for (int i = 0; i < 6; i++) {
+            jobs.submit("job " + i);
+        }
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(2, running.get());
+        assertEquals(4, jobs.jobs().stream().filter(job -> job.state() == JobManager.State.QUEUED).count());
+
+        release.countDown();
+        for (JobManager.Job job : jobs.jobs()) {
+            assertEquals(JobManager.State.SUCCEEDED, jobs.await(job.id(), Duration.ofSeconds(10)).state());
+        }
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testFailureAndCancellation() throws InterruptedException {
+        jobs = new JobManager(wrapper(), 1, 10);
+        JobManager.Job failing = jobs.submit("fail");
+        assertEquals(JobManager.State.FAILED, jobs.await(failing.id(), Duration.ofSeconds(10)).state());
+        assertEquals("ffmpeg exited with code 1", failing.error());
+
+        JobManager.Job exited = jobs.submit("broken");
+        assertEquals(JobManager.State.FAILED, jobs.await(exited.id(), Duration.ofSeconds(10)).state());
+        assertEquals("ffmpeg exited with code 183", exited.error());
+        assertTrue(exited.output().startsWith("Invalid data found"));
+
+        JobManager.Job running = jobs.submit("long encode");
+        JobManager.Job queued = jobs.submit("waiting");
+        jobs.await(running.id(), Duration.ofMillis(200));
+
+        assertEquals(JobManager.State.CANCELLED, jobs.cancel(queued.id()).state());
+        jobs.cancel(running.id());
+        assertEquals(JobManager.State.CANCELLED, jobs.await(running.id(), Duration.ofSeconds(10)).state());
+        assertNull(jobs.cancel("job-404"));
+    }
+
+    @Test
+    public void testOldestFinishedJobsArePruned() throws InterruptedException {
+        jobs = new JobManager(wrapper(), 1, 2);
+        release.countDown();
+        String first = jobs.submit("one").id();
+        for (int i = 0; i < 3; i++) {
+            jobs.await(jobs.submit("more " + i).id(), Duration.ofSeconds(10));
+        }
+        assertNull(jobs.get(first));
+        assertEquals(3, jobs.jobs().size());
+    }
+
+    private FFmpegWrapper wrapper() {
+        return new FFmpegWrapper(new FileManagerFake(Map.of("video", Path.of("/videos/in.mp4"))), blockingExecutor);
+    }
+}
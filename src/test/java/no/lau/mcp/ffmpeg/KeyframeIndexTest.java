@@ -0,0 +1,89 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.ffmpeg.probe.MediaFixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyframeIndexTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void testIndexIsWrittenNextToTheSourcesAndReadBack() throws IOException {
+        Path sources = Files.createDirectory(folder.resolve("sources"));
+        Path video = MediaFixtures.mp4(sources.resolve("clip.mp4"), 1_000_000);
+
+        Keyframes built = KeyframeIndex.forSourceFolder(sources, null).get("abc123", video);
+        assertEquals(5, built.size());
+        Path indexFile = folder.resolve("sources.keyframes").resolve("abc123.keyframes");
+        assertTrue(Files.exists(indexFile));
+
+        // A new index, as after a restart, reads the file instead of the video
+        Files.write(indexFile, Files.readAllBytes(indexFile));
+        KeyframeIndex restarted = KeyframeIndex.forSourceFolder(sources, null);
+        Keyframes read = restarted.get("abc123", video);
+        assertEquals(built.size(), read.size());
+        for (int i = 0; i < built.size(); i++) {
+            assertEquals(built.timeMicros(i), read.timeMicros(i));
+            assertEquals(built.position(i), read.position(i));
+        }
+    }
+
+    @Test
+    public void testChangedOrCorruptIndexesAreRebuilt() throws IOException {
+        Path video = MediaFixtures.mp4(folder.resolve("clip.mp4"), 1_000_000);
+        Path indexes = folder.resolve("indexes");
+        new KeyframeIndex(indexes, null).get("abc123", video);
+        Path indexFile = indexes.resolve("abc123.keyframes");
+
+        byte[] bytes = Files.readAllBytes(indexFile);
+        bytes[bytes.length - 20] ^= 1;
+        Files.write(indexFile, bytes);
+        assertEquals(5, new KeyframeIndex(indexes, null).get("abc123", video).size());
+
+        // The video changed after it was indexed
+        Files.setLastModifiedTime(video, FileTime.fromMillis(Files.getLastModifiedTime(video).toMillis() - 60_000));
+        KeyframeIndex index = new KeyframeIndex(indexes, null);
+        assertEquals(5, index.get("abc123", video).size());
+        assertTrue(Files.getLastModifiedTime(indexFile).toMillis() > Files.getLastModifiedTime(video).toMillis());
+    }
+
+    @Test
+    public void testFormatsOtherThanMp4NeedFfprobe() throws IOException {
+        Path webm = MediaFixtures.webm(folder.resolve("clip.webm"), 1000, false);
+        assertNull(new KeyframeIndex(null, null).get("abc123", webm));
+    }
+
+    @Test
+    public void testParsesFfprobePacketListing() throws IOException {
+        String csv = """
+                1.400000,564,K__
+                1.433367,9520,___
+                N/A,10014,K__
+                3.402000,88123,K_
+                5.404000,N/A,K__
+                1.400000
+                """;
+        Keyframes keyframes = FFprobe.parseKeyframes(new ByteArrayInputStream(csv.getBytes(StandardCharsets.US_ASCII)));
+
+        // Relative to the start of the file, as -ss counts
+        assertEquals(3, keyframes.size());
+        assertEquals(0, keyframes.time(0));
+        assertEquals(2.002, keyframes.time(1));
+        assertEquals(88123, keyframes.position(1));
+        assertEquals(-1, keyframes.position(2));
+    }
+}
@@ -0,0 +1,94 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyframeSeekTest {
+
+    /** A keyframe every 2 seconds for an hour */
+    private final Keyframes keyframes = everyTwoSeconds();
+    private final List<String> lookedUp = new ArrayList<>();
+    private final KeyframeSeek.KeyframeLookup lookup = videoRef -> {
+        lookedUp.add(videoRef);
+        return videoRef.equals("movie") ? keyframes : null;
+    };
+
+    @Test
+    public void testOutputSideSeekStartsAtThePrecedingKeyframe() throws IOException {
+        KeyframeSeek.Seek seek = KeyframeSeek.rewrite(FFmpegCommand.parse("-y -i {{movie}} -ss 1801.5 -t 10 -c:v libx264 {{out}}"), lookup);
+
+        assertEquals("-y -ss 1800 -i {{movie}} -ss 1.5 -t 10 -c:v libx264 {{out}}", seek.command().toString());
+        assertEquals(1_800_000_000L, seek.keyframeMicros());
+        assertEquals(1_500_000L, seek.trimMicros());
+        assertEquals(List.of("movie"), lookedUp);
+    }
+
+    @Test
+    public void testClockTimesAndOutputEndAreMovedBack() throws IOException {
+        KeyframeSeek.Seek seek = KeyframeSeek.rewrite(
+                FFmpegCommand.parse("-i {{movie}} -metadata \"title=a b\" -ss 00:30:03.250 -to 00:31:00 {{out}}"), lookup);
+
+        assertEquals("-ss 1802 -i {{movie}} -metadata \"title=a b\" -ss 1.25 -to 58 {{out}}", seek.command().toString());
+    }
+
+    @Test
+    public void testSeeksOfOneOfSeveralOutputsAreLeftAlone() throws IOException {
+        // The -ss only cuts {{clip}}; seeking the input would cut {{full}} as well
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -c copy {{full}} -ss 60 {{clip}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 60 -c copy {{clip}} -an {{full}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 60 -f null - -c copy {{full}}"), lookup));
+        assertTrue(lookedUp.isEmpty());
+    }
+
+    @Test
+    public void testCommandsWithFiltersAreLeftAlone() throws IOException {
+        // Input seeking restarts the timestamps the filters see
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -vf fade=in:st=3600:d=1 -ss 3600 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1800 -af atrim=start=1801 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1800 -filter:v \"select=gt(t,1801)\" {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1800 -filter_complex \"[0:v]drawtext=text='%{pts}'\" {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1800 -lavfi null {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1800 -/vf {{graph}} {{out}}"), lookup));
+        assertTrue(lookedUp.isEmpty());
+    }
+
+    @Test
+    public void testCommandsWithTheirOwnTimingAreLeftAlone() throws IOException {
+        // Already seeking on the input side, several inputs, timestamps kept, nothing to gain, or no index
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-ss 1800 -i {{movie}} -t 10 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -i {{logo}} -ss 1800 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -copyts -ss 1800 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -ss 1.5 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{movie}} -t 10 {{out}}"), lookup));
+        assertNull(KeyframeSeek.rewrite(FFmpegCommand.parse("-i {{clip}} -ss 1800 {{out}}"), lookup));
+        // The index is only read once the command is known to seek after -i
+        assertEquals(List.of("movie", "clip"), lookedUp);
+    }
+
+    @Test
+    public void testParsesFfmpegDurations() {
+        assertEquals(90_500_000L, KeyframeSeek.parseMicros("90.5"));
+        assertEquals(90_500_000L, KeyframeSeek.parseMicros("01:30.5"));
+        assertEquals(3_690_000_000L, KeyframeSeek.parseMicros("1:01:30"));
+        assertEquals(1_500_000L, KeyframeSeek.parseMicros("1500ms"));
+        assertEquals(250L, KeyframeSeek.parseMicros("250us"));
+        assertEquals(-1, KeyframeSeek.parseMicros("-5"));
+        assertEquals(-1, KeyframeSeek.parseMicros("soon"));
+    }
+
+    private static Keyframes everyTwoSeconds() {
+        Keyframes.Builder builder = new Keyframes.Builder();
+        for (int second = 0; second < 3600; second += 2) {
+            builder.add(second, second * 100_000L);
+        }
+        return builder.build();
+    }
+}
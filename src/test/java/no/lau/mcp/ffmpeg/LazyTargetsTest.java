@@ -0,0 +1,79 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class LazyTargetsTest {
+
+    private final LazyTargets lazy = new LazyTargets();
+    private final Predicate<String> isSource = videoRef -> videoRef.startsWith("source");
+
+    @BeforeEach
+    public void registerIntermediates() {
+        lazy.markIntermediate("tmp1");
+        lazy.markIntermediate("tmp2");
+    }
+
+    @Test
+    public void testChainedStepsAreFusedIntoTheReader() {
+        assertEquals("tmp1", lazy.defer(cmd("-y -i {{source}} -vf \"scale=1280:-2\" -c:v libx264 -crf 18 {{tmp1}}"), isSource));
+        assertEquals("tmp2", lazy.defer(cmd("-y -i {{tmp1}} -vf \"drawtext=text='a b'\" -af volume=2 -an {{tmp2}}"), isSource));
+
+        LazyTargets.Fusion fusion = lazy.fuse(cmd("-y -i {{tmp2}} -vf hflip -c:v libx265 -t 10 {{final}}"));
+        assertEquals("-y -i {{source}} -vf \"scale=1280:-2,drawtext=text='a b',hflip\" -af volume=2 -an"
+                + " -c:v libx265 -t 10 {{final}}", fusion.command().toString());
+        assertEquals("tmp2", fusion.input());
+        assertEquals(2, fusion.steps());
+        assertEquals("-y -i {{source}} -vf \"scale=1280:-2,drawtext=text='a b'\" -af volume=2 -an {{tmp2}}",
+                lazy.chain("tmp2").command("tmp2").toString());
+    }
+
+    @Test
+    public void testOnlySimpleStepsFromSourcesAreDeferred() {
+        // Not an intermediate, not from a source, options other than encoding ones, several inputs, copy and filter
+        assertNull(lazy.defer(cmd("-i {{source}} -vf hflip {{final}}"), isSource));
+        assertNull(lazy.defer(cmd("-i {{final}} -vf hflip {{tmp1}}"), isSource));
+        assertNull(lazy.defer(cmd("-i {{source}} -ss 10 -vf hflip {{tmp1}}"), isSource));
+        assertNull(lazy.defer(cmd("-ss 10 -i {{source}} {{tmp1}}"), isSource));
+        assertNull(lazy.defer(cmd("-i {{source}} -i {{source2}} -map 1:a {{tmp1}}"), isSource));
+        assertNull(lazy.defer(cmd("-i {{source}} -vf hflip -c copy {{tmp1}}"), isSource));
+        assertEquals(List.of(), lazy.deferredInputs(cmd("-i {{tmp1}} {{final}}")));
+    }
+
+    @Test
+    public void testCopyingReadersNeedCopiedChains() {
+        lazy.defer(cmd("-i {{source}} -c:v libx265 -af volume=2 {{tmp1}}"), isSource);
+        // The copied video would be the source's, not the HEVC the intermediate holds
+        assertNull(lazy.fuse(cmd("-i {{tmp1}} -c copy {{final}}")));
+        assertEquals(List.of("tmp1"), lazy.deferredInputs(cmd("-i {{tmp1}} -c copy {{final}}")));
+        assertEquals("-i {{source}} -af volume=2 {{final}}", lazy.fuse(cmd("-i {{tmp1}} {{final}}")).command().toString());
+
+        lazy.defer(cmd("-i {{source}} -c:v copy -af volume=2 {{tmp2}}"), isSource);
+        assertEquals("-i {{source}} -af volume=2 -c:v copy {{final}}",
+                lazy.fuse(cmd("-i {{tmp2}} -c:v copy {{final}}")).command().toString());
+    }
+
+    @Test
+    public void testWritingATargetDropsItsChain() {
+        lazy.defer(cmd("-i {{source}} -vf hflip {{tmp1}}"), isSource);
+        LazyTargets.Chain chain = lazy.chain("tmp1");
+
+        lazy.written(cmd("-i {{source}} -vf vflip -f mp4 -movflags +faststart {{tmp1}}"));
+        assertNull(lazy.chain("tmp1"));
+
+        // Deferred again while the earlier chain was rendered
+        lazy.defer(cmd("-i {{source}} -vf vflip {{tmp1}}"), isSource);
+        lazy.rendered("tmp1", chain);
+        assertEquals(List.of("vflip"), lazy.chain("tmp1").videoFilters());
+    }
+
+    private static FFmpegCommand cmd(String command) {
+        return FFmpegCommand.parse(command);
+    }
+}
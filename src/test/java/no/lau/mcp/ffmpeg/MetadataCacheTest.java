@@ -0,0 +1,133 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MetadataCacheTest {
+
+    @TempDir
+    Path folder;
+    private final AtomicInteger probes = new AtomicInteger();
+
+    /** Describes a file by its content. */
+    private final MetadataCache.Prober prober = file -> {
+        probes.incrementAndGet();
+        return "Input #0 " + Files.readString(file);
+    };
+
+    @Test
+    public void testRepeatedRequestsAreAnsweredFromTheCache() throws IOException {
+        MetadataCache cache = new MetadataCache(10);
+        Path video = Files.writeString(folder.resolve("a.mp4"), "video a");
+
+        assertEquals("Input #0 video a", cache.get("hash-a", video, prober));
+        assertEquals("Input #0 video a", cache.get("hash-a", video, prober));
+        assertEquals(1, probes.get());
+
+        MetadataCache.Statistics stats = cache.statistics();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.entries());
+    }
+
+    @Test
+    public void testChangedFileIsProbedAgain() throws IOException {
+        MetadataCache cache = new MetadataCache(10);
+        Path video = Files.writeString(folder.resolve("a.mp4"), "video a");
+        cache.get("hash-a", video, prober);
+
+        Files.writeString(video, "video a, re-encoded");
+        assertEquals("Input #0 video a, re-encoded", cache.get("hash-a", video, prober));
+
+        // Same content under another path is described with that path
+        Path copy = Files.copy(video, folder.resolve("copy.mp4"));
+        cache.get("hash-a", copy, prober);
+        assertEquals(3, probes.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneProbe() throws Exception {
+        MetadataCache cache = new MetadataCache(10);
+        Path video = Files.writeString(folder.resolve("a.mp4"), "video a");
+        CountDownLatch release = new CountDownLatch(1);
+        MetadataCache.Prober slowProber = file -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return prober.probe(file);
+        };
+
+        List<String> results = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    results.add(cache.get("hash-a", video, slowProber));
+                } catch (IOException e) {
+                    results.add(e.toString());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.statistics().coalesced() < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        assertEquals(1, probes.get());
+        assertEquals(List.of("Input #0 video a", "Input #0 video a", "Input #0 video a", "Input #0 video a", "Input #0 video a"), results);
+        assertEquals(1, cache.statistics().misses());
+        assertEquals(4, cache.statistics().coalesced());
+    }
+
+    @Test
+    public void testFailedProbesAreNotKept() throws IOException {
+        MetadataCache cache = new MetadataCache(10);
+        Path video = Files.writeString(folder.resolve("a.mp4"), "video a");
+
+        IOException thrown = assertThrows(IOException.class, () -> cache.get("hash-a", video, file -> {
+            throw new IOException("ffmpeg not found");
+        }));
+        assertEquals("ffmpeg not found", thrown.getMessage());
+        assertEquals("Input #0 video a", cache.get("hash-a", video, prober));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsDropped() throws IOException {
+        MetadataCache cache = new MetadataCache(2);
+        Path a = Files.writeString(folder.resolve("a.mp4"), "video a");
+        Path b = Files.writeString(folder.resolve("b.mp4"), "video b");
+        Path c = Files.writeString(folder.resolve("c.mp4"), "video c");
+
+        cache.get("hash-a", a, prober);
+        cache.get("hash-b", b, prober);
+        cache.get("hash-a", a, prober);
+        cache.get("hash-c", c, prober);
+        assertEquals(2, cache.statistics().entries());
+
+        cache.get("hash-a", a, prober);
+        assertEquals(3, probes.get());
+        cache.get("hash-b", b, prober);
+        assertEquals(4, probes.get());
+    }
+}
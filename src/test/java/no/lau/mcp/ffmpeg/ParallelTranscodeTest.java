@@ -0,0 +1,74 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParallelTranscodeTest {
+
+    private static final long SECOND = 1_000_000;
+
+    @Test
+    public void testSegmentsStartOnKeyframes() {
+        List<ParallelTranscode.Segment> segments = ParallelTranscode.segments(keyframesEvery(2), 10_010_000, 4);
+
+        assertEquals(List.of(new ParallelTranscode.Segment(0, 2 * SECOND, false),
+                new ParallelTranscode.Segment(2 * SECOND, 4 * SECOND, false),
+                new ParallelTranscode.Segment(4 * SECOND, 6 * SECOND, false),
+                new ParallelTranscode.Segment(6 * SECOND, 10_010_000, true)), segments);
+        // Keyframes too far apart for the segments asked for
+        assertEquals(2, ParallelTranscode.segments(keyframesEvery(5), 10_010_000, 8).size());
+        assertEquals(1, ParallelTranscode.segments(keyframesEvery(20), 10_010_000, 8).size());
+    }
+
+    @Test
+    public void testCommands() {
+        Path source = Path.of("/tmp/vids/sources/my movie.mp4");
+        ParallelTranscode.Segment middle = new ParallelTranscode.Segment(2 * SECOND, 4_004_000, false);
+        assertEquals(args("-y -ss 2 -i \"/tmp/vids/sources/my movie.mp4\" -t 2.004 -map 0:v:0 -an -c:v libx264 -crf 20"
+                        + " -threads 4 \"/out/1.mp4\""),
+                ParallelTranscode.segmentCommand(middle, source, args("-c:v libx264 -crf 20"), 4, Path.of("/out/1.mp4")));
+        assertEquals(args("-y -i \"/tmp/vids/sources/my movie.mp4\" -map 0:a:0 -vn -c:a copy -threads 1 \"/out/a.mka\""),
+                ParallelTranscode.audioCommand(source, args("-c:a copy"), Path.of("/out/a.mka")));
+        assertEquals(args("-y -f concat -i \"/out/list.ffconcat\" -i \"/out/a.mka\" -map 0:v -map 1:a -c copy \"/out/final.mp4\""),
+                ParallelTranscode.joinCommand(Path.of("/out/list.ffconcat"), Path.of("/out/a.mka"), Path.of("/out/final.mp4")));
+
+        ParallelTranscode.checkOptions(args("-c:v libx264 -vf \"scale=1280:-2\" -x264-params keyint=60"));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-c:v libx264 -t 10")));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-c:a aac -threads 8")));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-i {{other}}")));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-c:v libx264 -vf movie=/x")));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-c:a aac out.mp4")));
+        assertThrows(IllegalArgumentException.class, () -> ParallelTranscode.checkOptions(args("-vf subtitles=../subs.srt")));
+    }
+
+    @Test
+    public void testShortOrLongSegmentsAreDiscontinuities() {
+        List<ParallelTranscode.Segment> segments = ParallelTranscode.segments(keyframesEvery(2), 10_010_000, 4);
+        List<Duration> durations = Arrays.asList(Duration.ofMillis(2000), Duration.ofMillis(2020), null, Duration.ofMillis(1));
+
+        assertEquals(List.of(), ParallelTranscode.discontinuities(segments, durations, 33_367));
+        durations.set(1, Duration.ofMillis(1900));
+        assertEquals(List.of("segment 2 from 2s is 1.9s long instead of 2s"),
+                ParallelTranscode.discontinuities(segments, durations, 33_367));
+    }
+
+    private static List<String> args(String command) {
+        return FFmpegCommand.parse(command).arguments();
+    }
+
+    private static Keyframes keyframesEvery(int seconds) {
+        Keyframes.Builder builder = new Keyframes.Builder();
+        for (int second = 0; second < 3600; second += seconds) {
+            builder.add(second, -1);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,50 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PipelineTest {
+
+    private final Predicate<String> isPipeTarget = Set.of("scaled", "graded")::contains;
+
+    @Test
+    public void testPipeTargetsBecomeStdoutAndStdin() {
+        List<String> connected = connect(
+                "-y -i {{movie}} -vf \"scale=1280:-2\" {{scaled}}",
+                "-i {{scaled}} -vf eq=contrast=1.2 -c:v ffv1 {{graded}}",
+                "-y -i {{scaled2}} -i {{graded}} -map 1:v -map 0:a -c:v libx264 {{final}}");
+
+        assertEquals(List.of(
+                "-y -i {{movie}} -vf scale=1280:-2 -c:v rawvideo -c:a pcm_s16le -f nut pipe:1",
+                "-f nut -i pipe:0 -vf eq=contrast=1.2 -c:v ffv1 -c:a pcm_s16le -f nut pipe:1",
+                "-y -i {{scaled2}} -f nut -i pipe:0 -map 1:v -map 0:a -c:v libx264 {{final}}"), connected);
+    }
+
+    @Test
+    public void testCommandsMustBeConnectedInOrder() {
+        // Too short, not ending in a pipe, not reading the pipe, reading it twice, or using it elsewhere
+        assertThrows(IllegalArgumentException.class, () -> connect("-i {{movie}} {{scaled}}"));
+        assertThrows(IllegalArgumentException.class, () -> connect(
+                "-i {{movie}} {{final}}", "-i {{final}} {{final2}}"));
+        assertThrows(IllegalArgumentException.class, () -> connect(
+                "-i {{movie}} {{scaled}}", "-i {{movie}} {{final}}"));
+        assertThrows(IllegalArgumentException.class, () -> connect(
+                "-i {{movie}} {{scaled}}", "-i {{scaled}} -i {{scaled}} {{final}}"));
+        assertThrows(IllegalArgumentException.class, () -> connect(
+                "-i {{graded}} {{scaled}}", "-i {{scaled}} {{final}}"));
+        assertThrows(IllegalArgumentException.class, () -> connect(
+                "-i {{movie}} {{scaled}}", "-i {{scaled}} {{graded}}"));
+    }
+
+    private List<String> connect(String... commands) {
+        return Pipeline.connect(Stream.of(commands).map(FFmpegCommand::parse).toList(), isPipeTarget).stream()
+                .map(FFmpegCommand::toString).toList();
+    }
+}
@@ -0,0 +1,97 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProgressParserTest {
+
+    private static final String BLOCK = """
+            frame=%d
+            fps=29.97
+            stream_0_0_q=28.0
+            bitrate=N/A
+            total_size=N/A
+            out_time_us=%d
+            out_time_ms=%d
+            out_time=00:00:01.000000
+            dup_frames=0
+            drop_frames=0
+            speed=   1.5x
+            progress=%s
+            """;
+
+    @Test
+    public void testParsesEachBlock() {
+        List<FFmpegProgress> updates = new ArrayList<>();
+        ProgressParser parser = new ProgressParser(updates::add, 0);
+
+        feed(parser, BLOCK.formatted(30, 1_001_000, 1_001_000, "continue") + BLOCK.formatted(60, 2_002_000, 2_002_000, "end"));
+
+        assertEquals(2, updates.size());
+        FFmpegProgress first = updates.get(0);
+        assertEquals(30, first.frame());
+        assertEquals(29.97, first.fps(), 1e-9);
+        assertEquals(Duration.ofNanos(1_001_000_000), first.outTime());
+        assertEquals(1.5, first.speed(), 1e-9);
+        assertFalse(first.finished());
+        assertTrue(updates.get(1).finished());
+        assertEquals("frame=60 fps=30.0 time=00:00:02.00 speed=1.50x (finished)", updates.get(1).toString());
+    }
+
+    @Test
+    public void testThrottleKeepsFirstAndLastUpdate() {
+        List<FFmpegProgress> updates = new ArrayList<>();
+        ProgressParser parser = new ProgressParser(updates::add, Duration.ofHours(1).toNanos());
+
+        for (int i = 1; i <= 100; i++) {
+            feed(parser, BLOCK.formatted(i, i * 1000L, i * 1000L, i == 100 ? "end" : "continue"));
+        }
+
+        assertEquals(2, updates.size());
+        assertEquals(1, updates.get(0).frame());
+        assertEquals(100, updates.get(1).frame());
+    }
+
+    @Test
+    public void testValuesNotAvailableYetAndFailingListener() {
+        List<FFmpegProgress> updates = new ArrayList<>();
+        ProgressParser parser = new ProgressParser(update -> {
+            updates.add(update);
+            throw new IllegalStateException("client went away");
+        }, 0);
+
+        feed(parser, "frame=0\nfps=0.00\nout_time_us=N/A\nspeed=N/A\nprogress=continue\nprogress=end\n");
+
+        assertEquals(2, updates.size());
+        assertEquals(0, updates.get(0).outTimeUs());
+        assertTrue(Double.isNaN(updates.get(0).speed()));
+    }
+
+    @Test
+    public void testPumpFeedsProgressStream() throws IOException, InterruptedException {
+        List<FFmpegProgress> updates = new ArrayList<>();
+        String stream = BLOCK.formatted(5, 200_000, 200_000, "end").replace("\n", "\r\n");
+        StreamPump pump = StreamPump.start(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)),
+                "test", new ProgressParser(updates::add, 0));
+
+        assertEquals("", pump.await());
+        assertEquals(1, updates.size());
+        assertEquals(5, updates.get(0).frame());
+    }
+
+    private static void feed(ProgressParser parser, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            parser.accept(text.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package no.lau.mcp.ffmpeg;
+
+import com.example.ffmpegmcp.FileManagerFake;
+import no.lau.mcp.file.VideoRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResultCacheTest {
+
+    @TempDir
+    Path folder;
+    private Path sources;
+    private Path outputs;
+    private final AtomicInteger runs = new AtomicInteger();
+    private final Map<String, Path> references = new HashMap<>();
+
+    /** Sources are registered under their "content hash"; everything else is a target. */
+    private final FileManagerFake fileManager = new FileManagerFake(references) {
+        @Override
+        public String contentHash(String videoRef) {
+            Path path = resolveVideoReference(videoRef);
+            return path != null && path.startsWith(sources) ? videoRef : null;
+        }
+    };
+
+    /** Writes the encoding of its input to the last argument, or fails when told to. */
+    private final FFmpegExecutor executor = command -> {
+        runs.incrementAndGet();
+        String[] arguments = command.split(" ");
+        if (command.contains("-fail")) {
+            return "Invalid argument\n" + FFmpegExecutor.EXIT_CODE_NOTICE + "1]";
+        }
+        Path output = Path.of(arguments[arguments.length - 1]);
+        Files.writeString(output, "encoded " + Files.readString(Path.of(arguments[1])));
+        return "Output #0, mp4, to '" + output + "'";
+    };
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        sources = Files.createDirectories(folder.resolve("sources"));
+        outputs = Files.createDirectories(folder.resolve("outputs"));
+        Files.writeString(sources.resolve("a.mp4"), "video a");
+        fileManager.addTargetVideoReference("a1", sources.resolve("a.mp4"));
+    }
+
+    @Test
+    public void testRepeatedCommandIsServedFromTheCache() throws IOException {
+        ResultCache cache = new ResultCache(folder.resolve("cache"), 1_000_000);
+        FFmpegWrapper wrapper = new FFmpegWrapper(fileManager, executor, cache);
+
+        String first = wrapper.doffMPEGStuff("-i {{a1}} -c:v libx264 " + target("out1"));
+        assertEquals("Output #0, mp4, to '{{out1}}'", first);
+
+        String second = wrapper.doffMPEGStuff("-i  {{a1}}   -c:v libx264 " + target("out2"));
+        assertEquals("[Result cache hit, ffmpeg was not run]\nOutput #0, mp4, to '{{out2}}'", second);
+        assertEquals(1, runs.get());
+        assertEquals("encoded video a", Files.readString(outputs.resolve("out2.mp4")));
+
+        ResultCache.Statistics stats = cache.statistics();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.stores());
+        assertEquals(1, stats.entries());
+        assertEquals("encoded video a".length(), stats.bytes());
+    }
+
+    @Test
+    public void testDifferentArgumentsOrChangedSourcesMiss() throws IOException {
+        ResultCache cache = new ResultCache(folder.resolve("cache"), 1_000_000);
+        FFmpegWrapper wrapper = new FFmpegWrapper(fileManager, executor, cache);
+
+        wrapper.doffMPEGStuff("-i {{a1}} -c:v libx264 " + target("out1"));
+        wrapper.doffMPEGStuff("-i {{a1}} -c:v libx265 " + target("out2"));
+        assertEquals(2, runs.get());
+
+        Files.writeString(sources.resolve("a.mp4"), "video a, edited");
+        wrapper.doffMPEGStuff("-i {{a1}} -c:v libx264 " + target("out3"));
+        assertEquals(3, runs.get());
+        assertEquals("encoded video a, edited", Files.readString(outputs.resolve("out3.mp4")));
+    }
+
+    @Test
+    public void testFailedRunsAreNotCached() throws IOException {
+        ResultCache cache = new ResultCache(folder.resolve("cache"), 1_000_000);
+        FFmpegWrapper wrapper = new FFmpegWrapper(fileManager, executor, cache);
+
+        wrapper.doffMPEGStuff("-i {{a1}} -fail " + target("out1"));
+        wrapper.doffMPEGStuff("-i {{a1}} -fail " + target("out2"));
+        assertEquals(2, runs.get());
+        assertEquals(0, cache.statistics().stores());
+    }
+
+    @Test
+    public void testOverwrittenResultIsNotServed() throws IOException {
+        ResultCache cache = new ResultCache(folder.resolve("cache"), 1_000_000);
+        FFmpegWrapper wrapper = new FFmpegWrapper(fileManager, executor, cache);
+
+        wrapper.doffMPEGStuff("-i {{a1}} " + target("out1"));
+        // The target is a hard link to the cached file, so writing to it changes the cache entry
+        Files.writeString(outputs.resolve("out1.mp4"), "something else entirely");
+        wrapper.doffMPEGStuff("-i {{a1}} " + target("out2"));
+        assertEquals(2, runs.get());
+        assertEquals("encoded video a", Files.readString(outputs.resolve("out2.mp4")));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        ResultCache cache = new ResultCache(folder.resolve("cache"), 40);
+        FFmpegWrapper wrapper = new FFmpegWrapper(fileManager, executor, cache);
+
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 20 " + target("out1"));
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 30 " + target("out2"));
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 20 " + target("out3")); // hit, so crf 30 is now the eldest
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 40 " + target("out4"));
+        assertEquals(3, runs.get());
+
+        ResultCache.Statistics stats = cache.statistics();
+        assertEquals(1, stats.evictions());
+        assertEquals(2, stats.entries());
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 20 " + target("out5"));
+        assertEquals(3, runs.get());
+        wrapper.doffMPEGStuff("-i {{a1}} -crf 30 " + target("out6"));
+        assertEquals(4, runs.get());
+    }
+
+    @Test
+    public void testOnlyCommandsWritingToReferencesAreCacheable() throws IOException {
+        target("out1");
+        VideoRegistry.Snapshot snapshot = fileManager.snapshot();
+        ResultCache.Key key = ResultCache.keyFor(FFmpegCommand.parse("-y -i {{a1}} -vf scale=iw/2:-1 {{out1}}"), snapshot, fileManager::contentHash);
+        assertNotNull(key);
+        assertEquals(List.of(outputs.resolve("out1.mp4")), key.outputs());
+        assertNotEquals(key.hash(), ResultCache.keyFor(FFmpegCommand.parse("-y -i {{a1}} -vf scale=iw/3:-1 {{out1}}"), snapshot, fileManager::contentHash).hash());
+
+        // A literal output, a target read as input, a literal path, and no output at all
+        assertNull(ResultCache.keyFor(FFmpegCommand.parse("-i {{a1}} out.mp4"), snapshot, fileManager::contentHash));
+        assertNull(ResultCache.keyFor(FFmpegCommand.parse("-i {{out1}} -i {{a1}} {{out1}}"), snapshot, fileManager::contentHash));
+        assertNull(ResultCache.keyFor(FFmpegCommand.parse("-i {{a1}} -vf movie=/etc/logo.png {{out1}}"), snapshot, fileManager::contentHash));
+        assertNull(ResultCache.keyFor(FFmpegCommand.parse("-i {{a1}} -f null -"), snapshot, fileManager::contentHash));
+        assertNull(ResultCache.keyFor(FFmpegCommand.parse("-i {{a1}} -passlogfile {{out1}} {{a1}}"), snapshot, fileManager::contentHash));
+    }
+
+    /** Registers an empty target file, like addTargetVideo does, and returns its placeholder. */
+    private String target(String id) throws IOException {
+        Path path = Files.createFile(outputs.resolve(id + ".mp4"));
+        fileManager.addTargetVideoReference(id, path);
+        return "{{" + id + "}}";
+    }
+}
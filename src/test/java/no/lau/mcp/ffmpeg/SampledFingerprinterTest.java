@@ -0,0 +1,65 @@
+package no.lau.mcp.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SampledFingerprinterTest {
+
+    private static final int SAMPLE = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private final SampledFingerprinter fingerprinter = new SampledFingerprinter(SAMPLE);
+
+    @Test
+    public void testSameContentSameFingerprint() throws IOException {
+        byte[] content = randomBytes(SAMPLE * 10);
+        Path a = Files.write(tempDir.resolve("a.mp4"), content);
+        Path b = Files.write(tempDir.resolve("b.mp4"), content);
+        assertEquals(fingerprinter.fingerprint(a), fingerprinter.fingerprint(b));
+    }
+
+    @Test
+    public void testSampledRegionsAndSizeAreCovered() throws IOException {
+        byte[] content = randomBytes(SAMPLE * 10);
+        String original = fingerprinter.fingerprint(Files.write(tempDir.resolve("original.mp4"), content));
+
+        for (int offset : new int[]{0, content.length / 2, content.length - 1}) {
+            byte[] changed = content.clone();
+            changed[offset]++;
+            assertNotEquals(original, fingerprinter.fingerprint(Files.write(tempDir.resolve("changed.mp4"), changed)));
+        }
+        byte[] longer = new byte[content.length + 1];
+        System.arraycopy(content, 0, longer, 0, content.length);
+        assertNotEquals(original, fingerprinter.fingerprint(Files.write(tempDir.resolve("longer.mp4"), longer)));
+    }
+
+    @Test
+    public void testSmallFilesAreHashedInFull() throws IOException {
+        byte[] content = randomBytes(SAMPLE * 3);
+        String original = fingerprinter.fingerprint(Files.write(tempDir.resolve("small.mp4"), content));
+        content[SAMPLE + SAMPLE / 4]++; // outside where the head, middle and tail samples would be
+        assertNotEquals(original, fingerprinter.fingerprint(Files.write(tempDir.resolve("small2.mp4"), content)));
+    }
+
+    @Test
+    public void testNamedStrategies() {
+        assertSame(FileHasher.MD5, FileFingerprinter.named("md5", SAMPLE));
+        assertFalse(FileFingerprinter.named("sampled", SAMPLE).isExact());
+        assertThrows(IllegalArgumentException.class, () -> FileFingerprinter.named("sha1", SAMPLE));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
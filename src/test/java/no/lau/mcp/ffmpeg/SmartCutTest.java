@@ -0,0 +1,87 @@
+package no.lau.mcp.ffmpeg;
+
+import no.lau.mcp.ffmpeg.probe.Keyframes;
+import no.lau.mcp.ffmpeg.probe.MediaInfo;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SmartCutTest {
+
+    private static final long SECOND = 1_000_000;
+
+    /** A keyframe every 2 seconds for an hour */
+    private final Keyframes keyframes = everyTwoSeconds();
+
+    @Test
+    public void testOnlyTheEdgesAreReEncoded() {
+        SmartCut.Plan plan = SmartCut.plan(video("h264", "aac"), keyframes, 601 * SECOND, 1201_500_000L);
+
+        assertTrue(plan.smart());
+        assertEquals(List.of(new SmartCut.Part(601 * SECOND, 602 * SECOND, false),
+                new SmartCut.Part(602 * SECOND, 1200 * SECOND, true),
+                new SmartCut.Part(1200 * SECOND, 1201_500_000L, false)), plan.parts());
+        assertEquals(598 * SECOND, plan.copiedMicros());
+        assertEquals(2_500_000L, plan.encodedMicros());
+        assertEquals(".ts", plan.intermediate());
+
+        Path source = Path.of("/tmp/vids/sources/my movie.mp4");
+        assertEquals(args("-y -ss 601 -i \"/tmp/vids/sources/my movie.mp4\" -t 1 -map 0:v:0 -map 0:a?"
+                        + " -c:v libx264 -preset fast -crf 16 -c:a aac -b:a 128000 -avoid_negative_ts make_zero \"/out/0.ts\""),
+                plan.command(0, source, Path.of("/out/0.ts")));
+        assertEquals(args("-y -ss 602.000001 -i \"/tmp/vids/sources/my movie.mp4\" -t 598 -map 0:v:0 -map 0:a?"
+                        + " -c copy -avoid_negative_ts make_zero \"/out/1.ts\""),
+                plan.command(1, source, Path.of("/out/1.ts")));
+        assertEquals(args("-y -f concat -i \"/out/list.ffconcat\" -map 0 -c copy \"/out/clip.mp4\""),
+                SmartCut.Plan.joinCommand(Path.of("/out/list.ffconcat"), Path.of("/out/clip.mp4")));
+    }
+
+    @Test
+    public void testCutsOnKeyframesNeedNoEdges() {
+        SmartCut.Plan plan = SmartCut.plan(video("vp9", "opus"), keyframes, 600 * SECOND, 1200 * SECOND);
+
+        assertEquals(List.of(new SmartCut.Part(600 * SECOND, 1200 * SECOND, true)), plan.parts());
+        assertEquals(".mkv", plan.intermediate());
+    }
+
+    @Test
+    public void testRangesWithoutAWholeIntervalAreReEncodedInOnePiece() {
+        SmartCut.Plan shortClip = SmartCut.plan(video("h264", "aac"), keyframes, 601 * SECOND, 603 * SECOND);
+        assertFalse(shortClip.smart());
+        assertEquals(List.of(new SmartCut.Part(601 * SECOND, 603 * SECOND, false)), shortClip.parts());
+        assertEquals(args("-y -ss 601 -i \"/in.mp4\" -t 2 -map 0:v:0 -map 0:a? -c:v libx264 -preset fast -crf 16"
+                + " -c:a aac -b:a 128000 \"/out.mp4\""), shortClip.command(0, Path.of("/in.mp4"), Path.of("/out.mp4")));
+
+        // No encoder for the codec, audio MPEG-TS cannot carry next to H.264, or no keyframe index
+        assertEquals("there is no encoder for dnxhd video",
+                SmartCut.plan(video("dnxhd", "aac"), keyframes, 0, 900 * SECOND).reason());
+        assertFalse(SmartCut.plan(video("h264", "opus"), keyframes, 0, 900 * SECOND).smart());
+        assertFalse(SmartCut.plan(video("h264", "aac"), null, 0, 900 * SECOND).smart());
+    }
+
+    private static List<String> args(String command) {
+        return FFmpegCommand.parse(command).arguments();
+    }
+
+    private static MediaInfo video(String videoCodec, String audioCodec) {
+        return new MediaInfo("mov,mp4,m4a,3gp,3g2,mj2", Duration.ofHours(1), 5_000_000, List.of(
+                new MediaInfo.Stream(0, MediaInfo.StreamType.VIDEO, videoCodec, null, null, 1920, 1080, null, 25,
+                        0, 0, null, 4_800_000, 2),
+                new MediaInfo.Stream(1, MediaInfo.StreamType.AUDIO, audioCodec, null, null, 0, 0, null, 0,
+                        48_000, 2, "stereo", 128_000, 0)));
+    }
+
+    private static Keyframes everyTwoSeconds() {
+        Keyframes.Builder builder = new Keyframes.Builder();
+        for (int second = 0; second < 3600; second += 2) {
+            builder.add(second, second * 100_000L);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,99 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import no.lau.mcp.ffmpeg.CommandValidator;
+import no.lau.mcp.ffmpeg.FFmpegCommand;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Validating a command with the single-pass {@link CommandValidator} versus the previous implementation,
+ * which rendered the placeholders, compiled the file name pattern for every argument and tried
+ * {@code Double.parseDouble} on each match. {@code cached} validates a command of a shape seen before,
+ * which is the common case of a client running the same command on one video after another.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main CommandValidatorBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandValidatorBenchmark {
+
+    @Param({"transcode", "filtergraph"})
+    public String command;
+
+    private FFmpegCommand parsed;
+    private CommandValidator validator;
+
+    @Setup(Level.Trial)
+    public void parseCommand() {
+        parsed = FFmpegCommand.parse(switch (command) {
+            case "transcode" -> "-y -i {{movie}} -ss 12.5 -t 30 -vf scale=1280:-2,fps=29.97 -c:v libx264 -preset medium"
+                    + " -crf 23 -c:a aac -b:a 128k -movflags +faststart {{output}}";
+            case "filtergraph" -> "-y -i {{intro}} -i {{movie}} -i {{logo}} -filter_complex \"[0:v]scale=1920:1080,setsar=1[a];"
+                    + "[1:v]scale=1920:1080,setsar=1,eq=contrast=1.2:brightness=0.05:saturation=1.3[b];"
+                    + "[a][0:a][b][1:a]concat=n=2:v=1:a=1[v][au];[2:v]format=rgba,colorchannelmixer=aa=0.5[l];"
+                    + "[v][l]overlay=W-w-24:24:enable='between(t,2.5,10.75)',drawtext=text='Chapter 1':x=24:y=h-64"
+                    + ":fontsize=36:fontcolor=white@0.8[out]\" -map [out] -map [au] -c:v libx264 -crf 20 -c:a aac {{output}}";
+            default -> throw new IllegalArgumentException(command);
+        });
+        validator = new CommandValidator();
+        validator.validate(parsed);
+    }
+
+    @Benchmark
+    public FFmpegCommand legacy() {
+        legacyValidate(parsed.arguments());
+        return parsed;
+    }
+
+    @Benchmark
+    public FFmpegCommand singlePass() {
+        CommandValidator.check(parsed);
+        return parsed;
+    }
+
+    @Benchmark
+    public FFmpegCommand cached() {
+        validator.validate(parsed);
+        return parsed;
+    }
+
+    /**
+     * The validation the server did before {@link CommandValidator}, as the baseline.
+     * @param arguments Arguments with {@code {{id}}} placeholders
+     * @throws IllegalArgumentException like {@link CommandValidator#check}
+     */
+    public static void legacyValidate(List<String> arguments) {
+        for (String template : arguments) {
+            String argument = template.replaceAll("\\{\\{[^{}]+}}", "MCP_GENERATED_PLACEHOLDER");
+            if (argument.contains("..")) {
+                throw new IllegalArgumentException("Command contains path traversal attempt ('..'). "
+                        + "All file references must use {{id}} placeholders.");
+            }
+            if (argument.contains("/") || argument.contains("\\")) {
+                throw new IllegalArgumentException("Command contains direct path separator ('/' or '\\'). "
+                        + "All file references must use {{id}} placeholders.");
+            }
+            Pattern filenamePattern = Pattern.compile("\\b([a-zA-Z0-9_]+(?:\\.[a-zA-Z0-9_]+)*)\\.([a-zA-Z0-9]{2,4})\\b");
+            Matcher matcher = filenamePattern.matcher(argument);
+            while (matcher.find()) {
+                try {
+                    Double.parseDouble(matcher.group(0));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Command contains potential direct filename ('" + matcher.group(0)
+                            + "'). All file references must use {{id}} placeholders.");
+                }
+            }
+        }
+    }
+}
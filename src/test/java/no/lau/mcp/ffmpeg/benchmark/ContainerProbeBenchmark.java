@@ -0,0 +1,71 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import no.lau.mcp.ffmpeg.DefaultFFmpegExecutor;
+import no.lau.mcp.ffmpeg.probe.ContainerProbe;
+import no.lau.mcp.ffmpeg.probe.MediaFixtures;
+import no.lau.mcp.ffmpeg.probe.MediaInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares probing a file with {@link ContainerProbe} against starting {@code ffmpeg -i}, as
+ * {@code video_info} did for every call, on MP4 and WebM files of 1 MB and 4 GB.
+ *
+ * The files are synthetic: real headers with sparse, zeroed media data. The MP4 keeps its movie
+ * header at the end, so the probe has to skip the media to find it. The process path needs ffmpeg at
+ * {@code -Dffmpeg.path}, {@code /usr/local/bin/ffmpeg} by default.
+ *
+ * Run with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main ContainerProbeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ContainerProbeBenchmark {
+
+    @Param({"mp4", "webm"})
+    public String container;
+
+    @Param({"1", "4096"})
+    public int sizeInMb;
+
+    private Path file;
+    private DefaultFFmpegExecutor ffmpeg;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = Files.createTempFile("probe-bench-", "." + container);
+        long mediaBytes = sizeInMb * 1024L * 1024;
+        if (container.equals("mp4")) {
+            MediaFixtures.mp4(file, mediaBytes);
+        } else {
+            MediaFixtures.webm(file, mediaBytes, false);
+        }
+        ffmpeg = new DefaultFFmpegExecutor(System.getProperty("ffmpeg.path", "/usr/local/bin/ffmpeg"));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public MediaInfo nativeProbe() throws IOException {
+        return ContainerProbe.probe(file);
+    }
+
+    @Benchmark
+    public String ffmpegProcess() throws IOException {
+        return ffmpeg.execute("-i " + file);
+    }
+}
@@ -0,0 +1,77 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import no.lau.mcp.ffmpeg.FileFingerprinter;
+import no.lau.mcp.ffmpeg.FileHasher;
+import no.lau.mcp.ffmpeg.SampledFingerprinter;
+import no.lau.mcp.file.SourceIndexer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Startup indexing time of a synthetic library with full-content MD5 versus sampled fingerprints.
+ * The persistent hash index is not used, so every run fingerprints every file.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main FingerprintBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FingerprintBenchmark {
+
+    @Param({"200"})
+    public int fileCount;
+
+    @Param({"8", "64"})
+    public int fileSizeInMb;
+
+    @Param({"md5", "sampled"})
+    public String strategy;
+
+    private Path library;
+    private SourceIndexer indexer;
+
+    @Setup(Level.Trial)
+    public void createLibrary() throws IOException {
+        library = Files.createTempDirectory("fingerprint-bench-");
+        byte[] block = new byte[1 << 20];
+        Random random = new Random(42);
+        for (int i = 0; i < fileCount; i++) {
+            random.nextBytes(block);
+            try (OutputStream out = Files.newOutputStream(library.resolve("video" + i + ".mp4"))) {
+                for (int mb = 0; mb < fileSizeInMb; mb++) {
+                    out.write(block);
+                }
+            }
+        }
+        FileFingerprinter fingerprinter = FileFingerprinter.named(strategy, SampledFingerprinter.DEFAULT_SAMPLE_SIZE);
+        indexer = new SourceIndexer(SourceIndexer.Mode.FORK_JOIN, Runtime.getRuntime().availableProcessors(), 4,
+                false, fingerprinter);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLibrary() throws IOException {
+        try (Stream<Path> files = Files.walk(library)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Map<String, Path> indexLibrary() {
+        return indexer.index(library);
+    }
+}
@@ -0,0 +1,83 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import no.lau.mcp.file.OutputSanitizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sanitizing verbose ffmpeg output with the precompiled {@link OutputSanitizer} versus the previous
+ * implementation, which called {@code String.replace} and {@code toAbsolutePath()} once per reference.
+ * {@code compileAndSanitize} includes building the automaton, which happens once per registry change.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main OutputSanitizerBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputSanitizerBenchmark {
+
+    @Param({"100", "10000"})
+    public int references;
+
+    @Param({"200", "5000"})
+    public int outputLines;
+
+    private Map<String, Path> videoReferences;
+    private OutputSanitizer sanitizer;
+    private String output;
+
+    @Setup(Level.Trial)
+    public void createOutput() {
+        videoReferences = new HashMap<>();
+        for (int i = 0; i < references; i++) {
+            videoReferences.put(Integer.toHexString(i * 7919) + "0123456789abcdef",
+                    Path.of("/srv/media/library/folder" + (i % 50) + "/video-" + i + ".mp4"));
+        }
+        sanitizer = OutputSanitizer.of(videoReferences);
+
+        Random random = new Random(42);
+        StringBuilder log = new StringBuilder();
+        for (int line = 0; line < outputLines; line++) {
+            if (line % 20 == 0) {
+                int i = random.nextInt(references);
+                log.append("Input #0, mov,mp4,m4a,3gp,3g2,mj2, from '/srv/media/library/folder")
+                        .append(i % 50).append("/video-").append(i).append(".mp4':\n");
+            } else {
+                log.append("frame= ").append(line).append(" fps= 30 q=28.0 size=   ").append(line * 17)
+                        .append("kB time=00:00:").append(line % 60).append(".00 bitrate= 512.0kbits/s speed=1.2x\n");
+            }
+        }
+        output = log.toString();
+    }
+
+    @Benchmark
+    public String legacy() {
+        String sanitized = output;
+        for (Map.Entry<String, Path> entry : videoReferences.entrySet()) {
+            String absolutePath = entry.getValue().toAbsolutePath().toString();
+            sanitized = sanitized.replace(absolutePath, "{{" + entry.getKey() + "}}");
+        }
+        return sanitized;
+    }
+
+    @Benchmark
+    public String precompiled() {
+        return sanitizer.sanitize(output);
+    }
+
+    @Benchmark
+    public String compileAndSanitize() {
+        return OutputSanitizer.of(videoReferences).sanitize(output);
+    }
+}
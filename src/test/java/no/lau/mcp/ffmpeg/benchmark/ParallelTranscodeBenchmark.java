@@ -0,0 +1,105 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import com.example.ffmpegmcp.FileManagerFake;
+import no.lau.mcp.ffmpeg.DefaultFFmpegExecutor;
+import no.lau.mcp.ffmpeg.FFmpegExecutor;
+import no.lau.mcp.ffmpeg.FFmpegScheduler;
+import no.lau.mcp.ffmpeg.FFmpegWrapper;
+import no.lau.mcp.ffmpeg.JobPriority;
+import no.lau.mcp.ffmpeg.KeyframeIndex;
+import no.lau.mcp.file.FileManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the wall-clock time of one libx264 process encoding a whole video with
+ * {@link FFmpegWrapper#parallelTranscode}, which encodes keyframe-aligned segments of it at the same time.
+ * Both get every core: the single process through {@code -threads}, the segments through the scheduler.
+ *
+ * The source is synthetic: ffmpeg's {@code testsrc2} pattern at 1280x720 and 30 fps with a sine tone,
+ * with a keyframe every 2 seconds. Needs ffmpeg at {@code -Dffmpeg.path}, {@code /usr/local/bin/ffmpeg}
+ * by default.
+ *
+ * Run with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main ParallelTranscodeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ParallelTranscodeBenchmark {
+
+    private static final String VIDEO_OPTIONS = "-c:v libx264 -preset medium -crf 23";
+
+    @Param({"60"})
+    public int durationSeconds;
+
+    @Param({"2", "4", "8"})
+    public int segments;
+
+    private Path folder;
+    private FFmpegWrapper wrapper;
+    private int cores;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        folder = Files.createTempDirectory("transcode-bench-");
+        Path source = folder.resolve("source.mp4");
+        String ffmpegPath = System.getProperty("ffmpeg.path", "/usr/local/bin/ffmpeg");
+        String output = new DefaultFFmpegExecutor(ffmpegPath).execute("-y"
+                + " -f lavfi -i testsrc2=size=1280x720:rate=30:duration=" + durationSeconds
+                + " -f lavfi -i sine=frequency=440:duration=" + durationSeconds
+                + " -c:v libx264 -preset ultrafast -g 60 -pix_fmt yuv420p -c:a aac " + source);
+        check(output);
+
+        FileManager fileManager = new FileManagerFake(Map.of("source", source,
+                "single", folder.resolve("single.mp4"), "parallel", folder.resolve("parallel.mp4"))) {
+            @Override
+            public String contentHash(String videoRef) {
+                return videoRef.equals("source") ? "source" : null;
+            }
+        };
+        cores = Runtime.getRuntime().availableProcessors();
+        FFmpegExecutor scheduler = new FFmpegScheduler(new DefaultFFmpegExecutor(ffmpegPath), cores, 0);
+        wrapper = new FFmpegWrapper(fileManager, scheduler, null, null, new KeyframeIndex(null, null));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public String singleProcess() throws IOException {
+        return check(wrapper.doffMPEGStuff("-y -i {{source}} " + VIDEO_OPTIONS + " -threads " + cores
+                + " -c:a copy {{single}}", null, JobPriority.NORMAL));
+    }
+
+    @Benchmark
+    public String segmentParallel() throws IOException {
+        return wrapper.parallelTranscode("source", "parallel", VIDEO_OPTIONS, "-c:a copy", segments, JobPriority.NORMAL);
+    }
+
+    private static String check(String output) {
+        if (output.contains(FFmpegExecutor.EXIT_CODE_NOTICE)) {
+            throw new IllegalStateException("ffmpeg failed:\n" + output);
+        }
+        return output;
+    }
+}
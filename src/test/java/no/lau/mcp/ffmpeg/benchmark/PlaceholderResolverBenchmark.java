@@ -0,0 +1,71 @@
+package no.lau.mcp.ffmpeg.benchmark;
+
+import no.lau.mcp.file.FileManagerUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolving {@code {{id}}} placeholders in a command with the single-pass resolver versus the previous
+ * implementation, which extracted IDs with a regex and then called {@code String.replace} once per ID.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main PlaceholderResolverBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaceholderResolverBenchmark {
+
+    private static final Pattern VIDEO_REF_PATTERN = Pattern.compile("\\{\\{([^{}]+)}}");
+
+    @Param({"2", "50"})
+    public int placeholders;
+
+    private Map<String, Path> videoReferences;
+    private String command;
+
+    @Setup(Level.Trial)
+    public void createCommand() {
+        videoReferences = new HashMap<>();
+        StringBuilder inputs = new StringBuilder();
+        StringBuilder filter = new StringBuilder();
+        for (int i = 0; i < placeholders; i++) {
+            String id = Integer.toHexString(i * 7919) + "0123456789abcdef";
+            videoReferences.put(id, Path.of("/srv/media/library/video-" + i + ".mp4"));
+            inputs.append("-i {{").append(id).append("}} ");
+            filter.append('[').append(i).append(":v]");
+        }
+        command = inputs + "-filter_complex \"" + filter + "concat=n=" + placeholders
+                + ":v=1:a=0[out]\" -map [out] -c:v libx264 -preset fast -crf 23 {{" + videoReferences.keySet().iterator().next() + "}}";
+    }
+
+    @Benchmark
+    public String legacy() {
+        Matcher matcher = VIDEO_REF_PATTERN.matcher(command);
+        String resolved = command;
+        while (matcher.find()) {
+            String id = matcher.group(1);
+            if (!videoReferences.containsKey(id)) {
+                throw new IllegalArgumentException("Video reference '" + id + "' not found.");
+            }
+            resolved = resolved.replace("{{" + id + "}}", videoReferences.get(id).toAbsolutePath().toString());
+        }
+        return resolved;
+    }
+
+    @Benchmark
+    public String singlePass() {
+        return FileManagerUtils.replaceVideoReferences(command, videoReferences);
+    }
+}
@@ -0,0 +1,108 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ContainerProbeTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void testMp4WithMovieHeaderAfterTheMedia() throws IOException {
+        Path file = MediaFixtures.mp4(folder.resolve("clip.mp4"), 3_000_000_000L);
+
+        MediaInfo info = ContainerProbe.probe(file);
+        assertNotNull(info);
+        assertEquals("mov,mp4,m4a,3gp,3g2,mj2", info.format());
+        assertEquals(Duration.ofSeconds(10), info.duration());
+        assertEquals(Files.size(file) * 8 / 10, info.bitRate());
+        assertEquals(2, info.streams().size());
+
+        MediaInfo.Stream video = info.streams().get(0);
+        assertEquals(MediaInfo.StreamType.VIDEO, video.type());
+        assertEquals("h264", video.codec());
+        assertEquals(1280, video.width());
+        assertEquals(720, video.height());
+        assertEquals(29.97, video.frameRate(), 0.001);
+        assertEquals(959_041, video.bitRate());
+
+        MediaInfo.Stream audio = info.streams().get(1);
+        assertEquals(MediaInfo.StreamType.AUDIO, audio.type());
+        assertEquals("aac", audio.codec());
+        assertEquals(48_000, audio.sampleRate());
+        assertEquals(2, audio.channels());
+        assertEquals(187_600, audio.bitRate());
+    }
+
+    @Test
+    public void testDescriptionFollowsFfmpegLayout() throws IOException {
+        Path file = MediaFixtures.mp4(folder.resolve("clip.mp4"), 1_000_000);
+
+        assertEquals("Input #0, mov,mp4,m4a,3gp,3g2,mj2, from '{{clip}}':\n"
+                        + "  Duration: 00:00:10.00, bitrate: 801 kb/s\n"
+                        + "  Stream #0:0: Video: h264 (avc1), 1280x720, 29.97 fps, 959 kb/s\n"
+                        + "  Stream #0:1: Audio: aac (mp4a), 48000 Hz, 2 channels, 187 kb/s\n",
+                ContainerProbe.probe(file).describe("{{clip}}"));
+    }
+
+    @Test
+    public void testMp4KeyframesFromSampleTables() throws IOException {
+        Path file = MediaFixtures.mp4(folder.resolve("clip.mp4"), 3_000_000_000L);
+
+        Keyframes keyframes = ContainerProbe.keyframes(file);
+        assertNotNull(keyframes);
+        assertEquals(5, keyframes.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(2.002 * i, keyframes.time(i), 0.000001);
+            // Keyframes start every other 30 frame chunk
+            assertEquals(MediaFixtures.MP4_MEDIA_START + i * 2 * 120_000L, keyframes.position(i));
+        }
+        assertEquals(2.002, keyframes.averageInterval(), 0.000001);
+        assertEquals(2.002, ContainerProbe.probe(file).streams().get(0).keyframeInterval(), 0.000001);
+
+        assertEquals(3, keyframes.floor(7.5));
+        assertEquals(1, keyframes.floor(2.002));
+        assertEquals(-1, keyframes.floor(-1));
+        assertNull(ContainerProbe.keyframes(MediaFixtures.webm(folder.resolve("clip.webm"), 1000, false)));
+    }
+
+    @Test
+    public void testWebm() throws IOException {
+        for (boolean tracksAfterMedia : new boolean[]{false, true}) {
+            Path file = MediaFixtures.webm(folder.resolve("clip" + tracksAfterMedia + ".webm"), 50_000_000, tracksAfterMedia);
+
+            MediaInfo info = ContainerProbe.probe(file);
+            assertNotNull(info);
+            assertEquals("matroska,webm", info.format());
+            assertEquals(Duration.ofSeconds(10), info.duration());
+            assertEquals("  Stream #0:0: Video: vp9 (V_VP9), 1920x1080, 29.97 fps\n"
+                            + "  Stream #0:1: Audio: opus (A_OPUS), 48000 Hz, 2 channels\n",
+                    info.describe("x").lines().skip(2).map(line -> line + "\n").reduce("", String::concat));
+        }
+    }
+
+    @Test
+    public void testUnknownOrIncompleteFilesAreLeftToFfmpeg() throws IOException {
+        assertNull(ContainerProbe.probe(Files.writeString(folder.resolve("notes.txt"), "not a video at all")));
+        assertNull(ContainerProbe.probe(Files.write(folder.resolve("empty.mp4"), new byte[0])));
+
+        // Fragmented files keep their duration in the fragments
+        assertNull(ContainerProbe.probe(MediaFixtures.mp4(folder.resolve("fragmented.mp4"), 1000, 0)));
+
+        // Cut off in the middle of the movie header
+        Path complete = MediaFixtures.mp4(folder.resolve("complete.mp4"), 1000);
+        byte[] bytes = Files.readAllBytes(complete);
+        assertNull(ContainerProbe.probe(Files.write(folder.resolve("truncated.mp4"), Arrays.copyOf(bytes, bytes.length - 100))));
+    }
+}
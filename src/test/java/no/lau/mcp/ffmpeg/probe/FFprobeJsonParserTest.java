@@ -0,0 +1,119 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FFprobeJsonParserTest {
+
+    /** As written by ffprobe 6 for an MPEG-TS file, packets cut down to the keyframes and one other. */
+    private static final String TRANSPORT_STREAM = """
+            {
+                "packets": [
+                    { "stream_index": 0, "pts_time": "1.400000", "flags": "K__" },
+                    { "stream_index": 1, "pts_time": "1.400000", "flags": "K__" },
+                    { "stream_index": 0, "pts_time": "1.433367", "flags": "___" },
+                    { "stream_index": 0, "pts_time": "3.402000", "flags": "K__" },
+                    { "stream_index": 0, "pts_time": "5.404000", "flags": "K_" }
+                ],
+                "streams": [
+                    {
+                        "index": 0,
+                        "codec_name": "h264",
+                        "profile": "High",
+                        "codec_type": "video",
+                        "codec_tag_string": "[27][0][0][0]",
+                        "width": 1920,
+                        "height": 1080,
+                        "pix_fmt": "yuv420p",
+                        "r_frame_rate": "60000/1001",
+                        "avg_frame_rate": "30000/1001",
+                        "disposition": { "default": 0, "dub": 0 },
+                        "side_data_list": [ { "side_data_type": "CPB properties", "max_bitrate": 0 } ]
+                    },
+                    {
+                        "index": 1,
+                        "codec_name": "aac",
+                        "profile": "LC",
+                        "codec_type": "audio",
+                        "codec_tag_string": "[15][0][0][0]",
+                        "sample_rate": "48000",
+                        "channels": 2,
+                        "channel_layout": "stereo",
+                        "avg_frame_rate": "0/0",
+                        "bit_rate": "130799",
+                        "tags": { "language": "eng" }
+                    }
+                ],
+                "format": {
+                    "filename": "/tmp/vids/sources/broadcast.ts",
+                    "nb_streams": 2,
+                    "format_name": "mpegts",
+                    "duration": "60.060000",
+                    "size": "45045000",
+                    "bit_rate": "6000000",
+                    "tags": { "service_name": "Service01" }
+                }
+            }
+            """;
+
+    @Test
+    public void testParsesStreamsFormatAndKeyframeInterval() throws IOException {
+        MediaInfo info = FFprobeJsonParser.parse(TRANSPORT_STREAM);
+
+        assertEquals("mpegts", info.format());
+        assertEquals(Duration.ofMillis(60_060), info.duration());
+        assertEquals(6_000_000, info.bitRate());
+        assertEquals(2, info.streams().size());
+
+        MediaInfo.Stream video = info.streams().get(0);
+        assertEquals(MediaInfo.StreamType.VIDEO, video.type());
+        assertEquals("h264", video.codec());
+        assertNull(video.codecTag());
+        assertEquals("High", video.profile());
+        assertEquals(1920, video.width());
+        assertEquals(1080, video.height());
+        assertEquals("yuv420p", video.pixelFormat());
+        assertEquals(29.97, video.frameRate(), 0.001);
+        assertEquals(2.002, video.keyframeInterval(), 0.0001);
+
+        MediaInfo.Stream audio = info.streams().get(1);
+        assertEquals(MediaInfo.StreamType.AUDIO, audio.type());
+        assertEquals(48_000, audio.sampleRate());
+        assertEquals(2, audio.channels());
+        assertEquals("stereo", audio.channelLayout());
+        assertEquals(130_799, audio.bitRate());
+        assertEquals(0, audio.frameRate());
+        assertEquals(0, audio.keyframeInterval());
+    }
+
+    @Test
+    public void testCompactJsonLeavesOutUnknownFields() throws IOException {
+        String json = FFprobeJsonParser.parse(TRANSPORT_STREAM).toJson();
+
+        assertEquals("{\"format\":\"mpegts\",\"duration\":60.06,\"bitRate\":6000000,\"streams\":["
+                + "{\"index\":0,\"type\":\"video\",\"codec\":\"h264\",\"profile\":\"High\",\"width\":1920,\"height\":1080,"
+                + "\"pixelFormat\":\"yuv420p\",\"frameRate\":29.97,\"keyframeInterval\":2.002},"
+                + "{\"index\":1,\"type\":\"audio\",\"codec\":\"aac\",\"profile\":\"LC\",\"sampleRate\":48000,\"channels\":2,"
+                + "\"channelLayout\":\"stereo\",\"bitRate\":130799}]}", json);
+    }
+
+    @Test
+    public void testRejectsOutputWithoutFormat() {
+        assertThrows(IOException.class, () -> FFprobeJsonParser.parse("{\"streams\": []}"));
+        assertThrows(IOException.class, () -> FFprobeJsonParser.parse("[]"));
+    }
+
+    @Test
+    public void testRational() {
+        assertEquals(25, FFprobeJsonParser.rational("25/1"));
+        assertEquals(23.976, FFprobeJsonParser.rational("24000/1001"), 0.001);
+        assertEquals(0, FFprobeJsonParser.rational("0/0"));
+        assertEquals(0, FFprobeJsonParser.rational("n/a"));
+    }
+}
@@ -0,0 +1,160 @@
+package no.lau.mcp.ffmpeg.probe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes synthetic container files with headers only, for probing without ffmpeg.
+ * The media data is zero bytes, written sparsely so large files are cheap to create.
+ */
+public class MediaFixtures {
+
+    /** Offset of the first media byte of {@link #mp4}, after {@code ftyp} and the {@code mdat} header */
+    public static final long MP4_MEDIA_START = 24 + 16;
+
+    /**
+     * An MP4 with the movie header after the media data: a 1280x720 H.264 track of 300 frames of
+     * 4000 bytes over 10.01 seconds, and a stereo 48 kHz AAC track of 469 frames of 500 bytes.
+     * Every 60th video frame, from the first, is a keyframe, so keyframes are 2.002 seconds apart.
+     * Video is stored in chunks of 30 frames, the first at {@link #MP4_MEDIA_START}, then one audio chunk.
+     */
+    public static Path mp4(Path file, long mediaBytes) throws IOException {
+        return mp4(file, mediaBytes, 10_000);
+    }
+
+    /**
+     * @param movieDuration Duration in the movie header, in milliseconds; 0 as in a fragmented file
+     */
+    public static Path mp4(Path file, long mediaBytes, int movieDuration) throws IOException {
+        byte[] ftyp = box("ftyp", ascii("isom"), int32(0x200), ascii("isom"), ascii("avc1"));
+        byte[] moov = box("moov",
+                fullBox("mvhd", int32(0), int32(0), int32(1000), int32(movieDuration), new byte[80]),
+                track(fullBox("tkhd", new byte[72], int32(1280 << 16), int32(720 << 16)),
+                        movieDuration == 0 ? 0 : 300_300, 30_000, "vide",
+                        box("avc1", new byte[6], int16(1), new byte[16], int16(1280), int16(720), new byte[50]),
+                        fullBox("stts", int32(1), int32(300), int32(1001)),
+                        fullBox("stss", int32(5), int32(1), int32(61), int32(121), int32(181), int32(241)),
+                        fullBox("stsc", int32(1), int32(1), int32(30), int32(1)),
+                        fullBox("stsz", int32(0), int32(300), repeat(int32(4000), 300)),
+                        fullBox("stco", int32(10), chunkOffsets(10, 120_000))),
+                track(fullBox("tkhd", new byte[80]),
+                        movieDuration == 0 ? 0 : 480_000, 48_000, "soun",
+                        box("mp4a", new byte[6], int16(1), new byte[8], int16(2), int16(16), new byte[4], int32(48_000 << 16)),
+                        fullBox("stts", int32(1), int32(469), int32(1024)),
+                        fullBox("stsc", int32(1), int32(1), int32(469), int32(1)),
+                        fullBox("stsz", int32(500), int32(469)),
+                        fullBox("stco", int32(1), int32((int) MP4_MEDIA_START + 10 * 120_000))));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(ftyp));
+            ByteBuffer mdatHeader = ByteBuffer.allocate(16).putInt(1).put(ascii("mdat")).putLong(16 + mediaBytes).flip();
+            channel.write(mdatHeader);
+            channel.write(ByteBuffer.wrap(moov), ftyp.length + 16 + mediaBytes);
+        }
+        return file;
+    }
+
+    /**
+     * A WebM with a 1920x1080 VP9 track at 29.97 fps and a stereo 48 kHz Opus track, 10 seconds long.
+     * @param tracksAfterMedia Put the Tracks element after the cluster instead of before it
+     */
+    public static Path webm(Path file, long mediaBytes, boolean tracksAfterMedia) throws IOException {
+        byte[] header = element(0x1A45DFA3, element(0x4282, ascii("webm")));
+        byte[] info = element(0x1549A966,
+                element(0x2AD7B1, int32(1_000_000)),
+                element(0x4489, ByteBuffer.allocate(8).putDouble(10_000).array()));
+        byte[] tracks = element(0x1654AE6B,
+                element(0xAE, element(0xD7, new byte[]{1}), element(0x83, new byte[]{1}), element(0x86, ascii("V_VP9")),
+                        element(0x23E383, int32(33_366_667)),
+                        element(0xE0, element(0xB0, int16(1920)), element(0xBA, int16(1080)))),
+                element(0xAE, element(0xD7, new byte[]{2}), element(0x83, new byte[]{2}), element(0x86, ascii("A_OPUS")),
+                        element(0xE1, element(0xB5, ByteBuffer.allocate(4).putFloat(48_000).array()), element(0x9F, new byte[]{2}))));
+        ByteBuffer segmentHeader = ByteBuffer.allocate(12).putInt(0x18538067).put((byte) 0x01)
+                .put(new byte[]{-1, -1, -1, -1, -1, -1, -1}).flip(); // unknown size, as when muxing live
+        ByteBuffer clusterHeader = ByteBuffer.allocate(12).putInt(0x1F43B675).putLong(0x0100000000000000L | mediaBytes).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(header));
+            channel.write(segmentHeader);
+            channel.write(ByteBuffer.wrap(info));
+            if (!tracksAfterMedia) {
+                channel.write(ByteBuffer.wrap(tracks));
+            }
+            channel.write(clusterHeader);
+            channel.write(ByteBuffer.wrap(tracksAfterMedia ? tracks : new byte[0]), channel.position() + mediaBytes);
+            if (!tracksAfterMedia && mediaBytes > 0) {
+                channel.write(ByteBuffer.allocate(1), channel.position() + mediaBytes - 1);
+            }
+        }
+        return file;
+    }
+
+    private static byte[] track(byte[] tkhd, int duration, int timescale, String handler, byte[] sampleEntry,
+                                byte[]... sampleTables) {
+        return box("trak", tkhd, box("mdia",
+                fullBox("mdhd", int32(0), int32(0), int32(timescale), int32(duration), new byte[4]),
+                fullBox("hdlr", int32(0), ascii(handler), new byte[13]),
+                box("minf", box("stbl", fullBox("stsd", int32(1), sampleEntry), concat(sampleTables)))));
+    }
+
+    private static byte[] chunkOffsets(int chunks, int chunkBytes) {
+        byte[][] offsets = new byte[chunks][];
+        for (int i = 0; i < chunks; i++) {
+            offsets[i] = int32((int) MP4_MEDIA_START + i * chunkBytes);
+        }
+        return concat(offsets);
+    }
+
+    private static byte[] fullBox(String type, byte[]... body) {
+        byte[][] withVersion = new byte[body.length + 1][];
+        withVersion[0] = int32(0);
+        System.arraycopy(body, 0, withVersion, 1, body.length);
+        return box(type, withVersion);
+    }
+
+    private static byte[] box(String type, byte[]... body) {
+        byte[] content = concat(body);
+        return concat(int32(content.length + 8), ascii(type), content);
+    }
+
+    /** An EBML element with an 8 byte size. */
+    private static byte[] element(int id, byte[]... body) {
+        byte[] content = concat(body);
+        byte[] idBytes = ByteBuffer.allocate(4).putInt(id).array();
+        int skip = id > 0xFFFFFF ? 0 : id > 0xFFFF ? 1 : id > 0xFF ? 2 : 3;
+        byte[] trimmedId = Arrays.copyOfRange(idBytes, skip, 4);
+        return concat(trimmedId, ByteBuffer.allocate(8).putLong(0x0100000000000000L | content.length).array(), content);
+    }
+
+    private static byte[] repeat(byte[] bytes, int times) {
+        byte[][] copies = new byte[times][];
+        Arrays.fill(copies, bytes);
+        return concat(copies);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private static byte[] int16(int value) {
+        return ByteBuffer.allocate(2).putShort((short) value).array();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
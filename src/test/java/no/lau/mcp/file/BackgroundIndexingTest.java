@@ -0,0 +1,44 @@
+package no.lau.mcp.file;
+
+import no.lau.mcp.ffmpeg.FileHasher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackgroundIndexingTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testProvisionalIdResolvesBeforeAndAfterHashing() throws Exception {
+        Path sources = Files.createDirectory(tempDir.resolve("sources"));
+        Path video = Files.writeString(sources.resolve("video.mp4"), "frames").toAbsolutePath();
+        String provisionalId = BackgroundIndexing.provisionalId(video);
+        String contentHash = FileHasher.getMd5Hash(video);
+
+        FileManagerImpl fileManager = new FileManagerImpl(sources.toString(), tempDir.resolve("outputs").toString(),
+                new SourceIndexer(SourceIndexer.Mode.FORK_JOIN, 2, 1, true));
+
+        // Referencing the provisional ID hashes on demand if the background worker has not done so yet
+        assertEquals("-i " + video, fileManager.replaceVideoReferences("-i {{" + provisionalId + "}}"));
+        assertEquals(IndexingState.INDEXED, fileManager.indexingState(provisionalId));
+        assertEquals(video, fileManager.videoReferences().get(contentHash));
+        assertFalse(fileManager.videoReferences().containsKey(provisionalId));
+        assertEquals(video, fileManager.resolveVideoReference(provisionalId));
+    }
+
+    @Test
+    public void testUnknownReferenceStillFails() throws Exception {
+        Path sources = Files.createDirectory(tempDir.resolve("sources"));
+        FileManagerImpl fileManager = new FileManagerImpl(sources.toString(), tempDir.resolve("outputs").toString(),
+                new SourceIndexer(SourceIndexer.Mode.SEQUENTIAL, 1, 1, true));
+
+        assertNull(fileManager.indexingState("missing"));
+        assertThrows(IllegalArgumentException.class, () -> fileManager.replaceVideoReferences("-i {{missing}}"));
+    }
+}
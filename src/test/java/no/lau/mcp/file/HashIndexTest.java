@@ -0,0 +1,119 @@
+package no.lau.mcp.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testEntriesSurviveReopen() throws IOException {
+        Path indexFile = tempDir.resolve("sources.hashindex");
+        Path video = Files.writeString(tempDir.resolve("video.mp4"), "frames");
+
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            assertNull(index.lookup(video, attrs(video)));
+            index.record(video, attrs(video), "abc123");
+        }
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            assertEquals("abc123", index.lookup(video, attrs(video)));
+        }
+    }
+
+    @Test
+    public void testFullHashSurvivesReopenUntilTheFileChanges() throws IOException {
+        Path indexFile = tempDir.resolve("sources.sampled.hashindex");
+        Path video = Files.writeString(tempDir.resolve("video.mp4"), "frames");
+
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            index.recordFullHash(video, attrs(video), "ignored, no fingerprint yet");
+            index.record(video, attrs(video), "sampled1");
+            index.recordFullHash(video, attrs(video), "full1");
+            index.record(video, attrs(video), "sampled1"); // same content keeps the full hash
+        }
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            assertEquals("sampled1", index.lookup(video, attrs(video)));
+            assertEquals("full1", index.lookupFullHash(video, attrs(video)));
+            Files.writeString(video, "more frames", StandardOpenOption.APPEND);
+            index.record(video, attrs(video), "sampled2");
+            assertNull(index.lookupFullHash(video, attrs(video)));
+        }
+    }
+
+    @Test
+    public void testChangedFileIsNotTrusted() throws IOException {
+        Path video = Files.writeString(tempDir.resolve("video.mp4"), "frames");
+        try (HashIndex index = HashIndex.open(tempDir.resolve("sources.hashindex"))) {
+            index.record(video, attrs(video), "abc123");
+            Files.writeString(video, "more frames", StandardOpenOption.APPEND);
+            assertNull(index.lookup(video, attrs(video)));
+        }
+    }
+
+    @Test
+    public void testTornTailIsDiscardedAndLogStaysUsable() throws IOException {
+        Path indexFile = tempDir.resolve("sources.hashindex");
+        Path first = Files.writeString(tempDir.resolve("first.mp4"), "1");
+        Path second = Files.writeString(tempDir.resolve("second.mp4"), "2");
+
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            index.record(first, attrs(first), "hash1");
+        }
+        // Simulate a crash halfway through appending a record
+        Files.write(indexFile, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            assertEquals("hash1", index.lookup(first, attrs(first)));
+            index.record(second, attrs(second), "hash2");
+        }
+        try (HashIndex index = HashIndex.open(indexFile)) {
+            assertEquals("hash1", index.lookup(first, attrs(first)));
+            assertEquals("hash2", index.lookup(second, attrs(second)));
+        }
+    }
+
+    @Test
+    public void testRetainOnlyForgetsDeletedFiles() throws IOException {
+        Path kept = Files.writeString(tempDir.resolve("kept.mp4"), "1");
+        Path gone = Files.writeString(tempDir.resolve("gone.mp4"), "2");
+        try (HashIndex index = HashIndex.open(tempDir.resolve("sources.hashindex"))) {
+            index.record(kept, attrs(kept), "hash1");
+            index.record(gone, attrs(gone), "hash2");
+            index.retainOnly(Set.of(kept));
+            assertEquals(1, index.size());
+            index.remove(kept);
+            index.remove(gone);
+            assertEquals(0, index.size());
+        }
+    }
+
+    @Test
+    public void testIndexerUsesCachedHashes() throws IOException {
+        Path sourceFolder = Files.createDirectory(tempDir.resolve("sources"));
+        Path video = Files.writeString(sourceFolder.resolve("video.mp4"), "frames").toAbsolutePath();
+        try (HashIndex index = HashIndex.forSourceFolder(sourceFolder)) {
+            index.record(video, attrs(video), "cached-hash");
+        }
+        assertTrue(Files.exists(tempDir.resolve("sources" + HashIndex.FILE_SUFFIX)));
+
+        try (HashIndex index = HashIndex.forSourceFolder(sourceFolder)) {
+            assertEquals(Map.of("cached-hash", video), SourceIndexer.sequential().index(sourceFolder, index));
+        }
+    }
+
+    private static BasicFileAttributes attrs(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
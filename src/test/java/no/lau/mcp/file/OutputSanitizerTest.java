@@ -0,0 +1,76 @@
+package no.lau.mcp.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class OutputSanitizerTest {
+
+    @Test
+    public void testReplacesEveryOccurrence() {
+        OutputSanitizer sanitizer = OutputSanitizer.of(Map.of(
+                "a", Path.of("/videos/a.mp4"),
+                "b", Path.of("/videos/b.mp4")));
+
+        assertEquals("Input #0, from '{{a}}':\nOutput #0, to '{{b}}'\n{{a}}{{b}}",
+                sanitizer.sanitize("Input #0, from '/videos/a.mp4':\nOutput #0, to '/videos/b.mp4'\n/videos/a.mp4/videos/b.mp4"));
+    }
+
+    @Test
+    public void testLongestPathWinsOverItsPrefix() {
+        Map<String, Path> references = new LinkedHashMap<>();
+        references.put("short", Path.of("/videos/clip.mp4"));
+        references.put("long", Path.of("/videos/clip.mp4.bak"));
+        references.put("other", Path.of("/videos/clip.mkv"));
+        OutputSanitizer sanitizer = OutputSanitizer.of(references);
+
+        assertEquals("{{long}} {{short}} {{other}} /videos/clip.m",
+                sanitizer.sanitize("/videos/clip.mp4.bak /videos/clip.mp4 /videos/clip.mkv /videos/clip.m"));
+    }
+
+    @Test
+    public void testOverlappingPathsPreferLeftmostMatch() {
+        Map<String, Path> references = new LinkedHashMap<>();
+        references.put("ab", Path.of("/x/ab"));
+        references.put("b", Path.of("/x/b"));
+        OutputSanitizer sanitizer = OutputSanitizer.of(references);
+
+        assertEquals("/x/{{b}}", sanitizer.sanitize("/x//x/b"));
+        assertEquals("{{ab}}{{b}}c", sanitizer.sanitize("/x/ab/x/bc"));
+        assertEquals("/x/a{{b}}", sanitizer.sanitize("/x/a/x/b"));
+    }
+
+    @Test
+    public void testUnchangedOutputIsReturnedAsIs() {
+        String output = "frame=  100 fps=25 q=28.0 size=    256kB";
+        assertSame(output, OutputSanitizer.of(Map.of("a", Path.of("/videos/a.mp4"))).sanitize(output));
+        assertSame(output, OutputSanitizer.of(Map.of()).sanitize(output));
+    }
+
+    @Test
+    public void testMatchesLegacyReplacementForDistinctPaths() {
+        Random random = new Random(7);
+        Map<String, Path> references = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            references.put("id" + i, Path.of("/library/folder" + (i % 13) + "/video-" + i + ".mp4"));
+        }
+        StringBuilder output = new StringBuilder();
+        for (int line = 0; line < 2000; line++) {
+            output.append("[info] opening '/library/folder").append(random.nextInt(13))
+                    .append("/video-").append(random.nextInt(600)).append(".mp4' done\n");
+        }
+
+        String expected = output.toString();
+        for (Map.Entry<String, Path> entry : references.entrySet()) {
+            expected = expected.replace(entry.getValue().toString(), "{{" + entry.getKey() + "}}");
+        }
+        assertEquals(expected, OutputSanitizer.of(references).sanitize(output.toString()));
+    }
+}
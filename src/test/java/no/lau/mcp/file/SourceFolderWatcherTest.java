@@ -0,0 +1,53 @@
+package no.lau.mcp.file;
+
+import no.lau.mcp.ffmpeg.FileHasher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SourceFolderWatcherTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testAddedChangedAndDeletedFilesAreTracked() throws Exception {
+        Path sources = Files.createDirectory(tempDir.resolve("sources"));
+        Path existing = Files.writeString(sources.resolve("existing.mp4"), "old frames").toAbsolutePath();
+
+        try (FileManagerImpl fileManager = new FileManagerImpl(sources.toString(), tempDir.resolve("outputs").toString(),
+                SourceIndexer.sequential())) {
+            fileManager.watchSourceFolder(Duration.ofMillis(50));
+
+            Path added = Files.writeString(sources.resolve("added.mp4"), "new frames").toAbsolutePath();
+            String addedHash = FileHasher.getMd5Hash(added);
+            awaitTrue(() -> added.equals(fileManager.videoReferences().get(addedHash)));
+
+            String oldHash = FileHasher.getMd5Hash(existing);
+            Files.writeString(existing, "re-encoded frames");
+            String newHash = FileHasher.getMd5Hash(existing);
+            awaitTrue(() -> existing.equals(fileManager.videoReferences().get(newHash)));
+            assertFalse(fileManager.videoReferences().containsKey(oldHash));
+
+            Files.delete(added);
+            awaitTrue(() -> !fileManager.videoReferences().containsKey(addedHash));
+            assertEquals(1, fileManager.videoReferences().size());
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Condition not met in time");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
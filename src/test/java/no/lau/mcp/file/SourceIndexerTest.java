@@ -0,0 +1,93 @@
+package no.lau.mcp.file;
+
+import no.lau.mcp.ffmpeg.FileHasher;
+import no.lau.mcp.ffmpeg.SampledFingerprinter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SourceIndexerTest {
+
+    @TempDir
+    Path sourceFolder;
+
+    @Test
+    public void testParallelModesProduceSameMapAsSequential() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            Files.writeString(sourceFolder.resolve("video" + i + ".mp4"), "content " + (i % 30));
+        }
+        Files.createDirectory(sourceFolder.resolve("subfolder"));
+
+        Map<String, Path> sequential = SourceIndexer.sequential().index(sourceFolder);
+        assertEquals(30, sequential.size());
+
+        assertEquals(sequential, new SourceIndexer(SourceIndexer.Mode.FORK_JOIN, 4, 2).index(sourceFolder));
+        assertEquals(sequential, new SourceIndexer(SourceIndexer.Mode.VIRTUAL_THREADS, 4, 3).index(sourceFolder));
+    }
+
+    @Test
+    public void testSampledFingerprintCollisionFallsBackToFullHash() throws IOException {
+        byte[] content = new byte[4096 * 10];
+        Files.write(sourceFolder.resolve("a.mp4"), content);
+        content[4096 * 2] = 1; // outside every sample
+        Files.write(sourceFolder.resolve("b.mp4"), content);
+        Files.write(sourceFolder.resolve("c.mp4"), content);
+
+        SourceIndexer indexer = new SourceIndexer(SourceIndexer.Mode.SEQUENTIAL, 1, 1, false, new SampledFingerprinter(4096));
+        HashIndex hashIndex = HashIndex.inMemory();
+        Map<String, Path> references = indexer.index(sourceFolder, hashIndex);
+
+        // a and b collide on samples but differ, b and c are identical
+        String fingerprint = indexer.fingerprinter().fingerprint(sourceFolder.resolve("a.mp4"));
+        Path a = sourceFolder.resolve("a.mp4").toAbsolutePath();
+        Path c = sourceFolder.resolve("c.mp4").toAbsolutePath();
+        assertEquals(Map.of(fingerprint + "-" + FileHasher.getMd5Hash(a), a, fingerprint + "-" + FileHasher.getMd5Hash(c), c),
+                references);
+        assertEquals(FileHasher.getMd5Hash(a), hashIndex.lookupFullHash(a, Files.readAttributes(a, BasicFileAttributes.class)));
+    }
+
+    @Test
+    public void testCollisionKeysDoNotDependOnRegistrationOrder() throws IOException {
+        byte[] content = new byte[4096 * 10];
+        Path a = Files.write(sourceFolder.resolve("a.mp4"), content).toAbsolutePath();
+        content[4096 * 2] = 1; // outside every sample
+        Path b = Files.write(sourceFolder.resolve("b.mp4"), content).toAbsolutePath();
+        SourceIndexer indexer = new SourceIndexer(SourceIndexer.Mode.SEQUENTIAL, 1, 1, true, new SampledFingerprinter(4096));
+        HashIndex hashIndex = HashIndex.inMemory();
+        String fingerprint = indexer.hash(a, hashIndex, null);
+        assertEquals(fingerprint, indexer.hash(b, hashIndex, null));
+
+        VideoRegistry forward = new VideoRegistry();
+        assertEquals(fingerprint, indexer.register(fingerprint, a, forward, hashIndex));
+        forward.put("pending-b", b);
+        assertEquals(fingerprint + "-" + FileHasher.getMd5Hash(b), indexer.register(fingerprint, b, forward, hashIndex));
+
+        VideoRegistry backward = new VideoRegistry();
+        indexer.register(fingerprint, b, backward, hashIndex);
+        indexer.register(fingerprint, a, backward, hashIndex);
+
+        // The first file moved off the bare fingerprint once the second collided with it
+        assertEquals(Map.of(fingerprint + "-" + FileHasher.getMd5Hash(a), a, fingerprint + "-" + FileHasher.getMd5Hash(b), b),
+                forward.snapshot().references());
+        assertEquals(forward.snapshot().references(), backward.snapshot().references());
+    }
+
+    @Test
+    public void testEmptyFolder() {
+        assertEquals(Map.of(), new SourceIndexer(SourceIndexer.Mode.FORK_JOIN, 2, 2).index(sourceFolder));
+    }
+
+    @Test
+    public void testInvalidConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> new SourceIndexer(SourceIndexer.Mode.FORK_JOIN, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new SourceIndexer(null, 1, 1));
+    }
+}
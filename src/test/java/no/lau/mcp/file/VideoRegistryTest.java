@@ -0,0 +1,107 @@
+package no.lau.mcp.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VideoRegistryTest {
+
+    @Test
+    public void testSnapshotsAreImmutableAndVersioned() {
+        VideoRegistry registry = new VideoRegistry();
+        Path video = Path.of("/tmp/video.mp4");
+
+        VideoRegistry.Snapshot before = registry.snapshot();
+        registry.put("a", video);
+        VideoRegistry.Snapshot after = registry.snapshot();
+
+        assertFalse(before.contains("a"));
+        assertTrue(after.contains("a"));
+        assertEquals(before.version() + 1, after.version());
+        assertThrows(UnsupportedOperationException.class, () -> after.references().put("b", video));
+
+        registry.put("a", video); // no-op
+        assertEquals(after.version(), registry.snapshot().version());
+    }
+
+    @Test
+    public void testReadersShareASnapshotUntilTheNextChange() {
+        VideoRegistry registry = new VideoRegistry();
+        Path video = Path.of("/tmp/video.mp4");
+        for (int i = 0; i < 1000; i++) {
+            registry.put("id" + i, video);
+        }
+
+        VideoRegistry.Snapshot snapshot = registry.snapshot();
+        assertSame(snapshot, registry.snapshot());
+        assertEquals(1000, snapshot.version());
+
+        registry.putAll(Map.of("id1", video, "id2", video)); // no-op
+        registry.remove("id1", Path.of("/tmp/other.mp4")); // no-op
+        assertSame(snapshot, registry.snapshot());
+
+        registry.putAll(Map.of("id1", video, "new", video));
+        assertEquals(1001, registry.snapshot().version());
+        assertEquals(1001, registry.snapshot().references().size());
+    }
+
+    @Test
+    public void testRenameMovesPathInOneStep() {
+        VideoRegistry registry = new VideoRegistry();
+        Path video = Path.of("/tmp/video.mp4");
+        registry.put("pending-1", video);
+
+        registry.rename("pending-1", "abc", video);
+
+        VideoRegistry.Snapshot snapshot = registry.snapshot();
+        assertEquals(1, snapshot.references().size());
+        assertEquals(video, snapshot.get("abc"));
+        assertEquals("ffmpeg -i /tmp/video.mp4", snapshot.resolve("ffmpeg -i {{abc}}"));
+    }
+
+    @Test
+    public void testRemovePathFollowsRenames() {
+        VideoRegistry registry = new VideoRegistry();
+        Path video = Path.of("/tmp/video.mp4");
+        Path other = Path.of("/tmp/other.mp4");
+        registry.put("pending-1", video);
+        registry.put("alias", video);
+        registry.put("abc", other);
+        registry.rename("pending-1", "abc", video);
+
+        assertTrue(registry.removePath(video));
+        assertEquals(Map.of(), registry.snapshot().references());
+        assertFalse(registry.removePath(video));
+        assertFalse(registry.removePath(other)); // replaced by the rename
+    }
+
+    @Test
+    public void testConcurrentWritersDoNotLoseUpdates() throws InterruptedException {
+        VideoRegistry registry = new VideoRegistry();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int offset = t * 100;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    registry.put("id" + (offset + i), Path.of("/tmp/" + (offset + i)));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800, registry.snapshot().references().size());
+        assertEquals(800, registry.snapshot().version());
+    }
+}